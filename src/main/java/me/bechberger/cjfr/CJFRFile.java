@@ -75,6 +75,7 @@ public final class CJFRFile implements AutoCloseable {
         Optional<CJFRFooter> footer = CJFRFooterReader.tryRead(path);
         InputStream stream = Files.newInputStream(path);
         CondensedInputStream in = new CondensedInputStream(stream);
+        in.searchDictionariesNextTo(path);
         BasicJFRReader reader = new BasicJFRReader(in, options.toReaderOptions());
         return new CJFRFile(path, reader, stream, footer.orElse(null), options);
     }
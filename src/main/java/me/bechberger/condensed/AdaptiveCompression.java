@@ -0,0 +1,58 @@
+package me.bechberger.condensed;
+
+import me.bechberger.condensed.Compression.CompressionLevel;
+
+/**
+ * Settings for adapting the compression level to the writer throughput, see {@link
+ * AdaptiveCompressionOutputStream}
+ *
+ * @param cpuBudget maximum fraction of the writer's wall-clock time that is spent compressing, e.g.
+ *     {@code 0.1} for 10% of one core
+ * @param minLevel level used when compression takes too long even at lower levels
+ * @param maxLevel level used when there is CPU time to spare
+ * @param blockSize number of uncompressed bytes between two level decisions
+ */
+public record AdaptiveCompression(
+        double cpuBudget, CompressionLevel minLevel, CompressionLevel maxLevel, int blockSize) {
+
+    public static final double DEFAULT_CPU_BUDGET = 0.1;
+
+    /** Same as the LZ4 block size, smaller blocks would only measure the LZ4 buffering */
+    public static final int DEFAULT_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    public static final AdaptiveCompression DEFAULT = of(DEFAULT_CPU_BUDGET);
+
+    public AdaptiveCompression {
+        if (!(cpuBudget > 0 && cpuBudget <= 1)) {
+            throw new IllegalArgumentException("CPU budget must be in (0, 1]: " + cpuBudget);
+        }
+        if (minLevel.compareTo(maxLevel) > 0) {
+            throw new IllegalArgumentException(
+                    "Minimum level " + minLevel + " is above maximum level " + maxLevel);
+        }
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+    }
+
+    /** Use all levels and the default block size */
+    public static AdaptiveCompression of(double cpuBudget) {
+        return new AdaptiveCompression(
+                cpuBudget,
+                CompressionLevel.FAST,
+                CompressionLevel.MAX_COMPRESSION,
+                DEFAULT_BLOCK_SIZE);
+    }
+
+    public AdaptiveCompression withBlockSize(int blockSize) {
+        return new AdaptiveCompression(cpuBudget, minLevel, maxLevel, blockSize);
+    }
+
+    /** Clamp the level into {@code [minLevel, maxLevel]} */
+    CompressionLevel clamp(CompressionLevel level) {
+        if (level.compareTo(minLevel) < 0) {
+            return minLevel;
+        }
+        return level.compareTo(maxLevel) > 0 ? maxLevel : level;
+    }
+}
@@ -0,0 +1,171 @@
+package me.bechberger.condensed;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import me.bechberger.condensed.Compression.CompressionLevel;
+import me.bechberger.condensed.Compression.LevelAdjustable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Compressing stream that switches the compression level at block boundaries to keep the time spent
+ * compressing within a {@link AdaptiveCompression#cpuBudget() CPU budget}.
+ *
+ * <p>Data is collected into blocks of {@link AdaptiveCompression#blockSize()} bytes, and every
+ * block is passed to the compressor in one call. After each block, the time spent in the compressor
+ * is compared to the wall-clock time since the previous block: the level is lowered when
+ * compressing takes more than the budget and raised when it takes less than half of it. A writer
+ * that falls behind (a growing backlog of events) produces blocks faster, so the share of
+ * compression time grows and the level goes down.
+ *
+ * <p>Compressors that implement {@link LevelAdjustable} change their level in place, for all others
+ * the current frame is finished and a new one with the new level started; the readers of all such
+ * compressions support concatenated frames.
+ */
+class AdaptiveCompressionOutputStream extends OutputStream {
+
+    private final Compression compression;
+    private final @Nullable CompressionDictionary dictionary;
+    private final AdaptiveCompression settings;
+
+    /** Non-closing sink, the compressor of every frame writes to it */
+    private final OutputStream sink;
+
+    private final LongSupplier nanoClock;
+
+    private OutputStream compressor;
+    private CompressionLevel level;
+
+    private final byte[] block;
+    private int blockLength = 0;
+
+    /** Time spent compressing and start of the current decision window */
+    private long compressNanos = 0;
+
+    private long windowStartNanos;
+    private long windowBytes = 0;
+
+    private final Map<CompressionLevel, Long> bytesPerLevel = new EnumMap<>(CompressionLevel.class);
+
+    AdaptiveCompressionOutputStream(
+            OutputStream sink,
+            Compression compression,
+            CompressionLevel initialLevel,
+            @Nullable CompressionDictionary dictionary,
+            AdaptiveCompression settings) {
+        this(sink, compression, initialLevel, dictionary, settings, System::nanoTime);
+    }
+
+    /** Constructor with a custom clock, for testing */
+    AdaptiveCompressionOutputStream(
+            OutputStream sink,
+            Compression compression,
+            CompressionLevel initialLevel,
+            @Nullable CompressionDictionary dictionary,
+            AdaptiveCompression settings,
+            LongSupplier nanoClock) {
+        this.sink = sink;
+        this.nanoClock = nanoClock;
+        this.windowStartNanos = nanoClock.getAsLong();
+        this.compression = compression;
+        this.dictionary = dictionary;
+        this.settings = settings;
+        this.level = settings.clamp(initialLevel);
+        this.block = new byte[settings.blockSize()];
+        this.compressor = compression.wrap(sink, level, dictionary);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (blockLength == block.length) {
+            writeBlock();
+        }
+        block[blockLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte @NotNull [] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (blockLength == block.length) {
+                writeBlock();
+            }
+            int n = Math.min(len, block.length - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Pass the collected bytes to the compressor and adapt the level if a block is complete */
+    private void writeBlock() throws IOException {
+        if (blockLength == 0) {
+            return;
+        }
+        long start = nanoClock.getAsLong();
+        compressor.write(block, 0, blockLength);
+        long end = nanoClock.getAsLong();
+        compressNanos += end - start;
+        windowBytes += blockLength;
+        bytesPerLevel.merge(level, (long) blockLength, Long::sum);
+        blockLength = 0;
+        if (windowBytes >= block.length) {
+            adapt(end);
+        }
+    }
+
+    private void adapt(long now) throws IOException {
+        long wallNanos = Math.max(1, now - windowStartNanos);
+        double share = (double) compressNanos / wallNanos;
+        CompressionLevel[] levels = CompressionLevel.values();
+        CompressionLevel next = level;
+        if (share > settings.cpuBudget()) {
+            next = settings.clamp(levels[Math.max(0, level.ordinal() - 1)]);
+        } else if (share < settings.cpuBudget() / 2) {
+            next = settings.clamp(levels[Math.min(levels.length - 1, level.ordinal() + 1)]);
+        }
+        compressNanos = 0;
+        windowBytes = 0;
+        windowStartNanos = now;
+        if (next != level) {
+            switchLevel(next);
+        }
+    }
+
+    private void switchLevel(CompressionLevel next) throws IOException {
+        if (compressor instanceof LevelAdjustable adjustable) {
+            adjustable.setLevel(next);
+        } else {
+            compressor.close();
+            compressor = compression.wrap(sink, next, dictionary);
+        }
+        level = next;
+    }
+
+    CompressionLevel getLevel() {
+        return level;
+    }
+
+    /** Uncompressed bytes per level name, ordered by level */
+    Map<String, Long> getBytesPerLevel() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        bytesPerLevel.forEach((l, bytes) -> result.put(l.name(), bytes));
+        return result;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        compressor.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeBlock();
+        compressor.close();
+    }
+}
@@ -54,7 +54,29 @@ public record CJFRFooter(
          * stream). Filled in by {@link CondensedOutputStream#writeFooter} just before
          * serialization; 0 when constructed by the collector before the stream is finalized.
          */
-        long mainStreamCrc32) {
+        long mainStreamCrc32,
+        /**
+         * Compression level name → uncompressed bytes compressed at that level, filled in by {@link
+         * CondensedOutputStream#writeFooter} when the stream used {@link AdaptiveCompression}.
+         * Empty otherwise and in files that predate this field (flag bit 64 unset).
+         */
+        Map<String, Long> compressionLevelBytes,
+        /**
+         * Type name → final size, entries, hits and misses of its writing cache, filled in by
+         * {@link CondensedOutputStream#writeFooter} for the caches that evicted values, as only
+         * these are affected by the cache sizes. Empty in files that predate this field (flag bit
+         * 128 unset).
+         */
+        Map<String, Universe.CacheStats> writingCacheStats,
+        /**
+         * Event-type name → events that the agent's throttle dropped instead of writing them, so
+         * that analyses can scale their estimates. Stored in the extension flags after the other
+         * fields, empty in files that predate this field (extension bit 1 unset).
+         */
+        Map<String, Long> droppedEvents) {
+
+    /** Bit in the extension flags that follow the fields of the flags byte */
+    private static final int EXT_DROPPED_EVENTS = 1;
 
     public static final int CURRENT_VERSION = 2;
     public static final int FOOTER_TYPE_ID = 7;
@@ -77,6 +99,99 @@ public record CJFRFooter(
         public static final int TAG_NULL = 4;
     }
 
+    public CJFRFooter(
+            int version,
+            long totalEvents,
+            long startTimeMicros,
+            long durationMicros,
+            Map<String, Long> eventCounts,
+            @Nullable GcStats gcStats,
+            @Nullable CpuStats cpuStats,
+            @Nullable AllocStats allocStats,
+            Map<String, List<PrecomputedCell>> precomputedViews,
+            Map<String, String> eventTypeLabels,
+            Map<String, Long> eventTypeJfrIds,
+            long mainStreamCrc32) {
+        this(
+                version,
+                totalEvents,
+                startTimeMicros,
+                durationMicros,
+                eventCounts,
+                gcStats,
+                cpuStats,
+                allocStats,
+                precomputedViews,
+                eventTypeLabels,
+                eventTypeJfrIds,
+                mainStreamCrc32,
+                Map.of());
+    }
+
+    public CJFRFooter(
+            int version,
+            long totalEvents,
+            long startTimeMicros,
+            long durationMicros,
+            Map<String, Long> eventCounts,
+            @Nullable GcStats gcStats,
+            @Nullable CpuStats cpuStats,
+            @Nullable AllocStats allocStats,
+            Map<String, List<PrecomputedCell>> precomputedViews,
+            Map<String, String> eventTypeLabels,
+            Map<String, Long> eventTypeJfrIds,
+            long mainStreamCrc32,
+            Map<String, Long> compressionLevelBytes) {
+        this(
+                version,
+                totalEvents,
+                startTimeMicros,
+                durationMicros,
+                eventCounts,
+                gcStats,
+                cpuStats,
+                allocStats,
+                precomputedViews,
+                eventTypeLabels,
+                eventTypeJfrIds,
+                mainStreamCrc32,
+                compressionLevelBytes,
+                Map.of());
+    }
+
+    public CJFRFooter(
+            int version,
+            long totalEvents,
+            long startTimeMicros,
+            long durationMicros,
+            Map<String, Long> eventCounts,
+            @Nullable GcStats gcStats,
+            @Nullable CpuStats cpuStats,
+            @Nullable AllocStats allocStats,
+            Map<String, List<PrecomputedCell>> precomputedViews,
+            Map<String, String> eventTypeLabels,
+            Map<String, Long> eventTypeJfrIds,
+            long mainStreamCrc32,
+            Map<String, Long> compressionLevelBytes,
+            Map<String, Universe.CacheStats> writingCacheStats) {
+        this(
+                version,
+                totalEvents,
+                startTimeMicros,
+                durationMicros,
+                eventCounts,
+                gcStats,
+                cpuStats,
+                allocStats,
+                precomputedViews,
+                eventTypeLabels,
+                eventTypeJfrIds,
+                mainStreamCrc32,
+                compressionLevelBytes,
+                writingCacheStats,
+                Map.of());
+    }
+
     public CJFRFooter withMainStreamCrc32(long crc) {
         return new CJFRFooter(
                 version,
@@ -90,7 +205,10 @@ public record CJFRFooter(
                 precomputedViews,
                 eventTypeLabels,
                 eventTypeJfrIds,
-                crc);
+                crc,
+                compressionLevelBytes,
+                writingCacheStats,
+                droppedEvents);
     }
 
     /** Return a copy carrying {@code labels} as the event-type name → {@code @Label} map. */
@@ -107,7 +225,10 @@ public record CJFRFooter(
                 precomputedViews,
                 labels,
                 eventTypeJfrIds,
-                mainStreamCrc32);
+                mainStreamCrc32,
+                compressionLevelBytes,
+                writingCacheStats,
+                droppedEvents);
     }
 
     /** Return a copy carrying {@code ids} as the event-type name → JFR class ID map. */
@@ -124,7 +245,70 @@ public record CJFRFooter(
                 precomputedViews,
                 eventTypeLabels,
                 ids,
-                mainStreamCrc32);
+                mainStreamCrc32,
+                compressionLevelBytes,
+                writingCacheStats,
+                droppedEvents);
+    }
+
+    /** Return a copy carrying {@code bytes} as the compression level → uncompressed bytes map. */
+    public CJFRFooter withCompressionLevelBytes(Map<String, Long> bytes) {
+        return new CJFRFooter(
+                version,
+                totalEvents,
+                startTimeMicros,
+                durationMicros,
+                eventCounts,
+                gcStats,
+                cpuStats,
+                allocStats,
+                precomputedViews,
+                eventTypeLabels,
+                eventTypeJfrIds,
+                mainStreamCrc32,
+                bytes,
+                writingCacheStats,
+                droppedEvents);
+    }
+
+    /** Return a copy carrying {@code stats} as the type name → writing cache statistics map. */
+    public CJFRFooter withWritingCacheStats(Map<String, Universe.CacheStats> stats) {
+        return new CJFRFooter(
+                version,
+                totalEvents,
+                startTimeMicros,
+                durationMicros,
+                eventCounts,
+                gcStats,
+                cpuStats,
+                allocStats,
+                precomputedViews,
+                eventTypeLabels,
+                eventTypeJfrIds,
+                mainStreamCrc32,
+                compressionLevelBytes,
+                stats,
+                droppedEvents);
+    }
+
+    /** Return a copy carrying {@code dropped} as the event-type name → dropped events map. */
+    public CJFRFooter withDroppedEvents(Map<String, Long> dropped) {
+        return new CJFRFooter(
+                version,
+                totalEvents,
+                startTimeMicros,
+                durationMicros,
+                eventCounts,
+                gcStats,
+                cpuStats,
+                allocStats,
+                precomputedViews,
+                eventTypeLabels,
+                eventTypeJfrIds,
+                mainStreamCrc32,
+                compressionLevelBytes,
+                writingCacheStats,
+                dropped);
     }
 
     public record GcStats(
@@ -188,6 +372,8 @@ public record CJFRFooter(
         if (precomputedViews != null && !precomputedViews.isEmpty()) flags |= 8;
         if (eventTypeLabels != null && !eventTypeLabels.isEmpty()) flags |= 16;
         if (eventTypeJfrIds != null && !eventTypeJfrIds.isEmpty()) flags |= 32;
+        if (compressionLevelBytes != null && !compressionLevelBytes.isEmpty()) flags |= 64;
+        if (writingCacheStats != null && !writingCacheStats.isEmpty()) flags |= (byte) 128;
         out.writeByte(flags);
 
         writeUnsignedVarInt(out, totalEvents);
@@ -196,7 +382,7 @@ public record CJFRFooter(
         writeSignedLong8(out, mainStreamCrc32);
 
         writeUnsignedVarInt(out, eventCounts.size());
-        for (var e : eventCounts.entrySet()) {
+        for (var e : sorted(eventCounts)) {
             writeString(out, e.getKey());
             writeUnsignedVarInt(out, e.getValue());
         }
@@ -206,22 +392,51 @@ public record CJFRFooter(
         if (allocStats != null) writeAllocStats(out, allocStats);
         if ((flags & 8) != 0) writePrecomputedViews(out, precomputedViews);
         if ((flags & 16) != 0) writeEventTypeLabels(out, eventTypeLabels);
-        if ((flags & 32) != 0) writeEventTypeJfrIds(out, eventTypeJfrIds);
+        if ((flags & 32) != 0) writeStringToLongMap(out, eventTypeJfrIds);
+        if ((flags & 64) != 0) writeStringToLongMap(out, compressionLevelBytes);
+        if ((flags & 128) != 0) writeWritingCacheStats(out, writingCacheStats);
+
+        // the flags byte is full, later fields are announced by extension flags, which older
+        // readers never read, so they are only written if needed
+        int extFlags = 0;
+        if (droppedEvents != null && !droppedEvents.isEmpty()) extFlags |= EXT_DROPPED_EVENTS;
+        if (extFlags != 0) {
+            writeUnsignedVarInt(out, extFlags);
+            if ((extFlags & EXT_DROPPED_EVENTS) != 0) writeStringToLongMap(out, droppedEvents);
+        }
+    }
+
+    /** Entries ordered by key, so that the bytes do not depend on the map's iteration order */
+    private static <V> Iterable<Map.Entry<String, V>> sorted(Map<String, V> map) {
+        return new TreeMap<>(map).entrySet();
     }
 
-    private static void writeEventTypeJfrIds(DataOutputStream out, Map<String, Long> ids)
+    private static void writeStringToLongMap(DataOutputStream out, Map<String, Long> map)
             throws IOException {
-        writeUnsignedVarInt(out, ids.size());
-        for (var e : ids.entrySet()) {
+        writeUnsignedVarInt(out, map.size());
+        for (var e : sorted(map)) {
             writeString(out, e.getKey());
             writeUnsignedVarInt(out, e.getValue());
         }
     }
 
+    private static void writeWritingCacheStats(
+            DataOutputStream out, Map<String, Universe.CacheStats> stats) throws IOException {
+        writeUnsignedVarInt(out, stats.size());
+        for (var e : sorted(stats)) {
+            writeString(out, e.getKey());
+            Universe.CacheStats c = e.getValue();
+            writeSignedVarInt(out, c.size());
+            writeUnsignedVarInt(out, c.entries());
+            writeUnsignedVarInt(out, c.hits());
+            writeUnsignedVarInt(out, c.misses());
+        }
+    }
+
     private static void writeEventTypeLabels(DataOutputStream out, Map<String, String> labels)
             throws IOException {
         writeUnsignedVarInt(out, labels.size());
-        for (var e : labels.entrySet()) {
+        for (var e : sorted(labels)) {
             writeString(out, e.getKey());
             writeString(out, e.getValue());
         }
@@ -230,7 +445,7 @@ public record CJFRFooter(
     private static void writePrecomputedViews(
             DataOutputStream out, Map<String, List<PrecomputedCell>> views) throws IOException {
         writeUnsignedVarInt(out, views.size());
-        for (var e : views.entrySet()) {
+        for (var e : sorted(views)) {
             writeString(out, e.getKey());
             List<PrecomputedCell> cells = e.getValue();
             writeUnsignedVarInt(out, cells.size());
@@ -253,7 +468,7 @@ public record CJFRFooter(
         writeSignedVarInt(out, g.p95GcMicros());
         writeSignedVarInt(out, g.maxGcPhasePauseMicros());
         writeUnsignedVarInt(out, g.causeCounts().size());
-        for (var e : g.causeCounts().entrySet()) {
+        for (var e : sorted(g.causeCounts())) {
             writeString(out, e.getKey());
             writeUnsignedVarInt(out, e.getValue());
         }
@@ -312,6 +527,8 @@ public record CJFRFooter(
         boolean hasPrecomputed = (flags & 8) != 0;
         boolean hasEventTypeLabels = (flags & 16) != 0;
         boolean hasEventTypeJfrIds = (flags & 32) != 0;
+        boolean hasCompressionLevelBytes = (flags & 64) != 0;
+        boolean hasWritingCacheStats = (flags & 128) != 0;
 
         long totalEvents = readUnsignedVarint(in);
         long startTimeMicros = readSignedLong8(in);
@@ -331,7 +548,14 @@ public record CJFRFooter(
                 hasPrecomputed ? readPrecomputedViews(in) : Map.of();
         Map<String, String> eventTypeLabels =
                 hasEventTypeLabels ? readEventTypeLabels(in) : Map.of();
-        Map<String, Long> eventTypeJfrIds = hasEventTypeJfrIds ? readEventTypeJfrIds(in) : Map.of();
+        Map<String, Long> eventTypeJfrIds = hasEventTypeJfrIds ? readStringToLongMap(in) : Map.of();
+        Map<String, Long> compressionLevelBytes =
+                hasCompressionLevelBytes ? readStringToLongMap(in) : Map.of();
+        Map<String, Universe.CacheStats> writingCacheStats =
+                hasWritingCacheStats ? readWritingCacheStats(in) : Map.of();
+        long extFlags = in.available() > 0 ? readUnsignedVarint(in) : 0;
+        Map<String, Long> droppedEvents =
+                (extFlags & EXT_DROPPED_EVENTS) != 0 ? readStringToLongMap(in) : Map.of();
 
         return new CJFRFooter(
                 version,
@@ -345,7 +569,24 @@ public record CJFRFooter(
                 precomputedViews,
                 eventTypeLabels,
                 eventTypeJfrIds,
-                mainStreamCrc32);
+                mainStreamCrc32,
+                compressionLevelBytes,
+                writingCacheStats,
+                droppedEvents);
+    }
+
+    private static Map<String, Universe.CacheStats> readWritingCacheStats(DataInputStream in)
+            throws IOException {
+        int count = (int) readUnsignedVarint(in);
+        Map<String, Universe.CacheStats> map = new LinkedHashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            long size = readSignedVarint(in);
+            long entries = readUnsignedVarint(in);
+            long hits = readUnsignedVarint(in);
+            map.put(name, new Universe.CacheStats(size, entries, hits, readUnsignedVarint(in)));
+        }
+        return Collections.unmodifiableMap(map);
     }
 
     private static Map<String, String> readEventTypeLabels(DataInputStream in) throws IOException {
@@ -358,14 +599,14 @@ public record CJFRFooter(
         return Collections.unmodifiableMap(labels);
     }
 
-    private static Map<String, Long> readEventTypeJfrIds(DataInputStream in) throws IOException {
+    private static Map<String, Long> readStringToLongMap(DataInputStream in) throws IOException {
         int count = (int) readUnsignedVarint(in);
-        Map<String, Long> ids = new LinkedHashMap<>(count * 2);
+        Map<String, Long> map = new LinkedHashMap<>(count * 2);
         for (int i = 0; i < count; i++) {
             String name = readString(in);
-            ids.put(name, readUnsignedVarint(in));
+            map.put(name, readUnsignedVarint(in));
         }
-        return Collections.unmodifiableMap(ids);
+        return Collections.unmodifiableMap(map);
     }
 
     private static Map<String, List<PrecomputedCell>> readPrecomputedViews(DataInputStream in)
@@ -4,12 +4,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import net.jpountz.lz4.LZ4Factory;
 import net.jpountz.lz4.LZ4FrameInputStream;
 import net.jpountz.lz4.LZ4FrameOutputStream;
 import net.jpountz.xxhash.XXHashFactory;
+import org.jetbrains.annotations.Nullable;
 
 public enum Compression {
     NONE(
@@ -29,13 +33,7 @@ public enum Compression {
                 @Override
                 public OutputStream wrap(OutputStream out, CompressionLevel level)
                         throws IOException {
-                    return new ConfigurableGZIPOutputStream(
-                            out,
-                            switch (level) {
-                                case FAST -> Deflater.BEST_SPEED;
-                                case MEDIUM -> Deflater.DEFAULT_COMPRESSION;
-                                case HIGH_COMPRESSION, MAX_COMPRESSION -> Deflater.BEST_COMPRESSION;
-                            });
+                    return new ConfigurableGZIPOutputStream(out, deflateLevel(level));
                 }
 
                 @Override
@@ -70,12 +68,154 @@ public enum Compression {
                     return new LZ4FrameInputStream(in);
                 }
             }),
+    /**
+     * Raw deflate primed with an optional {@link CompressionDictionary}, useful for small files
+     * that share most of their type and string definitions
+     */
+    DEFLATE_DICTIONARY(
+            new CompressionFactory() {
+                @Override
+                public OutputStream wrap(OutputStream out, CompressionLevel level) {
+                    return wrap(out, level, null);
+                }
+
+                @Override
+                public InputStream wrap(InputStream in) {
+                    return wrap(in, null);
+                }
+
+                @Override
+                public OutputStream wrap(
+                        OutputStream out,
+                        CompressionLevel level,
+                        @Nullable CompressionDictionary dictionary) {
+                    Deflater deflater = new Deflater(deflateLevel(level), true);
+                    if (dictionary != null) {
+                        deflater.setDictionary(dictionary.content());
+                    }
+                    return new RawDeflaterOutputStream(out, deflater);
+                }
+
+                @Override
+                public InputStream wrap(
+                        InputStream in, @Nullable CompressionDictionary dictionary) {
+                    Inflater inflater = new Inflater(true);
+                    if (dictionary != null) {
+                        inflater.setDictionary(dictionary.content());
+                    }
+                    return new InflaterInputStream(in, inflater, 64 * 1024) {
+                        @Override
+                        public void close() throws IOException {
+                            try {
+                                super.close();
+                            } finally {
+                                inf.end();
+                            }
+                        }
+                    };
+                }
+            },
+            true),
+    /**
+     * Zstandard, compresses better than LZ4 and faster than GZIP, can use a {@link
+     * CompressionDictionary}
+     */
+    ZSTD(new LazyCompressionFactory("me.bechberger.condensed.codec.ZstdCompressionFactory"), true),
     ;
 
     public interface CompressionFactory {
         OutputStream wrap(OutputStream out, CompressionLevel level) throws IOException;
 
         InputStream wrap(InputStream in) throws IOException;
+
+        /** Only compressions that {@link #usesDictionary()} use the dictionary */
+        default OutputStream wrap(
+                OutputStream out,
+                CompressionLevel level,
+                @Nullable CompressionDictionary dictionary)
+                throws IOException {
+            return wrap(out, level);
+        }
+
+        default InputStream wrap(InputStream in, @Nullable CompressionDictionary dictionary)
+                throws IOException {
+            return wrap(in);
+        }
+    }
+
+    /**
+     * Loads the actual factory on first use, for compressions whose library might be missing (e.g.
+     * stripped from minimal JARs) or has no native library for the current platform
+     */
+    private static class LazyCompressionFactory implements CompressionFactory {
+        private final String className;
+        private volatile @Nullable CompressionFactory factory;
+        private volatile @Nullable Throwable loadError;
+
+        LazyCompressionFactory(String className) {
+            this.className = className;
+        }
+
+        boolean isAvailable() {
+            try {
+                get();
+                return true;
+            } catch (RIOException e) {
+                return false;
+            }
+        }
+
+        private CompressionFactory get() {
+            CompressionFactory loaded = factory;
+            if (loaded != null) {
+                return loaded;
+            }
+            synchronized (this) {
+                if (factory == null && loadError == null) {
+                    try {
+                        factory =
+                                (CompressionFactory)
+                                        Class.forName(className)
+                                                .getDeclaredConstructor()
+                                                .newInstance();
+                    } catch (ReflectiveOperationException | LinkageError e) {
+                        loadError = e;
+                    }
+                }
+                if (factory == null) {
+                    throw new RIOException(
+                            "Compression not available in this build or on this platform: "
+                                    + className,
+                            loadError);
+                }
+                return factory;
+            }
+        }
+
+        @Override
+        public OutputStream wrap(OutputStream out, CompressionLevel level) throws IOException {
+            return get().wrap(out, level);
+        }
+
+        @Override
+        public InputStream wrap(InputStream in) throws IOException {
+            return get().wrap(in);
+        }
+
+        @Override
+        public OutputStream wrap(
+                OutputStream out,
+                CompressionLevel level,
+                @Nullable CompressionDictionary dictionary)
+                throws IOException {
+            return get().wrap(out, level, dictionary);
+        }
+
+        @Override
+        public InputStream wrap(InputStream in, @Nullable CompressionDictionary dictionary)
+                throws IOException {
+            return get().wrap(in, dictionary);
+        }
     }
 
     public enum CompressionLevel {
@@ -85,19 +225,85 @@ public enum Compression {
         MAX_COMPRESSION
     }
 
-    private static class ConfigurableGZIPOutputStream extends GZIPOutputStream {
+    /**
+     * Compressing stream that can change its level for the data written after the call, without
+     * starting a new frame
+     */
+    public interface LevelAdjustable {
+        void setLevel(CompressionLevel level);
+    }
+
+    private static class ConfigurableGZIPOutputStream extends GZIPOutputStream
+            implements LevelAdjustable {
         public ConfigurableGZIPOutputStream(OutputStream out, int level) throws IOException {
-            super(out);
+            // sync flush, so that flush() writes everything compressed so far
+            super(out, true);
             def.setLevel(level);
         }
+
+        @Override
+        public void setLevel(CompressionLevel level) {
+            def.setLevel(deflateLevel(level));
+        }
+    }
+
+    private static class RawDeflaterOutputStream extends DeflaterOutputStream
+            implements LevelAdjustable {
+        RawDeflaterOutputStream(OutputStream out, Deflater deflater) {
+            super(out, deflater, 64 * 1024, true);
+        }
+
+        @Override
+        public void setLevel(CompressionLevel level) {
+            def.setLevel(deflateLevel(level));
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                def.end();
+            }
+        }
+    }
+
+    private static int deflateLevel(CompressionLevel level) {
+        return switch (level) {
+            case FAST -> Deflater.BEST_SPEED;
+            case MEDIUM -> Deflater.DEFAULT_COMPRESSION;
+            case HIGH_COMPRESSION, MAX_COMPRESSION -> Deflater.BEST_COMPRESSION;
+        };
     }
 
     public static final Compression DEFAULT = LZ4FRAMED;
 
     private final CompressionFactory factory;
+    private final boolean usesDictionary;
 
     Compression(CompressionFactory factory) {
+        this(factory, false);
+    }
+
+    Compression(CompressionFactory factory, boolean usesDictionary) {
         this.factory = factory;
+        this.usesDictionary = usesDictionary;
+    }
+
+    /**
+     * Can this compression use a {@link CompressionDictionary}? The id of the used dictionary (if
+     * any) is then stored in the start header.
+     */
+    public boolean usesDictionary() {
+        return usesDictionary;
+    }
+
+    /**
+     * Can this compression be used in this build on this platform? Only compressions that rely on
+     * optional libraries (like {@link #ZSTD}) might not be available.
+     */
+    public boolean isAvailable() {
+        return !(factory instanceof LazyCompressionFactory lazy) || lazy.isAvailable();
     }
 
     public OutputStream wrap(OutputStream out, CompressionLevel level) {
@@ -115,4 +321,21 @@ public enum Compression {
             throw new RuntimeException(e);
         }
     }
+
+    public OutputStream wrap(
+            OutputStream out, CompressionLevel level, @Nullable CompressionDictionary dictionary) {
+        try {
+            return factory.wrap(out, level, dictionary);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public InputStream wrap(InputStream in, @Nullable CompressionDictionary dictionary) {
+        try {
+            return factory.wrap(in, dictionary);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
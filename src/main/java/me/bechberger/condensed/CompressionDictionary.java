@@ -0,0 +1,438 @@
+package me.bechberger.condensed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Adler32;
+import me.bechberger.condensed.Message.StartMessage;
+
+/**
+ * Preset dictionary for {@link Compression#DEFLATE_DICTIONARY}, trained on a sample corpus of
+ * condensed files.
+ *
+ * <p>Small files (e.g. the rotated files of the agent) contain mostly the same type and string
+ * definitions, which a compressor without a dictionary has to encode anew in every file. Priming
+ * the compressor with the common content lets it reference it from the first byte on.
+ *
+ * <p>The id of a dictionary is the Adler-32 checksum of its content (the same value zlib uses as
+ * {@code DICTID}); it is stored in the start header of every file compressed with it. A reader
+ * finds the dictionary by id via {@link #lookup(long, List)}, which consults the {@link
+ * #register(CompressionDictionary) registered} dictionaries, the directories of the read file (see
+ * {@link CondensedInputStream#searchDictionariesNextTo(Path)}) and the dictionary directories.
+ *
+ * <p>File format: {@value #MAGIC}, the id as an unsigned 32-bit int, the length as an int and the
+ * content.
+ */
+public final class CompressionDictionary {
+
+    public static final String MAGIC = "CJFRDICT";
+
+    public static final String FILE_EXTENSION = ".cjfrdict";
+
+    /** Deflate can only reference the last 32KiB, so larger dictionaries are pointless */
+    public static final int MAX_SIZE = 32 * 1024;
+
+    /** System property with additional dictionary directories, separated by the path separator */
+    public static final String DIRECTORIES_PROPERTY = "cjfr.dictionaries";
+
+    /** Environment variable with additional dictionary directories */
+    public static final String DIRECTORIES_ENV = "CJFR_DICTIONARIES";
+
+    /** Length of the byte sequences that are counted during training */
+    private static final int DMER_LENGTH = 8;
+
+    /** Length of the segments that the dictionary is assembled from */
+    private static final int SEGMENT_LENGTH = 64;
+
+    /**
+     * Only the beginning of every sample is used for training, the definitions that files share are
+     * concentrated there
+     */
+    static final int MAX_SAMPLE_LENGTH = 1024 * 1024;
+
+    private static final Map<Long, CompressionDictionary> registry = new ConcurrentHashMap<>();
+
+    private final long id;
+    private final byte[] content;
+
+    public CompressionDictionary(byte[] content) {
+        if (content.length == 0 || content.length > MAX_SIZE) {
+            throw new IllegalArgumentException(
+                    "Dictionary size must be between 1 and " + MAX_SIZE + ": " + content.length);
+        }
+        this.content = content.clone();
+        this.id = computeId(this.content);
+    }
+
+    private static long computeId(byte[] content) {
+        Adler32 adler = new Adler32();
+        adler.update(content);
+        return adler.getValue();
+    }
+
+    public long id() {
+        return id;
+    }
+
+    /** Hexadecimal representation of the id, used in file names and messages */
+    public String idString() {
+        return idString(id);
+    }
+
+    public static String idString(long id) {
+        return String.format("%08x", id);
+    }
+
+    public int size() {
+        return content.length;
+    }
+
+    byte[] content() {
+        return content;
+    }
+
+    /** Copy of the content, for compressions outside this package */
+    public byte[] toByteArray() {
+        return content.clone();
+    }
+
+    /** Default file name, {@code <id>.cjfrdict} */
+    public String fileName() {
+        return idString() + FILE_EXTENSION;
+    }
+
+    /**
+     * Train a dictionary on the passed samples
+     *
+     * <p>Uses a simplified version of the COVER algorithm of zstd: every {@value #SEGMENT_LENGTH}
+     * byte segment is scored by the number of samples that contain each of its {@value
+     * #DMER_LENGTH} byte sequences, and the best segments are taken greedily, ignoring sequences
+     * that already are part of the dictionary. The best segments are placed at the end, as deflate
+     * encodes nearer references more cheaply.
+     *
+     * @param samples uncompressed sample files, only the first {@value #MAX_SAMPLE_LENGTH} bytes of
+     *     each are used
+     * @param maxSize maximum size of the dictionary, at most {@link #MAX_SIZE}
+     * @throws IllegalArgumentException if the samples contain no repeated content
+     */
+    public static CompressionDictionary train(List<byte[]> samples, int maxSize) {
+        if (maxSize <= 0 || maxSize > MAX_SIZE) {
+            throw new IllegalArgumentException(
+                    "Dictionary size must be between 1 and " + MAX_SIZE + ": " + maxSize);
+        }
+        samples =
+                samples.stream()
+                        .map(
+                                s ->
+                                        s.length > MAX_SAMPLE_LENGTH
+                                                ? Arrays.copyOf(s, MAX_SAMPLE_LENGTH)
+                                                : s)
+                        .toList();
+        Map<Long, Integer> frequencies = countDmers(samples);
+        // candidate segments in sample order, scored by the frequency of their dmers
+        record Segment(int sample, int offset, long score) {}
+        PriorityQueue<Segment> queue =
+                new PriorityQueue<>((a, b) -> Long.compare(b.score(), a.score()));
+        for (int s = 0; s < samples.size(); s++) {
+            byte[] sample = samples.get(s);
+            for (int offset = 0;
+                    offset + SEGMENT_LENGTH <= sample.length;
+                    offset += SEGMENT_LENGTH) {
+                long score = score(sample, offset, frequencies);
+                if (score > 0) {
+                    queue.add(new Segment(s, offset, score));
+                }
+            }
+        }
+        List<byte[]> selected = new ArrayList<>();
+        int size = 0;
+        while (!queue.isEmpty() && size < maxSize) {
+            Segment segment = queue.poll();
+            // lazy re-scoring: covered dmers no longer count
+            long score = score(samples.get(segment.sample()), segment.offset(), frequencies);
+            if (score <= 0) {
+                continue;
+            }
+            if (!queue.isEmpty() && score < queue.peek().score()) {
+                queue.add(new Segment(segment.sample(), segment.offset(), score));
+                continue;
+            }
+            byte[] sample = samples.get(segment.sample());
+            int length = Math.min(SEGMENT_LENGTH, maxSize - size);
+            selected.add(Arrays.copyOfRange(sample, segment.offset(), segment.offset() + length));
+            size += length;
+            for (int i = segment.offset();
+                    i + DMER_LENGTH <= segment.offset() + SEGMENT_LENGTH;
+                    i++) {
+                frequencies.remove(dmer(sample, i));
+            }
+        }
+        if (selected.isEmpty()) {
+            throw new IllegalArgumentException("Samples contain no repeated content to train on");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        for (int i = selected.size() - 1; i >= 0; i--) {
+            out.writeBytes(selected.get(i));
+        }
+        return new CompressionDictionary(out.toByteArray());
+    }
+
+    /** Count in how many samples each dmer occurs, keeping only the ones in at least two */
+    private static Map<Long, Integer> countDmers(List<byte[]> samples) {
+        Map<Long, Integer> frequencies = new HashMap<>();
+        for (byte[] sample : samples) {
+            Map<Long, Boolean> seen = new HashMap<>();
+            for (int i = 0; i + DMER_LENGTH <= sample.length; i++) {
+                long dmer = dmer(sample, i);
+                if (seen.put(dmer, Boolean.TRUE) == null) {
+                    frequencies.merge(dmer, 1, Integer::sum);
+                }
+            }
+        }
+        // with a single sample, repetitions inside the sample are all we have
+        int minFrequency = samples.size() > 1 ? 2 : 1;
+        frequencies.values().removeIf(f -> f < minFrequency);
+        return frequencies;
+    }
+
+    private static long score(byte[] sample, int offset, Map<Long, Integer> frequencies) {
+        long score = 0;
+        for (int i = offset; i + DMER_LENGTH <= offset + SEGMENT_LENGTH; i++) {
+            score += frequencies.getOrDefault(dmer(sample, i), 0);
+        }
+        return score;
+    }
+
+    private static long dmer(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < DMER_LENGTH; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(MAGIC.getBytes(StandardCharsets.US_ASCII));
+        data.writeInt((int) id);
+        data.writeInt(content.length);
+        data.write(content);
+        data.flush();
+    }
+
+    public void write(Path file) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            write(out);
+        }
+    }
+
+    public static CompressionDictionary read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length()];
+        data.readFully(magic);
+        if (!MAGIC.equals(new String(magic, StandardCharsets.US_ASCII))) {
+            throw new IOException("Not a compression dictionary file");
+        }
+        long id = Integer.toUnsignedLong(data.readInt());
+        int length = data.readInt();
+        if (length <= 0 || length > MAX_SIZE) {
+            throw new IOException("Invalid dictionary length: " + length);
+        }
+        byte[] content = new byte[length];
+        data.readFully(content);
+        CompressionDictionary dictionary = new CompressionDictionary(content);
+        if (dictionary.id != id) {
+            throw new IOException(
+                    "Dictionary id mismatch: header says "
+                            + idString(id)
+                            + " but content has "
+                            + dictionary.idString());
+        }
+        return dictionary;
+    }
+
+    public static CompressionDictionary read(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return read(in);
+        }
+    }
+
+    /** Make the dictionary available to {@link #lookup(long, List)} */
+    public static CompressionDictionary register(CompressionDictionary dictionary) {
+        registry.put(dictionary.id, dictionary);
+        return dictionary;
+    }
+
+    /** {@code ~/.cjfr/dictionaries}, where {@code cjfr train-dictionary} stores dictionaries */
+    public static Path defaultDirectory() {
+        return Path.of(System.getProperty("user.home"), ".cjfr", "dictionaries");
+    }
+
+    /**
+     * Directories searched for dictionary files: the passed directories of the read file, the ones
+     * listed in the {@value #DIRECTORIES_PROPERTY} property and the {@value #DIRECTORIES_ENV}
+     * environment variable, followed by the {@link #defaultDirectory()}
+     */
+    public static List<Path> directories(List<Path> fileDirectories) {
+        List<Path> directories = new ArrayList<>(fileDirectories);
+        for (String list :
+                new String[] {
+                    System.getProperty(DIRECTORIES_PROPERTY), System.getenv(DIRECTORIES_ENV)
+                }) {
+            if (list == null || list.isBlank()) {
+                continue;
+            }
+            for (String dir : list.split(java.io.File.pathSeparator)) {
+                if (!dir.isBlank()) {
+                    directories.add(Path.of(dir));
+                }
+            }
+        }
+        directories.add(defaultDirectory());
+        return directories;
+    }
+
+    /** Directories searched for {@code <id>.cjfrdict} files independent of the read file */
+    public static List<Path> directories() {
+        return directories(List.of());
+    }
+
+    /** Find a registered dictionary or load it from one of the {@link #directories()} */
+    public static Optional<CompressionDictionary> lookup(long id) {
+        return lookup(id, List.of());
+    }
+
+    /**
+     * Find a registered dictionary or load it from one of the passed directories of the read file
+     * or the other {@link #directories(List)}
+     */
+    public static Optional<CompressionDictionary> lookup(long id, List<Path> fileDirectories) {
+        CompressionDictionary registered = registry.get(id);
+        if (registered != null) {
+            return Optional.of(registered);
+        }
+        for (Path directory : directories(fileDirectories)) {
+            Path file = directory.resolve(idString(id) + FILE_EXTENSION);
+            if (!Files.isRegularFile(file)) {
+                continue;
+            }
+            try {
+                CompressionDictionary dictionary = read(file);
+                if (dictionary.id == id) {
+                    return Optional.of(register(dictionary));
+                }
+            } catch (IOException e) {
+                // ignore broken files, another directory might contain a valid copy
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Copy a condensed file, rewriting it without its dictionary and with its shared definitions
+     * inline if it refers to them, so that it can be read without the companion files
+     *
+     * <p>The main stream is decompressed and compressed again with the same compression and level;
+     * its content and the footer stay the same, apart from the definitions message.
+     *
+     * @return whether the input used a dictionary or shared definitions
+     */
+    public static boolean writeStandalone(Path input, Path output) throws IOException {
+        Optional<CJFRFooter> footer = CJFRFooterReader.tryRead(input);
+        OptionalLong footerStart = CJFRFooterReader.footerStart(input);
+        try (InputStream raw = Files.newInputStream(input)) {
+            // the decompressor must not read the footer
+            InputStream limited =
+                    footerStart.isPresent() ? limit(raw, footerStart.getAsLong()) : raw;
+            try (CondensedInputStream in =
+                    new CondensedInputStream(new BufferedInputStream(limited, 64 * 1024))) {
+                in.searchDictionariesNextTo(input);
+                StartMessage startMessage = in.readStartMessage();
+                if (startMessage.dictionary() == null && !startMessage.definitions()) {
+                    Files.copy(input, output, StandardCopyOption.REPLACE_EXISTING);
+                    return false;
+                }
+                try (OutputStream rawOut =
+                        new BufferedOutputStream(Files.newOutputStream(output), 64 * 1024)) {
+                    CondensedOutputStream out =
+                            new CondensedOutputStream(rawOut, startMessage.withDictionary(null));
+                    boolean sharedDefinitions =
+                            startMessage.definitions() && in.transferDefinitionsInline(out);
+                    in.mainStream().transferTo(out);
+                    if (footer.isPresent()) {
+                        out.writeFooter(footer.get());
+                    } else {
+                        out.close();
+                    }
+                    return startMessage.dictionary() != null || sharedDefinitions;
+                }
+            }
+        }
+    }
+
+    private static InputStream limit(InputStream in, long length) {
+        return new FilterInputStream(in) {
+            private long remaining = length;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int b = super.read();
+                if (b >= 0) {
+                    remaining--;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int read = super.read(b, off, (int) Math.min(len, remaining));
+                if (read > 0) {
+                    remaining -= read;
+                }
+                return read;
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CompressionDictionary other
+                && id == other.id
+                && Arrays.equals(content, other.content);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id);
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionDictionary{id=" + idString() + ", size=" + content.length + "}";
+    }
+}
@@ -4,10 +4,17 @@ import static me.bechberger.condensed.CompletableContainer.ensureRecursivelyComp
 import static me.bechberger.condensed.Constants.START_STRING;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import me.bechberger.condensed.Message.CondensedTypeMessage;
+import me.bechberger.condensed.Message.DefinitionsMessage;
 import me.bechberger.condensed.Message.ReadInstance;
 import me.bechberger.condensed.Message.StartMessage;
 import me.bechberger.condensed.RIOException.NoStartStringException;
@@ -18,6 +25,7 @@ import me.bechberger.condensed.stats.WriteCause;
 import me.bechberger.condensed.stats.WriteMode;
 import me.bechberger.condensed.types.CondensedType;
 import me.bechberger.condensed.types.Reductions;
+import me.bechberger.condensed.types.StructType;
 import me.bechberger.condensed.types.TypeCollection;
 import org.jetbrains.annotations.Nullable;
 
@@ -44,8 +52,23 @@ public class CondensedInputStream extends InputStream {
     private boolean skipRecursiveCompletion = false;
     private boolean footerSentinelSeen = false;
 
+    /** Set while the content of a definitions message is processed */
+    private boolean readingDefinitions = false;
+
+    /** Directories of the read file, searched first for dictionaries and shared definitions */
+    private final List<Path> dictionaryDirectories = new ArrayList<>();
+
     private Statistic statistic = new NoopStatistic();
 
+    /**
+     * Mirror of the writer's dictionary, only present for streams with a start message of at least
+     * {@link Constants#STRING_DICTIONARY_VERSION}
+     */
+    private @Nullable StringDictionary stringDictionary;
+
+    /** Reused buffer for decoding strings */
+    private byte[] stringBuffer = new byte[64];
+
     public CondensedInputStream(InputStream inputStream) {
         this.universe = new Universe();
         this.typeCollection = new TypeCollection();
@@ -74,6 +97,18 @@ public class CondensedInputStream extends InputStream {
         return typeCollection;
     }
 
+    /**
+     * Also search the directory of the passed file for the compression dictionary and the shared
+     * definitions of this stream, where the agent stores the ones shared by its rotated files. Call
+     * before reading the start header.
+     */
+    public void searchDictionariesNextTo(Path file) {
+        Path directory = file.toAbsolutePath().getParent();
+        if (directory != null && !dictionaryDirectories.contains(directory)) {
+            dictionaryDirectories.add(directory);
+        }
+    }
+
     /**
      * Skip recursive completion of ReadStructs on read. Use when the caller will traverse all
      * fields anyway (e.g. toTypedValue in inflate).
@@ -111,6 +146,12 @@ public class CondensedInputStream extends InputStream {
                 return readAndProcessSpecifiedTypeMessage(typeId);
             }
         }
+        if (typeId == DefinitionDictionary.MESSAGE_TYPE_ID) {
+            statistic.setModeAndCount(WriteMode.TYPE);
+            try (var t = statistic.withWriteCauseContext(WriteCause.TypeSpecification)) {
+                return readAndProcessDefinitions();
+            }
+        }
         if (typeCollection.hasType(typeId)) {
             statistic.setModeAndCount(WriteMode.INSTANCE);
             return readAndProcessInstanceMessage(typeId);
@@ -141,6 +182,123 @@ public class CondensedInputStream extends InputStream {
         return msg == null ? null : (CondensedType<T, R>) ((CondensedTypeMessage) msg).type();
     }
 
+    /** Reads the start header if it has not been read yet and returns its message */
+    public StartMessage readStartMessage() {
+        if (!startStringRead) {
+            try (var t = statistic.withWriteCauseContext(WriteCause.Start)) {
+                readAndProcessStartString();
+            }
+        }
+        return universe.getStartMessage();
+    }
+
+    /** Decompressed content after the start header, for copying it into another stream */
+    InputStream mainStream() {
+        readStartMessage();
+        return inputStream;
+    }
+
+    /**
+     * Copy the main stream up to and including the definitions message to the passed stream,
+     * writing the definitions inline, so that the copy does not need the shared definitions
+     *
+     * @return whether the definitions message referred to shared definitions
+     */
+    boolean transferDefinitionsInline(CondensedOutputStream out) {
+        InputStream main = mainStream();
+        ByteArrayOutputStream consumed = new ByteArrayOutputStream();
+        // records the bytes of every message, but not the content of the definitions
+        inputStream =
+                new FilterInputStream(main) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b >= 0) {
+                            consumed.write(b);
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int read = super.read(b, off, len);
+                        if (read > 0) {
+                            consumed.write(b, off, read);
+                        }
+                        return read;
+                    }
+                };
+        try {
+            Message message;
+            while ((message = readNextMessageAndProcess()) != null) {
+                if (message instanceof DefinitionsMessage definitions) {
+                    out.writeDefinitions(definitions.definitions().content(), null);
+                    return definitions.shared();
+                }
+                out.write(consumed.toByteArray());
+                consumed.reset();
+            }
+            out.write(consumed.toByteArray());
+            return false;
+        } finally {
+            inputStream = main;
+        }
+    }
+
+    /** Is the content of a definitions message processed, instead of the main stream? */
+    protected boolean isReadingDefinitions() {
+        return readingDefinitions;
+    }
+
+    private DefinitionsMessage readAndProcessDefinitions() {
+        long reference = readUnsignedVarint();
+        DefinitionDictionary definitions;
+        if (reference == 0) {
+            long length = readUnsignedVarint();
+            if (length > DefinitionDictionary.MAX_SIZE) {
+                throw new RIOException("Invalid definitions length: " + length);
+            }
+            byte[] content = new byte[(int) length];
+            if (read(content, 0, content.length) != content.length) {
+                throw new RIOException.UnexpectedEOFException();
+            }
+            definitions = new DefinitionDictionary(content);
+        } else {
+            long size = readUnsignedVarint();
+            definitions =
+                    DefinitionDictionary.lookup(reference - 1, size, dictionaryDirectories)
+                            .orElseThrow(
+                                    () ->
+                                            new RIOException.MissingDefinitionDictionaryException(
+                                                    reference - 1,
+                                                    CompressionDictionary.directories(
+                                                            dictionaryDirectories)));
+        }
+        InputStream main = inputStream;
+        inputStream = new ByteArrayInputStream(definitions.content());
+        readingDefinitions = true;
+        try {
+            int typeId;
+            while ((typeId = (int) readUnsignedVarintOrEnd()) != -1) {
+                if (TypeCollection.isSpecifiedType(typeId)) {
+                    readAndProcessSpecifiedTypeMessage(typeId);
+                } else if (typeId == DefinitionDictionary.REFERENCES_TYPE_ID) {
+                    int structId = (int) readUnsignedVarint();
+                    if (!(typeCollection.getType(structId) instanceof StructType<?, ?> type)) {
+                        throw new RIOException("References of non-struct type " + structId);
+                    }
+                    type.readReferenceFields(this);
+                } else {
+                    throw new RIOException("Invalid message type in definitions: " + typeId);
+                }
+            }
+        } finally {
+            inputStream = main;
+            readingDefinitions = false;
+        }
+        return new DefinitionsMessage(definitions, reference != 0);
+    }
+
     private CondensedTypeMessage readAndProcessSpecifiedTypeMessage(int typeId) {
         return new CondensedTypeMessage(
                 TypeCollection.getSpecifiedType(typeId).readTypeSpecification(this));
@@ -178,6 +336,22 @@ public class CondensedInputStream extends InputStream {
                     "Invalid compression level ordinal in start header: " + levelOrdinal);
         }
         Compression.CompressionLevel compressionLevel = levels[levelOrdinal];
+        CompressionDictionary dictionary = null;
+        if (compression.usesDictionary()) {
+            long dictionaryId = readUnsignedVarint();
+            if (dictionaryId != 0) {
+                dictionary =
+                        CompressionDictionary.lookup(dictionaryId - 1, dictionaryDirectories)
+                                .orElseThrow(
+                                        () ->
+                                                new RIOException
+                                                        .MissingCompressionDictionaryException(
+                                                        dictionaryId - 1,
+                                                        CompressionDictionary.directories(
+                                                                dictionaryDirectories)));
+            }
+        }
+        boolean definitions = version >= Constants.DEFINITIONS_VERSION && readUnsignedVarint() != 0;
         StartMessage message =
                 new StartMessage(
                         version,
@@ -185,9 +359,14 @@ public class CondensedInputStream extends InputStream {
                         generatorVersion,
                         generatorConfiguration,
                         compression,
-                        compressionLevel);
-        this.inputStream = message.compression().wrap(inputStream);
+                        compressionLevel,
+                        dictionary,
+                        definitions);
+        this.inputStream = message.compression().wrap(inputStream, dictionary);
         universe.setStartMessage(message);
+        if (version >= Constants.STRING_DICTIONARY_VERSION) {
+            stringDictionary = StringDictionary.forReading();
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -275,30 +454,63 @@ public class CondensedInputStream extends InputStream {
     public String readString(@Nullable String encoding) {
         try (var t = statistic.withWriteCauseContext(WriteCause.String)) {
             long bytesBefore = statistic.getBytes();
-            long lengthL = readUnsignedVarint();
-            if (lengthL > Integer.MAX_VALUE) {
-                throw new RIOException("String length too large: " + lengthL);
-            }
-            int length = (int) lengthL;
-            if (length == 0) {
-                statistic.recordString(statistic.getBytes() - bytesBefore);
-                return "";
-            }
-            byte[] data = new byte[length];
-            try {
-                int res = read(data);
-                if (res != length) {
-                    throw new RIOException.UnexpectedEOFException();
-                }
-            } catch (IOException e) {
-                throw new RIOException("Can't read string", e);
-            }
+            String result = readStringBytes(encoding);
             statistic.recordString(statistic.getBytes() - bytesBefore);
-            try {
-                return new String(data, encoding != null ? encoding : "UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                throw new RIOException("Can't read string", e);
+            return result;
+        }
+    }
+
+    /**
+     * Reads a string written by {@link CondensedOutputStream#writeInternedString(String, String)}
+     *
+     * @param encoding the encoding of the string or null for UTF-8
+     * @return the decoded string
+     */
+    public String readInternedString(@Nullable String encoding) {
+        if (stringDictionary == null) {
+            return readString(encoding);
+        }
+        try (var t = statistic.withWriteCauseContext(WriteCause.String)) {
+            long bytesBefore = statistic.getBytes();
+            long header = readUnsignedVarint();
+            String result;
+            if (header == StringDictionary.LITERAL_AND_INSERT) {
+                result = readStringBytes(encoding);
+                stringDictionary.insert(result);
+            } else if (header == StringDictionary.LITERAL) {
+                result = readStringBytes(encoding);
+            } else {
+                long slot = header - StringDictionary.FIRST_SLOT_REFERENCE;
+                result = stringDictionary.get(slot > Integer.MAX_VALUE ? -1 : (int) slot);
             }
+            statistic.recordString(statistic.getBytes() - bytesBefore);
+            return result;
+        }
+    }
+
+    private String readStringBytes(@Nullable String encoding) {
+        long lengthL = readUnsignedVarint();
+        if (lengthL > Integer.MAX_VALUE) {
+            throw new RIOException("String length too large: " + lengthL);
+        }
+        int length = (int) lengthL;
+        if (length == 0) {
+            return "";
+        }
+        if (stringBuffer.length < length) {
+            stringBuffer = new byte[Math.max(length, stringBuffer.length * 2)];
+        }
+        int res = read(stringBuffer, 0, length);
+        if (res != length) {
+            throw new RIOException.UnexpectedEOFException();
+        }
+        if (encoding == null) {
+            return new String(stringBuffer, 0, length, StandardCharsets.UTF_8);
+        }
+        try {
+            return new String(stringBuffer, 0, length, encoding);
+        } catch (UnsupportedEncodingException e) {
+            throw new RIOException("Can't read string", e);
         }
     }
 
@@ -387,6 +599,23 @@ public class CondensedInputStream extends InputStream {
         }
     }
 
+    /**
+     * Reads up to {@code len} bytes, blocking until all of them are available or the end of the
+     * stream is reached
+     *
+     * @return the number of bytes read, less than {@code len} only at the end of the stream
+     */
+    @Override
+    public int read(byte[] b, int off, int len) {
+        try {
+            int result = inputStream.readNBytes(b, off, len);
+            statistic.record(result);
+            return result;
+        } catch (IOException e) {
+            throw new RIOException.UnexpectedEOFException(e);
+        }
+    }
+
     @Override
     public void close() {
         try {
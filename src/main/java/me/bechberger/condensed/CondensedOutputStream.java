@@ -5,6 +5,9 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import me.bechberger.condensed.Message.StartMessage;
@@ -17,6 +20,7 @@ import me.bechberger.condensed.stats.WriteMode;
 import me.bechberger.condensed.types.CondensedType;
 import me.bechberger.condensed.types.Reductions;
 import me.bechberger.condensed.types.SpecifiedType;
+import me.bechberger.condensed.types.StructType;
 import me.bechberger.condensed.types.TypeCollection;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -51,6 +55,21 @@ public class CondensedOutputStream extends OutputStream {
     /** Uncompressed byte count observed at the most recent {@link #flush()} (0 = never flushed). */
     private volatile long uncompressedAtLastFlush = 0;
 
+    /**
+     * Dictionary for {@link #writeInternedString(String, String)}, only present for streams with a
+     * start message of at least {@link Constants#STRING_DICTIONARY_VERSION}
+     */
+    private @Nullable StringDictionary stringDictionary;
+
+    /** Only present if the stream adapts its compression level */
+    private @Nullable AdaptiveCompressionOutputStream adaptiveCompressionStream;
+
+    /** Only present while capturing the beginning of the uncompressed content */
+    private @Nullable PrefixCapture prefixCapture;
+
+    /** Reused buffer for encoding UTF-8 strings, avoids a byte array per written string */
+    private byte[] stringBuffer = new byte[64];
+
     public CondensedOutputStream(OutputStream outputStream, StartMessage startMessage) {
         this(outputStream, startMessage, new Universe());
     }
@@ -61,15 +80,52 @@ public class CondensedOutputStream extends OutputStream {
 
     public CondensedOutputStream(
             OutputStream outputStream, StartMessage startMessage, Universe universe) {
+        this(outputStream, startMessage, universe, null);
+    }
+
+    /**
+     * Create a stream that adapts the compression level to the time spent compressing, starting
+     * with the level of the start message
+     *
+     * @param adaptiveCompression settings, {@code null} to always use the level of the start
+     *     message
+     */
+    public CondensedOutputStream(
+            OutputStream outputStream,
+            StartMessage startMessage,
+            @Nullable AdaptiveCompression adaptiveCompression) {
+        this(outputStream, startMessage, new Universe(), adaptiveCompression);
+    }
+
+    public CondensedOutputStream(
+            OutputStream outputStream,
+            StartMessage startMessage,
+            Universe universe,
+            @Nullable AdaptiveCompression adaptiveCompression) {
         this(outputStream, universe);
         try (var t = statistic.withWriteCauseContext(WriteCause.Start)) {
             writeStartString(startMessage);
         }
-        if (startMessage.compression() != Compression.NONE) {
+        if (startMessage.compression() == Compression.NONE) {
+            return;
+        }
+        if (adaptiveCompression != null) {
+            this.adaptiveCompressionStream =
+                    new AdaptiveCompressionOutputStream(
+                            this.outputStream,
+                            startMessage.compression(),
+                            startMessage.compressionLevel(),
+                            startMessage.dictionary(),
+                            adaptiveCompression);
+            this.outputStream = adaptiveCompressionStream;
+        } else {
             this.outputStream =
                     startMessage
                             .compression()
-                            .wrap(this.outputStream, startMessage.compressionLevel());
+                            .wrap(
+                                    this.outputStream,
+                                    startMessage.compressionLevel(),
+                                    startMessage.dictionary());
         }
     }
 
@@ -92,6 +148,52 @@ public class CondensedOutputStream extends OutputStream {
         this(outputStream, new Universe());
     }
 
+    /** Keeps the first bytes written to it and passes everything on */
+    private static class PrefixCapture extends FilterOutputStream {
+        private final byte[] prefix;
+        private int length = 0;
+
+        PrefixCapture(OutputStream out, int maxLength) {
+            super(out);
+            this.prefix = new byte[maxLength];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (length < prefix.length) {
+                prefix[length++] = (byte) b;
+            }
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte @NotNull [] b, int off, int len) throws IOException {
+            int captured = Math.min(len, prefix.length - length);
+            if (captured > 0) {
+                System.arraycopy(b, off, prefix, length, captured);
+                length += captured;
+            }
+            out.write(b, off, len);
+        }
+    }
+
+    /**
+     * Keep the first {@code maxLength} uncompressed bytes written from now on, e.g. the type
+     * specifications and first references at the beginning of a file to derive a {@link
+     * CompressionDictionary} for similar files from
+     */
+    public void capturePrefix(int maxLength) {
+        prefixCapture = new PrefixCapture(outputStream, maxLength);
+        outputStream = prefixCapture;
+    }
+
+    /** Bytes captured since {@link #capturePrefix(int)}, {@code null} if not capturing */
+    public byte @Nullable [] getCapturedPrefix() {
+        return prefixCapture == null
+                ? null
+                : Arrays.copyOf(prefixCapture.prefix, prefixCapture.length);
+    }
+
     public void enableFullStatistics() {
         if (statistic instanceof BasicStatistic) {
             this.statistic = new Statistic();
@@ -104,6 +206,9 @@ public class CondensedOutputStream extends OutputStream {
 
     private void writeStartString(StartMessage startMessage) {
         universe.setStartMessage(startMessage);
+        if (startMessage.version() >= Constants.STRING_DICTIONARY_VERSION) {
+            stringDictionary = StringDictionary.forWriting();
+        }
         writeString(Constants.START_STRING);
         writeUnsignedVarInt(startMessage.version());
         writeString(startMessage.generatorName());
@@ -111,6 +216,14 @@ public class CondensedOutputStream extends OutputStream {
         writeString(startMessage.generatorConfiguration());
         writeString(startMessage.compression().name());
         writeUnsignedVarInt(startMessage.compressionLevel().ordinal());
+        if (startMessage.compression().usesDictionary()) {
+            // 0 = no dictionary, otherwise id + 1
+            CompressionDictionary dictionary = startMessage.dictionary();
+            writeUnsignedVarInt(dictionary == null ? 0 : dictionary.id() + 1);
+        }
+        if (startMessage.version() >= Constants.DEFINITIONS_VERSION) {
+            writeUnsignedVarInt(startMessage.definitions() ? 1 : 0);
+        }
     }
 
     static byte[] useCompressed(Consumer<CondensedOutputStream> consumer) {
@@ -184,6 +297,61 @@ public class CondensedOutputStream extends OutputStream {
         }
     }
 
+    /**
+     * Writes a references entry of the content of a {@link DefinitionDictionary}: the struct type
+     * and the reference fields of the value
+     */
+    public synchronized <T> void writeReferences(StructType<T, ?> type, T value) {
+        writeMessageType(DefinitionDictionary.REFERENCES_TYPE_ID);
+        writeTypeId(type);
+        type.writeReferenceFields(this, value);
+    }
+
+    /**
+     * Run the passed writer, which writes the content of a {@link DefinitionDictionary} (type
+     * specifications and {@link #writeReferences(StructType, Object) references}), and return the
+     * bytes it wrote instead of writing them to the stream
+     *
+     * <p>The types and reference caches are updated as if the content was written, so the content
+     * has to be written with {@link #writeDefinitions(byte[], DefinitionDictionary)} afterwards.
+     */
+    public synchronized byte[] captureDefinitions(Runnable writer) {
+        OutputStream main = outputStream;
+        Statistic mainStatistic = statistic;
+        long mainUncompressedBytes = uncompressedBytes;
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        outputStream = content;
+        statistic = new NoopStatistic();
+        try {
+            writer.run();
+        } finally {
+            outputStream = main;
+            statistic = mainStatistic;
+            uncompressedBytes = mainUncompressedBytes;
+        }
+        return content.toByteArray();
+    }
+
+    /**
+     * Writes a definitions message with the passed content, which refers to the shared definitions
+     * (by id and size) if they have the same content and contains the content otherwise
+     */
+    public synchronized void writeDefinitions(
+            byte[] content, @Nullable DefinitionDictionary shared) {
+        try (var t = statistic.withWriteCauseContext(WriteCause.TypeSpecification)) {
+            statistic.setModeAndCount(WriteMode.TYPE);
+            writeMessageType(DefinitionDictionary.MESSAGE_TYPE_ID);
+            if (shared != null && shared.hasContent(content)) {
+                writeUnsignedVarInt(shared.id() + 1);
+                writeUnsignedVarInt(shared.size());
+            } else {
+                writeUnsignedVarInt(0);
+                writeUnsignedVarInt(content.length);
+                write(content);
+            }
+        }
+    }
+
     /**
      * Writes a varlong to the stream.
      *
@@ -223,24 +391,118 @@ public class CondensedOutputStream extends OutputStream {
      * Writes a string to the stream.
      *
      * @param value string to write
+     * @param encoding the encoding of the string or null for UTF-8
      */
     public void writeString(String value, @Nullable String encoding) {
         try (var t = statistic.withWriteCauseContext(WriteCause.String)) {
             long bytesBefore = statistic.getBytes();
-            byte[] bytes;
-            try {
-                bytes = value.getBytes(encoding != null ? encoding : "UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                throw new RuntimeException(e);
-            }
-            writeUnsignedVarInt(bytes.length);
-            if (bytes.length > 0) {
-                write(bytes);
+            writeStringBytes(value, encoding);
+            statistic.recordString(statistic.getBytes() - bytesBefore);
+        }
+    }
+
+    /**
+     * Writes a string to the stream, referring to a previous occurrence via the per-stream {@link
+     * StringDictionary} if possible. Falls back to {@link #writeString(String, String)} for streams
+     * without dictionary support (older format versions or no start message).
+     *
+     * <p>Has to be read via {@link CondensedInputStream#readInternedString(String)}
+     *
+     * @param value string to write
+     * @param encoding the encoding of the string or null for UTF-8
+     */
+    public void writeInternedString(String value, @Nullable String encoding) {
+        if (stringDictionary == null) {
+            writeString(value, encoding);
+            return;
+        }
+        try (var t = statistic.withWriteCauseContext(WriteCause.String)) {
+            long bytesBefore = statistic.getBytes();
+            if (!stringDictionary.isInternable(value)) {
+                writeUnsignedVarInt(StringDictionary.LITERAL);
+                writeStringBytes(value, encoding);
+            } else {
+                int slot = stringDictionary.lookup(value);
+                if (slot >= 0) {
+                    writeUnsignedVarInt(slot + StringDictionary.FIRST_SLOT_REFERENCE);
+                } else {
+                    writeUnsignedVarInt(StringDictionary.LITERAL_AND_INSERT);
+                    writeStringBytes(value, encoding);
+                    stringDictionary.insert(value);
+                }
             }
             statistic.recordString(statistic.getBytes() - bytesBefore);
         }
     }
 
+    /** Writes the length-prefixed encoded string without any statistics bookkeeping */
+    private void writeStringBytes(String value, @Nullable String encoding) {
+        if (encoding == null || isUTF8(encoding)) {
+            writeUTF8(value);
+            return;
+        }
+        byte[] bytes;
+        try {
+            bytes = value.getBytes(encoding);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        writeUnsignedVarInt(bytes.length);
+        if (bytes.length > 0) {
+            write(bytes);
+        }
+    }
+
+    private static boolean isUTF8(String encoding) {
+        return encoding.equalsIgnoreCase("UTF-8") || encoding.equalsIgnoreCase("UTF8");
+    }
+
+    /**
+     * Encodes the string as UTF-8 into the reused {@link #stringBuffer} and writes it length
+     * prefixed. Produces the same bytes as {@code value.getBytes(UTF_8)}, including the replacement
+     * of unpaired surrogates by {@code '?'}.
+     */
+    private void writeUTF8(String value) {
+        int length = value.length();
+        if (length == 0) {
+            writeUnsignedVarInt(0);
+            return;
+        }
+        int maxBytes = length * 3;
+        if (stringBuffer.length < maxBytes) {
+            stringBuffer = new byte[Math.max(maxBytes, stringBuffer.length * 2)];
+        }
+        byte[] buf = stringBuffer;
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c)
+                        && i + 1 < length
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, value.charAt(++i));
+                    buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    buf[pos++] = (byte) '?';
+                }
+            } else {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        writeUnsignedVarInt(pos);
+        write(buf, 0, pos);
+    }
+
     public void writeTypeId(CondensedType<?, ?> type) {
         if (!typeCollection.containsType(type)) {
             throw new IllegalArgumentException("Type not registered: " + type);
@@ -411,6 +673,31 @@ public class CondensedOutputStream extends OutputStream {
         }
     }
 
+    @Override
+    public void write(byte @NotNull [] b, int off, int len) {
+        try {
+            uncompressedBytes += len;
+            statistic.record(len);
+            outputStream.write(b, off, len);
+        } catch (IOException e) {
+            throw new RIOException("Can't write byte array", e);
+        }
+    }
+
+    /** Statistics of the writing caches that evicted values, i.e. had more misses than entries */
+    private Map<String, Universe.CacheStats> evictingCacheStatistics() {
+        Map<String, Universe.CacheStats> statistics = new TreeMap<>();
+        universe.getWritingCaches()
+                .statistics()
+                .forEach(
+                        (name, stats) -> {
+                            if (stats.misses() > stats.entries()) {
+                                statistics.put(name, stats);
+                            }
+                        });
+        return statistics;
+    }
+
     public Universe getUniverse() {
         return universe;
     }
@@ -498,6 +785,18 @@ public class CondensedOutputStream extends OutputStream {
         uncompressedAtLastFlush = uncompressedBytes;
     }
 
+    /**
+     * Current compression level of a stream with adaptive compression, the level of the start
+     * message otherwise ({@code null} for streams without start message)
+     */
+    public Compression.@Nullable CompressionLevel getCompressionLevel() {
+        if (adaptiveCompressionStream != null) {
+            return adaptiveCompressionStream.getLevel();
+        }
+        StartMessage startMessage = universe.getStartMessage();
+        return startMessage != null ? startMessage.compressionLevel() : null;
+    }
+
     /** Raw, pre-compression sink. Only safe to use after close() has flushed the compressor. */
     public CountingOutputStream getUnderlyingCountingStream() {
         return underlyingCountingStream;
@@ -511,6 +810,8 @@ public class CondensedOutputStream extends OutputStream {
      * <p>The FOOTER_TYPE_ID sentinel lets {@link CondensedInputStream} stop reading at this point
      * even when there is no compression (NONE), preventing it from mis-parsing footer bytes as
      * event data.
+     *
+     * <p>Streams with adaptive compression record the bytes compressed per level in the footer.
      */
     public synchronized void writeFooter(CJFRFooter footer) {
         if (!closed) {
@@ -525,7 +826,12 @@ public class CondensedOutputStream extends OutputStream {
         // Snapshot the CRC over [0, footerStart): the compressor is closed above, so
         // underlyingCountingStream has received exactly the start header + compressed main stream.
         long mainStreamCrc = underlyingCountingStream.crc32();
-        byte[] zlibBytes = footer.withMainStreamCrc32(mainStreamCrc).toCompressedBytes();
+        footer = footer.withMainStreamCrc32(mainStreamCrc);
+        if (adaptiveCompressionStream != null) {
+            footer = footer.withCompressionLevelBytes(adaptiveCompressionStream.getBytesPerLevel());
+        }
+        footer = footer.withWritingCacheStats(evictingCacheStatistics());
+        byte[] zlibBytes = footer.toCompressedBytes();
         int len = zlibBytes.length;
         try {
             underlyingCountingStream.write(CJFRFooter.FOOTER_TYPE_ID);
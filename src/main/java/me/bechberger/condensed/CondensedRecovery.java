@@ -0,0 +1,137 @@
+package me.bechberger.condensed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import me.bechberger.condensed.Message.StartMessage;
+
+/**
+ * Recovers condensed files that were torn by a crash: the writer never wrote the footer and the
+ * last compressed block is incomplete or contains garbage
+ *
+ * <p>The main stream is decompressed and parsed up to the last complete message, which is then
+ * compressed again with the same compression, level and dictionary, without a footer. With block
+ * based compression like LZ4, this is the content of the last complete block.
+ */
+public final class CondensedRecovery {
+
+    /**
+     * @param complete whether the file has a footer, so there was nothing to recover
+     * @param messages number of complete messages (types and instances) that were kept
+     * @param keptBytes uncompressed bytes of the kept messages
+     * @param discardedBytes uncompressed bytes after the last complete message that could be
+     *     decompressed, but not parsed
+     */
+    public record Result(boolean complete, long messages, long keptBytes, long discardedBytes) {}
+
+    private CondensedRecovery() {}
+
+    /**
+     * Counts the bytes read, the start header and the decompressed main stream, but not the content
+     * of shared definitions
+     */
+    private static final class PositionInputStream extends CondensedInputStream {
+        private long position = 0;
+
+        PositionInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() {
+            int b = super.read();
+            if (b >= 0 && !isReadingDefinitions()) {
+                position++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int read = super.read(b, off, len);
+            if (read > 0 && !isReadingDefinitions()) {
+                position += read;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Analyze the passed file without writing anything
+     *
+     * @throws RIOException if the start header cannot be read
+     */
+    public static Result analyze(Path input) throws IOException {
+        if (CJFRFooterReader.footerStart(input).isPresent()) {
+            return new Result(true, 0, 0, 0);
+        }
+        try (var in =
+                new PositionInputStream(
+                        new BufferedInputStream(Files.newInputStream(input), 64 * 1024))) {
+            in.searchDictionariesNextTo(input);
+            in.readStartMessage();
+            long headerEnd = in.position;
+            long lastComplete = headerEnd;
+            long messages = 0;
+            try {
+                while (in.readNextMessageAndProcess() != null) {
+                    messages++;
+                    lastComplete = in.position;
+                }
+            } catch (RuntimeException e) {
+                // torn message, everything before it is kept
+            }
+            return new Result(
+                    false, messages, lastComplete - headerEnd, in.position - lastComplete);
+        }
+    }
+
+    /**
+     * Write the complete messages of the passed file to the output, which may be the input
+     *
+     * <p>Complete files (with footer) are not copied.
+     *
+     * @throws RIOException if the start header cannot be read
+     */
+    public static Result recover(Path input, Path output) throws IOException {
+        Result result = analyze(input);
+        if (result.complete()) {
+            return result;
+        }
+        Path parent = output.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, output.getFileName().toString(), ".tmp");
+        try {
+            try (var in =
+                            new CondensedInputStream(
+                                    new BufferedInputStream(
+                                            Files.newInputStream(input), 64 * 1024));
+                    OutputStream rawOut =
+                            new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024)) {
+                in.searchDictionariesNextTo(input);
+                StartMessage startMessage = in.readStartMessage();
+                CondensedOutputStream out = new CondensedOutputStream(rawOut, startMessage);
+                InputStream main = in.mainStream();
+                byte[] buffer = new byte[64 * 1024];
+                long remaining = result.keptBytes();
+                while (remaining > 0) {
+                    int read = main.readNBytes(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read == 0) {
+                        throw new IOException("File changed while recovering it: " + input);
+                    }
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+                out.close();
+            }
+            Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return result;
+    }
+}
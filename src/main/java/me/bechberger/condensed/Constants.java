@@ -5,7 +5,23 @@ public class Constants {
     public static final String START_STRING = "CondensedData";
     // v2: Universe carries the source recording's gmtOffset so the timezone survives
     // condense->inflate (older v1 files remain readable; the new field defaults to unset).
-    public static final int VERSION = 2;
+    // v3: strings written via StringType go through a bounded per-stream string dictionary
+    // (see StringDictionary); v2 files are still read with plain inline strings. The start header
+    // also states whether a definitions message follows the configuration and universe (see
+    // DefinitionDictionary); v2 files have none.
+    public static final int VERSION = 3;
+
+    /** First format version that interns {@link me.bechberger.condensed.types.StringType} values */
+    public static final int STRING_DICTIONARY_VERSION = 3;
+
+    /** First format version whose start header has the definitions flag */
+    public static final int DEFINITIONS_VERSION = 3;
+
+    /** Number of slots in the per-stream string dictionary, part of the format */
+    public static final int STRING_DICTIONARY_CAPACITY = 4096;
+
+    /** Strings longer than this (in chars) are always written as literals, part of the format */
+    public static final int STRING_DICTIONARY_MAX_LENGTH = 1024;
 
     /** Reserved message-type ID used as the footer magic sentinel. */
     public static final int FOOTER_TYPE_ID = CJFRFooter.FOOTER_TYPE_ID;
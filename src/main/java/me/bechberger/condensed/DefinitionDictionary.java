@@ -0,0 +1,206 @@
+package me.bechberger.condensed;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Type specifications and references that the rotated files of a recording share, stored once in a
+ * companion {@code <id>.cjfrdefs} file instead of being repeated in every file.
+ *
+ * <p>The content is a sequence of type specification messages and references entries ({@value
+ * #REFERENCES_TYPE_ID}, the id of a struct type and the reference fields of one of its values, see
+ * {@link me.bechberger.condensed.types.StructType#writeReferenceFields(CondensedOutputStream,
+ * Object)}), as a writer emits them right after the configuration and universe. A file states in
+ * its start header that it has a definitions message ({@value #MESSAGE_TYPE_ID}) at this position,
+ * which either refers to a companion file by its id and size (id + 1 and the size) or contains the
+ * content (0, the length and the content). A writer only refers to the companion file if it
+ * produced exactly its content, so reading the file with it yields the same types and reference
+ * caches as reading the content inline.
+ *
+ * <p>The id of the definitions is the CRC-32 checksum of their content, a reader verifies it when
+ * it loads a companion file. Registered definitions are keyed by id and size, so that files whose
+ * definitions merely share a checksum do not get each other's definitions. Readers find companion
+ * files like compression dictionaries, see {@link CompressionDictionary#directories(List)}.
+ *
+ * <p>File format: {@value #MAGIC}, the id as an unsigned 32-bit int, the length as an int and the
+ * content.
+ */
+public final class DefinitionDictionary {
+
+    public static final String MAGIC = "CJFRDEFS";
+
+    public static final String FILE_EXTENSION = ".cjfrdefs";
+
+    /** Message type id of the definitions message in the main stream */
+    public static final int MESSAGE_TYPE_ID = 8;
+
+    /** Message type id of a references entry in the content */
+    public static final int REFERENCES_TYPE_ID = 9;
+
+    /** Upper bound for the content length, to reject broken files early */
+    public static final int MAX_SIZE = 64 * 1024 * 1024;
+
+    private record Key(long id, long size) {}
+
+    private static final Map<Key, DefinitionDictionary> registry = new ConcurrentHashMap<>();
+
+    private final long id;
+    private final byte[] content;
+
+    public DefinitionDictionary(byte[] content) {
+        if (content.length > MAX_SIZE) {
+            throw new IllegalArgumentException(
+                    "Definitions size must be at most " + MAX_SIZE + ": " + content.length);
+        }
+        this.content = content.clone();
+        this.id = computeId(this.content);
+    }
+
+    private static long computeId(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    public long id() {
+        return id;
+    }
+
+    /** Hexadecimal representation of the id, used in file names and messages */
+    public String idString() {
+        return idString(id);
+    }
+
+    public static String idString(long id) {
+        return String.format("%08x", id);
+    }
+
+    public int size() {
+        return content.length;
+    }
+
+    byte[] content() {
+        return content;
+    }
+
+    /** Does the passed content equal the content of these definitions? */
+    boolean hasContent(byte[] content) {
+        return Arrays.equals(this.content, content);
+    }
+
+    /** Default file name, {@code <id>.cjfrdefs} */
+    public String fileName() {
+        return idString() + FILE_EXTENSION;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(MAGIC.getBytes(StandardCharsets.US_ASCII));
+        data.writeInt((int) id);
+        data.writeInt(content.length);
+        data.write(content);
+        data.flush();
+    }
+
+    public void write(Path file) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            write(out);
+        }
+    }
+
+    /**
+     * @throws IOException if the input is no definitions file or its checksum does not match
+     */
+    public static DefinitionDictionary read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length()];
+        data.readFully(magic);
+        if (!MAGIC.equals(new String(magic, StandardCharsets.US_ASCII))) {
+            throw new IOException("Not a definitions file");
+        }
+        long id = Integer.toUnsignedLong(data.readInt());
+        int length = data.readInt();
+        if (length < 0 || length > MAX_SIZE) {
+            throw new IOException("Invalid definitions length: " + length);
+        }
+        byte[] content = new byte[length];
+        data.readFully(content);
+        DefinitionDictionary definitions = new DefinitionDictionary(content);
+        if (definitions.id != id) {
+            throw new IOException(
+                    "Definitions checksum mismatch: header says "
+                            + idString(id)
+                            + " but content has "
+                            + definitions.idString());
+        }
+        return definitions;
+    }
+
+    public static DefinitionDictionary read(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return read(in);
+        }
+    }
+
+    /** Make the definitions available to {@link #lookup(long, long, List)} */
+    public static DefinitionDictionary register(DefinitionDictionary definitions) {
+        registry.put(new Key(definitions.id, definitions.content.length), definitions);
+        return definitions;
+    }
+
+    /**
+     * Find registered definitions with the passed id and size or load them from one of the passed
+     * directories of the read file or the other {@link CompressionDictionary#directories(List)}
+     */
+    public static Optional<DefinitionDictionary> lookup(
+            long id, long size, List<Path> fileDirectories) {
+        DefinitionDictionary registered = registry.get(new Key(id, size));
+        if (registered != null) {
+            return Optional.of(registered);
+        }
+        for (Path directory : CompressionDictionary.directories(fileDirectories)) {
+            Path file = directory.resolve(idString(id) + FILE_EXTENSION);
+            if (!Files.isRegularFile(file)) {
+                continue;
+            }
+            try {
+                DefinitionDictionary definitions = read(file);
+                if (definitions.id == id && definitions.content.length == size) {
+                    return Optional.of(register(definitions));
+                }
+            } catch (IOException e) {
+                // ignore broken files, another directory might contain a valid copy
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DefinitionDictionary other
+                && id == other.id
+                && Arrays.equals(content, other.content);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id);
+    }
+
+    @Override
+    public String toString() {
+        return "DefinitionDictionary{id=" + idString() + ", size=" + content.length + "}";
+    }
+}
@@ -2,6 +2,7 @@ package me.bechberger.condensed;
 
 import me.bechberger.condensed.Compression.CompressionLevel;
 import me.bechberger.condensed.types.CondensedType;
+import org.jetbrains.annotations.Nullable;
 
 /** Messages on the {@link CondensedOutputStream} and {@link CondensedInputStream} */
 public sealed interface Message {
@@ -19,6 +20,10 @@ public sealed interface Message {
      * @param compression the compression used
      * @param compressionLevel the compression level used (informational metadata; the compressed
      *     stream is self-describing on read)
+     * @param dictionary the dictionary the compression is primed with, only used if the {@link
+     *     Compression#usesDictionary()}, its id is stored in the start header
+     * @param definitions whether a {@link DefinitionsMessage} follows the configuration and
+     *     universe, only stored for versions of at least {@link Constants#DEFINITIONS_VERSION}
      */
     record StartMessage(
             int version,
@@ -26,7 +31,9 @@ public sealed interface Message {
             String generatorVersion,
             String generatorConfiguration,
             Compression compression,
-            CompressionLevel compressionLevel)
+            CompressionLevel compressionLevel,
+            @Nullable CompressionDictionary dictionary,
+            boolean definitions)
             implements Message {
         /** Used mainly for testing purposes */
         public static final StartMessage DEFAULT = new StartMessage("Unknown", "Unknown Version");
@@ -60,6 +67,42 @@ public sealed interface Message {
                     CompressionLevel.HIGH_COMPRESSION);
         }
 
+        public StartMessage(
+                int version,
+                String generatorName,
+                String generatorVersion,
+                String generatorConfiguration,
+                Compression compression,
+                CompressionLevel compressionLevel) {
+            this(
+                    version,
+                    generatorName,
+                    generatorVersion,
+                    generatorConfiguration,
+                    compression,
+                    compressionLevel,
+                    null);
+        }
+
+        public StartMessage(
+                int version,
+                String generatorName,
+                String generatorVersion,
+                String generatorConfiguration,
+                Compression compression,
+                CompressionLevel compressionLevel,
+                @Nullable CompressionDictionary dictionary) {
+            this(
+                    version,
+                    generatorName,
+                    generatorVersion,
+                    generatorConfiguration,
+                    compression,
+                    compressionLevel,
+                    dictionary,
+                    false);
+        }
+
         public StartMessage compress(Compression compression) {
             return new StartMessage(
                     version,
@@ -67,7 +110,9 @@ public sealed interface Message {
                     generatorVersion,
                     generatorConfiguration,
                     compression,
-                    compressionLevel);
+                    compressionLevel,
+                    dictionary,
+                    definitions);
         }
 
         public StartMessage withCompressionLevel(CompressionLevel level) {
@@ -77,10 +122,45 @@ public sealed interface Message {
                     generatorVersion,
                     generatorConfiguration,
                     compression,
-                    level);
+                    level,
+                    dictionary,
+                    definitions);
+        }
+
+        public StartMessage withDictionary(@Nullable CompressionDictionary dictionary) {
+            return new StartMessage(
+                    version,
+                    generatorName,
+                    generatorVersion,
+                    generatorConfiguration,
+                    compression,
+                    compressionLevel,
+                    dictionary,
+                    definitions);
+        }
+
+        public StartMessage withDefinitions(boolean definitions) {
+            return new StartMessage(
+                    version,
+                    generatorName,
+                    generatorVersion,
+                    generatorConfiguration,
+                    compression,
+                    compressionLevel,
+                    dictionary,
+                    definitions);
         }
     }
 
+    /**
+     * Type specifications and references that were processed before the following messages
+     *
+     * @param definitions the definitions, stored in the file or in a companion file
+     * @param shared whether the file refers to the companion file instead of containing them
+     */
+    record DefinitionsMessage(DefinitionDictionary definitions, boolean shared)
+            implements Message {}
+
     /** Regular message */
     record ReadInstance<T, R>(CondensedType<T, R> type, R value) implements Message {
         @Override
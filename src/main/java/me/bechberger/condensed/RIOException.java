@@ -1,6 +1,7 @@
 package me.bechberger.condensed;
 
 import java.nio.file.Path;
+import java.util.List;
 
 /** Unchecked IOException wrapper */
 public class RIOException extends RuntimeException {
@@ -57,6 +58,34 @@ public class RIOException extends RuntimeException {
         }
     }
 
+    /** The file is compressed with a dictionary that cannot be found. */
+    public static class MissingCompressionDictionaryException extends RIOException {
+        public MissingCompressionDictionaryException(long id, List<Path> directories) {
+            super(
+                    "Compression dictionary "
+                            + CompressionDictionary.idString(id)
+                            + " not found, place "
+                            + CompressionDictionary.idString(id)
+                            + CompressionDictionary.FILE_EXTENSION
+                            + " in one of "
+                            + directories);
+        }
+    }
+
+    /** The file refers to shared definitions that cannot be found. */
+    public static class MissingDefinitionDictionaryException extends RIOException {
+        public MissingDefinitionDictionaryException(long id, List<Path> directories) {
+            super(
+                    "Definitions "
+                            + DefinitionDictionary.idString(id)
+                            + " not found, place "
+                            + DefinitionDictionary.idString(id)
+                            + DefinitionDictionary.FILE_EXTENSION
+                            + " in one of "
+                            + directories);
+        }
+    }
+
     /** The whole-file CRC32 in the footer does not match the recomputed value. */
     public static class IntegrityCheckException extends RIOException {
         public IntegrityCheckException(Path file, long expected, long actual) {
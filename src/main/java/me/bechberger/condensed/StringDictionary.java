@@ -0,0 +1,103 @@
+package me.bechberger.condensed;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Bounded per-stream dictionary of already emitted strings, used by {@link
+ * CondensedOutputStream#writeInternedString(String, String)} and {@link
+ * CondensedInputStream#readInternedString(String)}.
+ *
+ * <p>Slots are assigned round-robin: the n-th inserted string goes into slot {@code n % capacity},
+ * evicting whatever was stored there before. Insertion order is the only state, so the reader
+ * mirrors the writer exactly without any extra messages.
+ *
+ * <p>Wire format of an interned string (a leading unsigned varint {@code h}):
+ *
+ * <ul>
+ *   <li>{@code h == 0}: literal string follows and is inserted into the next slot
+ *   <li>{@code h == 1}: literal string follows and is <em>not</em> inserted (too long to intern)
+ *   <li>{@code h >= 2}: reference to slot {@code h - 2}
+ * </ul>
+ */
+final class StringDictionary {
+
+    static final int LITERAL_AND_INSERT = 0;
+    static final int LITERAL = 1;
+    static final int FIRST_SLOT_REFERENCE = 2;
+
+    private final String[] slots;
+    private final int maxInternedLength;
+
+    /** Only used by the writing side, maps a string to its current slot */
+    private final @Nullable Map<String, Integer> slotPerString;
+
+    private int nextSlot = 0;
+
+    private StringDictionary(int capacity, int maxInternedLength, boolean writing) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.slots = new String[capacity];
+        this.maxInternedLength = maxInternedLength;
+        this.slotPerString = writing ? new HashMap<>(capacity * 4 / 3 + 1) : null;
+    }
+
+    static StringDictionary forWriting() {
+        return new StringDictionary(
+                Constants.STRING_DICTIONARY_CAPACITY, Constants.STRING_DICTIONARY_MAX_LENGTH, true);
+    }
+
+    static StringDictionary forReading() {
+        return new StringDictionary(
+                Constants.STRING_DICTIONARY_CAPACITY,
+                Constants.STRING_DICTIONARY_MAX_LENGTH,
+                false);
+    }
+
+    boolean isInternable(String value) {
+        return value.length() <= maxInternedLength;
+    }
+
+    /** Returns the slot of the string or -1 if it is not (or no longer) in the dictionary */
+    int lookup(String value) {
+        assert slotPerString != null;
+        Integer slot = slotPerString.get(value);
+        return slot == null ? -1 : slot;
+    }
+
+    /** Insert the string into the next slot, evicting the slot's previous string */
+    void insert(String value) {
+        String evicted = slots[nextSlot];
+        if (slotPerString != null) {
+            if (evicted != null) {
+                slotPerString.remove(evicted);
+            }
+            slotPerString.put(value, nextSlot);
+        }
+        slots[nextSlot] = value;
+        nextSlot = nextSlot + 1 == slots.length ? 0 : nextSlot + 1;
+    }
+
+    String get(int slot) {
+        if (slot < 0 || slot >= slots.length || slots[slot] == null) {
+            throw new RIOException("Invalid string dictionary slot: " + slot);
+        }
+        return slots[slot];
+    }
+
+    int size() {
+        return slotPerString != null ? slotPerString.size() : countFilledSlots();
+    }
+
+    private int countFilledSlots() {
+        int count = 0;
+        for (String slot : slots) {
+            if (slot != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -11,17 +11,108 @@ import org.jetbrains.annotations.Nullable;
 
 public class Universe {
 
+    /** Hits, misses and current size of a writing cache, see {@link WritingCaches#statistics()} */
+    public record CacheStats(long size, long entries, long hits, long misses) {
+
+        public double hitRatio() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        CacheStats plus(CacheStats other) {
+            return new CacheStats(
+                    size + other.size,
+                    entries + other.entries,
+                    hits + other.hits,
+                    misses + other.misses);
+        }
+    }
+
+    /**
+     * Hit and miss counts of a writing cache
+     *
+     * <p>Also estimates how many misses a cache of twice the size would have hit: the hash codes of
+     * the most recently evicted values, as many as the cache holds, are remembered, a miss of a
+     * value with such a hash code counts as a ghost hit. Only the hash codes are kept, so that the
+     * evicted values can be collected and the ghosts cost a fixed amount per entry outside of the
+     * cache budget; values with equal hash codes make the estimate slightly too high. The window
+     * counts are reset by {@link WritingCaches} after every rebalancing.
+     */
+    static final class CacheUsage {
+        long hits;
+        long misses;
+        long windowLookups;
+        long windowGhostHits;
+        /** Hash codes of the evicted values, oldest first */
+        private final LinkedHashSet<Integer> ghosts = new LinkedHashSet<>();
+
+        void hit() {
+            hits++;
+            windowLookups++;
+        }
+
+        void miss(Object value) {
+            misses++;
+            windowLookups++;
+            if (!ghosts.isEmpty() && ghosts.remove(value.hashCode())) {
+                windowGhostHits++;
+            }
+        }
+
+        /** Remember the hash code of the evicted value, keeping the last {@code maxGhosts} ones */
+        void evicted(Object value, int maxGhosts) {
+            ghosts.add(value.hashCode());
+            if (ghosts.size() > maxGhosts) {
+                var it = ghosts.iterator();
+                it.next();
+                it.remove();
+            }
+        }
+
+        /** Share of the lookups in the current window that a larger cache would have hit */
+        double ghostHitRatio() {
+            return windowLookups == 0 ? 0 : (double) windowGhostHits / windowLookups;
+        }
+
+        void resetWindow() {
+            windowLookups = 0;
+            windowGhostHits = 0;
+        }
+    }
+
+    /** Writing cache whose size {@link WritingCaches} can change */
+    interface ResizableCache {
+        /** Maximum number of entries, -1 for unlimited */
+        int size();
+
+        /** Current number of entries */
+        int entries();
+
+        /** Change the maximum number of entries, evicting the least recently used ones */
+        void resize(int size);
+
+        CacheUsage usage();
+
+        default CacheStats stats() {
+            return new CacheStats(size(), entries(), usage().hits, usage().misses);
+        }
+    }
+
     /**
      * Cache that stores values per value type
      *
+     * <p>Ids are never reused: a value that is evicted and written again gets a new id. The reader
+     * keeps every value, so it does not need to know the size of the cache or when it changes.
+     *
      * @param <T> type of the values to cache
      */
-    static class WritingCachePerType<T> {
-        private final int size;
+    static class WritingCachePerType<T> implements ResizableCache {
+        private int size;
 
         /** LRU cache: accessOrder=true promotes entries on get(), eldest entry is LRU */
         private final LinkedHashMap<T, Integer> cache;
 
+        private final CacheUsage usage = new CacheUsage();
+
         private int lastId = -1;
 
         public WritingCachePerType(int size) {
@@ -31,20 +122,12 @@ public class Universe {
 
         /** Put value into cache, write out if needed, return id */
         public int get(T value, Consumer<T> writer) {
-            Integer existingId = cache.get(value);
-            if (existingId != null) {
-                return existingId;
-            } else {
-                if (size != -1 && cache.size() >= size) {
-                    var it = cache.entrySet().iterator();
-                    it.next();
-                    it.remove();
-                }
-                int id = ++lastId;
-                cache.put(value, id);
-                writer.accept(value);
+            int id = getOrPut(value);
+            if (id >= 0) {
                 return id;
             }
+            writer.accept(value);
+            return ~id;
         }
 
         /**
@@ -55,17 +138,46 @@ public class Universe {
         public int getOrPut(T value) {
             Integer existingId = cache.get(value);
             if (existingId != null) {
+                usage.hit();
                 return existingId;
             }
+            usage.miss(value);
             if (size != -1 && cache.size() >= size) {
-                var it = cache.entrySet().iterator();
-                it.next();
-                it.remove();
+                evictEldest();
             }
             int id = ++lastId;
             cache.put(value, id);
             return ~id;
         }
+
+        private void evictEldest() {
+            var it = cache.entrySet().iterator();
+            usage.evicted(it.next().getKey(), size);
+            it.remove();
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int entries() {
+            return cache.size();
+        }
+
+        @Override
+        public void resize(int size) {
+            this.size = size;
+            while (size != -1 && cache.size() > size) {
+                evictEldest();
+            }
+        }
+
+        @Override
+        public CacheUsage usage() {
+            return usage;
+        }
     }
 
     public interface HashAndEqualsWrapper<V> {
@@ -97,11 +209,31 @@ public class Universe {
         public int getOrPut(T value) {
             return cache.getOrPut(wrapperFactory.apply(value));
         }
+
+        @Override
+        public int size() {
+            return cache.size();
+        }
+
+        @Override
+        public int entries() {
+            return cache.entries();
+        }
+
+        @Override
+        public void resize(int size) {
+            cache.resize(size);
+        }
+
+        @Override
+        public CacheUsage usage() {
+            return cache.usage();
+        }
     }
 
     /** Cache that stores values per value type and per embedding type */
-    static class WritingCachePerTypePerEmbeddingType<T> {
-        private final int size;
+    static class WritingCachePerTypePerEmbeddingType<T> implements ResizableCache {
+        private int size;
 
         private static class CacheNode<V> {
             final Map<V, CacheNode<V>> typeCache;
@@ -123,36 +255,20 @@ public class Universe {
 
         private final Map<CondensedType<?, ?>, Integer> lastIds = new HashMap<>();
 
+        private final CacheUsage usage = new CacheUsage();
+
         public WritingCachePerTypePerEmbeddingType(int size) {
             this.size = size;
         }
 
         /** Put value into cache per embbeding type, write out if needed, return id */
         public int get(T value, Consumer<T> writer, CondensedType<?, ?> embeddingType) {
-            Map<T, CacheNode<T>> typeCache =
-                    cache.computeIfAbsent(embeddingType, k -> new HashMap<>());
-            CacheNode<T> existing = typeCache.get(value);
-            if (existing != null) {
-                lruOrder.get(existing); // promote in LRU order
-                return existing.id;
-            } else {
-                if (size != -1 && lruOrder.size() >= size) {
-                    var it = lruOrder.entrySet().iterator();
-                    CacheNode<T> lruNode = it.next().getKey();
-                    it.remove();
-                    lruNode.typeCache.remove(lruNode.value);
-                }
-                if (!lastIds.containsKey(embeddingType)) {
-                    lastIds.put(embeddingType, -1);
-                }
-                int id = lastIds.get(embeddingType) + 1;
-                lastIds.put(embeddingType, id);
-                CacheNode<T> node = new CacheNode<>(typeCache, value, id);
-                typeCache.put(value, node);
-                lruOrder.put(node, null);
-                writer.accept(value);
+            int id = getOrPut(value, embeddingType);
+            if (id >= 0) {
                 return id;
             }
+            writer.accept(value);
+            return ~id;
         }
 
         /** Check/insert without writer callback. Returns existing id (≥ 0) or ~newId (negative). */
@@ -162,13 +278,12 @@ public class Universe {
             CacheNode<T> existing = typeCache.get(value);
             if (existing != null) {
                 lruOrder.get(existing); // promote in LRU order
+                usage.hit();
                 return existing.id;
             }
+            usage.miss(value);
             if (size != -1 && lruOrder.size() >= size) {
-                var it = lruOrder.entrySet().iterator();
-                CacheNode<T> lruNode = it.next().getKey();
-                it.remove();
-                lruNode.typeCache.remove(lruNode.value);
+                evictEldest();
             }
             if (!lastIds.containsKey(embeddingType)) {
                 lastIds.put(embeddingType, -1);
@@ -180,6 +295,37 @@ public class Universe {
             lruOrder.put(node, null);
             return ~id;
         }
+
+        private void evictEldest() {
+            var it = lruOrder.entrySet().iterator();
+            CacheNode<T> lruNode = it.next().getKey();
+            it.remove();
+            lruNode.typeCache.remove(lruNode.value);
+            usage.evicted(lruNode.value, size);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int entries() {
+            return lruOrder.size();
+        }
+
+        @Override
+        public void resize(int size) {
+            this.size = size;
+            while (size != -1 && lruOrder.size() > size) {
+                evictEldest();
+            }
+        }
+
+        @Override
+        public CacheUsage usage() {
+            return usage;
+        }
     }
 
     static class WritingCachePerTypePerEmbeddingTypeWithCustomHash<T>
@@ -207,6 +353,140 @@ public class Universe {
         public int getOrPut(T value, CondensedType<?, ?> embeddingType) {
             return cache.getOrPut(wrapperFactory.apply(value), embeddingType);
         }
+
+        @Override
+        public int size() {
+            return cache.size();
+        }
+
+        @Override
+        public int entries() {
+            return cache.entries();
+        }
+
+        @Override
+        public void resize(int size) {
+            cache.resize(size);
+        }
+
+        @Override
+        public CacheUsage usage() {
+            return cache.usage();
+        }
+    }
+
+    /**
+     * Trie over all arrays written with a prefix-sharing {@link
+     * me.bechberger.condensed.types.ArrayType}, walked from the last element backwards, as stack
+     * traces store their root frame last and share the callers, not the leaf frames.
+     *
+     * <p>Every node knows an already written array that contains the path to it, so a new array can
+     * be written as a reference to such an array plus its remaining leading elements. Arrays get
+     * consecutive ids in the order they are written; the trie is dropped when it grows beyond its
+     * size, the reader does not need to know about that.
+     *
+     * @param <V> type of the array elements
+     */
+    public static class PrefixTrie<V> {
+
+        /**
+         * Result of {@link #insert(List)}
+         *
+         * @param parentId id of the already written array that shares the last {@code length}
+         *     elements, or -1 if there is none
+         * @param skip number of leading elements of the parent that are not shared
+         * @param length number of shared elements
+         */
+        public record Match(int parentId, int skip, int length) {}
+
+        private static final Match NO_MATCH = new Match(-1, 0, 0);
+
+        private static final class Node {
+            private @Nullable Map<Object, Node> children;
+
+            /** Id of an array that contains the path to this node */
+            private final int ownerId;
+
+            /** Index of this node's element in the owner */
+            private final int ownerIndex;
+
+            private Node(int ownerId, int ownerIndex) {
+                this.ownerId = ownerId;
+                this.ownerIndex = ownerIndex;
+            }
+
+            private @Nullable Node getChild(Object key) {
+                return children == null ? null : children.get(key);
+            }
+
+            private Node addChild(Object key, int ownerId, int ownerIndex) {
+                if (children == null) {
+                    children = new HashMap<>(2);
+                }
+                var child = new Node(ownerId, ownerIndex);
+                children.put(key, child);
+                return child;
+            }
+        }
+
+        private final int maxNodes;
+        private final @Nullable Function<V, HashAndEqualsWrapper<V>> wrapperFactory;
+        private Node root = new Node(-1, 0);
+        private int nodeCount = 0;
+        private int lastId = -1;
+
+        /**
+         * @param maxNodes maximum number of nodes, -1 for unlimited
+         * @param wrapperFactory used to compare the elements, compares them directly if null
+         */
+        public PrefixTrie(
+                int maxNodes, @Nullable Function<V, HashAndEqualsWrapper<V>> wrapperFactory) {
+            this.maxNodes = maxNodes;
+            this.wrapperFactory = wrapperFactory;
+        }
+
+        private Object key(V value) {
+            return wrapperFactory == null ? value : wrapperFactory.apply(value);
+        }
+
+        /**
+         * Assign the next id to the passed array and add it to the trie
+         *
+         * @return the longest shared tail of an already written array
+         */
+        public Match insert(List<V> values) {
+            int size = values.size();
+            if (maxNodes != -1 && nodeCount + size > maxNodes) {
+                root = new Node(-1, 0);
+                nodeCount = 0;
+            }
+            int id = ++lastId;
+            Node node = root;
+            int matched = 0;
+            Object key = null;
+            while (matched < size) {
+                key = key(values.get(size - 1 - matched));
+                var child = node.getChild(key);
+                if (child == null) {
+                    break;
+                }
+                node = child;
+                matched++;
+                key = null;
+            }
+            Match match =
+                    matched == 0 ? NO_MATCH : new Match(node.ownerId, node.ownerIndex, matched);
+            for (int index = size - 1 - matched; index >= 0; index--) {
+                node = node.addChild(key != null ? key : key(values.get(index)), id, index);
+                key = null;
+                nodeCount++;
+            }
+            return match;
+        }
+
+        int size() {
+            return nodeCount;
+        }
     }
 
     /** The type of embedding for a field's value */
@@ -273,19 +553,156 @@ public class Universe {
     /**
      * Collection of caches for writing data out per type
      *
+     * <p>Every cache starts with {@code sizePerCache} entries. Every {@value #REBALANCE_INTERVAL}
+     * lookups, the full caches that would have hit at least {@value #MIN_GHOST_HIT_RATIO} of their
+     * lookups with a larger size (see {@link CacheUsage}) are doubled, as long as all caches
+     * together hold at most {@link #getBudget() budget} entries. If the budget is used up, the
+     * grown caches with the fewest such misses are halved first. A cache is never smaller than
+     * {@code sizePerCache}, and caches that are not full hold no unused capacity, so only the
+     * growth is limited by the budget.
+     *
      * @see WritingCachePerType
      * @see WritingCachePerTypePerEmbeddingType
      */
     public static class WritingCaches {
+
+        /** System property for the budget in entries, {@code 0} disables the adaptive sizing */
+        public static final String BUDGET_PROPERTY = "cjfr.cacheBudget";
+
+        /** Default budget in multiples of the initial size per cache */
+        static final int DEFAULT_BUDGET_FACTOR = 8;
+
+        static final int REBALANCE_INTERVAL = 1 << 16;
+
+        static final double MIN_GHOST_HIT_RATIO = 0.01;
+
         private final int sizePerCache;
         private final HashAndEqualsConfig hashAndEqualsConfig;
         private final Map<CondensedType<?, ?>, WritingCachePerType<?>> caches = new HashMap<>();
         private final Map<CondensedType<?, ?>, WritingCachePerTypePerEmbeddingType<?>>
                 embeddingCaches = new HashMap<>();
+        private final Map<CondensedType<?, ?>, PrefixTrie<?>> prefixTries = new HashMap<>();
+
+        /** Maximum number of entries of all caches together, 0 for fixed sizes */
+        private final long budget;
+
+        private int lookupsSinceRebalance = 0;
 
         public WritingCaches(HashAndEqualsConfig config, int sizePerCache) {
+            this(config, sizePerCache, defaultBudget(sizePerCache));
+        }
+
+        /**
+         * @param budget maximum number of entries of all caches together, 0 for fixed sizes
+         */
+        public WritingCaches(HashAndEqualsConfig config, int sizePerCache, long budget) {
             this.hashAndEqualsConfig = config;
             this.sizePerCache = sizePerCache;
+            this.budget = sizePerCache == -1 ? 0 : budget;
+        }
+
+        static long defaultBudget(int sizePerCache) {
+            String property = System.getProperty(BUDGET_PROPERTY);
+            if (property != null) {
+                return Long.parseLong(property);
+            }
+            return (long) sizePerCache * DEFAULT_BUDGET_FACTOR;
+        }
+
+        public long getBudget() {
+            return budget;
+        }
+
+        private void countLookup() {
+            if (budget > 0 && ++lookupsSinceRebalance == REBALANCE_INTERVAL) {
+                lookupsSinceRebalance = 0;
+                rebalance();
+            }
+        }
+
+        private List<ResizableCache> allCaches() {
+            List<ResizableCache> all = new ArrayList<>(caches.size() + embeddingCaches.size());
+            all.addAll(caches.values());
+            all.addAll(embeddingCaches.values());
+            return all;
+        }
+
+        /** Grow the thrashing caches within the budget, see {@link WritingCaches} */
+        void rebalance() {
+            List<ResizableCache> all = allCaches();
+            long entries = 0;
+            for (ResizableCache cache : all) {
+                entries += cache.entries();
+            }
+            List<ResizableCache> thrashing =
+                    all.stream()
+                            .filter(
+                                    c ->
+                                            c.entries() >= c.size()
+                                                    && c.usage().ghostHitRatio()
+                                                            >= MIN_GHOST_HIT_RATIO)
+                            .sorted(
+                                    Comparator.comparingDouble(
+                                            (ResizableCache c) -> -c.usage().ghostHitRatio()))
+                            .toList();
+            for (ResizableCache recipient : thrashing) {
+                int growth = recipient.size();
+                while (entries + growth > budget) {
+                    ResizableCache donor = findDonor(all, recipient);
+                    if (donor == null) {
+                        break;
+                    }
+                    int newSize = Math.max(sizePerCache, donor.size() / 2);
+                    entries -= donor.entries() - Math.min(donor.entries(), newSize);
+                    donor.resize(newSize);
+                }
+                growth = (int) Math.min(growth, budget - entries);
+                if (growth > 0) {
+                    recipient.resize(recipient.size() + growth);
+                    entries += growth;
+                }
+            }
+            for (ResizableCache cache : all) {
+                cache.usage().resetWindow();
+            }
+        }
+
+        /**
+         * Grown cache that would have hit the fewest additional lookups, at most half as many as
+         * the recipient
+         */
+        private @Nullable ResizableCache findDonor(
+                List<ResizableCache> all, ResizableCache recipient) {
+            ResizableCache donor = null;
+            for (ResizableCache cache : all) {
+                if (cache == recipient
+                        || cache.size() <= sizePerCache
+                        || cache.usage().ghostHitRatio() * 2 > recipient.usage().ghostHitRatio()) {
+                    continue;
+                }
+                if (donor == null
+                        || cache.usage().ghostHitRatio() < donor.usage().ghostHitRatio()) {
+                    donor = cache;
+                }
+            }
+            return donor;
+        }
+
+        /**
+         * Current size, number of entries, hits and misses per cached type name, caches per
+         * embedding type of the same type are summed up
+         */
+        public Map<String, CacheStats> statistics() {
+            Map<String, CacheStats> statistics = new TreeMap<>();
+            for (var entry : caches.entrySet()) {
+                statistics.merge(
+                        entry.getKey().getName(), entry.getValue().stats(), CacheStats::plus);
+            }
+            for (var entry : embeddingCaches.entrySet()) {
+                statistics.merge(
+                        entry.getKey().getName(), entry.getValue().stats(), CacheStats::plus);
+            }
+            return statistics;
         }
 
         @SuppressWarnings("unchecked")
@@ -336,6 +753,7 @@ public class Universe {
          * @param <T> type of the value to cache
          */
         public <T, R> int get(CondensedType<T, R> type, T value, Consumer<T> writer) {
+            countLookup();
             return getCache(type).get(value, writer);
         }
 
@@ -355,22 +773,47 @@ public class Universe {
                 T value,
                 Consumer<T> writer,
                 CondensedType<?, ?> embeddingType) {
+            countLookup();
             return getEmbeddingCache(type).get(value, writer, embeddingType);
         }
 
         /** Allocation-free cache probe + insert. Returns id ≥ 0 if cached, ~id < 0 if new. */
         public <T, R> int getOrPut(CondensedType<T, R> type, T value) {
+            countLookup();
             return getCache(type).getOrPut(value);
         }
 
         /** Allocation-free cache probe + insert (per embedding type). */
         public <T, R> int getOrPut(
                 CondensedType<T, R> type, T value, CondensedType<?, ?> embeddingType) {
+            countLookup();
             return getEmbeddingCache(type).getOrPut(value, embeddingType);
         }
 
+        /**
+         * Get the prefix trie of the passed prefix-sharing array type
+         *
+         * @param arrayType type of the arrays
+         * @param valueType type of the array elements, determines how they are compared
+         */
+        @SuppressWarnings("unchecked")
+        public <V> PrefixTrie<V> getPrefixTrie(
+                CondensedType<?, ?> arrayType, CondensedType<V, ?> valueType) {
+            return (PrefixTrie<V>)
+                    prefixTries.computeIfAbsent(
+                            arrayType,
+                            k ->
+                                    new PrefixTrie<>(
+                                            sizePerCache == -1
+                                                    ? -1
+                                                    : sizePerCache * PREFIX_TRIE_NODES_PER_ENTRY,
+                                            hashAndEqualsConfig
+                                                    .getWrapperFactory(valueType)
+                                                    .orElse(null)));
+        }
+
         public boolean isEmpty() {
-            return caches.isEmpty() && embeddingCaches.isEmpty();
+            return caches.isEmpty() && embeddingCaches.isEmpty() && prefixTries.isEmpty();
         }
     }
 
@@ -457,6 +900,7 @@ public class Universe {
         private final Map<CondensedType<?, ?>, ReadingCachePerType<?>> caches = new HashMap<>();
         private final Map<CondensedType<?, ?>, ReadingCachePerTypePerEmbeddingType<?>>
                 embeddingCaches = new HashMap<>();
+        private final Map<CondensedType<?, ?>, List<?>> prefixSharingArrays = new HashMap<>();
 
         @SuppressWarnings("unchecked")
         private <T, R> ReadingCachePerType<R> getCache(CondensedType<T, R> type) {
@@ -488,11 +932,24 @@ public class Universe {
         public <T, R> R get(CondensedType<T, R> type, CondensedType<?, ?> embeddingType, int id) {
             return getEmbeddingCache(type).get(embeddingType, id);
         }
+
+        /**
+         * All arrays read so far of the passed prefix-sharing array type, indexed by the ids of
+         * {@link PrefixTrie}
+         */
+        @SuppressWarnings("unchecked")
+        public <R> List<R> getPrefixSharingArrays(CondensedType<?, R> arrayType) {
+            return (List<R>) prefixSharingArrays.computeIfAbsent(arrayType, k -> new ArrayList<>());
+        }
     }
 
     private @Nullable StartMessage startMessage;
 
     public static final int DEFAULT_SIZE = 20000;
+
+    /** Maximum number of {@link PrefixTrie} nodes per cache entry, a node stores one element */
+    static final int PREFIX_TRIE_NODES_PER_ENTRY = 16;
+
     private WritingCaches writingCaches;
     private final ReadingCaches readingCaches = new ReadingCaches();
     private int cacheSize = DEFAULT_SIZE;
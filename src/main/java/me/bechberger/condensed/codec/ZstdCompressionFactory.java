@@ -0,0 +1,72 @@
+package me.bechberger.condensed.codec;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import com.github.luben.zstd.util.Native;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import me.bechberger.condensed.Compression;
+import me.bechberger.condensed.Compression.CompressionFactory;
+import me.bechberger.condensed.Compression.CompressionLevel;
+import me.bechberger.condensed.CompressionDictionary;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Zstandard compression for {@link Compression#ZSTD}, via zstd-jni which bundles the native library
+ * for all common platforms (including Linux x86_64 and aarch64)
+ *
+ * <p>Only loaded on first use, so that builds without zstd-jni can still use the other
+ * compressions.
+ */
+public class ZstdCompressionFactory implements CompressionFactory {
+
+    /**
+     * @throws UnsatisfiedLinkError if there is no native library for the current platform
+     */
+    public ZstdCompressionFactory() {
+        Native.load();
+    }
+
+    /** Maps the generic levels to the zstd levels 1 to 19 (levels above 19 need a lot of memory) */
+    public static int zstdLevel(CompressionLevel level) {
+        return switch (level) {
+            case FAST -> 1;
+            case MEDIUM -> 3;
+            case HIGH_COMPRESSION -> 9;
+            case MAX_COMPRESSION -> 19;
+        };
+    }
+
+    @Override
+    public OutputStream wrap(OutputStream out, CompressionLevel level) throws IOException {
+        return wrap(out, level, null);
+    }
+
+    @Override
+    public InputStream wrap(InputStream in) throws IOException {
+        return wrap(in, null);
+    }
+
+    @Override
+    public OutputStream wrap(
+            OutputStream out, CompressionLevel level, @Nullable CompressionDictionary dictionary)
+            throws IOException {
+        var stream = new ZstdOutputStream(out, zstdLevel(level));
+        stream.setChecksum(true);
+        if (dictionary != null) {
+            stream.setDict(dictionary.toByteArray());
+        }
+        return stream;
+    }
+
+    @Override
+    public InputStream wrap(InputStream in, @Nullable CompressionDictionary dictionary)
+            throws IOException {
+        var stream = new ZstdInputStream(in);
+        if (dictionary != null) {
+            stream.setDict(dictionary.toByteArray());
+        }
+        return stream;
+    }
+}
@@ -1,5 +1,7 @@
 package me.bechberger.condensed.stats;
 
+import java.util.Map;
+import me.bechberger.condensed.Universe.CacheStats;
 import me.bechberger.condensed.types.CondensedType;
 import org.jetbrains.annotations.NotNull;
 
@@ -91,6 +93,31 @@ public class Statistic {
                         + other.stringLe1000Bytes);
     }
 
+    /**
+     * Aligned table of writing cache statistics, columns: type, size (-1 for unlimited), entries,
+     * hits, misses, hit ratio
+     */
+    public static String cacheStatisticsToPrettyString(Map<String, CacheStats> statistics) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(
+                String.format(
+                        "%-40s %10s %10s %10s %10s %8s",
+                        "type", "size", "entries", "hits", "misses", "hit%"));
+        for (var entry : statistics.entrySet()) {
+            CacheStats stats = entry.getValue();
+            sb.append(
+                    String.format(
+                            "%n%-40s %10d %10d %10d %10d %7.1f%%",
+                            entry.getKey(),
+                            stats.size(),
+                            stats.entries(),
+                            stats.hits(),
+                            stats.misses(),
+                            stats.hitRatio() * 100));
+        }
+        return sb.toString();
+    }
+
     public void setModeAndCount(WriteMode mode) {
         this.mode = mode;
         switch (mode) {
@@ -2,35 +2,57 @@ package me.bechberger.condensed.types;
 
 import static me.bechberger.condensed.types.TypeCollection.ARRAY_ID;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.function.Function;
 import me.bechberger.condensed.CondensedInputStream;
 import me.bechberger.condensed.CondensedOutputStream;
+import me.bechberger.condensed.RIOException;
 import me.bechberger.condensed.ReadList;
 import me.bechberger.condensed.Universe.EmbeddingType;
+import me.bechberger.condensed.Universe.PrefixTrie;
 
 /**
  * A type that represents an array of values of another type
  *
+ * <p>A prefix-sharing array type writes every value as a reference to an already written value that
+ * ends with the same elements, plus the remaining leading elements (see {@link PrefixTrie}). This
+ * is used for stack traces, which store the root frame last and often share most callers.
+ *
  * @param <V> the type of the values in the array
  * @param <R> the type of the values in the array after reading
  */
 public class ArrayType<V, R> extends CondensedType<List<V>, List<R>> {
 
+    /** Set in the embedding byte of the type specification for prefix-sharing array types */
+    private static final int SHARES_PREFIXES_FLAG = 0x80;
+
     private final LazyType<V, R> valueType;
     private final EmbeddingType embedding;
+    private final boolean sharesPrefixes;
 
     public ArrayType(
             int id,
             String name,
             String description,
             LazyType<V, R> valueType,
-            EmbeddingType embedding) {
+            EmbeddingType embedding,
+            boolean sharesPrefixes) {
         super(id, name, description);
         this.valueType = valueType;
         this.embedding = embedding;
+        this.sharesPrefixes = sharesPrefixes;
+    }
+
+    public ArrayType(
+            int id,
+            String name,
+            String description,
+            LazyType<V, R> valueType,
+            EmbeddingType embedding) {
+        this(id, name, description, valueType, embedding, false);
     }
 
     public ArrayType(
@@ -85,19 +107,66 @@ public class ArrayType<V, R> extends CondensedType<List<V>, List<R>> {
         return valueType.getId();
     }
 
+    public boolean sharesPrefixes() {
+        return sharesPrefixes;
+    }
+
+    /** Returns a prefix-sharing copy of this type with the same id */
+    public ArrayType<V, R> withSharedPrefixes() {
+        return new ArrayType<>(getId(), getName(), getDescription(), valueType, embedding, true);
+    }
+
     @Override
     public void writeTo(CondensedOutputStream out, List<V> value) {
-        out.writeUnsignedVarInt(value.size());
-        for (V v : value) {
-            getValueType().writeTo(out, v, this, embedding);
+        int start = value.size();
+        if (sharesPrefixes) {
+            var match =
+                    out.getUniverse()
+                            .getWritingCaches()
+                            .getPrefixTrie(this, getValueType())
+                            .insert(value);
+            out.writeUnsignedVarInt(match.parentId() + 1);
+            if (match.parentId() != -1) {
+                out.writeUnsignedVarInt(match.skip());
+            }
+            start -= match.length();
+        }
+        out.writeUnsignedVarInt(start);
+        for (int i = 0; i < start; i++) {
+            getValueType().writeTo(out, value.get(i), this, embedding);
         }
     }
 
     @Override
     public List<R> readFrom(CondensedInputStream in) {
+        if (!sharesPrefixes) {
+            return readElements(in);
+        }
+        List<List<R>> arrays = in.getUniverse().getReadingCaches().getPrefixSharingArrays(this);
+        long parent = in.readUnsignedVarint();
+        if (parent == 0) {
+            var array = readElements(in);
+            arrays.add(array);
+            return array;
+        }
+        if (parent > arrays.size()) {
+            throw new RIOException("Invalid shared prefix array id: " + (parent - 1));
+        }
+        var parentArray = arrays.get((int) (parent - 1));
+        long skip = in.readUnsignedVarint();
+        if (skip > parentArray.size()) {
+            throw new RIOException(
+                    "Shared prefix skips " + skip + " of " + parentArray.size() + " elements");
+        }
+        var array = new SharedPrefixList<>(readElements(in), parentArray, (int) skip);
+        arrays.add(array);
+        return new ReadList<>(this, array);
+    }
+
+    private List<R> readElements(CondensedInputStream in) {
         long sizeL = in.readUnsignedVarint();
         if (sizeL > Integer.MAX_VALUE) {
-            throw new me.bechberger.condensed.RIOException("Array size too large: " + sizeL);
+            throw new RIOException("Array size too large: " + sizeL);
         }
         int size = (int) sizeL;
         switch (embedding) {
@@ -121,6 +190,44 @@ public class ArrayType<V, R> extends CondensedType<List<V>, List<R>> {
         throw new IllegalArgumentException("Invalid embedding type: " + embedding);
     }
 
+    /**
+     * Read-side value of a prefix-sharing array: its own leading elements followed by the shared
+     * elements of the parent, which are only looked up on access
+     */
+    private static final class SharedPrefixList<R> extends AbstractList<R> {
+        private final List<R> own;
+        private final List<R> parent;
+        private final int skip;
+        private final int size;
+
+        private SharedPrefixList(List<R> own, List<R> parent, int skip) {
+            this.own = own;
+            this.parent = parent;
+            this.skip = skip;
+            this.size = own.size() + parent.size() - skip;
+        }
+
+        @Override
+        public R get(int index) {
+            Objects.checkIndex(index, size);
+            // iterate instead of recursing, parent chains can be as long as the array
+            List<R> current = this;
+            while (current instanceof SharedPrefixList<R> list) {
+                if (index < list.own.size()) {
+                    return list.own.get(index);
+                }
+                index = index - list.own.size() + list.skip;
+                current = list.parent;
+            }
+            return current.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (!(obj instanceof ArrayType<?, ?> other)) {
@@ -128,7 +235,8 @@ public class ArrayType<V, R> extends CondensedType<List<V>, List<R>> {
         }
         return super.equals(obj)
                 && Objects.equals(valueType, other.valueType)
-                && embedding == other.embedding;
+                && embedding == other.embedding
+                && sharesPrefixes == other.sharesPrefixes;
     }
 
     @Override
@@ -158,14 +266,16 @@ public class ArrayType<V, R> extends CondensedType<List<V>, List<R>> {
                 public void writeInnerTypeSpecification(
                         CondensedOutputStream out, ArrayType<?, ?> typeInstance) {
                     out.writeUnsignedVarInt(typeInstance.getValueTypeId());
-                    out.writeSingleByte(typeInstance.embedding.ordinal());
+                    out.writeSingleByte(
+                            typeInstance.embedding.ordinal()
+                                    | (typeInstance.sharesPrefixes ? SHARES_PREFIXES_FLAG : 0));
                 }
 
                 @Override
                 public ArrayType<?, ?> readInnerTypeSpecification(
                         CondensedInputStream in, int id, String name, String description) {
                     int innerTypeId = (int) in.readUnsignedVarint();
-                    long embedding = in.readUnsignedLong(1);
+                    int embedding = (int) in.readUnsignedLong(1);
                     var valueType = in.getTypeCollection().getLazyType(innerTypeId);
                     return (ArrayType<?, ?>)
                             in.getTypeCollection()
@@ -175,7 +285,9 @@ public class ArrayType<V, R> extends CondensedType<List<V>, List<R>> {
                                                     name,
                                                     description,
                                                     valueType,
-                                                    EmbeddingType.values()[(int) embedding]));
+                                                    EmbeddingType.valueOf(
+                                                            embedding & ~SHARES_PREFIXES_FLAG),
+                                                    (embedding & SHARES_PREFIXES_FLAG) != 0));
                 }
 
                 @Override
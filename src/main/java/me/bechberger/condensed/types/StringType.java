@@ -32,14 +32,15 @@ public class StringType extends CondensedType<String, String> {
         return SPECIFIED_TYPE;
     }
 
+    /** String values are interned per stream, so repeated values only cost a slot reference */
     @Override
     public void writeTo(CondensedOutputStream out, String value) {
-        out.writeString(value, encoding);
+        out.writeInternedString(value, encoding);
     }
 
     @Override
     public String readFrom(CondensedInputStream in) {
-        return in.readString(encoding);
+        return in.readInternedString(encoding);
     }
 
     @Override
@@ -0,0 +1,23 @@
+package me.bechberger.condensed.types;
+
+import java.util.Map;
+import me.bechberger.condensed.CondensedInputStream;
+import me.bechberger.condensed.CondensedOutputStream;
+import org.jetbrains.annotations.Nullable;
+
+/** Writes and reads the fields of a struct, generated per struct type by {@link StructCodecs} */
+interface StructCodec {
+
+    /** Write all fields of the (already reduced) struct value */
+    void write(CondensedOutputStream out, StructType<?, ?> struct, Object value);
+
+    /**
+     * Read all fields, storing inline fields in {@code values} and reference fields in {@code ids}
+     * (null if the struct has no reference fields)
+     */
+    void read(
+            CondensedInputStream in,
+            StructType<?, ?> struct,
+            Map<String, Object> values,
+            @Nullable Map<String, @Nullable Integer> ids);
+}
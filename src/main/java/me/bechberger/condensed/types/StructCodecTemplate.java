@@ -0,0 +1,226 @@
+package me.bechberger.condensed.types;
+
+import java.util.Arrays;
+import java.util.Map;
+import me.bechberger.condensed.CondensedInputStream;
+import me.bechberger.condensed.CondensedOutputStream;
+import me.bechberger.condensed.types.StructCodecs.Member;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Template for the codecs generated by {@link StructCodecs}: every struct shape gets its own hidden
+ * copy of this class. The JIT profiles every copy separately, and every field has its own call
+ * sites for its getter and type, so these calls are monomorphic and inlined, instead of the
+ * megamorphic calls in the loop of the interpreted {@link StructType}.
+ *
+ * <p>The first {@link #UNROLLED} members are unrolled, the rest are handled in a loop. The class is
+ * never used directly.
+ */
+final class StructCodecTemplate implements StructCodec {
+
+    static final int UNROLLED = 16;
+
+    private final @Nullable Member m0;
+    private final @Nullable Member m1;
+    private final @Nullable Member m2;
+    private final @Nullable Member m3;
+    private final @Nullable Member m4;
+    private final @Nullable Member m5;
+    private final @Nullable Member m6;
+    private final @Nullable Member m7;
+    private final @Nullable Member m8;
+    private final @Nullable Member m9;
+    private final @Nullable Member m10;
+    private final @Nullable Member m11;
+    private final @Nullable Member m12;
+    private final @Nullable Member m13;
+    private final @Nullable Member m14;
+    private final @Nullable Member m15;
+
+    private final Member[] rest;
+
+    StructCodecTemplate(Member[] members) {
+        m0 = member(members, 0);
+        m1 = member(members, 1);
+        m2 = member(members, 2);
+        m3 = member(members, 3);
+        m4 = member(members, 4);
+        m5 = member(members, 5);
+        m6 = member(members, 6);
+        m7 = member(members, 7);
+        m8 = member(members, 8);
+        m9 = member(members, 9);
+        m10 = member(members, 10);
+        m11 = member(members, 11);
+        m12 = member(members, 12);
+        m13 = member(members, 13);
+        m14 = member(members, 14);
+        m15 = member(members, 15);
+        rest =
+                members.length > UNROLLED
+                        ? Arrays.copyOfRange(members, UNROLLED, members.length)
+                        : new Member[0];
+    }
+
+    private static @Nullable Member member(Member[] members, int index) {
+        return index < members.length ? members[index] : null;
+    }
+
+    @Override
+    public void write(CondensedOutputStream out, StructType<?, ?> struct, Object value) {
+        if (m0 == null) return;
+        m0.type().writeTo(out, m0.reduce(out, m0.getter().apply(value)), struct, m0.embedding());
+        if (m1 == null) return;
+        m1.type().writeTo(out, m1.reduce(out, m1.getter().apply(value)), struct, m1.embedding());
+        if (m2 == null) return;
+        m2.type().writeTo(out, m2.reduce(out, m2.getter().apply(value)), struct, m2.embedding());
+        if (m3 == null) return;
+        m3.type().writeTo(out, m3.reduce(out, m3.getter().apply(value)), struct, m3.embedding());
+        if (m4 == null) return;
+        m4.type().writeTo(out, m4.reduce(out, m4.getter().apply(value)), struct, m4.embedding());
+        if (m5 == null) return;
+        m5.type().writeTo(out, m5.reduce(out, m5.getter().apply(value)), struct, m5.embedding());
+        if (m6 == null) return;
+        m6.type().writeTo(out, m6.reduce(out, m6.getter().apply(value)), struct, m6.embedding());
+        if (m7 == null) return;
+        m7.type().writeTo(out, m7.reduce(out, m7.getter().apply(value)), struct, m7.embedding());
+        if (m8 == null) return;
+        m8.type().writeTo(out, m8.reduce(out, m8.getter().apply(value)), struct, m8.embedding());
+        if (m9 == null) return;
+        m9.type().writeTo(out, m9.reduce(out, m9.getter().apply(value)), struct, m9.embedding());
+        if (m10 == null) return;
+        m10.type()
+                .writeTo(out, m10.reduce(out, m10.getter().apply(value)), struct, m10.embedding());
+        if (m11 == null) return;
+        m11.type()
+                .writeTo(out, m11.reduce(out, m11.getter().apply(value)), struct, m11.embedding());
+        if (m12 == null) return;
+        m12.type()
+                .writeTo(out, m12.reduce(out, m12.getter().apply(value)), struct, m12.embedding());
+        if (m13 == null) return;
+        m13.type()
+                .writeTo(out, m13.reduce(out, m13.getter().apply(value)), struct, m13.embedding());
+        if (m14 == null) return;
+        m14.type()
+                .writeTo(out, m14.reduce(out, m14.getter().apply(value)), struct, m14.embedding());
+        if (m15 == null) return;
+        m15.type()
+                .writeTo(out, m15.reduce(out, m15.getter().apply(value)), struct, m15.embedding());
+        for (Member member : rest) {
+            member.write(out, struct, value);
+        }
+    }
+
+    @Override
+    public void read(
+            CondensedInputStream in,
+            StructType<?, ?> struct,
+            Map<String, Object> values,
+            @Nullable Map<String, @Nullable Integer> ids) {
+        if (m0 == null) return;
+        if (m0.inline()) {
+            values.put(m0.name(), m0.inflate(in, m0.type().readFrom(in, struct, m0.embedding())));
+        } else {
+            m0.readReference(in, struct, ids);
+        }
+        if (m1 == null) return;
+        if (m1.inline()) {
+            values.put(m1.name(), m1.inflate(in, m1.type().readFrom(in, struct, m1.embedding())));
+        } else {
+            m1.readReference(in, struct, ids);
+        }
+        if (m2 == null) return;
+        if (m2.inline()) {
+            values.put(m2.name(), m2.inflate(in, m2.type().readFrom(in, struct, m2.embedding())));
+        } else {
+            m2.readReference(in, struct, ids);
+        }
+        if (m3 == null) return;
+        if (m3.inline()) {
+            values.put(m3.name(), m3.inflate(in, m3.type().readFrom(in, struct, m3.embedding())));
+        } else {
+            m3.readReference(in, struct, ids);
+        }
+        if (m4 == null) return;
+        if (m4.inline()) {
+            values.put(m4.name(), m4.inflate(in, m4.type().readFrom(in, struct, m4.embedding())));
+        } else {
+            m4.readReference(in, struct, ids);
+        }
+        if (m5 == null) return;
+        if (m5.inline()) {
+            values.put(m5.name(), m5.inflate(in, m5.type().readFrom(in, struct, m5.embedding())));
+        } else {
+            m5.readReference(in, struct, ids);
+        }
+        if (m6 == null) return;
+        if (m6.inline()) {
+            values.put(m6.name(), m6.inflate(in, m6.type().readFrom(in, struct, m6.embedding())));
+        } else {
+            m6.readReference(in, struct, ids);
+        }
+        if (m7 == null) return;
+        if (m7.inline()) {
+            values.put(m7.name(), m7.inflate(in, m7.type().readFrom(in, struct, m7.embedding())));
+        } else {
+            m7.readReference(in, struct, ids);
+        }
+        if (m8 == null) return;
+        if (m8.inline()) {
+            values.put(m8.name(), m8.inflate(in, m8.type().readFrom(in, struct, m8.embedding())));
+        } else {
+            m8.readReference(in, struct, ids);
+        }
+        if (m9 == null) return;
+        if (m9.inline()) {
+            values.put(m9.name(), m9.inflate(in, m9.type().readFrom(in, struct, m9.embedding())));
+        } else {
+            m9.readReference(in, struct, ids);
+        }
+        if (m10 == null) return;
+        if (m10.inline()) {
+            values.put(
+                    m10.name(), m10.inflate(in, m10.type().readFrom(in, struct, m10.embedding())));
+        } else {
+            m10.readReference(in, struct, ids);
+        }
+        if (m11 == null) return;
+        if (m11.inline()) {
+            values.put(
+                    m11.name(), m11.inflate(in, m11.type().readFrom(in, struct, m11.embedding())));
+        } else {
+            m11.readReference(in, struct, ids);
+        }
+        if (m12 == null) return;
+        if (m12.inline()) {
+            values.put(
+                    m12.name(), m12.inflate(in, m12.type().readFrom(in, struct, m12.embedding())));
+        } else {
+            m12.readReference(in, struct, ids);
+        }
+        if (m13 == null) return;
+        if (m13.inline()) {
+            values.put(
+                    m13.name(), m13.inflate(in, m13.type().readFrom(in, struct, m13.embedding())));
+        } else {
+            m13.readReference(in, struct, ids);
+        }
+        if (m14 == null) return;
+        if (m14.inline()) {
+            values.put(
+                    m14.name(), m14.inflate(in, m14.type().readFrom(in, struct, m14.embedding())));
+        } else {
+            m14.readReference(in, struct, ids);
+        }
+        if (m15 == null) return;
+        if (m15.inline()) {
+            values.put(
+                    m15.name(), m15.inflate(in, m15.type().readFrom(in, struct, m15.embedding())));
+        } else {
+            m15.readReference(in, struct, ids);
+        }
+        for (Member member : rest) {
+            member.read(in, struct, values, ids);
+        }
+    }
+}
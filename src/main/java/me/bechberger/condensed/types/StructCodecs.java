@@ -0,0 +1,158 @@
+package me.bechberger.condensed.types;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import me.bechberger.condensed.CondensedInputStream;
+import me.bechberger.condensed.CondensedOutputStream;
+import me.bechberger.condensed.Universe.EmbeddingType;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Generates specialized {@link StructCodec}s by defining hidden copies of {@link
+ * StructCodecTemplate}.
+ *
+ * <p>Struct types are created per stream, so the hidden classes are shared between all struct types
+ * with the same shape (the classes of the field types and getters, the embeddings and reductions):
+ * a new stream reuses the already profiled and compiled code, and the profile of every field call
+ * site stays monomorphic.
+ *
+ * <p>Generation is optional: it is only done for struct types that are used often (see {@link
+ * StructType#GENERATE_CODEC_AFTER}), can be disabled via the {@value #PROPERTY} system property or
+ * {@link StructType#setGeneratedCodecs(boolean)}, and falls back to the interpreted loop in {@link
+ * StructType} if the template cannot be loaded.
+ */
+final class StructCodecs {
+
+    /** Set to {@code false} to always use the interpreted codec */
+    static final String PROPERTY = "cjfr.generatedCodecs";
+
+    /** A resolved struct field */
+    record Member(
+            String name,
+            CondensedType<Object, Object> type,
+            Function<Object, Object> getter,
+            EmbeddingType embedding,
+            int reductionId,
+            boolean inline) {
+
+        @SuppressWarnings("unchecked")
+        static Member of(StructType.Field<?, ?, ?> field) {
+            return new Member(
+                    field.name(),
+                    (CondensedType<Object, Object>) field.type(),
+                    (Function<Object, Object>) field.getter(),
+                    field.embedding(),
+                    field.reductionId(),
+                    field.embedding() == EmbeddingType.INLINE
+                            || field.embedding() == EmbeddingType.NULLABLE_INLINE);
+        }
+
+        /** Part of the shape, see {@link StructCodecs} */
+        List<Object> shape() {
+            return List.of(type.getClass(), getter.getClass(), embedding, reductionId != 0);
+        }
+
+        Object reduce(CondensedOutputStream out, Object value) {
+            // id 0 is no reduction
+            return reductionId == 0 ? value : out.getReductions().reduce(reductionId, value);
+        }
+
+        Object inflate(CondensedInputStream in, Object value) {
+            return reductionId == 0 ? value : in.getReductions().inflate(reductionId, value);
+        }
+
+        void readReference(
+                CondensedInputStream in,
+                StructType<?, ?> struct,
+                @Nullable Map<String, @Nullable Integer> ids) {
+            assert ids != null;
+            int ref = type.readReference(in, struct, embedding);
+            ids.put(name, ref == -1 ? null : ref);
+        }
+
+        void write(CondensedOutputStream out, StructType<?, ?> struct, Object value) {
+            type.writeTo(out, reduce(out, getter.apply(value)), struct, embedding);
+        }
+
+        void read(
+                CondensedInputStream in,
+                StructType<?, ?> struct,
+                Map<String, Object> values,
+                @Nullable Map<String, @Nullable Integer> ids) {
+            if (inline) {
+                values.put(name, inflate(in, type.readFrom(in, struct, embedding)));
+            } else {
+                readReference(in, struct, ids);
+            }
+        }
+    }
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    /** Class file of the template, null if it is not available */
+    private static final byte @Nullable [] TEMPLATE = readTemplate();
+
+    /** Constructor of the hidden class per shape */
+    private static final Map<List<List<Object>>, Constructor<?>> CODEC_CLASSES =
+            new ConcurrentHashMap<>();
+
+    private StructCodecs() {}
+
+    private static byte @Nullable [] readTemplate() {
+        try (InputStream in =
+                StructCodecTemplate.class.getResourceAsStream(
+                        StructCodecTemplate.class.getSimpleName() + ".class")) {
+            return in == null ? null : in.readAllBytes();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static boolean isAvailable() {
+        return TEMPLATE != null;
+    }
+
+    private static Constructor<?> defineCodecClass() {
+        assert TEMPLATE != null;
+        try {
+            return LOOKUP.defineHiddenClass(TEMPLATE, true)
+                    .lookupClass()
+                    .getDeclaredConstructor(Member[].class);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Generate a codec for the fields, resolving their lazy types
+     *
+     * @return the codec or null if it could not be generated
+     */
+    static @Nullable StructCodec generate(List<? extends StructType.Field<?, ?, ?>> fields) {
+        if (TEMPLATE == null) {
+            return null;
+        }
+        Member[] members = fields.stream().map(Member::of).toArray(Member[]::new);
+        List<List<Object>> shape = Arrays.stream(members).map(Member::shape).toList();
+        try {
+            return (StructCodec)
+                    CODEC_CLASSES
+                            .computeIfAbsent(shape, s -> defineCodecClass())
+                            .newInstance((Object) members);
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Number of generated codec classes, one per struct shape */
+    static int codecClassCount() {
+        return CODEC_CLASSES.size();
+    }
+}
@@ -160,6 +160,12 @@ public class StructType<T, R> extends CondensedType<T, R> {
         }
     }
 
+    /** Number of values a struct type writes or reads before its codec is generated */
+    public static final int GENERATE_CODEC_AFTER = 64;
+
+    private static boolean generatedCodecs =
+            !"false".equals(System.getProperty(StructCodecs.PROPERTY));
+
     private final List<Field<T, ?, ?>> fields;
     private final List<String> fieldNames;
     private final Map<String, Field<T, ?, ?>> fieldMap;
@@ -169,6 +175,11 @@ public class StructType<T, R> extends CondensedType<T, R> {
     private final int hashCode;
     private final boolean hasReferenceFields;
 
+    /** Generated codec, null if not (yet) generated */
+    private @Nullable StructCodec codec;
+
+    private int uses = 0;
+
     @SuppressWarnings("unchecked")
     private StructType(
             int id,
@@ -268,17 +279,84 @@ public class StructType<T, R> extends CondensedType<T, R> {
         return (SpecifiedType<StructType<T, R>>) (SpecifiedType<?>) SPECIFIED_TYPE;
     }
 
+    /**
+     * Use generated codecs (see {@link StructCodecs}) for struct types that write or read more than
+     * {@link #GENERATE_CODEC_AFTER} values, enabled by default. Disabling them switches all struct
+     * types back to the interpreted codec.
+     */
+    public static void setGeneratedCodecs(boolean enabled) {
+        generatedCodecs = enabled;
+    }
+
+    public static boolean isGeneratedCodecs() {
+        return generatedCodecs;
+    }
+
+    /** Returns the generated codec, generating it when the type is used often enough */
+    private @Nullable StructCodec codec() {
+        if (!generatedCodecs) {
+            return null;
+        }
+        StructCodec c = codec;
+        if (c == null && ++uses == GENERATE_CODEC_AFTER) {
+            c = codec = StructCodecs.generate(fields);
+        }
+        return c;
+    }
+
+    /** Is the generated codec used for this type? */
+    boolean hasGeneratedCodec() {
+        return codec != null && generatedCodecs;
+    }
+
     @Override
-    @SuppressWarnings("unchecked")
     public void writeTo(CondensedOutputStream out, T value) {
         try (var t = out.getStatistics().withWriteCauseContext(this)) {
             var val = out.getReductions().reduce(reductionId, value);
-            for (Field<T, ?, ?> field : fields) {
-                var fieldType = ((CondensedType<Object, Object>) field.type());
-                var fieldValue =
-                        out.getReductions()
-                                .reduce(field.reductionId, field.getter().apply((T) val));
-                fieldType.writeTo(out, fieldValue, this, field.embedding());
+            StructCodec c = codec();
+            if (c != null) {
+                c.write(out, this, val);
+            } else {
+                writeFieldsInterpreted(out, val);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeFieldsInterpreted(CondensedOutputStream out, Object val) {
+        for (Field<T, ?, ?> field : fields) {
+            var fieldType = ((CondensedType<Object, Object>) field.type());
+            var fieldValue =
+                    out.getReductions().reduce(field.reductionId, field.getter().apply((T) val));
+            fieldType.writeTo(out, fieldValue, this, field.embedding());
+        }
+    }
+
+    /**
+     * Write only the fields of the value that are embedded as references, defining the referenced
+     * values that are not yet cached, see {@link me.bechberger.condensed.DefinitionDictionary}
+     */
+    @SuppressWarnings("unchecked")
+    public void writeReferenceFields(CondensedOutputStream out, T value) {
+        var val = out.getReductions().reduce(reductionId, value);
+        for (Field<T, ?, ?> field : fields) {
+            if (field.embedding() == EmbeddingType.INLINE
+                    || field.embedding() == EmbeddingType.NULLABLE_INLINE) {
+                continue;
+            }
+            var fieldType = ((CondensedType<Object, Object>) field.type());
+            var fieldValue =
+                    out.getReductions().reduce(field.reductionId, field.getter().apply((T) val));
+            fieldType.writeTo(out, fieldValue, this, field.embedding());
+        }
+    }
+
+    /** Read the fields written by {@link #writeReferenceFields}, caching the defined values */
+    public void readReferenceFields(CondensedInputStream in) {
+        for (Field<T, ?, ?> field : fields) {
+            if (field.embedding() != EmbeddingType.INLINE
+                    && field.embedding() != EmbeddingType.NULLABLE_INLINE) {
+                field.type().readReference(in, this, field.embedding());
             }
         }
     }
@@ -290,17 +368,11 @@ public class StructType<T, R> extends CondensedType<T, R> {
             Map<String, Object> values = new HashMap<>(fields.size() * 4 / 3 + 1);
             Map<String, @Nullable Integer> idsOrNull =
                     hasReferenceFields ? new HashMap<>(fields.size() * 4 / 3 + 1) : null;
-            for (Field<T, ?, ?> field : fields) {
-                if (field.embedding() == EmbeddingType.INLINE
-                        || field.embedding() == EmbeddingType.NULLABLE_INLINE) {
-                    var value =
-                            ((CondensedType<Object, Object>) field.type())
-                                    .readFrom(in, this, field.embedding());
-                    values.put(field.name(), in.getReductions().inflate(field.reductionId, value));
-                } else {
-                    var ref = field.type().readReference(in, this, field.embedding());
-                    idsOrNull.put(field.name(), ref == -1 ? null : ref);
-                }
+            StructCodec c = codec();
+            if (c != null) {
+                c.read(in, this, values, idsOrNull);
+            } else {
+                readFieldsInterpreted(in, values, idsOrNull);
             }
             ReadStruct readStruct;
             if (idsOrNull == null || idsOrNull.isEmpty()) {
@@ -326,6 +398,25 @@ public class StructType<T, R> extends CondensedType<T, R> {
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private void readFieldsInterpreted(
+            CondensedInputStream in,
+            Map<String, Object> values,
+            @Nullable Map<String, @Nullable Integer> idsOrNull) {
+        for (Field<T, ?, ?> field : fields) {
+            if (field.embedding() == EmbeddingType.INLINE
+                    || field.embedding() == EmbeddingType.NULLABLE_INLINE) {
+                var value =
+                        ((CondensedType<Object, Object>) field.type())
+                                .readFrom(in, this, field.embedding());
+                values.put(field.name(), in.getReductions().inflate(field.reductionId, value));
+            } else {
+                var ref = field.type().readReference(in, this, field.embedding());
+                idsOrNull.put(field.name(), ref == -1 ? null : ref);
+            }
+        }
+    }
+
     @Override
     public boolean equals(Object obj) {
         return super.equals(obj) && fields.equals(((StructType<?, ?>) obj).fields);
@@ -130,10 +130,13 @@ public class BasicJFRReader implements JFRReader {
                     processConfiguration(msg);
                 } else {
                     // We reached the first event
-                    in.setReductions(new JFRReduction.JFRReductions(configuration, universe));
                     alreadReadNextInstance = msg;
                     return;
                 }
+                // the definitions that may follow are read with the reductions
+                if (in.getReductions() == Reductions.NONE) {
+                    in.setReductions(new JFRReduction.JFRReductions(configuration, universe));
+                }
             }
         } catch (RIOException.UnexpectedEOFException e) {
             isTruncated = true;
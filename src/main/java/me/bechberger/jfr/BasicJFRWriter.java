@@ -5,26 +5,33 @@ import static me.bechberger.condensed.types.TypeCollection.normalize;
 import static me.bechberger.jfr.ReducedJFRTypes.REDUCED_JFR_TYPES;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.time.Duration;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import jdk.jfr.AnnotationElement;
 import jdk.jfr.EventType;
 import jdk.jfr.Timespan;
 import jdk.jfr.ValueDescriptor;
 import jdk.jfr.consumer.*;
+import me.bechberger.condensed.Compression;
 import me.bechberger.condensed.CondensedOutputStream;
 import me.bechberger.condensed.CondensedOutputStream.OverflowMode;
+import me.bechberger.condensed.DefinitionDictionary;
+import me.bechberger.condensed.Message.StartMessage;
 import me.bechberger.condensed.Universe.EmbeddingType;
 import me.bechberger.condensed.Universe.HashAndEqualsConfig;
 import me.bechberger.condensed.types.*;
 import me.bechberger.condensed.types.FloatType.Type;
 import me.bechberger.condensed.types.StructType.Field;
+import me.bechberger.jfr.EventCombiner.ResolvedCombiner;
 import me.bechberger.jfr.JFRReduction.ReducedStackTrace;
 import me.bechberger.util.json.JSONParser;
 import me.bechberger.util.json.PrettyPrinter;
@@ -163,7 +170,18 @@ public class BasicJFRWriter {
 
     private final CondensedOutputStream out;
     private final Configuration configuration;
-    private final Map<EventType, StructType<RecordedEvent, Map<String, Object>>> eventTypeMap;
+
+    /** Plan per event type, see {@link #planFor(EventType)} */
+    private final Map<EventType, EventTypePlan> plans;
+
+    /** Plan of the last processed event, events of the same type often come in runs */
+    private @Nullable EventTypePlan lastPlan;
+
+    /** Plans of the types seen since the metadata last changed, see {@link #startChunk} */
+    private final Map<Long, EventTypePlan> chunkPlansById = new HashMap<>();
+
+    private boolean sameMetadataAsPreviousChunk;
+
     private final Map<TypeIdent, CondensedType<?, ?>> fieldTypes;
     private final List<Entry<TypeIdent, CondensedType<?, ?>>> fieldTypesToAdd;
     private final Map<Long, VarIntType> timespanTypePerDivisor = new HashMap<>();
@@ -172,6 +190,9 @@ public class BasicJFRWriter {
     private final Map<String, VarIntType> memoryVarIntTypes = new HashMap<>();
     private StructType<?, ?> reducedStackTraceType;
 
+    /** Reduced stack traces per constant-pool stack trace, computed once instead of per event */
+    private final ConstantPoolMemo<RecordedStackTrace, ReducedStackTrace> reducedStackTraces;
+
     /**
      * Maps original JFR class IDs to event type names. Populated as event types are registered.
      * Used to remap {@code jdk.ActiveSetting.id} and {@code jdk.RecordingSetting.id} from numeric
@@ -201,6 +222,16 @@ public class BasicJFRWriter {
     private final JFREventCombiner eventCombiner;
     private final EventDeduplication deduplication;
     private final FooterCollector footerCollector;
+
+    /** Shared definitions that the definitions message refers to if it has their content */
+    private @Nullable DefinitionDictionary sharedDefinitions;
+
+    /** Events whose types and references are written as definitions, see {@link #setDefinitions} */
+    private List<RecordedEvent> definitionSamples = List.of();
+
+    /** Event type name → events dropped before they reached this writer */
+    private final Map<String, Long> droppedEvents = new HashMap<>();
+
     private final AtomicBoolean closed = new AtomicBoolean(false);
     private final long defaultStartTimeNanos = System.currentTimeMillis() * 1000000;
 
@@ -210,7 +241,7 @@ public class BasicJFRWriter {
     public BasicJFRWriter(CondensedOutputStream out, Configuration configuration) {
         this.out = out;
         this.configuration = configuration;
-        this.eventTypeMap = new HashMap<>();
+        this.plans = new HashMap<>();
         this.fieldTypes = new HashMap<>();
         this.fieldTypesToAdd = new ArrayList<>();
         this.fieldTypesCurrentlyAdding = new HashMap<>();
@@ -224,6 +255,10 @@ public class BasicJFRWriter {
         eventCombiner = new JFREventCombiner(out, configuration, this);
         deduplication = new JFREventDeduplication(configuration);
         footerCollector = new FooterCollector(configuration.cpuBucketSeconds());
+        int maxStackTraceDepth = (int) configuration.maxStackTraceDepth();
+        reducedStackTraces =
+                new ConstantPoolMemo<>(
+                        trace -> ReducedStackTrace.create(trace, maxStackTraceDepth));
 
         // Seed the id->name map from every event type the JVM has registered. The agent's
         // RecordingStream path never calls registerEventTypes(), so without this the map is only
@@ -254,6 +289,19 @@ public class BasicJFRWriter {
         return eventCombiner;
     }
 
+    /**
+     * Count events that were dropped before they reached this writer (e.g. by the agent's
+     * throttle), stored in the footer so that analyses can scale their estimates
+     */
+    public void countDroppedEvents(String eventType, long count) {
+        droppedEvents.merge(eventType, count, Long::sum);
+    }
+
+    /** Number of combined states per event type that are not yet written */
+    public Map<String, Integer> getCombinerStateCounts() {
+        return eventCombiner.stateCounts();
+    }
+
     private @Nullable CondensedType<?, ?> getTypeOrNull(TypeIdent name) {
         if (fieldTypes.containsKey(name)) {
             return fieldTypes.get(name);
@@ -628,15 +676,10 @@ public class BasicJFRWriter {
         // which would drop the tick->epoch conversion. Resolve via our own Annotations, which
         // deprioritizes @Unsigned in favor of the specific content type.
         String contentType = new Annotations(field.getAnnotationElements()).getContentType();
-        if (contentType != null && contentType.equals("jdk.jfr.Timestamp")) {
-            return new GetterAndCachedType(
-                    event -> getValueOrDefault(event, field, e -> e.getInstant(field.getName())),
-                    timeStampType,
-                    JFRReduction.TIMESTAMP_REDUCTION);
-        }
-        // Fallback: newer JDK JFR files may have null contentType / missing annotations.
-        // Use RecordedEvent.getStartTime() which works regardless of annotations.
-        if (contentType == null
+        // The built-in start time is stored outside the values, so RecordedEvent.getStartTime()
+        // needs no lookup, and it also works for newer JDK JFR files with a null contentType /
+        // missing annotations.
+        if ((contentType == null || contentType.equals("jdk.jfr.Timestamp"))
                 && field.getName().equals("startTime")
                 && topLevel
                 && field.getTypeName().equals("long")) {
@@ -645,6 +688,13 @@ public class BasicJFRWriter {
                     timeStampType,
                     JFRReduction.TIMESTAMP_REDUCTION);
         }
+        // Other timestamps need the chunk's tick conversion, which only the public API offers
+        if (contentType != null && contentType.equals("jdk.jfr.Timestamp")) {
+            return new GetterAndCachedType(
+                    event -> getValueOrDefault(event, field, e -> e.getInstant(field.getName())),
+                    timeStampType,
+                    JFRReduction.TIMESTAMP_REDUCTION);
+        }
         if (contentType != null && contentType.equals("jdk.jfr.Timespan")) {
             return getTimespanType(field, topLevel);
         }
@@ -660,9 +710,8 @@ public class BasicJFRWriter {
                 && field.getTypeName().equals("float")
                 && contentType != null
                 && contentType.equals("jdk.jfr.Percentage")) {
-            return new GetterAndCachedType(
-                    event -> getValueOrDefault(event, field, e -> e.getFloat(field.getName())),
-                    getPercentageFloatType());
+            var acc = UnsafeRecordedObjectAccessor.field(field.getName(), 0.0f);
+            return new GetterAndCachedType(acc::get, getPercentageFloatType());
         }
         var dataAmount = getDataAmountAnnotationValue(field);
         var losslessBytesType = getLosslessBytesDataAmountType(field, dataAmount);
@@ -679,30 +728,33 @@ public class BasicJFRWriter {
         }
         JFRReduction reduction = JFRReduction.NONE;
         if (field.getTypeName().equals("jdk.types.StackTrace")) {
+            var acc =
+                    UnsafeRecordedObjectAccessor.<RecordedStackTrace>recordedObjectField(
+                            field.getName());
             return new GetterAndCachedType(
                     event -> {
-                        var trace =
-                                getValueOrDefault(event, field, e -> e.getValue(field.getName()));
+                        var trace = getValueOrDefault(event, field, acc::get);
                         // doing this in reductions is wasteful
                         return trace == null
                                 ? null
-                                : ReducedStackTrace.create(
-                                        (RecordedStackTrace) trace,
-                                        (int) configuration.maxStackTraceDepth());
+                                : reducedStackTraces.get((RecordedStackTrace) trace);
                     },
                     getReducedStackTraceType(field));
         }
         // The positional accessor returns the RAW internal value from RecordedObject.objects.
         // getValue(name) additionally structifies nested values: arrays become RecordedObject[] and
-        // struct-typed fields become RecordedObject, both of which downstream StructType/ArrayType
-        // writing requires. The raw path only matches for leaf scalar fields (no sub-fields, not an
-        // array) — e.g. String, boxed primitives, class/thread references handled by the accessor's
-        // own fallback. Everything else must keep getValue(name).
-        boolean leafScalar = field.getFields().isEmpty() && !field.isArray();
-        Function<RecordedObject, Object> getter =
-                leafScalar
-                        ? UnsafeRecordedObjectAccessor.field(field.getName(), null)::get
-                        : e -> e.getValue(field.getName());
+        // raw struct-typed fields become RecordedObject, both of which downstream StructType /
+        // ArrayType writing requires. The raw path matches for leaf scalar fields (no sub-fields,
+        // not an array), and for struct values that the parser already created as RecordedObject
+        // (threads, classes, methods, …). Arrays must keep getValue(name).
+        Function<RecordedObject, Object> getter;
+        if (field.isArray()) {
+            getter = e -> e.getValue(field.getName());
+        } else if (field.getFields().isEmpty()) {
+            getter = UnsafeRecordedObjectAccessor.field(field.getName(), null)::get;
+        } else {
+            getter = UnsafeRecordedObjectAccessor.recordedObjectField(field.getName())::get;
+        }
         return new GetterAndCachedType(
                 event -> normalize(getValueOrDefault(event, field, getter)),
                 getTypeOrNull(TypeIdent.of(field)),
@@ -723,9 +775,13 @@ public class BasicJFRWriter {
             reducedStackTraceType =
                     out.writeAndStoreType(
                             id -> {
+                                // traces mostly differ in their top frames, so share the
+                                // callers with already written traces
                                 var arrayType =
                                         out.writeAndStoreType(
-                                                innerId -> createArrayType(framesField, innerId));
+                                                innerId ->
+                                                        createArrayType(framesField, innerId)
+                                                                .withSharedPrefixes());
                                 return new StructType<>(
                                         id,
                                         "jdk.types.StackTrace",
@@ -801,6 +857,9 @@ public class BasicJFRWriter {
         // may be missing in some JFR file chunks.
         String fieldName = field.getName();
         boolean builtinDuration = fieldName.equals("duration") && topLevel;
+        var rawAccessor = UnsafeRecordedObjectAccessor.longField(fieldName, Long.MIN_VALUE);
+        // null for ticks, whose conversion depends on the chunk and needs the public API
+        @Nullable ChronoUnit unit = getTimespanUnit(field);
         Function<RecordedObject, Object> getter =
                 builtinDuration
                         ? event -> ((RecordedEvent) event).getDuration()
@@ -811,7 +870,7 @@ public class BasicJFRWriter {
                             // detect
                             // the raw sentinel and carry it as Duration.ofNanos(Long.MIN_VALUE),
                             // which JFRReduction.TIMESPAN_REDUCTION preserves losslessly.
-                            long raw = event.getLong(fieldName);
+                            long raw = rawAccessor.get(event);
                             if (raw == Long.MIN_VALUE) {
                                 return Duration.ofNanos(Long.MIN_VALUE);
                             }
@@ -827,7 +886,10 @@ public class BasicJFRWriter {
                             // "forever"
                             // and would be destroyed by clamp() anyway, so normalise to the
                             // carrier.
-                            Duration d = event.getDuration(fieldName);
+                            Duration d =
+                                    unit == null
+                                            ? event.getDuration(fieldName)
+                                            : Duration.of(raw, unit);
                             if (d.getSeconds()
                                     > 2L * me.bechberger.util.TimeUtil.MAX_DURATION_SECONDS) {
                                 return Duration.ofNanos(Long.MAX_VALUE);
@@ -851,14 +913,28 @@ public class BasicJFRWriter {
         return ticks < multiplier && ticks > -multiplier;
     }
 
+    private static String getTimespanAnnotationValue(ValueDescriptor field) {
+        return (String)
+                field.getAnnotationElements().stream()
+                        .filter(a -> a.getTypeName().equals("jdk.jfr.Timespan"))
+                        .findFirst()
+                        .map(a -> a.getValue("value"))
+                        .orElse(Timespan.NANOSECONDS);
+    }
+
+    /** Unit of the raw timespan value, null for ticks */
+    private static @Nullable ChronoUnit getTimespanUnit(ValueDescriptor field) {
+        return switch (getTimespanAnnotationValue(field)) {
+            case Timespan.NANOSECONDS -> ChronoUnit.NANOS;
+            case Timespan.MICROSECONDS -> ChronoUnit.MICROS;
+            case Timespan.MILLISECONDS -> ChronoUnit.MILLIS;
+            case Timespan.SECONDS -> ChronoUnit.SECONDS;
+            default -> null;
+        };
+    }
+
     private static long getSpecifiedTicksPerSec(ValueDescriptor field) {
-        String ticksAnnotationValue =
-                (String)
-                        field.getAnnotationElements().stream()
-                                .filter(a -> a.getTypeName().equals("jdk.jfr.Timespan"))
-                                .findFirst()
-                                .map(a -> a.getValue("value"))
-                                .orElse(Timespan.NANOSECONDS);
+        String ticksAnnotationValue = getTimespanAnnotationValue(field);
         return switch (ticksAnnotationValue) {
             case Timespan.NANOSECONDS, Timespan.TICKS -> 1_000_000_000;
             case Timespan.MICROSECONDS -> 1_000_000;
@@ -1059,9 +1135,10 @@ public class BasicJFRWriter {
             ValueDescriptor field) {
         String description = getDescription(field);
         StringType stringType = getActiveSettingIdStringType();
+        var idAccessor = UnsafeRecordedObjectAccessor.longField("id", 0L);
         Function<T, Object> getter =
                 event -> {
-                    long classId = ((RecordedEvent) event).getLong("id");
+                    long classId = idAccessor.get(event);
                     // Look up in our running map; fall back to String.valueOf if unknown
                     return eventTypeIdToName.getOrDefault(classId, String.valueOf(classId));
                 };
@@ -1097,21 +1174,85 @@ public class BasicJFRWriter {
     private static final UnsafeRecordedObjectAccessor.FieldAccessor<Object> G1_REGION_TO =
             UnsafeRecordedObjectAccessor.field("to", null);
 
-    private boolean isUnnecessaryEvent(RecordedEvent event) {
-        return switch (event.getEventType().getName()) {
+    /** Checks whether an event of the type carries no information, null if there are none */
+    private static @Nullable Predicate<RecordedEvent> unnecessaryEventCheck(EventType eventType) {
+        return switch (eventType.getName()) {
             case "jdk.G1HeapRegionTypeChange" ->
                     // from == to
-                    Objects.equals(G1_REGION_FROM.get(event), G1_REGION_TO.get(event));
-            default -> false;
+                    event -> Objects.equals(G1_REGION_FROM.get(event), G1_REGION_TO.get(event));
+            default -> null;
         };
     }
 
-    /** Checks if the event should be ignored */
-    private boolean ignoreEvent(RecordedEvent event) {
-        if (configuration.ignoreUnnecessaryEvents()) {
-            return isUnnecessaryEvent(event) || deduplication.recordAndCheckIfDuplicate(event);
+    /** Resolve the plan for the event type, creating it on first sight */
+    private EventTypePlan planFor(EventType eventType) {
+        EventTypePlan plan = lastPlan;
+        if (plan != null && plan.eventType() == eventType) {
+            return plan;
+        }
+        plan = plans.get(eventType);
+        if (plan == null) {
+            plan = sameMetadataAsPreviousChunk ? planOfPreviousChunk(eventType) : null;
+            if (plan == null) {
+                plan = createPlan(eventType);
+            }
+            plans.put(eventType, plan);
+            chunkPlansById.put(eventType.getId(), plan);
+        }
+        lastPlan = plan;
+        return plan;
+    }
+
+    private @Nullable EventTypePlan planOfPreviousChunk(EventType eventType) {
+        EventTypePlan previous = chunkPlansById.get(eventType.getId());
+        if (previous == null || !previous.eventType().getName().equals(eventType.getName())) {
+            return null;
         }
-        return false;
+        plans.remove(previous.eventType());
+        return previous.withEventType(eventType);
+    }
+
+    /**
+     * Call before the events of a chunk that is parsed on its own, e.g. by {@link
+     * ParallelJFRFileReader}. The event types of its events are new objects, but if the chunk has
+     * the same metadata as the previous one, they are treated like the previous chunk's types with
+     * the same id, as when the whole file is read with one {@link RecordingFile}, which keeps the
+     * types between such chunks.
+     */
+    public void startChunk(boolean sameMetadata) {
+        sameMetadataAsPreviousChunk = sameMetadata;
+        // the chunk's stack traces are new objects
+        reducedStackTraces.clear();
+        if (!sameMetadata) {
+            chunkPlansById.clear();
+        }
+    }
+
+    private EventTypePlan createPlan(EventType eventType) {
+        boolean ignoreEvents = configuration.ignoreUnnecessaryEvents();
+        return new EventTypePlan(
+                eventType,
+                ignoreEvents ? unnecessaryEventCheck(eventType) : null,
+                ignoreEvents ? deduplication.forEventType(eventType.getName()) : null,
+                footerCollector.slotFor(eventType.getName()));
+    }
+
+    private StructType<RecordedEvent, Map<String, Object>> structType(EventTypePlan plan) {
+        var type = plan.structType();
+        if (type == null) {
+            type = createAndRegisterEventStructType(plan.eventType());
+            plan.setStructType(type);
+        }
+        return type;
+    }
+
+    private ResolvedCombiner combiner(EventTypePlan plan) {
+        var combiner = plan.combiner();
+        if (combiner == null) {
+            combiner = eventCombiner.resolve(plan.eventType());
+            plan.setCombiner(combiner);
+        }
+        return combiner;
     }
 
     public void writeConfigurationAndUniverseIfNeeded(long startTimeNanos) {
@@ -1121,9 +1262,56 @@ public class BasicJFRWriter {
             universe.setStartTimeNanos(startTimeNanos);
             universe.setLastStartTimeNanos(universe.getStartTimeNanos());
             writeUniverse();
+            StartMessage startMessage = out.getUniverse().getStartMessage();
+            if (startMessage != null && startMessage.definitions()) {
+                out.writeDefinitions(captureDefinitions(definitionSamples), sharedDefinitions);
+            }
         }
     }
 
+    /**
+     * Definitions to write after the configuration and universe, if the start message {@link
+     * StartMessage#definitions() has definitions}. Must be called before the first event.
+     *
+     * @param shared definitions created by {@link #createDefinitions} with the same configuration,
+     *     start message version and samples, which the file then refers to
+     * @param samples events whose types and references are defined up front
+     */
+    public void setDefinitions(@Nullable DefinitionDictionary shared, List<RecordedEvent> samples) {
+        this.sharedDefinitions = shared;
+        this.definitionSamples = List.copyOf(samples);
+    }
+
+    /**
+     * Create definitions that the files written with the passed configuration and start message
+     * version can share, containing the event types and the references of the passed events
+     */
+    public static DefinitionDictionary createDefinitions(
+            Configuration configuration, StartMessage startMessage, List<RecordedEvent> samples) {
+        var out =
+                new CondensedOutputStream(
+                        OutputStream.nullOutputStream(),
+                        startMessage
+                                .compress(Compression.NONE)
+                                .withDictionary(null)
+                                .withDefinitions(false));
+        var writer = new BasicJFRWriter(out, configuration);
+        writer.writeConfigurationAndUniverseIfNeeded(writer.defaultStartTimeNanos);
+        return new DefinitionDictionary(writer.captureDefinitions(samples));
+    }
+
+    /** Write the event types and the references of the samples, returning the written bytes */
+    private byte[] captureDefinitions(List<RecordedEvent> samples) {
+        return out.captureDefinitions(
+                () -> {
+                    for (RecordedEvent event : samples) {
+                        var type = structType(planFor(event.getEventType()));
+                        processFieldTypesToAdd();
+                        out.writeReferences(type, event);
+                    }
+                });
+    }
+
     /**
      * Records the source recording's {@code gmtOffset} (milliseconds east of UTC) so it is
      * persisted with the universe and can be re-injected at inflate. Must be called before {@link
@@ -1134,20 +1322,20 @@ public class BasicJFRWriter {
     }
 
     public void processEvent(RecordedEvent event) {
-        if (ignoreEvent(event)) {
+        EventTypePlan plan = planFor(event.getEventType());
+        if (plan.isIgnored(event)) {
             return;
         }
-        footerCollector.collect(event);
-        writeConfigurationAndUniverseIfNeeded(toNanoSeconds(event.getStartTime()));
+        long startTimeNanos = toNanoSeconds(event.getStartTime());
+        footerCollector.collect(event, plan.footerSlot(), startTimeNanos);
+        writeConfigurationAndUniverseIfNeeded(startTimeNanos);
         if (out.isClosed()) {
             return;
         }
-        var type =
-                eventTypeMap.computeIfAbsent(
-                        event.getEventType(), this::createAndRegisterEventStructType);
+        var type = structType(plan);
         processFieldTypesToAdd();
 
-        if (eventCombiner.processEvent(event)) {
+        if (combiner(plan).processEvent(event)) {
             return;
         }
         out.writeMessage(type, event);
@@ -1158,7 +1346,7 @@ public class BasicJFRWriter {
      * already written
      */
     public void writeOutEventTypeIfNeeded(EventType eventType) {
-        eventTypeMap.computeIfAbsent(eventType, this::createAndRegisterEventStructType);
+        structType(planFor(eventType));
     }
 
     /** Reset deduplication state, call between processing different JFR files */
@@ -1179,6 +1367,7 @@ public class BasicJFRWriter {
                 throw new RuntimeException(e);
             }
         }
+        reducedStackTraces.clear();
         close();
     }
 
@@ -1393,13 +1582,15 @@ public class BasicJFRWriter {
         }
         writeConfigurationAndUniverseIfNeeded(defaultStartTimeNanos); // ensure universe is written
         eventCombiner.close();
+        reducedStackTraces.clear();
         var footer =
                 footerCollector
                         .build(
                                 universe.getStartTimeNanos() / 1000,
                                 universe.getDuration().toNanos() / 1000)
                         .withEventTypeLabels(Map.copyOf(eventTypeLabels))
-                        .withEventTypeJfrIds(Map.copyOf(recordingEventTypeNameToId));
+                        .withEventTypeJfrIds(Map.copyOf(recordingEventTypeNameToId))
+                        .withDroppedEvents(Map.copyOf(droppedEvents));
         out.writeFooter(footer); // closes the compression wrapper, then writes the footer
     }
 
@@ -1419,12 +1610,17 @@ public class BasicJFRWriter {
     /** Flush buffered bytes through the compressor so {@link #estimateSize()} is accurate. */
     public void flush() {
         out.flush();
+        reducedStackTraces.clear();
     }
 
     public Duration getDuration() {
         return universe.getDuration();
     }
 
+    /**
+     * Deduplication used by this writer, deduplicators for an event type have to be registered
+     * before the first event of the type is processed
+     */
     public EventDeduplication getDeduplication() {
         return deduplication;
     }
@@ -1,17 +1,27 @@
 package me.bechberger.jfr;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import jdk.jfr.EventType;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import me.bechberger.condensed.Compression;
+import me.bechberger.condensed.Compression.CompressionLevel;
 import me.bechberger.condensed.CondensedInputStream;
 import me.bechberger.condensed.CondensedOutputStream;
 import me.bechberger.condensed.Message.StartMessage;
+import me.bechberger.condensed.types.StructType;
 import me.bechberger.util.MemoryUtil;
 
 /**
@@ -47,6 +57,64 @@ public class Benchmark {
         }
     }
 
+    /**
+     * Compression of the uncompressed condensed stream of a file with one compression and level
+     *
+     * @param compressNanos best compression time of {@link #COMPRESSION_RUNS} runs
+     * @param decompressNanos best decompression time of {@link #COMPRESSION_RUNS} runs
+     */
+    public record CompressionResult(
+            JFRFile jfrFile,
+            Configuration configuration,
+            Compression compression,
+            CompressionLevel level,
+            long uncompressedSize,
+            long compressedSize,
+            long compressNanos,
+            long decompressNanos) {
+
+        /** Compressed size in percent of the uncompressed condensed size */
+        public float ratio() {
+            return (float) compressedSize / uncompressedSize * 100;
+        }
+
+        /** Uncompressed MB per second */
+        public float compressThroughput() {
+            return uncompressedSize / 1_000_000f / (compressNanos / 1_000_000_000f);
+        }
+
+        /** Uncompressed MB per second */
+        public float decompressThroughput() {
+            return uncompressedSize / 1_000_000f / (decompressNanos / 1_000_000_000f);
+        }
+    }
+
+    /**
+     * Writing and reading the events of a file with either the generated or the interpreted struct
+     * codecs, see {@link StructType#setGeneratedCodecs(boolean)}
+     *
+     * @param writeNanos best time of {@link #CODEC_RUNS} runs to condense the parsed events
+     * @param readNanos best time of {@link #CODEC_RUNS} runs to read all messages of the result
+     */
+    public record CodecResult(
+            JFRFile jfrFile,
+            Configuration configuration,
+            boolean generated,
+            int events,
+            long writeNanos,
+            long readNanos) {
+
+        /** Events per second */
+        public float writeThroughput() {
+            return events / (writeNanos / 1_000_000_000f);
+        }
+
+        /** Events per second */
+        public float readThroughput() {
+            return events / (readNanos / 1_000_000_000f);
+        }
+    }
+
     public record TableColumnDescription<T>(String label, String format, Function<T, ?> getter) {
 
         static <T> TableColumnDescription<T> ofMemory(
@@ -250,6 +318,78 @@ public class Benchmark {
         }
     }
 
+    /**
+     * Condensing a file with a number of parse threads, see {@link ParallelJFRFileReader}
+     *
+     * @param nanos best time of {@link #THREAD_RUNS} runs
+     * @param speedup time with one thread divided by the time with the threads
+     */
+    public record ThreadsResult(
+            JFRFile jfrFile, Configuration configuration, int threads, long nanos, float speedup) {}
+
+    /**
+     * Build a table with the ratio and throughput per file, configuration, compression and level
+     */
+    public static Table<CompressionResult> toCompressionTable(
+            List<CompressionResult> results, TableConfig tconf) {
+        List<TableColumnDescription<CompressionResult>> header = new ArrayList<>();
+        header.add(new TableColumnDescription<>("JFR file", "%s", r -> r.jfrFile().name()));
+        header.add(new TableColumnDescription<>("config", "%s", r -> r.configuration().name()));
+        header.add(new TableColumnDescription<>("compression", "%s", r -> r.compression()));
+        header.add(new TableColumnDescription<>("level", "%s", r -> r.level()));
+        header.add(
+                TableColumnDescription.ofMemory(
+                        "uncompressed",
+                        CompressionResult::uncompressedSize,
+                        1,
+                        tconf.humanReadableMemory));
+        header.add(
+                TableColumnDescription.ofMemory(
+                        "compressed",
+                        CompressionResult::compressedSize,
+                        1,
+                        tconf.humanReadableMemory));
+        header.add(new TableColumnDescription<>("%", "%.1f%%", CompressionResult::ratio));
+        header.add(
+                new TableColumnDescription<>(
+                        "compress MB/s", "%.1f", CompressionResult::compressThroughput));
+        header.add(
+                new TableColumnDescription<>(
+                        "decompress MB/s", "%.1f", CompressionResult::decompressThroughput));
+        return new Table<>(header, results);
+    }
+
+    /** Build a table with the write and read throughput per file, configuration and codec */
+    public static Table<CodecResult> toCodecTable(List<CodecResult> results) {
+        List<TableColumnDescription<CodecResult>> header = new ArrayList<>();
+        header.add(new TableColumnDescription<>("JFR file", "%s", r -> r.jfrFile().name()));
+        header.add(new TableColumnDescription<>("config", "%s", r -> r.configuration().name()));
+        header.add(
+                new TableColumnDescription<>(
+                        "codec", "%s", r -> r.generated() ? "generated" : "interpreted"));
+        header.add(new TableColumnDescription<>("events", "%d", CodecResult::events));
+        header.add(
+                new TableColumnDescription<>(
+                        "write events/s", "%.0f", CodecResult::writeThroughput));
+        header.add(
+                new TableColumnDescription<>("read events/s", "%.0f", CodecResult::readThroughput));
+        return new Table<>(header, results);
+    }
+
+    /** Build a table with the condense time and speedup per file, configuration and threads */
+    public static Table<ThreadsResult> toThreadsTable(List<ThreadsResult> results) {
+        List<TableColumnDescription<ThreadsResult>> header = new ArrayList<>();
+        header.add(new TableColumnDescription<>("JFR file", "%s", r -> r.jfrFile().name()));
+        header.add(new TableColumnDescription<>("config", "%s", r -> r.configuration().name()));
+        header.add(new TableColumnDescription<>("threads", "%d", ThreadsResult::threads));
+        header.add(new TableColumnDescription<>("time s", "%.2f", r -> r.nanos() / 1e9f));
+        header.add(new TableColumnDescription<>("speedup", "%.2f", ThreadsResult::speedup));
+        return new Table<>(header, results);
+    }
+
+    /** Number of runs per compression and level, the fastest counts */
+    public static final int COMPRESSION_RUNS = 3;
+
     private final Compression compression;
     private final List<JFRFile> jfrFiles;
 
@@ -363,6 +503,298 @@ public class Benchmark {
         }
     }
 
+    /** Condense the JFR file without compression, the input for the compression benchmarks */
+    public static byte[] condenseUncompressed(Configuration configuration, Path jfrFile)
+            throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (var out =
+                new CondensedOutputStream(bytes, StartMessage.DEFAULT.compress(Compression.NONE))) {
+            new BasicJFRWriter(out, configuration).processJFRFile(jfrFile);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Condense the JFR file without compression, parsing its chunks with the passed number of
+     * threads like {@code cjfr condense --threads}
+     */
+    public static byte[] condenseUncompressed(
+            Configuration configuration, Path jfrFile, int threads) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (var out =
+                new CondensedOutputStream(bytes, StartMessage.DEFAULT.compress(Compression.NONE))) {
+            var writer = new BasicJFRWriter(out, configuration);
+            new ParallelJFRFileReader(threads, ParallelJFRFileReader.DEFAULT_MAX_BUFFERED_EVENTS)
+                    .read(
+                            List.of(jfrFile),
+                            new ParallelJFRFileReader.Consumer() {
+                                @Override
+                                public void startFile(Path file, List<EventType> eventTypes) {
+                                    writer.registerEventTypes(eventTypes);
+                                }
+
+                                @Override
+                                public void startChunk(boolean sameMetadata) {
+                                    writer.startChunk(sameMetadata);
+                                }
+
+                                @Override
+                                public void event(RecordedEvent event) {
+                                    writer.processEvent(event);
+                                }
+                            });
+            writer.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Compress and decompress the data {@link #COMPRESSION_RUNS} times, measuring the best times
+     */
+    public static CompressionResult benchmarkCompression(
+            JFRFile jfrFile,
+            Configuration configuration,
+            byte[] uncompressed,
+            Compression compression,
+            CompressionLevel level) {
+        try {
+            long compressNanos = Long.MAX_VALUE;
+            long decompressNanos = Long.MAX_VALUE;
+            byte[] compressed = null;
+            for (int run = 0; run < COMPRESSION_RUNS; run++) {
+                var bytes = new ByteArrayOutputStream(uncompressed.length / 4 + 64);
+                long start = System.nanoTime();
+                try (OutputStream out = compression.wrap(bytes, level)) {
+                    out.write(uncompressed);
+                }
+                compressNanos = Math.min(compressNanos, System.nanoTime() - start);
+                compressed = bytes.toByteArray();
+                start = System.nanoTime();
+                try (InputStream in = compression.wrap(new ByteArrayInputStream(compressed))) {
+                    in.transferTo(OutputStream.nullOutputStream());
+                }
+                decompressNanos = Math.min(decompressNanos, System.nanoTime() - start);
+            }
+            var result =
+                    new CompressionResult(
+                            jfrFile,
+                            configuration,
+                            compression,
+                            level,
+                            uncompressed.length,
+                            compressed.length,
+                            Math.max(1, compressNanos),
+                            Math.max(1, decompressNanos));
+            System.out.printf(
+                    java.util.Locale.ROOT,
+                    "Compressed %s with %s using %s/%s: %.1f%%, %.1f MB/s compress, %.1f MB/s"
+                            + " decompress%n",
+                    jfrFile.name(),
+                    configuration.name(),
+                    compression,
+                    level,
+                    result.ratio(),
+                    result.compressThroughput(),
+                    result.decompressThroughput());
+            return result;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Compare all available compressions and levels on the uncompressed condensed files, which
+     * separates the cost of the compression from the cost of condensing
+     */
+    public List<CompressionResult> runCompressionBenchmarks() {
+        List<Compression> compressions =
+                Arrays.stream(Compression.values())
+                        .filter(c -> c != Compression.NONE && c.isAvailable())
+                        .toList();
+        List<CompressionResult> results = new ArrayList<>();
+        for (JFRFile jfrFile : jfrFiles) {
+            for (Configuration configuration : configurations) {
+                byte[] uncompressed;
+                try {
+                    uncompressed = condenseUncompressed(configuration, jfrFile.file());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                for (Compression compression : compressions) {
+                    for (CompressionLevel level : CompressionLevel.values()) {
+                        results.add(
+                                benchmarkCompression(
+                                        jfrFile, configuration, uncompressed, compression, level));
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /** Number of runs per number of threads, the fastest counts */
+    public static final int THREAD_RUNS = 3;
+
+    /** 1, 2, 4, ... up to the number of available processors, which is always included */
+    public static List<Integer> threadCounts() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        List<Integer> counts = new ArrayList<>();
+        for (int threads = 1; threads < processors; threads *= 2) {
+            counts.add(threads);
+        }
+        counts.add(processors);
+        return counts;
+    }
+
+    /**
+     * Condense the file with each number of threads {@link #THREAD_RUNS} times, checking that the
+     * output does not depend on the number of threads
+     */
+    public static List<ThreadsResult> benchmarkThreads(
+            JFRFile jfrFile, Configuration configuration, List<Integer> threadCounts)
+            throws IOException {
+        byte[] expected = condenseUncompressed(configuration, jfrFile.file(), 1);
+        List<ThreadsResult> results = new ArrayList<>();
+        long singleNanos = 0;
+        for (int threads : threadCounts) {
+            long nanos = Long.MAX_VALUE;
+            for (int run = 0; run < THREAD_RUNS; run++) {
+                long start = System.nanoTime();
+                byte[] condensed = condenseUncompressed(configuration, jfrFile.file(), threads);
+                nanos = Math.min(nanos, System.nanoTime() - start);
+                if (!Arrays.equals(expected, condensed)) {
+                    throw new IllegalStateException(
+                            "Condensing "
+                                    + jfrFile.name()
+                                    + " with "
+                                    + threads
+                                    + " threads gives a different output");
+                }
+            }
+            nanos = Math.max(1, nanos);
+            if (threads == 1) {
+                singleNanos = nanos;
+            }
+            var result =
+                    new ThreadsResult(
+                            jfrFile,
+                            configuration,
+                            threads,
+                            nanos,
+                            singleNanos == 0 ? Float.NaN : (float) singleNanos / nanos);
+            System.out.printf(
+                    java.util.Locale.ROOT,
+                    "Condensed %s with %s using %d threads in %.2fs, speedup %.2f%n",
+                    jfrFile.name(),
+                    configuration.name(),
+                    threads,
+                    nanos / 1e9,
+                    result.speedup());
+            results.add(result);
+        }
+        return results;
+    }
+
+    /** Compare the condense time of all files with different numbers of parse threads */
+    public List<ThreadsResult> runThreadBenchmarks() {
+        List<ThreadsResult> results = new ArrayList<>();
+        for (JFRFile jfrFile : jfrFiles) {
+            for (Configuration configuration : configurations) {
+                try {
+                    results.addAll(benchmarkThreads(jfrFile, configuration, threadCounts()));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return results;
+    }
+
+    /** Number of runs per codec, alternating between the codecs, the fastest counts */
+    public static final int CODEC_RUNS = 5;
+
+    /**
+     * Condense the already parsed events of the file without compression and read the result back,
+     * with the generated and the interpreted struct codecs
+     *
+     * @return the interpreted and the generated result
+     */
+    public static List<CodecResult> benchmarkCodecs(JFRFile jfrFile, Configuration configuration)
+            throws IOException {
+        List<RecordedEvent> events = new ArrayList<>();
+        try (var r = new RecordingFile(jfrFile.file())) {
+            while (r.hasMoreEvents()) {
+                events.add(r.readEvent());
+            }
+        }
+        boolean old = StructType.isGeneratedCodecs();
+        long[] writeNanos = {Long.MAX_VALUE, Long.MAX_VALUE};
+        long[] readNanos = {Long.MAX_VALUE, Long.MAX_VALUE};
+        try {
+            for (int run = 0; run < CODEC_RUNS; run++) {
+                for (int mode = 0; mode < 2; mode++) {
+                    StructType.setGeneratedCodecs(mode == 1);
+                    var bytes = new ByteArrayOutputStream();
+                    long start = System.nanoTime();
+                    try (var out =
+                            new CondensedOutputStream(
+                                    bytes, StartMessage.DEFAULT.compress(Compression.NONE))) {
+                        var writer = new BasicJFRWriter(out, configuration);
+                        for (RecordedEvent event : events) {
+                            writer.processEvent(event);
+                        }
+                        writer.close();
+                    }
+                    writeNanos[mode] = Math.min(writeNanos[mode], System.nanoTime() - start);
+                    start = System.nanoTime();
+                    try (var in = new CondensedInputStream(bytes.toByteArray())) {
+                        while (in.readNextInstance() != null) {}
+                    }
+                    readNanos[mode] = Math.min(readNanos[mode], System.nanoTime() - start);
+                }
+            }
+        } finally {
+            StructType.setGeneratedCodecs(old);
+        }
+        List<CodecResult> results = new ArrayList<>();
+        for (int mode = 0; mode < 2; mode++) {
+            var result =
+                    new CodecResult(
+                            jfrFile,
+                            configuration,
+                            mode == 1,
+                            events.size(),
+                            Math.max(1, writeNanos[mode]),
+                            Math.max(1, readNanos[mode]));
+            System.out.printf(
+                    java.util.Locale.ROOT,
+                    "Benchmarked %s with %s using %s codecs: %.0f events/s write, %.0f events/s"
+                            + " read%n",
+                    jfrFile.name(),
+                    configuration.name(),
+                    result.generated() ? "generated" : "interpreted",
+                    result.writeThroughput(),
+                    result.readThroughput());
+            results.add(result);
+        }
+        return results;
+    }
+
+    /** Compare the generated and the interpreted struct codecs on all files */
+    public List<CodecResult> runCodecBenchmarks() {
+        List<CodecResult> results = new ArrayList<>();
+        for (JFRFile jfrFile : jfrFiles) {
+            for (Configuration configuration : configurations) {
+                try {
+                    results.addAll(benchmarkCodecs(jfrFile, configuration));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return results;
+    }
+
     public Results runBenchmarks(
             boolean keepCondensedFile, boolean inflateCondensedFile, boolean keepInflatedFile) {
         return new Results(
@@ -282,6 +282,7 @@ public class CombiningJFRReader implements JFRReader {
                 return List.of(
                         readerForInputStream(
                                 Files.newInputStream(path),
+                                path,
                                 reconstitute,
                                 skipRecursiveCompletion,
                                 statistics,
@@ -307,15 +308,24 @@ public class CombiningJFRReader implements JFRReader {
         return List.of();
     }
 
+    /**
+     * @param file the read file, whose directory is searched for its dictionary and shared
+     *     definitions, or {@code null}
+     */
     private static ReaderAndReadEvents readerForInputStream(
             InputStream is,
+            @Nullable Path file,
             boolean reconstitute,
             boolean skipRecursiveCompletion,
             Statistic statistics,
             @Nullable Set<String> onlyEventTypes) {
+        var in = new CondensedInputStream(new java.io.BufferedInputStream(is, 65536));
+        if (file != null) {
+            in.searchDictionariesNextTo(file);
+        }
         var reader =
                 new BasicJFRReader(
-                        new CondensedInputStream(new java.io.BufferedInputStream(is, 65536)),
+                        in,
                         BasicJFRReader.Options.DEFAULT
                                 .withReconstitute(reconstitute)
                                 .withSkipRecursiveCompletion(skipRecursiveCompletion)
@@ -398,6 +408,7 @@ public class CombiningJFRReader implements JFRReader {
             var result =
                     readerForInputStream(
                             new java.io.ByteArrayInputStream(condensedBytes),
+                            null,
                             reconstitute,
                             skipRecursiveCompletion,
                             statistics,
@@ -0,0 +1,71 @@
+package me.bechberger.jfr;
+
+import java.util.IdentityHashMap;
+import java.util.function.Function;
+
+/**
+ * Remembers a value derived from a JFR constant-pool object, like the reduced form of a {@link
+ * jdk.jfr.consumer.RecordedStackTrace}, keyed by the object's identity.
+ *
+ * <p>The JDK's parser creates one object per constant-pool entry and chunk and reuses it for later
+ * chunks with the same metadata, so within a chunk the identity stands for the constant-pool id.
+ * The value is therefore computed once per entry instead of once per event; events with the same
+ * stack trace then also hit the writing cache via an identical object. Keys are never compared by
+ * content, so a parser that creates a new object per event makes the memo miss, but never wrong.
+ *
+ * <p>The memo is cleared when it exceeds its capacity, which keeps the lookup allocation-free. Its
+ * owner also clears it at every chunk boundary it learns of and on flush, so that the memo does not
+ * keep the constant-pool objects of earlier chunks (with their frames, methods and classes) alive.
+ *
+ * @param <K> constant-pool object
+ * @param <V> derived value
+ */
+final class ConstantPoolMemo<K, V> {
+
+    /** System property to disable the memo ({@code -Dcjfr.constantPoolMemo=false}) */
+    static final String PROPERTY = "cjfr.constantPoolMemo";
+
+    static final int DEFAULT_CAPACITY = 4096;
+
+    private final IdentityHashMap<K, V> values = new IdentityHashMap<>();
+    private final int capacity;
+    private final Function<K, V> function;
+
+    /**
+     * @param capacity maximum number of values, 0 to compute every value anew
+     * @param function computes the value for a constant-pool object
+     */
+    ConstantPoolMemo(int capacity, Function<K, V> function) {
+        this.capacity = capacity;
+        this.function = function;
+    }
+
+    ConstantPoolMemo(Function<K, V> function) {
+        this(
+                Boolean.parseBoolean(System.getProperty(PROPERTY, "true")) ? DEFAULT_CAPACITY : 0,
+                function);
+    }
+
+    V get(K key) {
+        if (capacity == 0) {
+            return function.apply(key);
+        }
+        V value = values.get(key);
+        if (value == null) {
+            value = function.apply(key);
+            if (values.size() >= capacity) {
+                values.clear();
+            }
+            values.put(key, value);
+        }
+        return value;
+    }
+
+    void clear() {
+        values.clear();
+    }
+
+    int size() {
+        return values.size();
+    }
+}
@@ -4,6 +4,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.function.BiConsumer;
 import java.util.function.Supplier;
 import jdk.jfr.EventType;
@@ -57,8 +58,21 @@ public abstract class EventCombiner {
         void combine(C token, S state, RecordedEvent event);
     }
 
+    /** Combiner of a single event type, obtained once per type via {@link #resolve(EventType)} */
+    @FunctionalInterface
+    public interface ResolvedCombiner {
+
+        /** Combiner for event types whose events are written as they are */
+        ResolvedCombiner NONE = event -> false;
+
+        /**
+         * @return true if the event was combined and false if it should be written to the stream
+         */
+        boolean processEvent(RecordedEvent event);
+    }
+
     /** Data and state for a single combiner */
-    private static class CombinerData<C, S> {
+    private static class CombinerData<C, S> implements ResolvedCombiner {
         private final Combiner<C, S> combiner;
         private final EventType eventType;
         private final CondensedOutputStream out;
@@ -96,7 +110,8 @@ public abstract class EventCombiner {
             statePerToken.clear();
         }
 
-        private void processEvent(RecordedEvent event) {
+        @Override
+        public boolean processEvent(RecordedEvent event) {
             var token = combiner.createToken(event);
             // if state is present, check whether it should be cleared and written down
             // if not cleared, combine with current event
@@ -108,6 +123,7 @@ public abstract class EventCombiner {
             } else {
                 combiner.combine(token, state, event);
             }
+            return true;
         }
     }
 
@@ -174,16 +190,31 @@ public abstract class EventCombiner {
      * @return true if the event was processed and false if it should be written to the stream
      */
     public boolean processEvent(RecordedEvent event) {
-        if (!checkedEventTypes.contains(event.getEventType().getName())) {
-            processNewEventType(event.getEventType());
-            checkedEventTypes.add(event.getEventType().getName());
-        }
-        var combinerData = combinersPerType.get(event.getEventType().getName());
-        if (combinerData == null) {
-            return false;
+        return resolve(event.getEventType()).processEvent(event);
+    }
+
+    /**
+     * Register the combiners for the event type on first sight and return the combiner to pass its
+     * events to, so that callers can skip the per-event lookup
+     */
+    public ResolvedCombiner resolve(EventType eventType) {
+        if (checkedEventTypes.add(eventType.getName())) {
+            processNewEventType(eventType);
         }
-        combinerData.processEvent(event);
-        return true;
+        ResolvedCombiner combinerData = combinersPerType.get(eventType.getName());
+        return combinerData != null ? combinerData : ResolvedCombiner.NONE;
+    }
+
+    /** Number of combined states that are kept in memory per event type, without empty ones */
+    public Map<String, Integer> stateCounts() {
+        Map<String, Integer> counts = new TreeMap<>();
+        combinersPerType.forEach(
+                (name, data) -> {
+                    if (data.statePerToken.size() > 0) {
+                        counts.put(name, data.statePerToken.size());
+                    }
+                });
+        return counts;
     }
 
     /** Close the combiner and write the remaining state to the stream */
@@ -1,22 +1,70 @@
 package me.bechberger.jfr;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Objects;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedObject;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Don't output events if this event has already been written
  *
  * <p>Useful, because e.g. {@code jdk.BooleanFlag} events are emitted every chunk, when the first
  * event would be sufficient.
+ *
+ * <p>Deduplicators registered via field names (or a token function and a compared field) only keep
+ * a {@link Fingerprint} of the token and of the compared values per token, not the events, so that
+ * a long-running agent does not keep parsed chunks alive. How much of the fingerprint is kept is
+ * the {@link CollisionPolicy}. Deduplicators with a custom {@link IsDuplicate} predicate need the
+ * last event per token and keep it.
  */
 public class EventDeduplication {
 
+    /** System property to set the default {@link CollisionPolicy}, e.g. {@code hash64} */
+    public static final String COLLISION_POLICY_PROPERTY = "cjfr.deduplication";
+
+    /** How to deal with two different values that have the same fingerprint */
+    public enum CollisionPolicy {
+        /**
+         * Keep 64-bit fingerprints, the smallest state. With a million tokens, the probability that
+         * any two collide (and an event is dropped that is not a duplicate) is about 1 in 37
+         * million
+         */
+        HASH64,
+        /** Keep 128-bit fingerprints, collisions are practically impossible */
+        HASH128,
+        /**
+         * Keep the token and compared values, rendering objects (e.g. classes) as strings, so
+         * collisions are impossible, at the cost of more memory and allocations
+         */
+        EXACT;
+
+        /** Policy set via {@value #COLLISION_POLICY_PROPERTY}, {@link #HASH128} by default */
+        public static CollisionPolicy fromProperty() {
+            String value = System.getProperty(COLLISION_POLICY_PROPERTY);
+            if (value == null || value.isBlank()) {
+                return HASH128;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                        "Unknown "
+                                + COLLISION_POLICY_PROPERTY
+                                + " value '"
+                                + value
+                                + "', expected one of "
+                                + Arrays.toString(values()).toLowerCase());
+            }
+        }
+    }
+
     @FunctionalInterface
     public interface IsDuplicate {
         boolean check(RecordedEvent lastEvent, RecordedEvent newEvent);
@@ -29,15 +77,126 @@ public class EventDeduplication {
         }
     }
 
-    static class DeduplicationForEvent {
+    /** The values of an event that form its token or are compared */
+    interface Values {
+
+        /** Add the values to the fingerprint, invalidating it if a value cannot be read */
+        void hash(RecordedEvent event, Fingerprint fingerprint);
+
+        /**
+         * The values for {@link CollisionPolicy#EXACT}, with objects rendered as strings
+         *
+         * @return null if a value cannot be read
+         */
+        @Nullable
+        List<Object> exact(RecordedEvent event);
+
+        Values NONE = fields();
+
+        /** The values of the fields, missing fields invalidate the values */
+        static Values fields(String... fields) {
+            return new Values() {
+                @Override
+                public void hash(RecordedEvent event, Fingerprint fingerprint) {
+                    for (String field : fields) {
+                        fingerprint.addField(event, field);
+                    }
+                }
+
+                @Override
+                public @Nullable List<Object> exact(RecordedEvent event) {
+                    List<Object> values = new ArrayList<>(fields.length);
+                    for (String field : fields) {
+                        try {
+                            values.add(exactValue(event.getValue(field)));
+                        } catch (IllegalArgumentException e) {
+                            return null;
+                        }
+                    }
+                    return values;
+                }
+            };
+        }
+
+        /** The values of all fields but the start time */
+        static Values allFields() {
+            return new Values() {
+                @Override
+                public void hash(RecordedEvent event, Fingerprint fingerprint) {
+                    var fields = event.getFields();
+                    for (int i = 0; i < fields.size(); i++) {
+                        String field = fields.get(i).getName();
+                        if (!isTime(field)) {
+                            fingerprint.addField(event, field);
+                        }
+                    }
+                }
+
+                @Override
+                public List<Object> exact(RecordedEvent event) {
+                    List<Object> values = new ArrayList<>();
+                    for (var field : event.getFields()) {
+                        if (!isTime(field.getName())) {
+                            values.add(exactValue(event.getValue(field.getName())));
+                        }
+                    }
+                    return values;
+                }
+            };
+        }
+
+        private static boolean isTime(String field) {
+            return field.equals("startTime") || field.equals("endTime");
+        }
+
+        /** The value returned by the function */
+        static Values of(Function<RecordedEvent, Object> function) {
+            return new Values() {
+                @Override
+                public void hash(RecordedEvent event, Fingerprint fingerprint) {
+                    fingerprint.add(function.apply(event));
+                }
+
+                @Override
+                public List<Object> exact(RecordedEvent event) {
+                    return Arrays.asList(exactValue(function.apply(event)));
+                }
+            };
+        }
+
+        private static @Nullable Object exactValue(@Nullable Object value) {
+            if (value instanceof RecordedObject object) {
+                return object.toString();
+            }
+            if (value instanceof Object[] array) {
+                return Arrays.stream(array).map(Values::exactValue).toList();
+            }
+            return value;
+        }
+    }
+
+    abstract static class DeduplicationForEvent {
         @SuppressWarnings("unused") // stored for debugging
         private final String eventType;
 
+        DeduplicationForEvent(String eventType) {
+            this.eventType = eventType;
+        }
+
+        /** Check whether the passed event is a duplicate and store it if it is not */
+        abstract boolean recordAndCheckIfDuplicate(RecordedEvent event);
+
+        abstract void reset();
+    }
+
+    /** Keeps the last event per token for a custom {@link IsDuplicate} predicate */
+    static class CustomDeduplicationForEvent extends DeduplicationForEvent {
+
         private final Deduplicator deduplicator;
         private final Map<Object, RecordedEvent> tokenToLastEvent = new HashMap<>();
 
-        DeduplicationForEvent(String eventType, Deduplicator deduplicator) {
-            this.eventType = eventType;
+        CustomDeduplicationForEvent(String eventType, Deduplicator deduplicator) {
+            super(eventType);
             this.deduplicator = deduplicator;
         }
 
@@ -53,25 +212,228 @@ public class EventDeduplication {
         void store(RecordedEvent event) {
             tokenToLastEvent.put(deduplicator.obtainToken.apply(event), event);
         }
+
+        @Override
+        boolean recordAndCheckIfDuplicate(RecordedEvent event) {
+            if (isDuplicate(event)) {
+                return true;
+            }
+            store(event);
+            return false;
+        }
+
+        @Override
+        void reset() {
+            tokenToLastEvent.clear();
+        }
+    }
+
+    /**
+     * Keeps the fingerprint (or for {@link CollisionPolicy#EXACT} the values) of the compared
+     * values per token fingerprint. An event is a duplicate if the compared values of the last
+     * stored event with the same token are the same.
+     */
+    static class FingerprintDeduplicationForEvent extends DeduplicationForEvent {
+
+        private final Values token;
+        private final Values compared;
+        private final CollisionPolicy policy;
+        private final FingerprintTable table;
+        private final Map<List<Object>, List<Object>> exactTable = new HashMap<>();
+        private final Fingerprint fingerprint = new Fingerprint();
+
+        FingerprintDeduplicationForEvent(
+                String eventType, Values token, Values compared, CollisionPolicy policy) {
+            super(eventType);
+            this.token = token;
+            this.compared = compared;
+            this.policy = policy;
+            this.table = new FingerprintTable(policy == CollisionPolicy.HASH64 ? 1 : 2);
+        }
+
+        @Override
+        boolean recordAndCheckIfDuplicate(RecordedEvent event) {
+            if (policy == CollisionPolicy.EXACT) {
+                return recordAndCheckIfDuplicateExact(event);
+            }
+            token.hash(event, fingerprint.reset());
+            long tokenLow = fingerprint.low();
+            long tokenHigh = fingerprint.high();
+            compared.hash(event, fingerprint.reset());
+            if (!fingerprint.isValid()) {
+                // values that cannot be compared are never duplicates
+                table.remove(tokenLow, tokenHigh);
+                return false;
+            }
+            return !table.put(tokenLow, tokenHigh, fingerprint.low(), fingerprint.high());
+        }
+
+        private boolean recordAndCheckIfDuplicateExact(RecordedEvent event) {
+            List<Object> tokenValues = token.exact(event);
+            List<Object> comparedValues = compared.exact(event);
+            if (comparedValues == null) {
+                exactTable.remove(tokenValues);
+                return false;
+            }
+            return comparedValues.equals(exactTable.put(tokenValues, comparedValues));
+        }
+
+        @Override
+        void reset() {
+            table.clear();
+            exactTable.clear();
+        }
+
+        /** Number of stored tokens */
+        int size() {
+            return policy == CollisionPolicy.EXACT ? exactTable.size() : table.size();
+        }
+    }
+
+    /**
+     * Open addressing hash table from token fingerprints to value fingerprints, each with {@code
+     * width} longs, stored in primitive arrays
+     */
+    static final class FingerprintTable {
+        private final int width;
+        private long[] keys;
+        private long[] values;
+        private boolean[] used;
+        private int size = 0;
+
+        FingerprintTable(int width) {
+            this.width = width;
+            allocate(16);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity * width];
+            values = new long[capacity * width];
+            used = new boolean[capacity];
+        }
+
+        private int capacity() {
+            return used.length;
+        }
+
+        /** Slot of the key or the free slot where it would be inserted */
+        private int slot(long keyLow, long keyHigh) {
+            int mask = capacity() - 1;
+            int slot = (int) (keyLow ^ (keyLow >>> 32)) & mask;
+            while (used[slot]
+                    && !(keys[slot * width] == keyLow
+                            && (width == 1 || keys[slot * width + 1] == keyHigh))) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Store the value for the key
+         *
+         * @return true if the key was absent or had a different value
+         */
+        boolean put(long keyLow, long keyHigh, long valueLow, long valueHigh) {
+            int slot = slot(keyLow, keyHigh);
+            int i = slot * width;
+            if (used[slot]) {
+                boolean changed =
+                        values[i] != valueLow || (width == 2 && values[i + 1] != valueHigh);
+                values[i] = valueLow;
+                if (width == 2) {
+                    values[i + 1] = valueHigh;
+                }
+                return changed;
+            }
+            used[slot] = true;
+            keys[i] = keyLow;
+            values[i] = valueLow;
+            if (width == 2) {
+                keys[i + 1] = keyHigh;
+                values[i + 1] = valueHigh;
+            }
+            if (++size * 2 > capacity()) {
+                rehash(capacity() * 2);
+            }
+            return true;
+        }
+
+        void remove(long keyLow, long keyHigh) {
+            int slot = slot(keyLow, keyHigh);
+            if (!used[slot]) {
+                return;
+            }
+            // rebuild, removal is rare (only for values that cannot be read)
+            used[slot] = false;
+            size--;
+            rehash(capacity());
+        }
+
+        private void rehash(int capacity) {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            boolean[] oldUsed = used;
+            allocate(capacity);
+            size = 0;
+            for (int slot = 0; slot < oldUsed.length; slot++) {
+                if (oldUsed[slot]) {
+                    int i = slot * width;
+                    put(
+                            oldKeys[i],
+                            width == 2 ? oldKeys[i + 1] : 0,
+                            oldValues[i],
+                            width == 2 ? oldValues[i + 1] : 0);
+                }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            allocate(16);
+            size = 0;
+        }
     }
 
     private final Map<String, DeduplicationForEvent> deduplicators;
+    private final CollisionPolicy collisionPolicy;
 
     public EventDeduplication(Map<String, Deduplicator> deduplicators) {
+        this.collisionPolicy = CollisionPolicy.fromProperty();
         this.deduplicators =
                 deduplicators.entrySet().stream()
                         .collect(
                                 Collectors.toMap(
                                         Entry::getKey,
-                                        e -> new DeduplicationForEvent(e.getKey(), e.getValue())));
+                                        e ->
+                                                new CustomDeduplicationForEvent(
+                                                        e.getKey(), e.getValue())));
+    }
+
+    public EventDeduplication(CollisionPolicy collisionPolicy) {
+        this.collisionPolicy = collisionPolicy;
+        this.deduplicators = new HashMap<>();
     }
 
     public EventDeduplication() {
-        this(new HashMap<>());
+        this(CollisionPolicy.fromProperty());
     }
 
+    public CollisionPolicy getCollisionPolicy() {
+        return collisionPolicy;
+    }
+
+    /** Register a deduplicator with a custom predicate, which keeps the last event per token */
     public void put(String eventType, Deduplicator deduplicator) {
-        deduplicators.put(eventType, new DeduplicationForEvent(eventType, deduplicator));
+        deduplicators.put(eventType, new CustomDeduplicationForEvent(eventType, deduplicator));
+    }
+
+    void put(String eventType, Values token, Values compared) {
+        deduplicators.put(
+                eventType,
+                new FingerprintDeduplicationForEvent(eventType, token, compared, collisionPolicy));
     }
 
     public void put(
@@ -81,30 +443,18 @@ public class EventDeduplication {
         put(eventType, new Deduplicator(obtainToken, isDuplicate));
     }
 
+    /** Events with the same token are duplicates if the compared field has the same value */
     public void put(
             String eventType, Function<RecordedEvent, Object> obtainToken, String comparedField) {
-        put(
-                eventType,
-                obtainToken,
-                (a, b) -> Objects.equals(a.getValue(comparedField), b.getValue(comparedField)));
+        put(eventType, Values.of(obtainToken), Values.fields(comparedField));
     }
 
+    /**
+     * Events with the same token field value are duplicates if all compared fields have the same
+     * values, events without one of the compared fields are never duplicates
+     */
     public void put(String eventType, String tokenField, String... comparedFields) {
-        put(
-                eventType,
-                e -> e.getValue(tokenField),
-                (a, b) ->
-                        Arrays.stream(comparedFields)
-                                .allMatch(
-                                        f -> {
-                                            try {
-                                                return Objects.equals(a.getValue(f), b.getValue(f));
-                                            } catch (IllegalArgumentException e) {
-                                                // Field not present in event - treat as not
-                                                // duplicate
-                                                return false;
-                                            }
-                                        }));
+        put(eventType, Values.fields(tokenField), Values.fields(comparedFields));
     }
 
     public void putAll(Map<String, Deduplicator> deduplicators) {
@@ -113,20 +463,22 @@ public class EventDeduplication {
 
     /** Check whether the passed event is a duplicate and store it if it is not */
     public boolean recordAndCheckIfDuplicate(RecordedEvent newEvent) {
-        String type = newEvent.getEventType().getName();
-        var dedup = deduplicators.get(type);
-        if (dedup == null) {
-            return false;
-        }
-        if (dedup.isDuplicate(newEvent)) {
-            return true;
-        }
-        dedup.store(newEvent);
-        return false;
+        var dedup = forEventType(newEvent.getEventType().getName());
+        return dedup != null && dedup.recordAndCheckIfDuplicate(newEvent);
+    }
+
+    /**
+     * Deduplication of a single event type, for callers that resolve it once per type
+     *
+     * @return null if events of this type are never duplicates
+     */
+    @Nullable
+    DeduplicationForEvent forEventType(String eventType) {
+        return deduplicators.get(eventType);
     }
 
     /** Reset all stored state so that deduplication starts fresh */
     public void reset() {
-        deduplicators.values().forEach(d -> d.tokenToLastEvent.clear());
+        deduplicators.values().forEach(DeduplicationForEvent::reset);
     }
 }
@@ -0,0 +1,86 @@
+package me.bechberger.jfr;
+
+import java.util.Map;
+import java.util.function.Predicate;
+import jdk.jfr.EventType;
+import jdk.jfr.consumer.RecordedEvent;
+import me.bechberger.condensed.types.StructType;
+import me.bechberger.jfr.EventCombiner.ResolvedCombiner;
+import me.bechberger.jfr.EventDeduplication.DeduplicationForEvent;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Everything {@link BasicJFRWriter#processEvent(RecordedEvent)} needs to know about an event type,
+ * resolved once when the type is first seen, so that processing an event is a single lookup
+ * followed by straight-line calls.
+ *
+ * <p>The struct type and the combiner are only resolved when the first event of the type is
+ * written, as resolving them writes types to the stream, which has to happen after the
+ * configuration and the universe.
+ */
+final class EventTypePlan {
+
+    private final EventType eventType;
+
+    /** Checks whether an event carries no information, null if this is never the case */
+    private final @Nullable Predicate<RecordedEvent> unnecessary;
+
+    /** null if events of this type are not deduplicated */
+    private final @Nullable DeduplicationForEvent deduplication;
+
+    private final FooterCollector.Slot footerSlot;
+
+    private @Nullable StructType<RecordedEvent, Map<String, Object>> structType;
+    private @Nullable ResolvedCombiner combiner;
+
+    EventTypePlan(
+            EventType eventType,
+            @Nullable Predicate<RecordedEvent> unnecessary,
+            @Nullable DeduplicationForEvent deduplication,
+            FooterCollector.Slot footerSlot) {
+        this.eventType = eventType;
+        this.unnecessary = unnecessary;
+        this.deduplication = deduplication;
+        this.footerSlot = footerSlot;
+    }
+
+    /** The same plan for an equal event type from another chunk with the same metadata */
+    EventTypePlan withEventType(EventType other) {
+        EventTypePlan plan = new EventTypePlan(other, unnecessary, deduplication, footerSlot);
+        plan.structType = structType;
+        plan.combiner = combiner;
+        return plan;
+    }
+
+    EventType eventType() {
+        return eventType;
+    }
+
+    /** Is the event unnecessary or a duplicate? Records the event for deduplication otherwise */
+    boolean isIgnored(RecordedEvent event) {
+        return (unnecessary != null && unnecessary.test(event))
+                || (deduplication != null && deduplication.recordAndCheckIfDuplicate(event));
+    }
+
+    FooterCollector.Slot footerSlot() {
+        return footerSlot;
+    }
+
+    @Nullable
+    StructType<RecordedEvent, Map<String, Object>> structType() {
+        return structType;
+    }
+
+    void setStructType(StructType<RecordedEvent, Map<String, Object>> structType) {
+        this.structType = structType;
+    }
+
+    @Nullable
+    ResolvedCombiner combiner() {
+        return combiner;
+    }
+
+    void setCombiner(ResolvedCombiner combiner) {
+        this.combiner = combiner;
+    }
+}
@@ -0,0 +1,164 @@
+package me.bechberger.jfr;
+
+import jdk.jfr.consumer.RecordedObject;
+
+/**
+ * Mutable 128-bit hash of event values, used by {@link EventDeduplication} to remember what it has
+ * seen without keeping the events (and with them the parsed chunk's object graph) alive.
+ *
+ * <p>Values are hashed by content: {@link RecordedObject}s (classes, methods, threads, ...) are
+ * hashed field by field, like their {@code toString()}, but without building strings. The two
+ * halves use different seeds and multipliers; {@link #high()} is only needed for 128-bit
+ * fingerprints.
+ */
+final class Fingerprint {
+
+    /** Nested objects deeper than this are not hashed further */
+    static final int MAX_DEPTH = 16;
+
+    private static final long SEED_LOW = 0x9E3779B97F4A7C15L;
+    private static final long SEED_HIGH = 0xC2B2AE3D27D4EB4FL;
+    private static final long MULTIPLIER_LOW = 0xFF51AFD7ED558CCDL;
+    private static final long MULTIPLIER_HIGH = 0xC4CEB9FE1A85EC53L;
+
+    // type tags, so that e.g. the int 1 and the long 1 hash differently
+    private static final int NULL = 1;
+    private static final int LONG = 2;
+    private static final int DOUBLE = 3;
+    private static final int BOOLEAN = 4;
+    private static final int STRING = 5;
+    private static final int OBJECT = 6;
+    private static final int ARRAY = 7;
+    private static final int OTHER = 8;
+    private static final int TOO_DEEP = 9;
+    private static final int INT = 10;
+    private static final int FLOAT = 11;
+    private static final int CHAR = 12;
+
+    private long low;
+    private long high;
+
+    /** False if a value could not be read, such a fingerprint never matches */
+    private boolean valid;
+
+    Fingerprint() {
+        reset();
+    }
+
+    Fingerprint reset() {
+        low = SEED_LOW;
+        high = SEED_HIGH;
+        valid = true;
+        return this;
+    }
+
+    private void mix(long value) {
+        low = (low ^ value) * MULTIPLIER_LOW;
+        low ^= low >>> 29;
+        high = (high + value) * MULTIPLIER_HIGH;
+        high ^= high >>> 32;
+    }
+
+    Fingerprint add(long value) {
+        mix(LONG);
+        mix(value);
+        return this;
+    }
+
+    Fingerprint add(String value) {
+        if (value == null) {
+            mix(NULL);
+            return this;
+        }
+        mix(STRING);
+        mix(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            mix(value.charAt(i));
+        }
+        return this;
+    }
+
+    /** Add any value that {@link RecordedObject#getValue(String)} returns */
+    Fingerprint add(Object value) {
+        add(value, 0);
+        return this;
+    }
+
+    private void add(Object value, int depth) {
+        if (depth > MAX_DEPTH) {
+            mix(TOO_DEEP);
+        } else if (value == null) {
+            mix(NULL);
+        } else if (value instanceof String s) {
+            add(s);
+        } else if (value instanceof Long l) {
+            add((long) l);
+        } else if (value instanceof Integer i) {
+            mix(INT);
+            mix(i);
+        } else if (value instanceof Short || value instanceof Byte) {
+            mix(INT);
+            mix(((Number) value).intValue());
+        } else if (value instanceof Double d) {
+            mix(DOUBLE);
+            mix(Double.doubleToLongBits(d));
+        } else if (value instanceof Float f) {
+            mix(FLOAT);
+            mix(Float.floatToIntBits(f));
+        } else if (value instanceof Boolean b) {
+            mix(BOOLEAN);
+            mix(b ? 1 : 0);
+        } else if (value instanceof Character c) {
+            mix(CHAR);
+            mix(c);
+        } else if (value instanceof RecordedObject object) {
+            mix(OBJECT);
+            var fields = object.getFields();
+            mix(fields.size());
+            for (int i = 0; i < fields.size(); i++) {
+                String name = fields.get(i).getName();
+                add(name);
+                add(object.getValue(name), depth + 1);
+            }
+        } else if (value instanceof Object[] array) {
+            mix(ARRAY);
+            mix(array.length);
+            for (Object element : array) {
+                add(element, depth + 1);
+            }
+        } else {
+            mix(OTHER);
+            add(value.toString());
+        }
+    }
+
+    /** Add the value of the field, invalidating the fingerprint if the event has no such field */
+    Fingerprint addField(RecordedObject object, String field) {
+        try {
+            add(object.getValue(field), 0);
+        } catch (IllegalArgumentException e) {
+            valid = false;
+        }
+        return this;
+    }
+
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= MULTIPLIER_LOW;
+        h ^= h >>> 33;
+        h *= MULTIPLIER_HIGH;
+        return h ^ (h >>> 33);
+    }
+
+    long low() {
+        return finish(low);
+    }
+
+    long high() {
+        return finish(high ^ Long.rotateLeft(low, 17));
+    }
+
+    boolean isValid() {
+        return valid;
+    }
+}
@@ -10,7 +10,9 @@ import me.bechberger.condensed.CJFRFooter.AllocStats;
 import me.bechberger.condensed.CJFRFooter.CpuStats;
 import me.bechberger.condensed.CJFRFooter.GcStats;
 import me.bechberger.condensed.CJFRFooter.GcStats.GcBucket;
+import me.bechberger.jfr.UnsafeRecordedObjectAccessor.LongFieldAccessor;
 import me.bechberger.jfr.cli.query.ViewPrecompute;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Side-channel accumulator for {@link CJFRFooter} statistics. {@link #collect(RecordedEvent)} is
@@ -19,17 +21,207 @@ import me.bechberger.jfr.cli.query.ViewPrecompute;
  */
 public final class FooterCollector {
 
+    /** What {@link #collect(RecordedEvent, Slot, long)} aggregates from the events of a type */
+    enum Kind {
+        GC,
+        YOUNG_GC,
+        OLD_GC,
+        HEAP,
+        METASPACE,
+        GC_CPU,
+        GC_PHASE_PAUSE,
+        GC_CONFIGURATION,
+        CPU,
+        ALLOCATION,
+        PROMOTION,
+        OTHER;
+
+        static Kind of(String eventType) {
+            return switch (eventType) {
+                case "jdk.GarbageCollection" -> GC;
+                case "jdk.YoungGarbageCollection" -> YOUNG_GC;
+                case "jdk.OldGarbageCollection" -> OLD_GC;
+                case "jdk.GCHeapSummary", "jdk.G1HeapSummary", "jdk.PSHeapSummary" -> HEAP;
+                case "jdk.MetaspaceSummary" -> METASPACE;
+                case "jdk.GCCPUTime" -> GC_CPU;
+                case "jdk.GCPhasePause" -> GC_PHASE_PAUSE;
+                case "jdk.GCConfiguration" -> GC_CONFIGURATION;
+                case "jdk.CPULoad" -> CPU;
+                case "jdk.ObjectAllocationInNewTLAB", "jdk.ObjectAllocationOutsideTLAB" ->
+                        ALLOCATION;
+                case "jdk.PromoteObjectInNewPLAB", "jdk.PromoteObjectOutsidePLAB" -> PROMOTION;
+                default -> OTHER;
+            };
+        }
+    }
+
+    /**
+     * Per event type state, obtained once per type via {@link #slotFor(String)}: the event count,
+     * what to aggregate and the precomputed view (if any) the events feed
+     */
+    static final class Slot {
+        private final Kind kind;
+        private final @Nullable String viewName;
+        private final @Nullable List<ViewPrecompute.Column> viewColumns;
+
+        /** Reads the allocated or promoted bytes, null for other kinds */
+        private final @Nullable LongFieldAccessor bytes;
+
+        private long count = 0;
+
+        private Slot(String eventType) {
+            this.kind = Kind.of(eventType);
+            this.viewName = ViewPrecompute.viewNameFor(eventType).orElse(null);
+            this.viewColumns =
+                    viewName == null ? null : ViewPrecompute.columnsFor(eventType).orElse(null);
+            this.bytes =
+                    switch (kind) {
+                        case ALLOCATION ->
+                                UnsafeRecordedObjectAccessor.longField("allocationSize", 0);
+                        case PROMOTION ->
+                                UnsafeRecordedObjectAccessor.longField("promotionSize", 0);
+                        default -> null;
+                    };
+        }
+    }
+
+    /**
+     * Per-bucket counters ({@code longWidth} longs and {@code floatWidth} floats per bucket),
+     * indexed by the bucket index relative to the first event of the kind. Bucket indexes near the
+     * start (slightly negative for out-of-order events) are mapped to their position via an array
+     * and the counters are stored in primitive arrays, so updating a bucket does not allocate. The
+     * rare bucket far outside this range (e.g. from a bogus timestamp) is mapped via a sorted map.
+     * Only buckets that were created are part of the footer.
+     */
+    private static final class Buckets {
+
+        /** Bucket indexes in [-NEGATIVE, MAX_DENSE - NEGATIVE) are mapped via the array */
+        private static final int NEGATIVE = 64;
+
+        private static final int MAX_DENSE = 1 << 16;
+
+        private final int longWidth;
+        private final int floatWidth;
+
+        /** Position + 1 of the bucket with index {@code i - NEGATIVE}, 0 if absent */
+        private int[] positions = new int[NEGATIVE * 4];
+
+        /** Positions of the buckets outside the array range */
+        private final TreeMap<Long, Integer> sparse = new TreeMap<>();
+
+        private int size = 0;
+        private long[] longs;
+        private float[] floats;
+
+        Buckets(int longWidth, int floatWidth) {
+            this.longWidth = longWidth;
+            this.floatWidth = floatWidth;
+            this.longs = new long[longWidth * 16];
+            this.floats = new float[floatWidth * 16];
+        }
+
+        private static boolean isDense(long bucket) {
+            return bucket >= -NEGATIVE && bucket < MAX_DENSE - NEGATIVE;
+        }
+
+        /** Position of the bucket, -1 if it does not exist */
+        int find(long bucket) {
+            if (isDense(bucket)) {
+                int i = (int) bucket + NEGATIVE;
+                return i < positions.length ? positions[i] - 1 : -1;
+            }
+            Integer position = sparse.get(bucket);
+            return position == null ? -1 : position;
+        }
+
+        /** Position of the bucket, creating it if it does not exist */
+        int getOrCreate(long bucket) {
+            int position = find(bucket);
+            if (position != -1) {
+                return position;
+            }
+            position = size++;
+            if (size * longWidth > longs.length || size * floatWidth > floats.length) {
+                longs = Arrays.copyOf(longs, longs.length * 2);
+                floats = Arrays.copyOf(floats, floats.length * 2);
+            }
+            if (isDense(bucket)) {
+                int i = (int) bucket + NEGATIVE;
+                if (i >= positions.length) {
+                    positions =
+                            Arrays.copyOf(
+                                    positions,
+                                    Math.min(MAX_DENSE, Math.max(i + 1, positions.length * 2)));
+                }
+                positions[i] = position + 1;
+            } else {
+                sparse.put(bucket, position);
+            }
+            return position;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /** Positions of all buckets, ordered by bucket index */
+        int[] sortedPositions() {
+            int[] result = new int[size];
+            int n = 0;
+            for (int position : sparse.headMap((long) -NEGATIVE).values()) {
+                result[n++] = position;
+            }
+            for (int i = 0; i < positions.length; i++) {
+                if (positions[i] != 0) {
+                    result[n++] = positions[i] - 1;
+                }
+            }
+            for (int position : sparse.tailMap((long) MAX_DENSE - NEGATIVE).values()) {
+                result[n++] = position;
+            }
+            return result;
+        }
+
+        long getLong(int position, int field) {
+            return longs[position * longWidth + field];
+        }
+
+        void addLong(int position, int field, long value) {
+            longs[position * longWidth + field] += value;
+        }
+
+        void maxLong(int position, int field, long value) {
+            int i = position * longWidth + field;
+            longs[i] = Math.max(longs[i], value);
+        }
+
+        float getFloat(int position, int field) {
+            return floats[position * floatWidth + field];
+        }
+
+        void addFloat(int position, int field, float value) {
+            floats[position * floatWidth + field] += value;
+        }
+    }
+
     private final long bucketSeconds;
-    private final Map<String, Long> eventCounts = new HashMap<>();
+
+    /** Slot per event type name */
+    private final Map<String, Slot> slots = new HashMap<>();
+
     private long totalEvents;
     private long firstStartMicros = Long.MAX_VALUE;
     private long lastEndMicros = Long.MIN_VALUE;
 
     // GC aggregate
-    private final List<Long> gcDurationsMicros = new ArrayList<>();
+    private long[] gcDurationsMicros = new long[16];
+    private int gcCount = 0;
     private long youngGcCount = 0;
     private long oldGcCount = 0;
-    private final Map<String, Long> gcCauseCounts = new HashMap<>();
+
+    /** Count per cause, as a one element array to update it in place */
+    private final Map<String, long[]> gcCauseCounts = new HashMap<>();
+
     private long maxHeapUsedBeforeGcBytes = 0;
     private long maxHeapUsedAfterGcBytes = 0;
     private long maxMetaspaceUsedBytes = 0;
@@ -38,21 +230,19 @@ public final class FooterCollector {
     private long maxGcPhasePauseMicros = 0;
     private String collectorName = null;
 
-    // GC bucketing: key = bucket index, value = long[5]{count, totalMicros, maxMicros,
-    // heapAfterBytes, heapBeforeBytes}
+    // GC bucketing: {count, totalMicros, maxMicros, heapAfterBytes, heapBeforeBytes}
     private long firstGcMicros = Long.MIN_VALUE;
-    private final Map<Long, long[]> gcBuckets = new HashMap<>();
+    private final Buckets gcBuckets = new Buckets(5, 0);
 
-    // CPU bucketing: key = bucket index, value = float[4]{sumUser, sumSys, sumMachine, count}
+    // CPU bucketing: {sumUser, sumSys, sumMachine, count}
     private long firstCpuMicros = Long.MIN_VALUE;
-    private final Map<Long, float[]> cpuBuckets = new HashMap<>();
+    private final Buckets cpuBuckets = new Buckets(0, 4);
 
     // Allocation/promotion tracking
     private long totalAllocationBytes = 0;
     private long totalPromotionBytes = 0;
     private long firstAllocMicros = Long.MIN_VALUE;
-    private final Map<Long, long[]> allocBuckets =
-            new HashMap<>(); // value = long[2]{allocBytes, promoBytes}
+    private final Buckets allocBuckets = new Buckets(2, 0); // {allocBytes, promoBytes}
 
     // Precomputed exact-aggregate FORM views (gc-cpu-time, cpu-load, exception-count): each source
     // event's registered column fields are fed through the same Aggregators reducers the native
@@ -64,34 +254,48 @@ public final class FooterCollector {
     }
 
     public void collect(RecordedEvent event) {
-        String name = event.getEventType().getName();
-        eventCounts.merge(name, 1L, Long::sum);
+        collect(
+                event,
+                slotFor(event.getEventType().getName()),
+                toNanoSeconds(event.getStartTime()));
+    }
+
+    /** The slot for the event type, to pass to {@link #collect(RecordedEvent, Slot, long)} */
+    Slot slotFor(String eventType) {
+        return slots.computeIfAbsent(eventType, Slot::new);
+    }
+
+    /**
+     * Collect an event whose type's slot and start time (nanoseconds since the epoch) the caller
+     * already resolved. Does not allocate for most events.
+     */
+    void collect(RecordedEvent event, Slot slot, long startNanos) {
+        slot.count++;
         totalEvents++;
 
-        long startMicros = toNanoSeconds(event.getStartTime()) / 1000;
+        long startMicros = startNanos / 1000;
         long endMicros = startMicros + event.getDuration().toNanos() / 1000;
         if (startMicros < firstStartMicros) firstStartMicros = startMicros;
         if (endMicros > lastEndMicros) lastEndMicros = endMicros;
 
-        switch (name) {
-            case "jdk.GarbageCollection" -> collectGc(event, startMicros);
-            case "jdk.YoungGarbageCollection" -> youngGcCount++;
-            case "jdk.OldGarbageCollection" -> oldGcCount++;
-            case "jdk.GCHeapSummary", "jdk.G1HeapSummary", "jdk.PSHeapSummary" ->
-                    collectHeap(event, startMicros);
-            case "jdk.MetaspaceSummary" -> collectMetaspace(event);
-            case "jdk.GCCPUTime" -> collectGcCpu(event);
-            case "jdk.GCPhasePause" -> collectGcPhasePause(event);
-            case "jdk.GCConfiguration" -> collectGcConfiguration(event);
-            case "jdk.CPULoad" -> collectCpu(event, startMicros);
-            case "jdk.ObjectAllocationInNewTLAB", "jdk.ObjectAllocationOutsideTLAB" ->
-                    collectAllocation(event, startMicros);
-            case "jdk.PromoteObjectInNewPLAB", "jdk.PromoteObjectOutsidePLAB" ->
-                    collectPromotion(event, startMicros);
-            default -> {}
-        }
-
-        collectPrecomputedView(event, name);
+        switch (slot.kind) {
+            case GC -> collectGc(event, startMicros);
+            case YOUNG_GC -> youngGcCount++;
+            case OLD_GC -> oldGcCount++;
+            case HEAP -> collectHeap(event, startMicros);
+            case METASPACE -> collectMetaspace(event);
+            case GC_CPU -> collectGcCpu(event);
+            case GC_PHASE_PAUSE -> collectGcPhasePause(event);
+            case GC_CONFIGURATION -> collectGcConfiguration(event);
+            case CPU -> collectCpu(event, startMicros);
+            case ALLOCATION -> collectAllocation(slot.bytes.get(event), startMicros);
+            case PROMOTION -> collectPromotion(slot.bytes.get(event), startMicros);
+            case OTHER -> {}
+        }
+
+        if (slot.viewColumns != null) {
+            collectPrecomputedView(event, slot.viewName, slot.viewColumns);
+        }
     }
 
     /**
@@ -104,12 +308,8 @@ public final class FooterCollector {
      * The whole row (all columns) is passed at once with the event's startTime so the accumulator
      * can sort by startTime before feeding order-sensitive reducers (DIFF/FIRST/LAST).
      */
-    private void collectPrecomputedView(RecordedEvent event, String name) {
-        var colsOpt = ViewPrecompute.columnsFor(name);
-        if (colsOpt.isEmpty()) return;
-        String viewName = ViewPrecompute.viewNameFor(name).orElse(null);
-        if (viewName == null) return;
-        List<ViewPrecompute.Column> cols = colsOpt.get();
+    private void collectPrecomputedView(
+            RecordedEvent event, String viewName, List<ViewPrecompute.Column> cols) {
         Object[] values = new Object[cols.size()];
         for (int i = 0; i < cols.size(); i++) {
             String field = cols.get(i).field();
@@ -153,20 +353,23 @@ public final class FooterCollector {
 
     private void collectGc(RecordedEvent e, long startMicros) {
         long micros = e.getDuration().toNanos() / 1000;
-        gcDurationsMicros.add(micros);
+        if (gcCount == gcDurationsMicros.length) {
+            gcDurationsMicros = Arrays.copyOf(gcDurationsMicros, gcCount * 2);
+        }
+        gcDurationsMicros[gcCount++] = micros;
         if (e.hasField("cause")) {
             try {
-                gcCauseCounts.merge(e.getString("cause"), 1L, Long::sum);
+                gcCauseCounts.computeIfAbsent(e.getString("cause"), c -> new long[1])[0]++;
             } catch (IllegalArgumentException ignored) {
             }
         }
         if (firstGcMicros == Long.MIN_VALUE) firstGcMicros = startMicros;
         long bucketIdx = (startMicros - firstGcMicros) / ((long) bucketSeconds * 1_000_000L);
-        long[] slot = gcBuckets.computeIfAbsent(bucketIdx, k -> new long[5]);
-        slot[0] += 1;
-        slot[1] += micros;
-        slot[2] = Math.max(slot[2], micros);
-        // slot[3] = heapUsedAfterGcBytes, slot[4] = heapUsedBeforeGcBytes — updated by collectHeap
+        int slot = gcBuckets.getOrCreate(bucketIdx);
+        gcBuckets.addLong(slot, 0, 1);
+        gcBuckets.addLong(slot, 1, micros);
+        gcBuckets.maxLong(slot, 2, micros);
+        // 3 = heapUsedAfterGcBytes, 4 = heapUsedBeforeGcBytes — updated by collectHeap
     }
 
     private void collectHeap(RecordedEvent e, long startMicros) {
@@ -196,16 +399,16 @@ public final class FooterCollector {
             if (firstGcMicros != Long.MIN_VALUE) {
                 long bucketIdx =
                         (startMicros - firstGcMicros) / ((long) bucketSeconds * 1_000_000L);
-                long[] slot = gcBuckets.get(bucketIdx);
-                if (slot != null) slot[4] = Math.max(slot[4], usedBytes);
+                int slot = gcBuckets.find(bucketIdx);
+                if (slot != -1) gcBuckets.maxLong(slot, 4, usedBytes);
             }
         } else if ("After GC".equals(when)) {
             if (usedBytes > maxHeapUsedAfterGcBytes) maxHeapUsedAfterGcBytes = usedBytes;
             if (firstGcMicros != Long.MIN_VALUE) {
                 long bucketIdx =
                         (startMicros - firstGcMicros) / ((long) bucketSeconds * 1_000_000L);
-                long[] slot = gcBuckets.get(bucketIdx);
-                if (slot != null) slot[3] = Math.max(slot[3], usedBytes);
+                int slot = gcBuckets.find(bucketIdx);
+                if (slot != -1) gcBuckets.maxLong(slot, 3, usedBytes);
             }
         }
     }
@@ -263,46 +466,30 @@ public final class FooterCollector {
     private void collectCpu(RecordedEvent e, long startMicros) {
         if (firstCpuMicros == Long.MIN_VALUE) firstCpuMicros = startMicros;
         long bucketIdx = (startMicros - firstCpuMicros) / ((long) bucketSeconds * 1_000_000L);
-        float[] slot = cpuBuckets.computeIfAbsent(bucketIdx, k -> new float[4]);
+        int slot = cpuBuckets.getOrCreate(bucketIdx);
         try {
-            slot[0] += e.getFloat("jvmUser");
-            slot[1] += e.getFloat("jvmSystem");
-            slot[2] += e.getFloat("machineTotal");
-            slot[3] += 1f;
+            cpuBuckets.addFloat(slot, 0, e.getFloat("jvmUser"));
+            cpuBuckets.addFloat(slot, 1, e.getFloat("jvmSystem"));
+            cpuBuckets.addFloat(slot, 2, e.getFloat("machineTotal"));
+            cpuBuckets.addFloat(slot, 3, 1f);
         } catch (IllegalArgumentException ignored) {
         }
     }
 
-    private void collectAllocation(RecordedEvent e, long startMicros) {
-        long bytes = 0;
-        if (e.hasField("allocationSize")) {
-            try {
-                bytes = e.getLong("allocationSize");
-            } catch (IllegalArgumentException ignored) {
-            }
-        }
+    private void collectAllocation(long bytes, long startMicros) {
         if (bytes <= 0) return;
         totalAllocationBytes += bytes;
         if (firstAllocMicros == Long.MIN_VALUE) firstAllocMicros = startMicros;
         long bucketIdx = (startMicros - firstAllocMicros) / ((long) bucketSeconds * 1_000_000L);
-        long[] slot = allocBuckets.computeIfAbsent(bucketIdx, k -> new long[2]);
-        slot[0] += bytes;
+        allocBuckets.addLong(allocBuckets.getOrCreate(bucketIdx), 0, bytes);
     }
 
-    private void collectPromotion(RecordedEvent e, long startMicros) {
-        long bytes = 0;
-        if (e.hasField("promotionSize")) {
-            try {
-                bytes = e.getLong("promotionSize");
-            } catch (IllegalArgumentException ignored) {
-            }
-        }
+    private void collectPromotion(long bytes, long startMicros) {
         if (bytes <= 0) return;
         totalPromotionBytes += bytes;
         if (firstAllocMicros == Long.MIN_VALUE) firstAllocMicros = startMicros;
         long bucketIdx = (startMicros - firstAllocMicros) / ((long) bucketSeconds * 1_000_000L);
-        long[] slot = allocBuckets.computeIfAbsent(bucketIdx, k -> new long[2]);
-        slot[1] += bytes;
+        allocBuckets.addLong(allocBuckets.getOrCreate(bucketIdx), 1, bytes);
     }
 
     public CJFRFooter build(long fallbackStartMicros, long fallbackDurationMicros) {
@@ -317,7 +504,7 @@ public final class FooterCollector {
                 totalEvents,
                 start,
                 duration,
-                Map.copyOf(eventCounts),
+                eventCounts(),
                 buildGcStatsOrNull(),
                 buildCpuStatsOrNull(),
                 buildAllocStatsOrNull(),
@@ -327,10 +514,22 @@ public final class FooterCollector {
                 0L);
     }
 
+    private Map<String, Long> eventCounts() {
+        Map<String, Long> eventCounts = new HashMap<>();
+        slots.forEach(
+                (name, slot) -> {
+                    if (slot.count > 0) {
+                        eventCounts.put(name, slot.count);
+                    }
+                });
+        return Map.copyOf(eventCounts);
+    }
+
     private GcStats buildGcStatsOrNull() {
-        if (gcDurationsMicros.isEmpty()) return null;
+        if (gcCount == 0) return null;
 
-        long[] sorted = gcDurationsMicros.stream().mapToLong(Long::longValue).sorted().toArray();
+        long[] sorted = Arrays.copyOf(gcDurationsMicros, gcCount);
+        Arrays.sort(sorted);
         long total = 0;
         long max = 0;
         for (long v : sorted) {
@@ -340,13 +539,20 @@ public final class FooterCollector {
         long median = sorted[sorted.length / 2];
         long p95 = sorted[(int) Math.min(sorted.length - 1, sorted.length * 95L / 100)];
 
-        List<Map.Entry<Long, long[]>> bucketEntries = new ArrayList<>(gcBuckets.entrySet());
-        bucketEntries.sort(Map.Entry.comparingByKey());
-        GcBucket[] buckets = new GcBucket[bucketEntries.size()];
-        for (int i = 0; i < bucketEntries.size(); i++) {
-            long[] s = bucketEntries.get(i).getValue();
-            buckets[i] = new GcBucket(s[0], s[1], s[2], s[3], s[4]);
+        int[] positions = gcBuckets.sortedPositions();
+        GcBucket[] buckets = new GcBucket[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            int p = positions[i];
+            buckets[i] =
+                    new GcBucket(
+                            gcBuckets.getLong(p, 0),
+                            gcBuckets.getLong(p, 1),
+                            gcBuckets.getLong(p, 2),
+                            gcBuckets.getLong(p, 3),
+                            gcBuckets.getLong(p, 4));
         }
+        Map<String, Long> causeCounts = new HashMap<>();
+        gcCauseCounts.forEach((cause, count) -> causeCounts.put(cause, count[0]));
 
         return new GcStats(
                 sorted.length,
@@ -357,7 +563,7 @@ public final class FooterCollector {
                 median,
                 p95,
                 maxGcPhasePauseMicros,
-                Map.copyOf(gcCauseCounts),
+                Map.copyOf(causeCounts),
                 collectorName,
                 maxHeapUsedBeforeGcBytes,
                 maxHeapUsedAfterGcBytes,
@@ -371,18 +577,17 @@ public final class FooterCollector {
     private CpuStats buildCpuStatsOrNull() {
         if (cpuBuckets.isEmpty()) return null;
 
-        List<Map.Entry<Long, float[]>> entries = new ArrayList<>(cpuBuckets.entrySet());
-        entries.sort(Map.Entry.comparingByKey());
-        int n = entries.size();
+        int[] positions = cpuBuckets.sortedPositions();
+        int n = positions.length;
         float[] jvmUser = new float[n];
         float[] jvmSystem = new float[n];
         float[] machineTotal = new float[n];
         for (int i = 0; i < n; i++) {
-            float[] s = entries.get(i).getValue();
-            float count = s[3] > 0 ? s[3] : 1f;
-            jvmUser[i] = s[0] / count;
-            jvmSystem[i] = s[1] / count;
-            machineTotal[i] = s[2] / count;
+            int p = positions[i];
+            float count = cpuBuckets.getFloat(p, 3) > 0 ? cpuBuckets.getFloat(p, 3) : 1f;
+            jvmUser[i] = cpuBuckets.getFloat(p, 0) / count;
+            jvmSystem[i] = cpuBuckets.getFloat(p, 1) / count;
+            machineTotal[i] = cpuBuckets.getFloat(p, 2) / count;
         }
         return new CpuStats(bucketSeconds, jvmUser, jvmSystem, machineTotal);
     }
@@ -390,15 +595,13 @@ public final class FooterCollector {
     private AllocStats buildAllocStatsOrNull() {
         if (totalAllocationBytes == 0 && totalPromotionBytes == 0) return null;
 
-        List<Map.Entry<Long, long[]>> entries = new ArrayList<>(allocBuckets.entrySet());
-        entries.sort(Map.Entry.comparingByKey());
-        int n = entries.size();
+        int[] positions = allocBuckets.sortedPositions();
+        int n = positions.length;
         long[] allocPerBucket = new long[n];
         long[] promoPerBucket = new long[n];
         for (int i = 0; i < n; i++) {
-            long[] s = entries.get(i).getValue();
-            allocPerBucket[i] = s[0];
-            promoPerBucket[i] = s[1];
+            allocPerBucket[i] = allocBuckets.getLong(positions[i], 0);
+            promoPerBucket[i] = allocBuckets.getLong(positions[i], 1);
         }
         return new AllocStats(
                 totalAllocationBytes,
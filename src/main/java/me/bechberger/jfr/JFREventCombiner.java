@@ -15,6 +15,7 @@ import java.util.stream.Stream;
 import jdk.jfr.EventType;
 import jdk.jfr.consumer.RecordedClass;
 import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
 import me.bechberger.condensed.CondensedInputStream;
 import me.bechberger.condensed.CondensedOutputStream;
 import me.bechberger.condensed.CondensedOutputStream.OverflowMode;
@@ -157,6 +158,12 @@ public class JFREventCombiner extends EventCombiner {
                                         "",
                                         val.createType(out, eventType)));
             }
+
+            /** Without the combiner, whose lambda name differs between JVM runs */
+            @Override
+            public String toString() {
+                return "{" + "val=" + val + "[]}";
+            }
         }
 
         /** Map of values as an entry of a map, represented as a list of (key, value) tuples */
@@ -189,12 +196,15 @@ public class JFREventCombiner extends EventCombiner {
 
             @Override
             public Map<K, V> defaultValue() {
-                return new HashMap<>();
+                return new CombinedMap<>();
             }
 
             @Override
             public <V2 extends Map<K, V>> V2 insert(V2 map, O object) {
                 var keyValue = key.getValue(object);
+                if (map instanceof CombinedMap<K, V> combinedMap) {
+                    keyValue = combinedMap.canonicalKey(keyValue);
+                }
                 if (!map.containsKey(keyValue)) {
                     map.put(keyValue, value.insert(value.defaultValue(), object));
                 } else {
@@ -254,6 +264,37 @@ public class JFREventCombiner extends EventCombiner {
         <V2 extends V> V insert(V2 valueInMap, O object);
     }
 
+    /**
+     * Map of a {@link MapValue}, in insertion order, so that the output does not depend on identity
+     * hash codes. Classes and threads with the same JFR id and name are the same key: reading a
+     * file, the JDK reuses these objects between chunks, but not for chunks that are parsed on
+     * their own (see {@link ParallelJFRFileReader}). The name guards against ids of other
+     * recordings.
+     */
+    static final class CombinedMap<K, V> extends LinkedHashMap<K, V> {
+
+        private @Nullable Map<Object, K> keysById;
+
+        /** The key that is used for the passed key */
+        K canonicalKey(K key) {
+            Object id;
+            if (key instanceof RecordedClass recordedClass) {
+                id = new IdAndName(recordedClass.getId(), recordedClass.getName());
+            } else if (key instanceof RecordedThread thread) {
+                id = new IdAndName(~thread.getId(), thread.getJavaName());
+            } else {
+                return key;
+            }
+            if (keysById == null) {
+                keysById = new HashMap<>();
+            }
+            K existing = keysById.putIfAbsent(id, key);
+            return existing != null ? existing : key;
+        }
+
+        private record IdAndName(long id, @Nullable String name) {}
+    }
+
     /** Implementations have to implement the type of their underlying value */
     public sealed interface DefinedObject<O> {
         /** Insert the object into the map */
@@ -265,7 +306,7 @@ public class JFREventCombiner extends EventCombiner {
             implements DefinedObject<O> {
 
         private final MapValue<O, ?, ?> valueDefinition;
-        private final Map<?, ?> map = new HashMap<>();
+        private final Map<?, ?> map = new CombinedMap<>();
 
         public DefinedMap(MapValue<O, ?, ?> valueDefinition) {
             this.valueDefinition = valueDefinition;
@@ -1428,21 +1469,58 @@ public class JFREventCombiner extends EventCombiner {
             boolean dropThread = configuration.dropGCWorkerThreadFromGCPhaseParallel();
             boolean dropStartTime = configuration.dropStartTimeFromGCPhaseParallelEntries();
             // spotless:off
-            var gcWorkerDuration = new MapPartValue<RecordedEvent, RecordedEvent>(
-                    "gcworkerDuration",
-                    (out, eventType) -> (CondensedType) basicJFRWriter.getOutputStream().writeAndStoreType(id -> {
-                        List<StructType.Field<RecordedEvent, ?, ?>> fields = new ArrayList<>();
-                        if (!dropStartTime) {
-                            fields.add(basicJFRWriter.eventFieldToField(eventType.getField("startTime"), true));
-                        }
-                        if (!dropThread) {
-                            fields.add(basicJFRWriter.eventFieldToField(eventType.getField("eventThread"), true));
-                        }
-                        fields.add(basicJFRWriter.eventFieldToField(eventType.getField("gcWorkerId"), true));
-                        fields.add(basicJFRWriter.eventFieldToField(eventType.getField("duration"), false));
-                        return new StructType<RecordedEvent, ReadStruct>(id, "GCWorker", fields);
-                    }),
-                    e -> e);
+            var gcWorkerDuration =
+                    new MapPartValue<RecordedEvent, RecordedEvent>(
+                            "gcworkerDuration",
+                            (out, eventType) ->
+                                    (CondensedType)
+                                            basicJFRWriter
+                                                    .getOutputStream()
+                                                    .writeAndStoreType(
+                                                            id -> {
+                                                                List<
+                                                                                StructType.Field<
+                                                                                        RecordedEvent,
+                                                                                        ?,
+                                                                                        ?>>
+                                                                        fields = new ArrayList<>();
+                                                                if (!dropStartTime) {
+                                                                    fields.add(
+                                                                            basicJFRWriter
+                                                                                    .eventFieldToField(
+                                                                                            eventType
+                                                                                                    .getField(
+                                                                                                            "startTime"),
+                                                                                            true));
+                                                                }
+                                                                if (!dropThread) {
+                                                                    fields.add(
+                                                                            basicJFRWriter
+                                                                                    .eventFieldToField(
+                                                                                            eventType
+                                                                                                    .getField(
+                                                                                                            "eventThread"),
+                                                                                            true));
+                                                                }
+                                                                fields.add(
+                                                                        basicJFRWriter
+                                                                                .eventFieldToField(
+                                                                                        eventType
+                                                                                                .getField(
+                                                                                                        "gcWorkerId"),
+                                                                                        true));
+                                                                fields.add(
+                                                                        basicJFRWriter
+                                                                                .eventFieldToField(
+                                                                                        eventType
+                                                                                                .getField(
+                                                                                                        "duration"),
+                                                                                        false));
+                                                                return new StructType<
+                                                                        RecordedEvent, ReadStruct>(
+                                                                        id, "GCWorker", fields);
+                                                            }),
+                            e -> e);
             // spotless:on
             return new MapValue<>(
                             new MapPartValue<>(
@@ -2562,7 +2640,6 @@ public class JFREventCombiner extends EventCombiner {
     private final Configuration configuration;
     private final @Nullable BasicJFRWriter basicJFRWriter;
     private final GCIdPerTimestamp gcIdPerTimestamp;
-    private final Map<String, Boolean> hasEventGCField = new HashMap<>();
 
     /** Cache size that is enough to make the effect of event reordering negligible */
     public static final int DEFAULT_CACHE_SIZE = 10;
@@ -2586,17 +2663,16 @@ public class JFREventCombiner extends EventCombiner {
     }
 
     @Override
-    public boolean processEvent(RecordedEvent event) {
-        // capture gc information
-        var hasGCId =
-                hasEventGCField.computeIfAbsent(
-                        event.getEventType().getName(),
-                        n -> event.getEventType().getField("gcId") != null);
-        if (hasGCId) {
-            // record the GC ID for the timestamp
-            gcIdPerTimestamp.put(event.getStartTime(), event.getLong("gcId"));
+    public ResolvedCombiner resolve(EventType eventType) {
+        ResolvedCombiner combiner = super.resolve(eventType);
+        if (eventType.getField("gcId") == null) {
+            return combiner;
         }
-        return super.processEvent(event);
+        // capture gc information: record the GC ID for the timestamp
+        return event -> {
+            gcIdPerTimestamp.put(event.getStartTime(), event.getLong("gcId"));
+            return combiner.processEvent(event);
+        };
     }
 
     /**
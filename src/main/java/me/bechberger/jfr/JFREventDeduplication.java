@@ -1,8 +1,6 @@
 package me.bechberger.jfr;
 
 import java.util.List;
-import java.util.Objects;
-import jdk.jfr.consumer.RecordedEvent;
 
 /**
  * Deduplication for all events that represent (mostly) static properties, like flags or settings.
@@ -32,44 +30,35 @@ public class JFREventDeduplication extends EventDeduplication {
                     "jdk.CPUTimeStampCounter",
                     "jdk.CompilerConfiguration");
 
-    /**
-     * Returns a stable, value-based string key from a field. JFR RecordedObject uses identity-based
-     * equals/hashCode, so complex-type fields cannot be used as HashMap keys directly. Using
-     * toString() gives a stable representation across JFR chunks.
-     */
-    private static String stableKey(RecordedEvent event, String field) {
-        var value = event.getValue(field);
-        return value == null ? "null" : value.toString();
+    public JFREventDeduplication(Configuration configuration) {
+        this(configuration, CollisionPolicy.fromProperty());
     }
 
-    public JFREventDeduplication(Configuration configuration) {
+    /**
+     * Object-valued fields (e.g. classes, methods, threads) are compared by value: JFR
+     * RecordedObjects use identity-based equals/hashCode, but the same value is a new object in
+     * every chunk.
+     */
+    public JFREventDeduplication(Configuration configuration, CollisionPolicy collisionPolicy) {
+        super(collisionPolicy);
         // Statically-valued events: their payload never changes across a recording, so dropping
         // repeated observations loses no per-timestamp information. Deduped for ALL presets,
         // including "lossless".
         FLAG_EVENTS.forEach(this::putFlag);
         SINGLETON_EVENTS.forEach(this::putSingleton);
 
-        // ModuleRequire: token = (source.name, requiredModule.name) — stable string key
-        put(
-                "jdk.ModuleRequire",
-                e -> stableKey(e, "source") + "|" + stableKey(e, "requiredModule"),
-                (a, b) -> true);
-        // ModuleResolution: token = (exportedPackage, targetModule) — stable string key
-        put(
-                "jdk.ModuleResolution",
-                e -> stableKey(e, "exportedPackage") + "|" + stableKey(e, "targetModule"),
-                (a, b) -> true);
+        // ModuleRequire: token = (source, requiredModule)
+        put("jdk.ModuleRequire", Values.fields("source", "requiredModule"), Values.NONE);
+        // ModuleResolution: token = (exportedPackage, targetModule)
+        put("jdk.ModuleResolution", Values.fields("exportedPackage", "targetModule"), Values.NONE);
 
         // Per-chunk repeated events with a key field
         put("jdk.InitialEnvironmentVariable", "key", "value");
         put("jdk.InitialSystemProperty", "key", "value");
         put("jdk.InitialSecurityProperty", "key", "value");
-        put("jdk.ActiveSetting", e -> e.getLong("id") + "/" + e.getString("name"), "value");
-        // ModuleExport: token = (exportedPackage.name, targetModule.name) — stable string key
-        put(
-                "jdk.ModuleExport",
-                e -> stableKey(e, "exportedPackage") + "|" + stableKey(e, "targetModule"),
-                (a, b) -> true);
+        put("jdk.ActiveSetting", Values.fields("id", "name"), Values.fields("value"));
+        // ModuleExport: token = (exportedPackage, targetModule)
+        put("jdk.ModuleExport", Values.fields("exportedPackage", "targetModule"), Values.NONE);
 
         // Agent events: endChunk, identical across chunks
         put("jdk.JavaAgent", "name", "options", "dynamic");
@@ -78,10 +67,7 @@ public class JFREventDeduplication extends EventDeduplication {
         // DeprecatedInvocation: endChunk, keyed by (method, invocationTime) — same call site
         // re-emitted at every chunk boundary; different call sites (same method, different time)
         // must NOT be merged.
-        put(
-                "jdk.DeprecatedInvocation",
-                e -> stableKey(e, "method") + "|" + stableKey(e, "invocationTime"),
-                (a, b) -> true);
+        put("jdk.DeprecatedInvocation", Values.fields("method", "invocationTime"), Values.NONE);
 
         // FinalizerStatistics can legitimately repeat with identical payload across
         // different timestamps/chunks. Dropping these observations changes event counts
@@ -109,12 +95,7 @@ public class JFREventDeduplication extends EventDeduplication {
 
     private void registerPeriodicTimeSeries() {
         // Periodic events that repeat per chunk with same values
-        put(
-                "jdk.NetworkUtilization",
-                e -> stableKey(e, "networkInterface"),
-                (a, b) ->
-                        a.getLong("readRate") == b.getLong("readRate")
-                                && a.getLong("writeRate") == b.getLong("writeRate"));
+        put("jdk.NetworkUtilization", "networkInterface", "readRate", "writeRate");
         put(
                 "jdk.CompilerQueueUtilization",
                 "compiler",
@@ -129,12 +110,8 @@ public class JFREventDeduplication extends EventDeduplication {
                 "compilerThreadCount");
         put(
                 "jdk.DirectBufferStatistics",
-                e -> 0,
-                (a, b) ->
-                        a.getLong("maxCapacity") == b.getLong("maxCapacity")
-                                && a.getLong("count") == b.getLong("count")
-                                && a.getLong("totalCapacity") == b.getLong("totalCapacity")
-                                && a.getLong("memoryUsed") == b.getLong("memoryUsed"));
+                Values.NONE,
+                Values.fields("maxCapacity", "count", "totalCapacity", "memoryUsed"));
         put("jdk.GCHeapMemoryPoolUsage", "name", "used", "committed", "max");
 
         // jdk.G1HeapRegionInformation is a set-valued periodic snapshot: every everyChunk tick
@@ -178,22 +155,14 @@ public class JFREventDeduplication extends EventDeduplication {
         putSingleton("jdk.ExceptionStatistics");
         putSingleton("jdk.GCHeapMemoryUsage");
 
-        // ThreadCPULoad: per-thread, stable string token for eventThread
-        put(
-                "jdk.ThreadCPULoad",
-                e -> stableKey(e, "eventThread"),
-                (a, b) ->
-                        Float.compare(a.getFloat("user"), b.getFloat("user")) == 0
-                                && Float.compare(a.getFloat("system"), b.getFloat("system")) == 0);
+        // ThreadCPULoad: per-thread
+        put("jdk.ThreadCPULoad", "eventThread", "user", "system");
 
         // CPULoad: singleton periodic, may repeat between chunks
         putSingleton("jdk.CPULoad");
 
         // ThreadAllocationStatistics: per-thread periodic, dedup when allocated bytes unchanged
-        put(
-                "jdk.ThreadAllocationStatistics",
-                e -> stableKey(e, "thread"),
-                (a, b) -> a.getLong("allocated") == b.getLong("allocated"));
+        put("jdk.ThreadAllocationStatistics", "thread", "allocated");
 
         // FinalizerStatistics can legitimately repeat with identical payload across
         // different timestamps/chunks. Dropping these observations changes event counts
@@ -206,44 +175,14 @@ public class JFREventDeduplication extends EventDeduplication {
         // observations are still semantically relevant in strict round-trips.
 
         // CodeCacheStatistics: per code blob type
-        put(
-                "jdk.CodeCacheStatistics",
-                e -> e.getString("codeBlobType"),
-                (a, b) -> {
-                    var type = a.getEventType();
-                    for (var field : type.getFields()) {
-                        var fieldName = field.getName();
-                        if (fieldName.equals("startTime") || fieldName.equals("endTime")) {
-                            continue;
-                        }
-                        if (!Objects.equals(a.getValue(fieldName), b.getValue(fieldName))) {
-                            return false;
-                        }
-                    }
-                    return true;
-                });
+        put("jdk.CodeCacheStatistics", Values.fields("codeBlobType"), Values.allFields());
     }
 
     private void putFlag(String flagType) {
-        put(flagType, e -> e.getString("name"), "value");
+        put(flagType, "name", "value");
     }
 
     private void putSingleton(String flagType) {
-        put(
-                flagType,
-                e -> 0,
-                (a, b) -> {
-                    var type = a.getEventType();
-                    for (var field : type.getFields()) {
-                        var fieldName = field.getName();
-                        if (fieldName.equals("startTime") || fieldName.equals("endTime")) {
-                            continue;
-                        }
-                        if (!Objects.equals(a.getValue(fieldName), b.getValue(fieldName))) {
-                            return false;
-                        }
-                    }
-                    return true;
-                });
+        put(flagType, Values.NONE, Values.allFields());
     }
 }
@@ -0,0 +1,598 @@
+package me.bechberger.jfr;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import jdk.jfr.EventType;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Reads JFR files and hands their events to a single consumer, file by file and in file order, so
+ * that the consumer sees exactly what it would see when reading the files one after another.
+ *
+ * <p>With more than one thread, up to {@code threads} chunks are parsed ahead on background
+ * threads. JFR chunks are self-contained (each has its own metadata and constant pools), so a file
+ * with several chunks is split at the chunk boundaries found in the chunk headers, and each chunk
+ * is parsed on its own from a temporary copy, see {@link Consumer#startChunk(boolean)} and {@link
+ * #conversionMatchesSerial}. Each parser passes batches of events to the consumer via a queue. The
+ * batches hold the parsed {@link RecordedEvent}s themselves, as these are what the writer consumes,
+ * any other intermediate form would have to be decoded again on the consumer thread.
+ *
+ * <p>At most {@code threads} parts (files or chunks) are parsed or wait for the consumer at any
+ * time: a part is only started when the consumer has taken all events of the part {@code threads}
+ * places before it. Each of these parts takes a permit per event from its share of {@code
+ * maxBufferedEvents} before parsing the event, and the consumer returns the permits when it has
+ * processed the event's batch. So at most {@code maxBufferedEvents} parsed events wait for the
+ * consumer at any time, however large and however many the files are.
+ *
+ * <p>The copy of a chunk is deleted as soon as the chunk is parsed, so the temporary directory
+ * needs room for up to {@code threads} chunks at the same time. JFR limits chunks to about 12 MB by
+ * default ({@code maxchunksize}), but recordings with a larger limit need accordingly more space.
+ */
+public final class ParallelJFRFileReader {
+
+    /** Events per batch passed from a parser to the consumer */
+    public static final int BATCH_SIZE = 1024;
+
+    public static final int DEFAULT_MAX_BUFFERED_EVENTS = 64 * BATCH_SIZE;
+
+    /** Receives the files and their events, always on the thread that calls {@link #read} */
+    public interface Consumer {
+        /** Called before the events of each file */
+        void startFile(Path file, List<EventType> eventTypes) throws IOException;
+
+        /**
+         * Called before the events of each part that is parsed on its own, a whole file or one of
+         * its chunks, after {@link #startFile} for the first part of a file. The event types of a
+         * chunk's events are new objects, even if the chunk has the same metadata as the previous
+         * chunk of the file.
+         */
+        default void startChunk(boolean sameMetadata) throws IOException {}
+
+        void event(RecordedEvent event) throws IOException;
+    }
+
+    /** Marks the end of a file in a parser's queue */
+    private static final Object END = new Object();
+
+    private final int threads;
+
+    /** Parts that are parsed or wait for the consumer at the same time */
+    private final int window;
+
+    /** Events that each of these parts may buffer */
+    private final int permitsPerPart;
+
+    private final int batchSize;
+
+    /** Directory for the copies of chunks, null for the default temporary directory */
+    private final @Nullable Path tempDir;
+
+    /** Events that are parsed (or about to be parsed) but not yet processed by the consumer */
+    private final AtomicInteger bufferedEvents = new AtomicInteger();
+
+    /**
+     * @param threads number of files parsed at the same time, 1 reads on the consumer thread
+     * @param maxBufferedEvents maximum number of parsed events waiting for the consumer
+     */
+    public ParallelJFRFileReader(int threads, int maxBufferedEvents) {
+        this(threads, maxBufferedEvents, null);
+    }
+
+    /**
+     * @param threads number of files parsed at the same time, 1 reads on the consumer thread
+     * @param maxBufferedEvents maximum number of parsed events waiting for the consumer
+     * @param tempDir directory for the copies of chunks, null for the default temporary directory
+     */
+    public ParallelJFRFileReader(int threads, int maxBufferedEvents, @Nullable Path tempDir) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        if (maxBufferedEvents < 1) {
+            throw new IllegalArgumentException("maxBufferedEvents must be at least 1");
+        }
+        this.threads = threads;
+        this.window = Math.min(threads, maxBufferedEvents);
+        this.permitsPerPart = maxBufferedEvents / window;
+        this.batchSize = Math.min(BATCH_SIZE, permitsPerPart);
+        this.tempDir = tempDir;
+    }
+
+    /** Number of events that the parsers currently hold for the consumer */
+    int bufferedEvents() {
+        return bufferedEvents.get();
+    }
+
+    /** Opens a {@link RecordingFile}, wrapping any {@link IOException} with the filename. */
+    public static RecordingFile open(Path file) throws IOException {
+        try {
+            return new RecordingFile(file);
+        } catch (IOException e) {
+            throw new IOException(
+                    "'" + file.getFileName() + "' is not a valid JFR file (" + e.getMessage() + ")",
+                    e);
+        }
+    }
+
+    /**
+     * A chunk of a JFR file, with the header fields that the JDK uses to convert ticks to time
+     *
+     * @param metadataId id of the chunk's metadata, equal ids mean equal metadata
+     */
+    record Chunk(
+            long offset,
+            long size,
+            long metadataId,
+            long startNanos,
+            long startTicks,
+            long ticksPerSecond) {}
+
+    /** "FLR\0" */
+    private static final int CHUNK_MAGIC = 0x464c5200;
+
+    private static final int CHUNK_HEADER_SIZE = 68;
+    private static final int METADATA_POSITION = 24;
+    private static final int START_NANOS_POSITION = 32;
+    private static final int START_TICKS_POSITION = 48;
+    private static final int TICKS_PER_SECOND_POSITION = 56;
+
+    /**
+     * The chunks of the file, read from the chunk headers
+     *
+     * @return the chunks, or an empty list if the headers do not describe complete chunks (e.g. the
+     *     recording is still being written)
+     */
+    static List<Chunk> chunks(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            List<Chunk> chunks = new ArrayList<>();
+            ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+            // size, type id, start time, duration and id of the metadata event, as varints
+            ByteBuffer metadata = ByteBuffer.allocate(5 * 9);
+            long offset = 0;
+            while (offset < fileSize) {
+                header.clear();
+                if (channel.read(header, offset) < CHUNK_HEADER_SIZE
+                        || header.getInt(0) != CHUNK_MAGIC) {
+                    return List.of();
+                }
+                long size = header.getLong(8);
+                long metadataPosition = header.getLong(METADATA_POSITION);
+                if (size < CHUNK_HEADER_SIZE
+                        || size > fileSize - offset
+                        || metadataPosition < CHUNK_HEADER_SIZE
+                        || metadataPosition >= size) {
+                    return List.of();
+                }
+                metadata.clear();
+                channel.read(metadata, offset + metadataPosition);
+                metadata.flip();
+                readVarLong(metadata); // size
+                if (readVarLong(metadata) != 0) { // the metadata event has the type id 0
+                    return List.of();
+                }
+                readVarLong(metadata); // start time
+                readVarLong(metadata); // duration
+                chunks.add(
+                        new Chunk(
+                                offset,
+                                size,
+                                readVarLong(metadata),
+                                header.getLong(START_NANOS_POSITION),
+                                header.getLong(START_TICKS_POSITION),
+                                header.getLong(TICKS_PER_SECOND_POSITION)));
+                offset += size;
+            }
+            return chunks;
+        } catch (BufferUnderflowException e) {
+            return List.of();
+        }
+    }
+
+    /** Reads a JFR varint: 7 bits per byte, the ninth byte contributes all 8 bits */
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            byte b = buffer.get();
+            value |= (b & 0x7FL) << (7 * i);
+            if (b >= 0) {
+                return value;
+            }
+        }
+        return value | ((buffer.get() & 0xFFL) << 56);
+    }
+
+    private static ByteBuffer longBuffer(long value) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(0, value);
+    }
+
+    /**
+     * The chunk whose conversion from ticks to time the JDK uses for each chunk when reading the
+     * file serially: it keeps the event parsers of the previous chunk if the metadata is the same,
+     * and with them the previous chunk's conversion, so it is the chunk that introduced the
+     * metadata
+     */
+    static List<Chunk> converters(List<Chunk> chunks) {
+        List<Chunk> converters = new ArrayList<>();
+        Chunk converter = chunks.get(0);
+        for (Chunk chunk : chunks) {
+            if (chunk.metadataId() != converter.metadataId()) {
+                converter = chunk;
+            }
+            converters.add(converter);
+        }
+        return converters;
+    }
+
+    /** Number of events of a chunk that {@link #verifyConversion} compares */
+    private static final int VERIFIED_EVENTS = 16;
+
+    /**
+     * Result of {@link #verifyConversion} for this JDK, null until a file with events in a chunk
+     * that reuses the conversion of an earlier chunk was verified
+     */
+    private static volatile @Nullable Boolean conversionVerified = null;
+
+    /**
+     * Are the events of chunks that reuse the conversion of an earlier chunk the same when parsed
+     * from a copy with the patched header as when the file is read serially?
+     *
+     * <p>That the JDK reuses the conversion is an implementation detail of {@code jdk.jfr}, so this
+     * is verified once per JVM on the first such file, by comparing the first events of such a
+     * chunk. Files are read serially if the verification fails.
+     */
+    private boolean conversionMatchesSerial(Path file, List<Chunk> chunks, List<Chunk> converters)
+            throws IOException {
+        Boolean verified = conversionVerified;
+        if (verified == null) {
+            verified = verifyConversion(file, chunks, converters);
+            if (verified == null) {
+                // all chunks that reuse a conversion are empty, so there is nothing to convert
+                return true;
+            }
+            conversionVerified = verified;
+        }
+        return verified;
+    }
+
+    /**
+     * Compare the first events of the first chunk that reuses the conversion of an earlier chunk
+     * and has events, read serially from the file and parsed from a patched copy of the chunk
+     *
+     * @return whether their types and times are the same, null if there is no such chunk
+     */
+    @Nullable
+    Boolean verifyConversion(Path file, List<Chunk> chunks, List<Chunk> converters)
+            throws IOException {
+        for (int i = 1; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            if (converters.get(i) == chunk) {
+                continue;
+            }
+            List<String> parsed;
+            Path copy = copy(file, chunk.offset(), chunk.size(), chunk, converters.get(i));
+            try (RecordingFile recordingFile = new RecordingFile(copy)) {
+                parsed = describe(recordingFile, 0);
+            } finally {
+                Files.deleteIfExists(copy);
+            }
+            if (parsed.isEmpty()) {
+                continue;
+            }
+            long before;
+            Path prefix = copy(file, 0, chunk.offset(), chunks.get(0), null);
+            try (RecordingFile recordingFile = new RecordingFile(prefix)) {
+                before = 0;
+                while (recordingFile.hasMoreEvents()) {
+                    recordingFile.readEvent();
+                    before++;
+                }
+            } finally {
+                Files.deleteIfExists(prefix);
+            }
+            try (RecordingFile recordingFile = open(file)) {
+                return parsed.equals(describe(recordingFile, before));
+            }
+        }
+        return null;
+    }
+
+    /** Type and times of the first {@link #VERIFIED_EVENTS} events after the skipped ones */
+    private static List<String> describe(RecordingFile recordingFile, long skip)
+            throws IOException {
+        for (long i = 0; i < skip && recordingFile.hasMoreEvents(); i++) {
+            recordingFile.readEvent();
+        }
+        List<String> events = new ArrayList<>();
+        while (events.size() < VERIFIED_EVENTS && recordingFile.hasMoreEvents()) {
+            RecordedEvent event = recordingFile.readEvent();
+            events.add(
+                    event.getEventType().getName()
+                            + " "
+                            + event.getStartTime()
+                            + " "
+                            + event.getEndTime());
+        }
+        return events;
+    }
+
+    /**
+     * Copy the bytes of the file to a temporary file, patching the header of the chunk at the start
+     * of the copy with the conversion of the converter
+     *
+     * @param chunk the chunk at the start of the copy
+     * @param converter chunk whose conversion the copy uses, null to keep the chunk's own header
+     */
+    private Path copy(Path file, long offset, long size, Chunk chunk, @Nullable Chunk converter)
+            throws IOException {
+        Path copy =
+                tempDir == null
+                        ? Files.createTempFile("cjfr-chunk-", ".jfr")
+                        : Files.createTempFile(tempDir, "cjfr-chunk-", ".jfr");
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(copy, StandardOpenOption.WRITE)) {
+            long copied = 0;
+            while (copied < size) {
+                copied += in.transferTo(offset + copied, size - copied, out);
+            }
+            if (converter != null && converter != chunk) {
+                out.write(longBuffer(converter.startNanos()), START_NANOS_POSITION);
+                out.write(longBuffer(converter.startTicks()), START_TICKS_POSITION);
+                out.write(longBuffer(converter.ticksPerSecond()), TICKS_PER_SECOND_POSITION);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(copy);
+            throw e;
+        }
+        return copy;
+    }
+
+    public void read(List<Path> files, Consumer consumer) throws IOException {
+        if (threads == 1) {
+            for (Path file : files) {
+                try (RecordingFile recordingFile = open(file)) {
+                    consumer.startFile(file, recordingFile.readEventTypes());
+                    consumer.startChunk(false);
+                    while (recordingFile.hasMoreEvents()) {
+                        consumer.event(recordingFile.readEvent());
+                    }
+                }
+            }
+            return;
+        }
+        List<Parser> parsers = new ArrayList<>();
+        for (Path file : files) {
+            List<Chunk> chunks = chunks(file);
+            if (chunks.size() < 2) {
+                parsers.add(new Parser(file, null, null, true, false));
+                continue;
+            }
+            // the copies of chunks with the metadata of an earlier chunk use the conversion from
+            // ticks to time of the chunk that introduced the metadata, like the JDK when reading
+            // the file serially, so that their events are exactly the same
+            List<Chunk> converters = converters(chunks);
+            if (!conversionMatchesSerial(file, chunks, converters)) {
+                parsers.add(new Parser(file, null, null, true, false));
+                continue;
+            }
+            for (int i = 0; i < chunks.size(); i++) {
+                Chunk chunk = chunks.get(i);
+                parsers.add(
+                        new Parser(
+                                file,
+                                chunk,
+                                converters.get(i),
+                                i == 0,
+                                converters.get(i) != chunk));
+            }
+        }
+        // the parser of the part that the consumer waits for is always submitted and has a
+        // thread: the parsers before it are done, and it is one of the first window parsers
+        // that are not done
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool =
+                Executors.newFixedThreadPool(
+                        Math.min(window, parsers.size()),
+                        r -> {
+                            Thread thread =
+                                    new Thread(r, "cjfr-parser-" + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        try {
+            for (int i = 0; i < Math.min(window, parsers.size()); i++) {
+                pool.execute(parsers.get(i));
+            }
+            for (int i = 0; i < parsers.size(); i++) {
+                Parser parser = parsers.get(i);
+                if (parser.firstOfFile) {
+                    @SuppressWarnings("unchecked")
+                    List<EventType> eventTypes = (List<EventType>) parser.take();
+                    consumer.startFile(parser.file, eventTypes);
+                }
+                consumer.startChunk(parser.sameMetadata);
+                Object item;
+                while ((item = parser.take()) != END) {
+                    RecordedEvent[] batch = (RecordedEvent[]) item;
+                    for (RecordedEvent event : batch) {
+                        consumer.event(event);
+                    }
+                    parser.release(batch.length);
+                }
+                if (i + window < parsers.size()) {
+                    pool.execute(parsers.get(i + window));
+                }
+            }
+        } finally {
+            // stops parsers that wait for space after the consumer failed
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Parses a file or one of its chunks into its queue: the event types of the whole file (for the
+     * first parser of the file), then batches of events, then END
+     */
+    private final class Parser implements Runnable {
+        private final Path file;
+
+        /** Chunk to parse, null for the whole file */
+        private final @Nullable Chunk chunk;
+
+        /** Chunk whose conversion from ticks to time the JDK uses for this chunk */
+        private final @Nullable Chunk converter;
+
+        private final boolean firstOfFile;
+        private final boolean sameMetadata;
+
+        /** Bounded by the permits: the event types, the batches and END */
+        private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+
+        private final Semaphore permits = new Semaphore(permitsPerPart);
+
+        Parser(
+                Path file,
+                @Nullable Chunk chunk,
+                @Nullable Chunk converter,
+                boolean firstOfFile,
+                boolean sameMetadata) {
+            this.file = file;
+            this.chunk = chunk;
+            this.converter = converter;
+            this.firstOfFile = firstOfFile;
+            this.sameMetadata = sameMetadata;
+        }
+
+        private void acquire(int events) throws InterruptedException {
+            permits.acquire(events);
+            bufferedEvents.addAndGet(events);
+        }
+
+        void release(int events) {
+            bufferedEvents.addAndGet(-events);
+            permits.release(events);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Path chunkFile = null;
+                try {
+                    if (chunk == null) {
+                        parse(file);
+                    } else {
+                        if (firstOfFile) {
+                            try (RecordingFile recordingFile = open(file)) {
+                                queue.put(recordingFile.readEventTypes());
+                            }
+                        }
+                        chunkFile = copyChunk();
+                        parse(chunkFile);
+                    }
+                } catch (IOException | RuntimeException | Error e) {
+                    queue.put(e);
+                    return;
+                } finally {
+                    if (chunkFile != null) {
+                        try {
+                            Files.deleteIfExists(chunkFile);
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+                queue.put(END);
+            } catch (InterruptedException e) {
+                // the consumer gave up
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private Path copyChunk() throws IOException {
+            assert chunk != null;
+            return copy(file, chunk.offset(), chunk.size(), chunk, converter);
+        }
+
+        private void parse(Path path) throws IOException, InterruptedException {
+            try (RecordingFile recordingFile = openChunk(path)) {
+                if (chunk == null) {
+                    queue.put(recordingFile.readEventTypes());
+                }
+                RecordedEvent[] batch = null;
+                int size = 0;
+                while (recordingFile.hasMoreEvents()) {
+                    if (batch == null) {
+                        acquire(batchSize);
+                        batch = new RecordedEvent[batchSize];
+                    }
+                    batch[size++] = recordingFile.readEvent();
+                    if (size == batchSize) {
+                        queue.put(batch);
+                        batch = null;
+                        size = 0;
+                    }
+                }
+                if (batch != null) {
+                    release(batchSize - size);
+                    queue.put(Arrays.copyOf(batch, size));
+                }
+            }
+        }
+
+        /** Opens the file or the copy of the chunk, naming the original file in errors */
+        private RecordingFile openChunk(Path path) throws IOException {
+            if (chunk == null) {
+                return open(path);
+            }
+            try {
+                return new RecordingFile(path);
+            } catch (IOException e) {
+                throw new IOException(
+                        "Chunk at offset "
+                                + chunk.offset()
+                                + " of '"
+                                + file.getFileName()
+                                + "' is not valid ("
+                                + e.getMessage()
+                                + ")",
+                        e);
+            }
+        }
+
+        /** Take the next item, rethrowing the parser's exception on the consumer thread */
+        Object take() throws IOException {
+            Object item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading " + file);
+            }
+            if (item instanceof IOException e) {
+                throw e;
+            }
+            if (item instanceof RuntimeException e) {
+                throw e;
+            }
+            if (item instanceof Error e) {
+                throw e;
+            }
+            return item;
+        }
+    }
+}
@@ -111,6 +111,17 @@ public final class UnsafeRecordedObjectAccessor {
         return new BooleanFieldAccessor(fieldName, defaultValue);
     }
 
+    /**
+     * Creates a reusable accessor for a struct-typed field. Only values that the parser already
+     * created as {@link RecordedObject} (threads, stack traces, classes, …) take the fast path,
+     * nested structs and arrays are stored as raw {@code Object[]} and need the public API to be
+     * wrapped.
+     */
+    public static <T extends RecordedObject> RecordedObjectFieldAccessor<T> recordedObjectField(
+            String fieldName) {
+        return new RecordedObjectFieldAccessor<>(fieldName);
+    }
+
     // ─── Base class for cached index logic ────────────────────────────────────
 
     /**
@@ -124,11 +135,21 @@ public final class UnsafeRecordedObjectAccessor {
      * the offset (fields.size() - objects.length) so it correctly addresses the Object[] array.
      */
     public abstract static sealed class AbstractFieldAccessor
-            permits FieldAccessor, IntFieldAccessor, LongFieldAccessor, BooleanFieldAccessor {
+            permits FieldAccessor,
+                    IntFieldAccessor,
+                    LongFieldAccessor,
+                    BooleanFieldAccessor,
+                    RecordedObjectFieldAccessor {
 
         protected final String fieldName;
-        private List<ValueDescriptor> cachedFields;
-        private int cachedIndex = -1;
+
+        /**
+         * Field layout and the index resolved for it, replaced as a whole, so that accessors shared
+         * by concurrent writers never pair a layout with the index of another one
+         */
+        private volatile CachedIndex cached = null;
+
+        private record CachedIndex(List<ValueDescriptor> fields, int index) {}
 
         private AbstractFieldAccessor(String fieldName) {
             this.fieldName = fieldName;
@@ -147,17 +168,19 @@ public final class UnsafeRecordedObjectAccessor {
          */
         protected int index(RecordedObject obj, Object[] vals) {
             List<ValueDescriptor> fields = obj.getFields();
-            if (fields == cachedFields) return cachedIndex;
-            cachedFields = fields;
+            CachedIndex current = cached;
+            if (current != null && current.fields() == fields) return current.index();
             int fieldIdx = findFieldIndex(fields, fieldName);
+            int index;
             if (fieldIdx < 0) {
-                cachedIndex = -1;
+                index = -1;
             } else {
                 // offset = number of built-in fields (startTime, duration) not in Object[]
                 int offset = fields.size() - vals.length;
-                cachedIndex = fieldIdx - offset;
+                index = fieldIdx - offset;
             }
-            return cachedIndex;
+            cached = new CachedIndex(fields, index);
+            return index;
         }
     }
 
@@ -292,6 +315,35 @@ public final class UnsafeRecordedObjectAccessor {
         }
     }
 
+    /** Accessor for struct-typed fields, see {@link #recordedObjectField(String)}. */
+    public static final class RecordedObjectFieldAccessor<T extends RecordedObject>
+            extends AbstractFieldAccessor {
+
+        private RecordedObjectFieldAccessor(String fieldName) {
+            super(fieldName);
+        }
+
+        /**
+         * Returns the value, null if it is null
+         *
+         * @throws IllegalArgumentException if the field does not exist
+         */
+        @SuppressWarnings("unchecked")
+        public T get(RecordedObject obj) {
+            Object[] vals = values(obj);
+            if (vals != null) {
+                int idx = index(obj, vals);
+                if (idx >= 0 && idx < vals.length) {
+                    Object v = vals[idx];
+                    if (v == null) return null;
+                    if (v instanceof RecordedObject) return (T) v;
+                    // Fall through: raw struct or array, structified by the public API
+                }
+            }
+            return obj.getValue(fieldName);
+        }
+    }
+
     // ─── Internals ────────────────────────────────────────────────────────────
 
     private static int findFieldIndex(List<ValueDescriptor> fields, String fieldName) {
@@ -4,6 +4,7 @@ import static me.bechberger.util.MemoryUtil.parseMemory;
 import static me.bechberger.util.TimeUtil.parseDuration;
 import static me.bechberger.util.TimeUtil.parseInstant;
 
+import java.io.PrintStream;
 import java.lang.reflect.Method;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -69,10 +70,14 @@ public class CLIUtils {
     }
 
     public static int printError(Throwable throwable) {
+        return printError(throwable, System.err);
+    }
+
+    public static int printError(Throwable throwable, PrintStream err) {
         if (System.getenv("CJFR_DEBUG") != null) {
-            throwable.printStackTrace();
+            throwable.printStackTrace(err);
         }
-        System.err.println("Error: " + userErrorMessage(throwable));
+        err.println("Error: " + userErrorMessage(throwable));
         return 1;
     }
 
@@ -158,6 +158,13 @@ public class FileOptionConverters {
         }
     }
 
+    @FileEndingAnnotation(ending = ".cjfrdict")
+    public static class ExistingDictionaryFileConverter extends ExistingFileWithExtensionConverter {
+        public ExistingDictionaryFileConverter() {
+            super(".cjfrdict", false);
+        }
+    }
+
     @FileEndingAnnotation(ending = ".html")
     public static class HTMLFileConverter extends FileWithExtensionConverter {}
 
@@ -188,6 +195,9 @@ public class FileOptionConverters {
     @FileEndingAnnotation(ending = ".cjfr")
     public static class CJFRFileConverter extends FileWithExtensionConverter {}
 
+    @FileEndingAnnotation(ending = ".cjfrdict")
+    public static class DictionaryFileConverter extends FileWithExtensionConverter {}
+
     public static @Nullable String getFileEndingAnnotation(Class<?> converterClass) {
         FileEndingAnnotation annotation = converterClass.getAnnotation(FileEndingAnnotation.class);
         if (annotation == null || annotation.ending().isEmpty()) {
@@ -25,6 +25,10 @@ import me.bechberger.jfr.cli.commands.*;
             ViewCommand.class,
             PrintCommand.class,
             MetadataCommand.class,
+            TrainDictionaryCommand.class,
+            ExportCommand.class,
+            RecoverCommand.class,
+            CollectCommand.class,
         },
         mixinStandardHelpOptions = true)
 public class JFRCLI implements Runnable {
@@ -46,7 +50,11 @@ public class JFRCLI implements Runnable {
                 "summary",
                 "view",
                 "print",
-                "metadata");
+                "metadata",
+                "train-dictionary",
+                "export",
+                "recover",
+                "collect");
     }
 
     /**
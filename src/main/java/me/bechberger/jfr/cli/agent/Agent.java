@@ -1,5 +1,9 @@
 package me.bechberger.jfr.cli.agent;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import me.bechberger.femtocli.FemtoCli;
 import me.bechberger.femtocli.Spec;
 import me.bechberger.femtocli.annotations.Command;
@@ -15,13 +19,25 @@ import me.bechberger.jfr.cli.agent.commands.*;
             SetMaxSizeCommand.class,
             SetMaxDurationCommand.class,
             SetMaxFilesCommand.class,
-            SetDurationCommand.class
+            SetDurationCommand.class,
+            SetMaxTotalSizeCommand.class,
+            SetMaxAgeCommand.class,
+            SetMinFreeSpaceCommand.class,
+            SetEventBudgetCommand.class,
+            SetEventCpuBudgetCommand.class,
+            DumpCommand.class
         },
         customSynopsis = "java -javaagent:condensed-agent.jar='[COMMAND]'")
 public class Agent implements Runnable {
 
+    /** Name of the recording if none is given */
+    public static final String DEFAULT_RECORDING_NAME = "default";
+
     private static final Object syncObject = new Object();
-    private static volatile RecordingThread currentRecordingThread;
+
+    /** Running recordings by name, in start order, guarded by {@link #syncObject} */
+    private static final Map<String, RecordingThread> recordingThreads = new LinkedHashMap<>();
+
     private static String agentArgs;
 
     Spec spec;
@@ -53,11 +69,7 @@ public class Agent implements Runnable {
                 .addShutdownHook(
                         new Thread(
                                 () -> {
-                                    RecordingThread t;
-                                    synchronized (syncObject) {
-                                        t = currentRecordingThread;
-                                    }
-                                    if (t != null) {
+                                    for (RecordingThread t : getRecordingThreads().values()) {
                                         t.stop();
                                     }
                                 },
@@ -112,13 +124,105 @@ public class Agent implements Runnable {
         return syncObject;
     }
 
+    /** The recording with the default name */
     public static RecordingThread getCurrentRecordingThread() {
-        return currentRecordingThread;
+        return getRecordingThread(DEFAULT_RECORDING_NAME);
     }
 
+    /**
+     * Set the recording with the default name, {@code null} removes all recordings (they are not
+     * stopped)
+     */
     public static void setCurrentRecordingThread(RecordingThread currentRecordingThread) {
         synchronized (syncObject) {
-            Agent.currentRecordingThread = currentRecordingThread;
+            if (currentRecordingThread == null) {
+                recordingThreads.clear();
+            } else {
+                recordingThreads.put(DEFAULT_RECORDING_NAME, currentRecordingThread);
+            }
+        }
+    }
+
+    public static RecordingThread getRecordingThread(String name) {
+        synchronized (syncObject) {
+            return recordingThreads.get(name);
+        }
+    }
+
+    /** Copy of the running recordings by name, in start order */
+    public static Map<String, RecordingThread> getRecordingThreads() {
+        synchronized (syncObject) {
+            return new LinkedHashMap<>(recordingThreads);
+        }
+    }
+
+    public static void addRecordingThread(String name, RecordingThread recordingThread) {
+        synchronized (syncObject) {
+            recordingThreads.put(name, recordingThread);
+        }
+    }
+
+    /** Remove the recording, if it is still registered under the passed name */
+    public static void removeRecordingThread(String name, RecordingThread recordingThread) {
+        synchronized (syncObject) {
+            recordingThreads.remove(name, recordingThread);
+        }
+    }
+
+    /**
+     * Recordings selected by a command: the one with the passed name, or all if the name is {@code
+     * null}
+     */
+    public static List<Map.Entry<String, RecordingThread>> selectRecordingThreads(String name) {
+        synchronized (syncObject) {
+            if (name == null) {
+                return new ArrayList<>(recordingThreads.entrySet());
+            }
+            var thread = recordingThreads.get(name);
+            return thread == null ? List.of() : List.of(Map.entry(name, thread));
+        }
+    }
+
+    /**
+     * The recording that a command changes: the one with the passed name, or the only one if the
+     * name is {@code null}
+     *
+     * @throws IllegalArgumentException if the name is {@code null} and multiple recordings run
+     */
+    public static RecordingThread selectRecordingThread(String name) {
+        synchronized (syncObject) {
+            if (name != null) {
+                return recordingThreads.get(name);
+            }
+            if (recordingThreads.size() > 1) {
+                throw new IllegalArgumentException(
+                        "Multiple recordings running ("
+                                + String.join(", ", recordingThreads.keySet())
+                                + "), select one with --name");
+            }
+            return recordingThreads.values().stream().findFirst().orElse(null);
+        }
+    }
+
+    /**
+     * Like {@link #selectRecordingThread(String)}, but prints an error and returns {@code null} if
+     * no single recording is selected
+     */
+    public static RecordingThread selectRecordingThreadOrReport(String name) {
+        RecordingThread recordingThread;
+        try {
+            recordingThread = selectRecordingThread(name);
+        } catch (IllegalArgumentException e) {
+            AgentIO.getAgentInstance().writeSevereError(e.getMessage());
+            return null;
+        }
+        if (recordingThread == null) {
+            AgentIO.getAgentInstance()
+                    .println(
+                            name == null
+                                    ? "No recording running"
+                                    : "No recording running with name " + name);
         }
+        return recordingThread;
     }
 }
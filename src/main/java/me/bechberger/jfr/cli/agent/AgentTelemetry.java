@@ -0,0 +1,377 @@
+package me.bechberger.jfr.cli.agent;
+
+import static me.bechberger.util.MemoryUtil.formatMemory;
+import static me.bechberger.util.TimeUtil.formatDuration;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import jdk.jfr.FlightRecorder;
+import me.bechberger.condensed.Universe.CacheStats;
+import me.bechberger.jfr.BasicJFRWriter;
+
+/**
+ * Low-overhead counters of the work that a recording does: events per type, event processing
+ * latency, written bytes, reference caches, combiner states and rotations
+ *
+ * <p>Shown by {@code status}, registered as {@link AgentTelemetryMXBean} while the recording runs
+ * and emitted as {@link AgentTelemetryEvent} if enabled.
+ */
+public final class AgentTelemetry implements AgentTelemetryMXBean {
+
+    /** Statistics of the writers of a recording, taken under the lock of the writer */
+    public record WriterStatistics(
+            long bytesWritten,
+            long uncompressedBytes,
+            Map<String, CacheStats> caches,
+            Map<String, Integer> combinerStates) {
+
+        public static final WriterStatistics EMPTY = new WriterStatistics(0, 0, Map.of(), Map.of());
+
+        /** Statistics of the passed writer, plus the bytes of the files that are already closed */
+        public static WriterStatistics of(
+                BasicJFRWriter writer, long closedBytes, long closedUncompressedBytes) {
+            return new WriterStatistics(
+                    writer.estimateSize() + closedBytes,
+                    writer.getUncompressedBytes() + closedUncompressedBytes,
+                    writer.getOutputStream().getUniverse().getWritingCaches().statistics(),
+                    writer.getCombinerStateCounts());
+        }
+
+        public double compressionRatio() {
+            return bytesWritten == 0 ? 0 : (double) uncompressedBytes / bytesWritten;
+        }
+
+        /** Hit ratio of all caches together */
+        public double cacheHitRate() {
+            long hits = caches.values().stream().mapToLong(CacheStats::hits).sum();
+            long misses = caches.values().stream().mapToLong(CacheStats::misses).sum();
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+    }
+
+    /**
+     * Histogram with power of two buckets, recording is lock-free and percentiles are accurate up
+     * to a factor of two
+     */
+    static final class LatencyHistogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            // bucket i holds the values in [2^(i-1), 2^i - 1], bucket 0 holds zero
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.increment();
+            if (value > max.get()) {
+                max.accumulateAndGet(value, Math::max);
+            }
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        /**
+         * Upper bound of the bucket that contains the passed percentile, at most the maximum
+         *
+         * @param percentile between 0 and 1
+         */
+        long percentile(double percentile) {
+            long total = 0;
+            long[] counts = new long[64];
+            for (int i = 0; i < 64; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(1, rank)) {
+                    long upper = i == 0 ? 0 : i >= 63 ? Long.MAX_VALUE : (1L << i) - 1;
+                    return Math.min(upper, max());
+                }
+            }
+            return max();
+        }
+    }
+
+    /** Name of the {@link AgentTelemetryEvent} */
+    public static final String EVENT_NAME = AgentTelemetryEvent.NAME;
+
+    private static final int TOP_EVENT_TYPES = 5;
+
+    /** Telemetry of the registered recordings by name, emitted as JFR events */
+    private static final Map<String, AgentTelemetry> registered = new ConcurrentHashMap<>();
+
+    static {
+        // a single hook emits the events of all registered recordings
+        FlightRecorder.addPeriodicEvent(AgentTelemetryEvent.class, AgentTelemetry::emitEvents);
+    }
+
+    private final Supplier<WriterStatistics> writerStatistics;
+    private final long startNanos = System.nanoTime();
+    private final Map<String, LongAdder> eventsPerType = new ConcurrentHashMap<>();
+    private final LongAdder events = new LongAdder();
+    private final LatencyHistogram processEventLatency = new LatencyHistogram();
+    private final LatencyHistogram rotationLatency = new LatencyHistogram();
+
+    private volatile String name = null;
+    private volatile ObjectName objectName = null;
+
+    /**
+     * @param writerStatistics statistics of the writers, {@code null} if they are currently not
+     *     available
+     */
+    AgentTelemetry(Supplier<WriterStatistics> writerStatistics) {
+        this.writerStatistics = writerStatistics;
+    }
+
+    /** Record a processed event and the time that writing it took */
+    void recordEvent(String eventType, long processingNanos) {
+        events.increment();
+        eventsPerType.computeIfAbsent(eventType, k -> new LongAdder()).increment();
+        processEventLatency.record(processingNanos);
+    }
+
+    /** Record the time that events were blocked by a rotation */
+    void recordRotation(long nanos) {
+        rotationLatency.record(nanos);
+    }
+
+    /**
+     * Register the MBean for the recording with the passed name and emit the JFR event for it
+     *
+     * @throws JMException if the MBean could not be registered, e.g. because of a name clash
+     */
+    public void register(String name) throws JMException {
+        this.name = name;
+        var objectName =
+                new ObjectName(
+                        "me.bechberger.jfr:type=CondensedRecording,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+        registered.put(name, this);
+    }
+
+    /** Unregister the MBean and stop emitting JFR events, does nothing if not registered */
+    public void unregister() {
+        var name = this.name;
+        if (name != null) {
+            registered.remove(name, this);
+        }
+        var objectName = this.objectName;
+        this.objectName = null;
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException ignored) {
+                // already unregistered
+            }
+        }
+    }
+
+    private static void emitEvents() {
+        for (var telemetry : registered.values()) {
+            var event = new AgentTelemetryEvent();
+            if (!event.shouldCommit()) {
+                return;
+            }
+            var writer = telemetry.currentWriterStatistics();
+            event.recording = telemetry.name;
+            event.events = telemetry.getEventCount();
+            event.eventsPerSecond = telemetry.getEventsPerSecond();
+            event.processEventP50 = telemetry.getProcessEventP50Nanos();
+            event.processEventP99 = telemetry.getProcessEventP99Nanos();
+            event.processEventMax = telemetry.getProcessEventMaxNanos();
+            event.bytesWritten = writer.bytesWritten();
+            event.uncompressedBytes = writer.uncompressedBytes();
+            event.compressionRatio = writer.compressionRatio();
+            event.cacheHitRate = writer.cacheHitRate();
+            event.combinerStates =
+                    writer.combinerStates().values().stream().mapToLong(i -> i).sum();
+            event.rotations = telemetry.getRotationCount();
+            event.rotationMax = telemetry.getRotationMaxNanos();
+            event.commit();
+        }
+    }
+
+    private WriterStatistics currentWriterStatistics() {
+        var statistics = writerStatistics.get();
+        return statistics == null ? WriterStatistics.EMPTY : statistics;
+    }
+
+    private double elapsedSeconds() {
+        return Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+    }
+
+    @Override
+    public long getEventCount() {
+        return events.sum();
+    }
+
+    @Override
+    public double getEventsPerSecond() {
+        return getEventCount() / elapsedSeconds();
+    }
+
+    @Override
+    public Map<String, Double> getEventsPerSecondPerType() {
+        double seconds = elapsedSeconds();
+        Map<String, Double> rates = new TreeMap<>();
+        eventsPerType.forEach((type, count) -> rates.put(type, count.sum() / seconds));
+        return rates;
+    }
+
+    @Override
+    public long getProcessEventP50Nanos() {
+        return processEventLatency.percentile(0.5);
+    }
+
+    @Override
+    public long getProcessEventP99Nanos() {
+        return processEventLatency.percentile(0.99);
+    }
+
+    @Override
+    public long getProcessEventMaxNanos() {
+        return processEventLatency.max();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return currentWriterStatistics().bytesWritten();
+    }
+
+    @Override
+    public long getUncompressedBytes() {
+        return currentWriterStatistics().uncompressedBytes();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return currentWriterStatistics().compressionRatio();
+    }
+
+    @Override
+    public Map<String, Double> getCacheHitRates() {
+        Map<String, Double> rates = new TreeMap<>();
+        currentWriterStatistics()
+                .caches()
+                .forEach(
+                        (type, stats) -> {
+                            if (stats.hits() + stats.misses() > 0) {
+                                rates.put(type, stats.hitRatio());
+                            }
+                        });
+        return rates;
+    }
+
+    @Override
+    public Map<String, Integer> getCombinerStates() {
+        return currentWriterStatistics().combinerStates();
+    }
+
+    @Override
+    public long getRotationCount() {
+        return rotationLatency.count();
+    }
+
+    @Override
+    public long getRotationMaxNanos() {
+        return rotationLatency.max();
+    }
+
+    /** Entries for the {@code status} command */
+    List<Entry<String, String>> getStatus() {
+        var writer = currentWriterStatistics();
+        List<Entry<String, String>> status = new ArrayList<>();
+        status.add(Map.entry("events", Long.toString(getEventCount())));
+        status.add(Map.entry("events-per-second", formatRate(getEventsPerSecond())));
+        status.add(Map.entry("top-event-types", formatTopEventTypes()));
+        status.add(
+                Map.entry(
+                        "process-event-latency",
+                        "p50 "
+                                + formatNanos(getProcessEventP50Nanos())
+                                + ", p99 "
+                                + formatNanos(getProcessEventP99Nanos())
+                                + ", max "
+                                + formatNanos(getProcessEventMaxNanos())));
+        status.add(Map.entry("bytes-written", formatMemory(writer.bytesWritten(), 3)));
+        status.add(
+                Map.entry(
+                        "compression-ratio",
+                        String.format(Locale.ROOT, "%.2f", writer.compressionRatio())));
+        status.add(Map.entry("cache-hit-rates", formatCacheHitRates()));
+        status.add(
+                Map.entry(
+                        "combiner-states",
+                        writer.combinerStates().isEmpty()
+                                ? "none"
+                                : writer.combinerStates().toString()));
+        if (getRotationCount() > 0) {
+            status.add(
+                    Map.entry(
+                            "rotation-latency",
+                            getRotationCount()
+                                    + " rotations, p50 "
+                                    + formatNanos(rotationLatency.percentile(0.5))
+                                    + ", max "
+                                    + formatNanos(getRotationMaxNanos())));
+        }
+        return status;
+    }
+
+    private String formatTopEventTypes() {
+        var top =
+                getEventsPerSecondPerType().entrySet().stream()
+                        .sorted(Entry.<String, Double>comparingByValue(Comparator.reverseOrder()))
+                        .limit(TOP_EVENT_TYPES)
+                        .map(e -> e.getKey() + " " + formatRate(e.getValue()) + "/s")
+                        .toList();
+        return top.isEmpty() ? "none" : String.join(", ", top);
+    }
+
+    private String formatCacheHitRates() {
+        var rates = getCacheHitRates();
+        if (rates.isEmpty()) {
+            return "none";
+        }
+        List<String> parts = new ArrayList<>();
+        rates.forEach(
+                (type, rate) ->
+                        parts.add(type + " " + String.format(Locale.ROOT, "%.1f%%", rate * 100)));
+        return String.join(", ", parts);
+    }
+
+    private static String formatRate(double rate) {
+        return String.format(Locale.ROOT, "%.1f", rate);
+    }
+
+    private static String formatNanos(long nanos) {
+        return formatDuration(Duration.ofNanos(nanos));
+    }
+}
@@ -0,0 +1,74 @@
+package me.bechberger.jfr.cli.agent;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Periodic JFR event with the {@link AgentTelemetry} of every running agent recording, disabled
+ * unless a recording is started with {@code --telemetry-events}
+ */
+@Name(AgentTelemetryEvent.NAME)
+@Label("Condensed Agent Telemetry")
+@Description("Cost of a running condensed JFR agent recording")
+@Category("Condensed JFR")
+@Enabled(false)
+@Period("10 s")
+@StackTrace(false)
+class AgentTelemetryEvent extends Event {
+
+    static final String NAME = "cjfr.AgentTelemetry";
+
+    @Label("Recording")
+    String recording;
+
+    @Label("Events")
+    long events;
+
+    @Label("Events per Second")
+    double eventsPerSecond;
+
+    @Label("Process Event P50")
+    @Timespan
+    long processEventP50;
+
+    @Label("Process Event P99")
+    @Timespan
+    long processEventP99;
+
+    @Label("Process Event Max")
+    @Timespan
+    long processEventMax;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+
+    @Label("Uncompressed Bytes")
+    @DataAmount
+    long uncompressedBytes;
+
+    @Label("Compression Ratio")
+    double compressionRatio;
+
+    @Label("Cache Hit Rate")
+    @Description("Hit ratio of all reference caches of the current file")
+    double cacheHitRate;
+
+    @Label("Combiner States")
+    long combinerStates;
+
+    @Label("Rotations")
+    long rotations;
+
+    @Label("Rotation Max")
+    @Timespan
+    long rotationMax;
+}
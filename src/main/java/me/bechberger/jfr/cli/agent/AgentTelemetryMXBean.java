@@ -0,0 +1,44 @@
+package me.bechberger.jfr.cli.agent;
+
+import java.util.Map;
+
+/**
+ * Cost of a running agent recording, registered as platform MBean {@code
+ * me.bechberger.jfr:type=CondensedRecording,name=<recording name>}
+ */
+public interface AgentTelemetryMXBean {
+
+    long getEventCount();
+
+    double getEventsPerSecond();
+
+    /** Events per second per event type */
+    Map<String, Double> getEventsPerSecondPerType();
+
+    /** Median time to write a single event, without waiting for the writer */
+    long getProcessEventP50Nanos();
+
+    long getProcessEventP99Nanos();
+
+    long getProcessEventMaxNanos();
+
+    /** Compressed bytes written to all files */
+    long getBytesWritten();
+
+    long getUncompressedBytes();
+
+    /** Uncompressed bytes per written byte */
+    double getCompressionRatio();
+
+    /** Hit ratio of the reference caches of the current file, per cached type */
+    Map<String, Double> getCacheHitRates();
+
+    /** Number of combined states that are kept in memory, per event type */
+    Map<String, Integer> getCombinerStates();
+
+    /** Number of file rotations (or sealed ring buffer segments) */
+    long getRotationCount();
+
+    /** Longest time that events were blocked by a rotation */
+    long getRotationMaxNanos();
+}
@@ -0,0 +1,17 @@
+package me.bechberger.jfr.cli.agent;
+
+/** How the agent forces its files to disk, so that a host crash loses at most a bounded tail */
+public enum Durability {
+    /** Only push data to the OS, a host crash loses everything since the last write-back */
+    NONE,
+    /**
+     * Flush the compressor and force the file to disk every {@code --sync-interval}, a crash loses
+     * at most the data of one interval
+     */
+    PERIODIC,
+    /**
+     * Force the file to disk whenever the compressor writes a block, without flushing it
+     * prematurely, so the compression ratio stays the same
+     */
+    ON_BLOCK
+}
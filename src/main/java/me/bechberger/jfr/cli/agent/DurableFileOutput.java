@@ -0,0 +1,179 @@
+package me.bechberger.jfr.cli.agent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Output stream of an agent file that forces its content to disk according to a {@link Durability}
+ *
+ * <p>Forcing happens on a background thread with group commit: all sync requests that arrive while
+ * the file is forced are served by a single subsequent force. So the event thread never waits for
+ * the disk, and the number of forces is bounded by the latency of the disk, not by the number of
+ * written blocks. Closing the stream forces the file a last time.
+ */
+final class DurableFileOutput extends OutputStream {
+
+    private final Path path;
+    private final FileChannel channel;
+    private final OutputStream out;
+    private final Durability durability;
+    private final long intervalNanos;
+
+    /**
+     * Pushes the buffered data of the writer to this stream, used with {@link Durability#PERIODIC}
+     */
+    private final Runnable flusher;
+
+    private final Object syncLock = new Object();
+
+    /** Guarded by {@link #syncLock} */
+    private long requestedSyncs = 0;
+
+    /** Guarded by {@link #syncLock} */
+    private long completedSyncs = 0;
+
+    /** Guarded by {@link #syncLock} */
+    private boolean closed = false;
+
+    /** Data was written since the last force */
+    private volatile boolean dirty = false;
+
+    private final AtomicLong syncs = new AtomicLong();
+
+    /**
+     * @param flusher flushes the writer of the file, called on the sync thread
+     */
+    DurableFileOutput(
+            Path path,
+            Durability durability,
+            Duration interval,
+            Runnable flusher,
+            OpenOption... options)
+            throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, options);
+        this.out = Channels.newOutputStream(channel);
+        this.durability = durability;
+        this.intervalNanos = interval.toNanos();
+        this.flusher = flusher;
+        if (durability != Durability.NONE) {
+            Thread syncer = new Thread(this::runSyncer, "cjfr-sync[" + path.getFileName() + "]");
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        written();
+    }
+
+    @Override
+    public void write(byte @NotNull [] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written();
+    }
+
+    private void written() {
+        dirty = true;
+        if (durability == Durability.ON_BLOCK) {
+            requestSync();
+        }
+    }
+
+    /** Request a force of the file, returns immediately, concurrent requests are batched */
+    void requestSync() {
+        synchronized (syncLock) {
+            requestedSyncs++;
+            syncLock.notifyAll();
+        }
+    }
+
+    /** Number of times the file was forced to disk */
+    long syncCount() {
+        return syncs.get();
+    }
+
+    private void runSyncer() {
+        while (true) {
+            long target;
+            boolean periodic = false;
+            synchronized (syncLock) {
+                try {
+                    long deadline = System.nanoTime() + intervalNanos;
+                    while (!closed && requestedSyncs == completedSyncs) {
+                        if (durability != Durability.PERIODIC) {
+                            syncLock.wait();
+                            continue;
+                        }
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            periodic = true;
+                            break;
+                        }
+                        syncLock.wait(Math.max(1, remaining / 1_000_000));
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+                target = requestedSyncs;
+            }
+            try {
+                if (periodic) {
+                    flusher.run();
+                }
+                if (dirty) {
+                    dirty = false;
+                    channel.force(false);
+                    syncs.incrementAndGet();
+                }
+            } catch (ClosedChannelException e) {
+                return; // closed while forcing, close() forces itself
+            } catch (IOException | RuntimeException e) {
+                AgentIO.getAgentInstance()
+                        .writeSevereError("Could not sync " + path + " to disk: " + e.getMessage());
+            }
+            synchronized (syncLock) {
+                completedSyncs = Math.max(completedSyncs, target);
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /** Stop the sync thread, force the file if durability is enabled and close it */
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            syncLock.notifyAll();
+        }
+        try {
+            if (durability != Durability.NONE && channel.isOpen()) {
+                channel.force(false);
+                syncs.incrementAndGet();
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
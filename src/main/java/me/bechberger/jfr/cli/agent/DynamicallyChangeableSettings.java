@@ -1,8 +1,12 @@
 package me.bechberger.jfr.cli.agent;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import me.bechberger.condensed.Compression;
+import me.bechberger.condensed.CompressionDictionary;
 import me.bechberger.femtocli.annotations.Option;
 import me.bechberger.jfr.cli.CLIUtils.ByteSizeConverter;
 import me.bechberger.jfr.cli.CLIUtils.DurationConverter;
@@ -44,6 +48,33 @@ public class DynamicallyChangeableSettings {
             defaultValue = "10")
     public volatile int maxFiles;
 
+    @Option(
+            names = "--max-total-size",
+            description =
+                    "The maximum size of all rotated files together, the oldest files are deleted"
+                            + " first, 0 for unlimited",
+            defaultValue = "0B",
+            converter = ByteSizeConverter.class)
+    public volatile long maxTotalSize;
+
+    @Option(
+            names = "--max-age",
+            description =
+                    "Delete rotated files that were last modified longer ago than this, 0 for"
+                            + " unlimited",
+            defaultValue = "0s",
+            converter = DurationConverter.class)
+    public volatile Duration maxAge = Duration.ZERO;
+
+    @Option(
+            names = "--min-free-space",
+            description =
+                    "Delete the oldest rotated files while the file system of the files has less"
+                            + " usable space, 0 to disable",
+            defaultValue = "0B",
+            converter = ByteSizeConverter.class)
+    public volatile long minFreeSpace;
+
     @Option(
             names = "--new-names",
             description = "When rotating files, use new names instead of reusing old ones",
@@ -57,6 +88,72 @@ public class DynamicallyChangeableSettings {
             converter = DurationConverter.class)
     public volatile Duration duration;
 
+    @Option(
+            names = "--compression",
+            description =
+                    "Compression of the written files, possible values: ${COMPLETION-CANDIDATES}",
+            defaultValue = "LZ4FRAMED")
+    public volatile Compression compression = Compression.DEFAULT;
+
+    @Option(
+            names = "--dictionary",
+            description =
+                    "Compression dictionary created with 'cjfr train-dictionary', requires"
+                            + " --compression DEFLATE_DICTIONARY or ZSTD",
+            defaultValue = "")
+    public volatile String dictionary = "";
+
+    @Option(
+            names = "--shared-dictionary",
+            description =
+                    "When rotating files, store the event types and references of the first"
+                            + " file's events as <id>.cjfrdefs next to the files, which the later"
+                            + " files refer to instead of repeating them; with --compression"
+                            + " DEFLATE_DICTIONARY or ZSTD also compress the later files with a"
+                            + " dictionary derived from the first file, stored as <id>.cjfrdict",
+            defaultValue = "false")
+    public volatile boolean sharedDictionary = false;
+
+    @Option(
+            names = "--compression-cpu-budget",
+            description =
+                    "Adapt the compression level to spend at most this percentage of the time"
+                            + " compressing, 0 keeps the level fixed",
+            defaultValue = "0")
+    public volatile int compressionCpuBudget = 0;
+
+    @Option(
+            names = "--event-budget",
+            description =
+                    "Maximum events per second, above it the events of the noisiest types are"
+                            + " dropped first and counted in the footer, 0 for unlimited",
+            defaultValue = "0")
+    public volatile long eventBudget = 0;
+
+    @Option(
+            names = "--event-cpu-budget",
+            description =
+                    "Maximum percentage of the time spent processing events, above it the events"
+                            + " of the noisiest types are dropped first, 0 for unlimited",
+            defaultValue = "0")
+    public volatile int eventCpuBudget = 0;
+
+    @Option(
+            names = "--durability",
+            description =
+                    "When to force the files to disk: NONE (only when the OS writes them back),"
+                            + " PERIODIC (every --sync-interval) or ON_BLOCK (after every"
+                            + " compressed block), applies to newly opened files",
+            defaultValue = "NONE")
+    public volatile Durability durability = Durability.NONE;
+
+    @Option(
+            names = "--sync-interval",
+            description = "Interval of the PERIODIC durability",
+            defaultValue = "1s",
+            converter = DurationConverter.class)
+    public volatile Duration syncInterval = Duration.ofSeconds(1);
+
     /** Validate the current settings, throw {@link ValidationException} if invalid */
     public void validate(boolean rotating) {
         List<String> errors = new ArrayList<>();
@@ -86,7 +183,24 @@ public class DynamicallyChangeableSettings {
                     "Rotating mode requires at least one rotation trigger:"
                             + " set --max-size or --max-duration to a non-zero value");
         }
+        if (maxTotalSize < 0) {
+            errors.add("Max total size must be at least 0");
+        }
+        if (maxTotalSize > 0 && maxTotalSize < 1024) {
+            errors.add("Max total size must be at least 1kB or 0 (no limit)");
+        }
+        if (maxAge.isNegative()) {
+            errors.add("Max age must be at least 0s");
+        }
+        if (minFreeSpace < 0) {
+            errors.add("Min free space must be at least 0");
+        }
         if (!rotating) {
+            if (maxTotalSize != 0 || !maxAge.isZero() || minFreeSpace != 0) {
+                errors.add(
+                        "--max-total-size, --max-age and --min-free-space require --rotating; add"
+                                + " --rotating or omit them");
+            }
             if (maxDuration.toMillis() != 0) {
                 errors.add(
                         "--max-duration requires --rotating; add --rotating or omit"
@@ -96,6 +210,40 @@ public class DynamicallyChangeableSettings {
                 errors.add("--max-size requires --rotating; add --rotating or omit --max-size");
             }
         }
+        if (!dictionary.isEmpty()) {
+            if (!compression.usesDictionary()) {
+                errors.add(
+                        "--dictionary requires a compression that uses dictionaries, like"
+                                + " --compression "
+                                + Compression.DEFLATE_DICTIONARY);
+            }
+            if (!Files.isRegularFile(Path.of(dictionary))
+                    || !dictionary.endsWith(CompressionDictionary.FILE_EXTENSION)) {
+                errors.add("Dictionary file does not exist: " + dictionary);
+            }
+        }
+        if (sharedDictionary) {
+            if (!rotating) {
+                errors.add(
+                        "--shared-dictionary requires --rotating; add --rotating or omit"
+                                + " --shared-dictionary");
+            }
+            if (!dictionary.isEmpty()) {
+                errors.add("--shared-dictionary and --dictionary are mutually exclusive");
+            }
+        }
+        if (compressionCpuBudget < 0 || compressionCpuBudget > 100) {
+            errors.add("Compression CPU budget must be between 0 and 100");
+        }
+        if (eventBudget < 0) {
+            errors.add("Event budget must be at least 0");
+        }
+        if (eventCpuBudget < 0 || eventCpuBudget > 100) {
+            errors.add("Event CPU budget must be between 0 and 100");
+        }
+        if (syncInterval.toMillis() < 1) {
+            errors.add("Sync interval must be at least 1ms");
+        }
         if (!errors.isEmpty()) {
             throw new ValidationException(errors);
         }
@@ -0,0 +1,177 @@
+package me.bechberger.jfr.cli.agent;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Adaptive per event type throttle that keeps a recording within an events per second and a CPU
+ * budget
+ *
+ * <p>At the end of every window of {@link #WINDOW_NANOS}, the throttle compares the events that
+ * arrived in the window with the budget. The CPU budget (share of the wall-clock time spent
+ * processing events) is converted into events via the average processing time per event. If more
+ * events arrived than the budget allows, it computes a cap so that {@code sum(min(count, cap))}
+ * equals the budget, and keeps only {@code cap / count} of the events of every type above the cap
+ * in the next window. So the noisiest types (like {@code jdk.ObjectAllocationSample} in an
+ * allocation storm) are thinned first and the rare types are kept completely. The kept events are
+ * spread evenly over the window.
+ *
+ * <p>{@link #admit} and {@link #recordProcessing} are only called on the event thread, the dropped
+ * event counts can be read from any thread.
+ */
+final class EventThrottle {
+
+    static final long WINDOW_NANOS = 1_000_000_000L;
+
+    private static final class TypeState {
+        /** Events that arrived in the current window */
+        long windowCount = 0;
+
+        /** Share of the events that is kept in the current window */
+        double keepRatio = 1;
+
+        /** Accumulated keep ratio, an event is kept whenever it reaches 1 */
+        double credit = 0;
+
+        final AtomicLong dropped = new AtomicLong();
+    }
+
+    private final LongSupplier eventsPerSecondBudget;
+    private final IntSupplier cpuBudgetPercent;
+    private final Map<String, TypeState> types = new ConcurrentHashMap<>();
+    private final AtomicLong droppedTotal = new AtomicLong();
+
+    private volatile boolean throttling = false;
+    private long windowStartNanos = -1;
+    private long windowProcessedEvents = 0;
+    private long windowProcessingNanos = 0;
+
+    /** Average processing time per event, measured in the last window with processed events */
+    private double processingNanosPerEvent = 0;
+
+    /**
+     * @param eventsPerSecondBudget maximum events per second, 0 for unlimited
+     * @param cpuBudgetPercent maximum percentage of the time spent processing events, 0 for
+     *     unlimited
+     */
+    EventThrottle(LongSupplier eventsPerSecondBudget, IntSupplier cpuBudgetPercent) {
+        this.eventsPerSecondBudget = eventsPerSecondBudget;
+        this.cpuBudgetPercent = cpuBudgetPercent;
+    }
+
+    /**
+     * Whether the event should be processed, counts it as dropped otherwise
+     *
+     * @param nowNanos current {@link System#nanoTime()}
+     */
+    boolean admit(String eventType, long nowNanos) {
+        if (!throttling
+                && eventsPerSecondBudget.getAsLong() == 0
+                && cpuBudgetPercent.getAsInt() == 0) {
+            windowStartNanos = -1; // no budget, start a new window when one is set
+            return true;
+        }
+        if (windowStartNanos == -1) {
+            windowStartNanos = nowNanos;
+        } else if (nowNanos - windowStartNanos >= WINDOW_NANOS) {
+            endWindow(nowNanos);
+        }
+        TypeState state = types.computeIfAbsent(eventType, k -> new TypeState());
+        state.windowCount++;
+        if (state.keepRatio >= 1) {
+            return true;
+        }
+        state.credit += state.keepRatio;
+        if (state.credit >= 1) {
+            state.credit -= 1;
+            return true;
+        }
+        state.dropped.incrementAndGet();
+        droppedTotal.incrementAndGet();
+        return false;
+    }
+
+    /** Record the processing time of admitted events */
+    void recordProcessing(int events, long nanos) {
+        windowProcessedEvents += events;
+        windowProcessingNanos += nanos;
+    }
+
+    private void endWindow(long nowNanos) {
+        long elapsed = nowNanos - windowStartNanos;
+        if (windowProcessedEvents > 0) {
+            processingNanosPerEvent = (double) windowProcessingNanos / windowProcessedEvents;
+        }
+        double budget = budget(elapsed);
+        long[] counts = types.values().stream().mapToLong(s -> s.windowCount).toArray();
+        long arrived = Arrays.stream(counts).sum();
+        double cap = arrived > budget ? cap(counts, budget) : Double.POSITIVE_INFINITY;
+        throttling = arrived > budget;
+        for (TypeState state : types.values()) {
+            state.keepRatio = state.windowCount <= cap ? 1 : cap / state.windowCount;
+            state.windowCount = 0;
+        }
+        windowStartNanos = nowNanos;
+        windowProcessedEvents = 0;
+        windowProcessingNanos = 0;
+    }
+
+    /** Events that a window of the passed length may contain */
+    private double budget(long windowNanos) {
+        double budget = Double.POSITIVE_INFINITY;
+        long eventsPerSecond = eventsPerSecondBudget.getAsLong();
+        if (eventsPerSecond > 0) {
+            budget = eventsPerSecond * (windowNanos / 1e9);
+        }
+        int cpuPercent = cpuBudgetPercent.getAsInt();
+        if (cpuPercent > 0 && processingNanosPerEvent > 0) {
+            budget = Math.min(budget, windowNanos * cpuPercent / 100.0 / processingNanosPerEvent);
+        }
+        return budget;
+    }
+
+    /**
+     * Largest cap with {@code sum(min(count, cap)) <= budget}, the noisiest types are capped, the
+     * others are kept completely
+     */
+    static double cap(long[] counts, double budget) {
+        long[] sorted = counts.clone();
+        Arrays.sort(sorted);
+        double remaining = budget;
+        for (int i = 0; i < sorted.length; i++) {
+            int left = sorted.length - i;
+            if (sorted[i] * (double) left > remaining) {
+                return remaining / left;
+            }
+            remaining -= sorted[i];
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /** Whether events were dropped in the current window */
+    boolean isThrottling() {
+        return throttling;
+    }
+
+    long droppedTotal() {
+        return droppedTotal.get();
+    }
+
+    /** Dropped events per type, only types with dropped events */
+    Map<String, Long> droppedEvents() {
+        Map<String, Long> dropped = new TreeMap<>();
+        types.forEach(
+                (type, state) -> {
+                    long count = state.dropped.get();
+                    if (count > 0) {
+                        dropped.put(type, count);
+                    }
+                });
+        return dropped;
+    }
+}
@@ -6,6 +6,7 @@ import static me.bechberger.util.TimeUtil.formatInstant;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.text.ParseException;
 import java.time.Duration;
@@ -19,10 +20,16 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import jdk.jfr.Recording;
 import jdk.jfr.consumer.RecordedEvent;
-import jdk.jfr.consumer.RecordingStream;
+import me.bechberger.condensed.AdaptiveCompression;
+import me.bechberger.condensed.CompressionDictionary;
+import me.bechberger.condensed.Message.StartMessage;
+import me.bechberger.jfr.BasicJFRWriter;
 import me.bechberger.jfr.Configuration;
+import me.bechberger.jfr.cli.Constants;
 import me.bechberger.jfr.cli.agent.AgentIO.LogLevel;
+import org.jetbrains.annotations.Nullable;
 
 public abstract class RecordingThread implements Runnable {
 
@@ -32,7 +39,22 @@ public abstract class RecordingThread implements Runnable {
     private final String jfrConfig;
     private final String miscJfrConfig;
     private final Runnable removeFromParent;
-    private final RecordingStream recordingStream;
+
+    /** Enables the events with the JFR settings of this recording */
+    private final Recording recording;
+
+    /** JFR settings of this recording, selecting its events of the shared stream */
+    private final Map<String, String> jfrSettings;
+
+    /** Guards {@link #subscription} and {@link #recordingClosed} */
+    private final Object subscriptionLock = new Object();
+
+    private SharedRecordingStream.Subscription subscription = null;
+    private boolean recordingClosed = false;
+
+    /** Counts down when the recording is closed, run() waits for it */
+    private final CountDownLatch recordingClosedLatch = new CountDownLatch(1);
+
     final AgentIO agentIO = AgentIO.getAgentInstance();
     private final DynamicallyChangeableSettings dynSettings;
     private final boolean rotating;
@@ -41,6 +63,17 @@ public abstract class RecordingThread implements Runnable {
     private final CountDownLatch runExited = new CountDownLatch(1);
 
     private final AtomicInteger eventErrorCount = new AtomicInteger(0);
+
+    /** Cost of this recording, shown by status and registered as MBean by the start command */
+    private final AgentTelemetry telemetry = new AgentTelemetry(this::writerStatistics);
+
+    /** Drops events of the noisiest types if the recording exceeds its event budget */
+    private final EventThrottle throttle;
+
+    /** Last loaded dictionary and its path, to avoid re-reading it for every rotated file */
+    private String loadedDictionaryPath = null;
+
+    private CompressionDictionary loadedDictionary = null;
     final Instant start = Instant.now();
     final long startNanos = System.nanoTime();
 
@@ -57,6 +90,8 @@ public abstract class RecordingThread implements Runnable {
         this.configuration = configuration;
         this.jfrConfig = jfrConfig;
         this.dynSettings = dynSettings;
+        this.throttle =
+                new EventThrottle(() -> dynSettings.eventBudget, () -> dynSettings.eventCpuBudget);
         this.rotating = rotating;
         dynSettings.validate(rotating);
         var parsedJfrConfig =
@@ -65,10 +100,11 @@ public abstract class RecordingThread implements Runnable {
                         : loadJfrConfiguration(jfrConfig);
         agentIO.writeInfo("Using config " + parsedJfrConfig.getName());
         this.miscJfrConfig = miscJfrConfig;
-        var parsedMiscJfrConfig = parseJfrSettings(miscJfrConfig);
-        parsedJfrConfig.getSettings().putAll(parsedMiscJfrConfig);
-        RecordingStream rs = new RecordingStream(parsedJfrConfig);
-        this.recordingStream = rs;
+        // getSettings() returns a copy, so the misc settings are added to our own map
+        this.jfrSettings = new HashMap<>(parsedJfrConfig.getSettings());
+        jfrSettings.putAll(parseJfrSettings(miscJfrConfig));
+        this.recording = new Recording(jfrSettings);
+        recording.setName("cjfr");
         this.removeFromParent = removeFromParent;
     }
 
@@ -160,22 +196,38 @@ public abstract class RecordingThread implements Runnable {
     }
 
     /**
-     * Close the underlying RecordingStream; call on subclass constructor failure to release native
-     * JFR resources that were allocated by the super-constructor.
+     * Unsubscribe from the shared stream and close the JFR recording; call on subclass constructor
+     * failure to release native JFR resources that were allocated by the super-constructor.
      */
     protected final void closeRecordingStream() {
-        try {
-            recordingStream.close();
-        } catch (Throwable ignored) {
+        synchronized (subscriptionLock) {
+            recordingClosed = true;
+            try {
+                if (subscription != null) {
+                    subscription.close();
+                }
+            } finally {
+                recording.close();
+                recordingClosedLatch.countDown();
+            }
         }
     }
 
     @Override
     public void run() {
         try {
-            recordingStream.onEvent(this::safeOnEvent);
+            synchronized (subscriptionLock) {
+                if (!recordingClosed) {
+                    recording.start();
+                    subscription =
+                            SharedRecordingStream.subscribe(
+                                    jfrSettings,
+                                    this::safeOnEvents,
+                                    queuesBatches() ? this::safeOnDroppedEvents : null);
+                }
+            }
             agentIO.writeInfo("start");
-            recordingStream.start();
+            recordingClosedLatch.await();
             agentIO.writeInfo("finished");
         } catch (Throwable e) {
             if (shuttingDown) {
@@ -188,10 +240,35 @@ public abstract class RecordingThread implements Runnable {
         agentIO.writeInfo("finished run");
     }
 
-    /** Wraps {@link #onEvent} to prevent exceptions from propagating into JFR infrastructure */
-    private void safeOnEvent(RecordedEvent event) {
+    /**
+     * Wraps {@link #onEvents} to prevent exceptions from propagating into JFR infrastructure,
+     * passes the events that the throttle admits
+     */
+    private void safeOnEvents(List<RecordedEvent> events) {
+        long batchStartNanos = System.nanoTime();
         try {
-            onEvent(event);
+            List<RecordedEvent> admitted = new ArrayList<>(events.size());
+            Map<String, Long> dropped = null;
+            for (RecordedEvent event : events) {
+                String eventType = event.getEventType().getName();
+                if (throttle.admit(eventType, batchStartNanos)) {
+                    admitted.add(event);
+                } else {
+                    if (dropped == null) {
+                        dropped = new HashMap<>();
+                    }
+                    dropped.merge(eventType, 1L, Long::sum);
+                }
+            }
+            if (dropped != null) {
+                onDroppedEvents(dropped);
+            }
+            if (admitted.isEmpty()) {
+                return;
+            }
+            onEvents(admitted);
+            // the whole batch, including the locking and rotation checks, counts for the budget
+            throttle.recordProcessing(admitted.size(), System.nanoTime() - batchStartNanos);
         } catch (Throwable e) {
             int count = eventErrorCount.incrementAndGet();
             if (count <= MAX_EVENT_ERRORS) {
@@ -214,7 +291,58 @@ public abstract class RecordingThread implements Runnable {
         }
     }
 
-    abstract void onEvent(RecordedEvent event);
+    /**
+     * Count the events that didn't fit into the queue of the subscription, prevents exceptions from
+     * propagating into the worker of the subscription
+     */
+    private void safeOnDroppedEvents(Map<String, Long> droppedEvents) {
+        try {
+            onDroppedEvents(droppedEvents);
+        } catch (Throwable e) {
+            agentIO.writeSevereError("Error counting dropped events: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Does the shared stream queue the batches for this recording and pass them on a worker thread
+     * of the recording? Recordings that write files block during rotations and durability flushes,
+     * and must not block the dispatch thread that all recordings share
+     */
+    boolean queuesBatches() {
+        return true;
+    }
+
+    /**
+     * Process a batch of events, the events that arrived between two flushes of the JFR stream,
+     * sorted by their end time
+     *
+     * <p>Implementations write every event via {@link #processEvent(BasicJFRWriter,
+     * RecordedEvent)}.
+     */
+    abstract void onEvents(List<RecordedEvent> events);
+
+    /** Write the event and record the time it took in the telemetry */
+    final void processEvent(BasicJFRWriter writer, RecordedEvent event) {
+        long eventStartNanos = System.nanoTime();
+        writer.processEvent(event);
+        telemetry.recordEvent(event.getEventType().getName(), System.nanoTime() - eventStartNanos);
+    }
+
+    /** Count the events that the throttle dropped, per type, in the footer of the current file */
+    void onDroppedEvents(Map<String, Long> droppedEvents) {}
+
+    public AgentTelemetry getTelemetry() {
+        return telemetry;
+    }
+
+    /**
+     * Statistics of the writers of this recording for the telemetry, {@code null} if they are
+     * currently not available (e.g. because the writer is busy or closed)
+     */
+    @Nullable
+    AgentTelemetry.WriterStatistics writerStatistics() {
+        return null;
+    }
 
     private final AtomicBoolean stopped = new AtomicBoolean(false);
 
@@ -222,13 +350,14 @@ public abstract class RecordingThread implements Runnable {
         if (!stopped.compareAndSet(false, true)) {
             return;
         }
+        telemetry.unregister();
         try {
             Runtime.getRuntime().removeShutdownHook(shutdownHook);
         } catch (IllegalStateException ignored) {
             // JVM is already shutting down — hook cannot be removed
         }
         try {
-            recordingStream.close();
+            closeRecordingStream();
         } catch (Throwable e) {
             agentIO.writeSevereError("Error closing recording stream: " + e.getMessage());
         }
@@ -269,15 +398,121 @@ public abstract class RecordingThread implements Runnable {
         status.add(Map.entry("max-size", formatMemory(getMaxSize())));
         status.add(Map.entry("max-files", Integer.toString(getMaxFiles())));
         status.add(Map.entry("new-names", Boolean.toString(useNewNames())));
+        status.add(Map.entry("compression", dynSettings.compression.name()));
+        if (dynSettings.compressionCpuBudget > 0) {
+            status.add(Map.entry("compression-cpu-budget", dynSettings.compressionCpuBudget + "%"));
+        }
+        if (dynSettings.eventBudget > 0 || dynSettings.eventCpuBudget > 0) {
+            status.add(Map.entry("event-budget", formatEventBudget()));
+            status.add(Map.entry("throttling", Boolean.toString(throttle.isThrottling())));
+            status.add(Map.entry("dropped-events", formatDroppedEvents()));
+        }
+        if (dynSettings.durability != Durability.NONE) {
+            status.add(
+                    Map.entry(
+                            "durability",
+                            dynSettings.durability == Durability.PERIODIC
+                                    ? "PERIODIC (" + formatDuration(dynSettings.syncInterval) + ")"
+                                    : dynSettings.durability.name()));
+        }
         status.add(Map.entry("duration", formatDuration(dynSettings.duration)));
         status.add(Map.entry("running", Boolean.toString(!stopped.get())));
         status.add(Map.entry("event-errors", Integer.toString(eventErrorCount.get())));
+        synchronized (subscriptionLock) {
+            if (subscription != null && subscription.isQueued()) {
+                status.add(
+                        Map.entry("queued-batches", String.valueOf(subscription.queuedBatches())));
+                status.add(
+                        Map.entry(
+                                "dropped-queue-full",
+                                String.valueOf(subscription.queueOverflow())));
+            }
+        }
         status.addAll(getMiscStatus());
+        status.addAll(telemetry.getStatus());
         return status;
     }
 
     abstract List<Entry<String, String>> getMiscStatus();
 
+    private String formatEventBudget() {
+        List<String> parts = new ArrayList<>();
+        if (dynSettings.eventBudget > 0) {
+            parts.add(dynSettings.eventBudget + " events/s");
+        }
+        if (dynSettings.eventCpuBudget > 0) {
+            parts.add(dynSettings.eventCpuBudget + "% cpu");
+        }
+        return String.join(", ", parts);
+    }
+
+    /** Total dropped events and the types with the most dropped events */
+    private String formatDroppedEvents() {
+        var top =
+                throttle.droppedEvents().entrySet().stream()
+                        .sorted(Entry.<String, Long>comparingByValue().reversed())
+                        .limit(5)
+                        .map(e -> e.getKey() + " " + e.getValue())
+                        .toList();
+        return throttle.droppedTotal() + (top.isEmpty() ? "" : " (" + String.join(", ", top) + ")");
+    }
+
+    /** Events dropped by the throttle per type */
+    public Map<String, Long> getDroppedEvents() {
+        return throttle.droppedEvents();
+    }
+
+    /** Adaptive compression settings for a new CJFR file, null for a fixed level */
+    @Nullable
+    AdaptiveCompression createAdaptiveCompression() {
+        int budget = dynSettings.compressionCpuBudget;
+        return budget > 0 ? AdaptiveCompression.of(budget / 100.0) : null;
+    }
+
+    /** Start message of a new CJFR file, using the current compression settings */
+    StartMessage createStartMessage(Configuration configuration) throws IOException {
+        var message =
+                new StartMessage(
+                        Constants.FORMAT_VERSION,
+                        "condensed jfr agent",
+                        Constants.VERSION,
+                        configuration.name(),
+                        dynSettings.compression);
+        String dictionaryPath = dynSettings.dictionary;
+        if (dictionaryPath.isEmpty() || !dynSettings.compression.usesDictionary()) {
+            return message;
+        }
+        synchronized (this) {
+            if (!dictionaryPath.equals(loadedDictionaryPath)) {
+                loadedDictionary = CompressionDictionary.read(Path.of(dictionaryPath));
+                loadedDictionaryPath = dictionaryPath;
+            }
+            return message.withDictionary(loadedDictionary);
+        }
+    }
+
+    /** Share the types and references of the first file's events between the rotated files? */
+    boolean useSharedDefinitions() {
+        return dynSettings.sharedDictionary;
+    }
+
+    /** Share a compression dictionary derived from the first file between the rotated files? */
+    boolean useSharedDictionary() {
+        return dynSettings.sharedDictionary && dynSettings.compression.usesDictionary();
+    }
+
+    /**
+     * Open a new file with the current durability settings
+     *
+     * @param flusher pushes the buffered data of the file's writer to the file, used by the
+     *     periodic durability
+     */
+    DurableFileOutput openOutput(Path path, Runnable flusher, OpenOption... options)
+            throws IOException {
+        return new DurableFileOutput(
+                path, dynSettings.durability, dynSettings.syncInterval, flusher, options);
+    }
+
     /** Max size of a CJFR file, might change dynamically during the agents' execution */
     long getMaxSize() {
         return dynSettings.maxSize;
@@ -295,6 +530,21 @@ public abstract class RecordingThread implements Runnable {
         return dynSettings.duration;
     }
 
+    /** Max size of all rotated files together, 0 for no limit */
+    long getMaxTotalSize() {
+        return dynSettings.maxTotalSize;
+    }
+
+    /** Max age of rotated files, zero for no limit */
+    Duration getMaxAge() {
+        return dynSettings.maxAge;
+    }
+
+    /** Usable space to keep free on the file system of the rotated files, 0 to disable */
+    long getMinFreeSpace() {
+        return dynSettings.minFreeSpace;
+    }
+
     /**
      * Max number of CJFR files stored on the device, might change dynamically during the agents'
      * execution and is only valid when rotating
@@ -306,6 +556,20 @@ public abstract class RecordingThread implements Runnable {
     /** Close the current jfrWriter, only called once */
     public abstract void close();
 
+    /** Can the recorded data be written on demand via {@link #dump()}? */
+    public boolean supportsDump() {
+        return false;
+    }
+
+    /**
+     * Write the data recorded so far to files, only call if {@link #supportsDump()}
+     *
+     * @return the written files
+     */
+    public List<Path> dump() throws IOException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot be dumped");
+    }
+
     /** Must be at least 1kB or 0 (no max size) */
     public void setMaxSize(long maxSize) {
         long old = dynSettings.maxSize;
@@ -369,12 +633,76 @@ public abstract class RecordingThread implements Runnable {
             throw e;
         }
         if (rotating) {
-            onMaxFilesChanged();
+            onRetentionChanged();
+        }
+    }
+
+    /** Must be at least 1kB or 0 (no limit), only valid when rotating */
+    public void setMaxTotalSize(long maxTotalSize) {
+        long old = dynSettings.maxTotalSize;
+        dynSettings.maxTotalSize = maxTotalSize;
+        try {
+            dynSettings.validate(rotating);
+        } catch (DynamicallyChangeableSettings.ValidationException e) {
+            dynSettings.maxTotalSize = old;
+            throw e;
+        }
+        onRetentionChanged();
+    }
+
+    /** Zero means no limit, only valid when rotating */
+    public void setMaxAge(Duration maxAge) {
+        var old = dynSettings.maxAge;
+        dynSettings.maxAge = maxAge;
+        try {
+            dynSettings.validate(rotating);
+        } catch (DynamicallyChangeableSettings.ValidationException e) {
+            dynSettings.maxAge = old;
+            throw e;
         }
+        onRetentionChanged();
     }
 
-    /** Called after maxFiles is successfully updated in rotating mode. Subclasses may evict. */
-    protected void onMaxFilesChanged() {}
+    public void setEventBudget(long eventsPerSecond) {
+        long old = dynSettings.eventBudget;
+        dynSettings.eventBudget = eventsPerSecond;
+        try {
+            dynSettings.validate(rotating);
+        } catch (DynamicallyChangeableSettings.ValidationException e) {
+            dynSettings.eventBudget = old;
+            throw e;
+        }
+    }
+
+    public void setEventCpuBudget(int percent) {
+        int old = dynSettings.eventCpuBudget;
+        dynSettings.eventCpuBudget = percent;
+        try {
+            dynSettings.validate(rotating);
+        } catch (DynamicallyChangeableSettings.ValidationException e) {
+            dynSettings.eventCpuBudget = old;
+            throw e;
+        }
+    }
+
+    /** 0 disables the check, only valid when rotating */
+    public void setMinFreeSpace(long minFreeSpace) {
+        long old = dynSettings.minFreeSpace;
+        dynSettings.minFreeSpace = minFreeSpace;
+        try {
+            dynSettings.validate(rotating);
+        } catch (DynamicallyChangeableSettings.ValidationException e) {
+            dynSettings.minFreeSpace = old;
+            throw e;
+        }
+        onRetentionChanged();
+    }
+
+    /**
+     * Called after maxFiles or a retention limit is successfully updated in rotating mode.
+     * Subclasses may evict.
+     */
+    protected void onRetentionChanged() {}
 
     public boolean useNewNames() {
         return dynSettings.newNames;
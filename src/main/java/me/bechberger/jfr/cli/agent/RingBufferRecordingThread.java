@@ -0,0 +1,540 @@
+package me.bechberger.jfr.cli.agent;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static me.bechberger.util.MemoryUtil.formatMemory;
+import static me.bechberger.util.TimeUtil.formatDuration;
+import static me.bechberger.util.TimeUtil.formatInstant;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import jdk.jfr.consumer.RecordedEvent;
+import me.bechberger.condensed.CondensedOutputStream;
+import me.bechberger.jfr.BasicJFRWriter;
+import me.bechberger.jfr.Configuration;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Record into a ring of in-memory segments and write them to files only when a dump is triggered
+ *
+ * <p>Every segment is a complete CJFR stream with its own start message and footer, like a rotated
+ * file, so evicting the oldest segment never breaks the references of the others. The ring holds at
+ * most {@code max-files} segments, {@code max-size} bytes and {@code max-duration} of events; each
+ * segment is limited to the respective fraction. A dump seals the current segment and writes every
+ * segment in the ring to its own file.
+ */
+public class RingBufferRecordingThread extends RecordingThread {
+
+    private static final long DUMP_TIMEOUT_SECONDS = 30;
+
+    /**
+     * Conditions on the recorded events that trigger a dump
+     *
+     * @param gcPause dump after a GC whose longest pause is at least this long, 0 to disable
+     * @param cpuLoadPercent dump when the machine CPU load is at least this percentage, 0 to
+     *     disable
+     * @param cooldown minimal time between two triggered dumps
+     */
+    public record DumpTriggers(Duration gcPause, int cpuLoadPercent, Duration cooldown) {
+
+        public static final DumpTriggers NONE = new DumpTriggers(Duration.ZERO, 0, Duration.ZERO);
+
+        public DumpTriggers {
+            if (gcPause.isNegative()) {
+                throw new IllegalArgumentException("GC pause threshold must be at least 0");
+            }
+            if (cpuLoadPercent < 0 || cpuLoadPercent > 100) {
+                throw new IllegalArgumentException("CPU load threshold must be between 0 and 100");
+            }
+            if (cooldown.isNegative()) {
+                throw new IllegalArgumentException("Dump cooldown must be at least 0");
+            }
+        }
+
+        /** Reason to dump because of the passed event, {@code null} if it triggers nothing */
+        @Nullable
+        String check(RecordedEvent event) {
+            String name = event.getEventType().getName();
+            if (!gcPause.isZero() && name.equals("jdk.GarbageCollection")) {
+                Duration pause = event.getDuration("longestPause");
+                if (pause.compareTo(gcPause) >= 0) {
+                    return "gc pause of " + formatDuration(pause);
+                }
+            }
+            if (cpuLoadPercent > 0 && name.equals("jdk.CPULoad")) {
+                float load = event.getFloat("machineTotal");
+                if (load * 100 >= cpuLoadPercent) {
+                    return "cpu load of " + Math.round(load * 100) + "%";
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            List<String> parts = new ArrayList<>();
+            if (!gcPause.isZero()) {
+                parts.add("gc pause >= " + formatDuration(gcPause));
+            }
+            if (cpuLoadPercent > 0) {
+                parts.add("cpu load >= " + cpuLoadPercent + "%");
+            }
+            return parts.isEmpty() ? "command only" : String.join(", ", parts);
+        }
+    }
+
+    /** Segment that is currently written */
+    private record Segment(
+            BasicJFRWriter jfrWriter,
+            ByteArrayOutputStream bytes,
+            Instant start,
+            long startNanos) {}
+
+    /** Complete CJFR stream of a sealed segment */
+    private record SealedSegment(byte[] data, Instant start, long endNanos) {}
+
+    private final String pathTemplate;
+    private final DumpTriggers triggers;
+
+    /** Guards {@link #current} and {@link #sealed} */
+    private final ReentrantLock ringLock = new ReentrantLock();
+
+    private Segment current;
+    private final ArrayDeque<SealedSegment> sealed = new ArrayDeque<>();
+    private long sealedBytes = 0;
+
+    /** Bytes of all segments sealed so far, including evicted ones, for the telemetry */
+    private long totalSealedBytes = 0;
+
+    private long totalSealedUncompressedBytes = 0;
+
+    /** Writes the dumps, a single thread, so that dumps never interleave */
+    private final ExecutorService dumper;
+
+    private final AtomicBoolean triggeredStop = new AtomicBoolean(false);
+    private final AtomicInteger dumpedFileCount = new AtomicInteger(0);
+    private final AtomicInteger dumpCount = new AtomicInteger(0);
+    private final AtomicInteger evictedSegments = new AtomicInteger(0);
+
+    /** Time of the last triggered dump, to respect {@link DumpTriggers#cooldown()} */
+    private volatile long lastTriggeredDumpNanos = 0;
+
+    private volatile boolean triggeredDumpBefore = false;
+    private volatile String lastDump = null;
+
+    public RingBufferRecordingThread(
+            String pathTemplate,
+            Configuration configuration,
+            boolean verbose,
+            String jfrConfig,
+            String miscJfrConfig,
+            Runnable onRecordingStopped,
+            DynamicallyChangeableSettings dynSettings,
+            DumpTriggers triggers)
+            throws IOException, ParseException {
+        super(
+                configuration,
+                verbose,
+                jfrConfig,
+                miscJfrConfig,
+                onRecordingStopped,
+                dynSettings,
+                true);
+        this.pathTemplate = pathTemplate;
+        this.triggers = triggers;
+        this.dumper =
+                Executors.newSingleThreadExecutor(
+                        r -> {
+                            Thread t = new Thread(r, "cjfr-dumper[" + pathTemplate + "]");
+                            t.setDaemon(true);
+                            return t;
+                        });
+        registerShutdownHook();
+        try {
+            this.current = newSegment();
+        } catch (Throwable e) {
+            dumper.shutdown();
+            unregisterShutdownHook();
+            closeRecordingStream();
+            if (e instanceof IOException ioe) throw ioe;
+            throw new IOException("Failed to create writer", e);
+        }
+        agentIO.writeOutput(
+                "Condensed recording into ring buffer for "
+                        + pathTemplate
+                        + " started, dumps on "
+                        + triggers);
+    }
+
+    private Segment newSegment() throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out =
+                new CondensedOutputStream(
+                        bytes, createStartMessage(getConfiguration()), createAdaptiveCompression());
+        var writer = new BasicJFRWriter(out, getConfiguration());
+        writer.setGmtOffsetMillis(
+                java.util.TimeZone.getDefault().getOffset(System.currentTimeMillis()));
+        return new Segment(writer, bytes, Instant.now(), System.nanoTime());
+    }
+
+    /** Seal the current segment and start a new one, must be called with ringLock held */
+    private void sealCurrentSegment() throws IOException {
+        long sealStartNanos = System.nanoTime();
+        var segment = current;
+        var next = newSegment();
+        current = next;
+        segment.jfrWriter.close();
+        byte[] data = segment.bytes.toByteArray();
+        sealed.addLast(new SealedSegment(data, segment.start, System.nanoTime()));
+        sealedBytes += data.length;
+        totalSealedBytes += data.length;
+        totalSealedUncompressedBytes += segment.jfrWriter.getUncompressedBytes();
+        getTelemetry().recordRotation(System.nanoTime() - sealStartNanos);
+    }
+
+    /**
+     * Drop the oldest sealed segments that exceed the limits of the ring, must be called with
+     * ringLock held
+     */
+    private void evictSegments() {
+        long maxSize = getMaxSize();
+        long maxDurationNanos = getMaxDuration().toNanos();
+        long now = System.nanoTime();
+        while (!sealed.isEmpty()) {
+            var oldest = sealed.peekFirst();
+            boolean tooMany = sealed.size() >= Math.max(1, getMaxFiles());
+            boolean tooLarge =
+                    maxSize > 0 && sealedBytes + current.jfrWriter.estimateOnDiskSize() > maxSize;
+            boolean tooOld = maxDurationNanos > 0 && now - oldest.endNanos > maxDurationNanos;
+            if (!tooMany && !tooLarge && !tooOld) {
+                break;
+            }
+            sealed.removeFirst();
+            sealedBytes -= oldest.data.length;
+            evictedSegments.incrementAndGet();
+        }
+    }
+
+    /** Must be called with ringLock held */
+    private boolean shouldEndSegment() {
+        int segments = Math.max(1, getMaxFiles());
+        long maxDurationNanos = getMaxDuration().toNanos();
+        if (maxDurationNanos > 0
+                && System.nanoTime() - current.startNanos > maxDurationNanos / segments) {
+            return true;
+        }
+        long maxSize = getMaxSize();
+        if (maxSize <= 0) {
+            return false;
+        }
+        long limit = maxSize / segments;
+        // like RotatingRecordingThread: the estimate assumes no compression before the first
+        // flush, so flush close to the limit and check the real size
+        if (current.jfrWriter.estimateOnDiskSize() < limit * 9 / 10) {
+            return false;
+        }
+        current.jfrWriter.flush();
+        return current.jfrWriter.estimateSize() > limit;
+    }
+
+    private boolean shouldEndRecording() {
+        long durationNanos = getDuration().toNanos();
+        return durationNanos > 0 && (System.nanoTime() - this.startNanos) > durationNanos;
+    }
+
+    @Override
+    void onEvents(List<RecordedEvent> events) {
+        if (triggeredStop.get()) {
+            return;
+        }
+        if (shouldEndRecording()) {
+            triggerStop();
+            return;
+        }
+        ringLock.lock();
+        String pendingError = null;
+        try {
+            if (triggeredStop.get() || current == null) {
+                return;
+            }
+            if (shouldEndSegment()) {
+                sealCurrentSegment();
+            }
+            for (RecordedEvent event : events) {
+                processEvent(current.jfrWriter, event);
+            }
+            evictSegments();
+        } catch (Exception e) {
+            pendingError = "Error while processing event: " + e.getMessage() + " " + e;
+            triggerStop();
+        } finally {
+            ringLock.unlock();
+        }
+        if (pendingError != null) {
+            agentIO.writeSevereError(pendingError);
+            return;
+        }
+        for (RecordedEvent event : events) {
+            String reason = triggers.check(event);
+            if (reason != null) {
+                triggerDump(reason);
+                break;
+            }
+        }
+    }
+
+    /** Dump in the background, unless the last triggered dump is more recent than the cooldown */
+    private void triggerDump(String reason) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (triggeredDumpBefore
+                    && now - lastTriggeredDumpNanos < triggers.cooldown().toNanos()) {
+                return;
+            }
+            triggeredDumpBefore = true;
+            lastTriggeredDumpNanos = now;
+        }
+        agentIO.writeInfo("Dumping ring buffer, triggered by " + reason);
+        try {
+            dumper.execute(
+                    () -> {
+                        try {
+                            writeDump(reason);
+                        } catch (IOException | RuntimeException e) {
+                            agentIO.writeSevereError(
+                                    "Dump triggered by " + reason + " failed: " + e.getMessage());
+                        }
+                    });
+        } catch (java.util.concurrent.RejectedExecutionException ignored) {
+            // stopping
+        }
+    }
+
+    @Override
+    public boolean supportsDump() {
+        return true;
+    }
+
+    /**
+     * Seal the current segment and write all segments of the ring to files, removing them from the
+     * ring
+     *
+     * @return the written files, oldest first
+     */
+    @Override
+    public List<Path> dump() throws IOException {
+        Future<List<Path>> future;
+        try {
+            future = dumper.submit(() -> writeDump("command"));
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            throw new IOException("Recording is stopping");
+        }
+        try {
+            return future.get(DUMP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioe) {
+                throw ioe;
+            }
+            throw new IOException("Dump failed: " + e.getCause().getMessage(), e.getCause());
+        } catch (java.util.concurrent.TimeoutException e) {
+            throw new IOException("Dump did not finish within " + DUMP_TIMEOUT_SECONDS + "s");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while dumping");
+        }
+    }
+
+    /** Called on the {@link #dumper} thread */
+    private List<Path> writeDump(String reason) throws IOException {
+        List<SealedSegment> segments;
+        ringLock.lock();
+        try {
+            if (current == null) {
+                throw new IOException("Recording is stopped");
+            }
+            sealCurrentSegment();
+            evictSegments();
+            segments = new ArrayList<>(sealed);
+            sealed.clear();
+            sealedBytes = 0;
+        } finally {
+            ringLock.unlock();
+        }
+        List<Path> written = new ArrayList<>();
+        for (var segment : segments) {
+            Path base =
+                    Path.of(
+                            RotatingRecordingThread.replacePlaceholders(
+                                    pathTemplate, dumpedFileCount.getAndIncrement()));
+            Path parent = base.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            var opened =
+                    RotatingRecordingThread.openNewOutputStream(
+                            base, p -> openOutput(p, () -> {}, WRITE, CREATE_NEW));
+            try (var out = opened.stream()) {
+                out.write(segment.data);
+            }
+            written.add(opened.actualPath());
+        }
+        dumpCount.incrementAndGet();
+        lastDump =
+                (written.isEmpty() ? "empty" : written.get(written.size() - 1).toString())
+                        + " ("
+                        + reason
+                        + ")";
+        agentIO.writeOutput(
+                "Dumped ring buffer (" + reason + ") to " + written.size() + " files: " + written);
+        return written;
+    }
+
+    /** Shrinks the ring right away when max-files is reduced */
+    @Override
+    protected void onRetentionChanged() {
+        ringLock.lock();
+        try {
+            if (current != null) {
+                evictSegments();
+            }
+        } finally {
+            ringLock.unlock();
+        }
+    }
+
+    private void triggerStop() {
+        if (triggeredStop.compareAndSet(false, true)) {
+            Thread t = new Thread(this::stop, "cjfr-ring-buffer-stop");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /** Discards the ring, dumps that are already running are finished first */
+    @Override
+    public void close() {
+        triggeredStop.set(true);
+        dumper.shutdown();
+        try {
+            if (!dumper.awaitTermination(DUMP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                agentIO.writeSevereError(
+                        "Dumping did not finish within "
+                                + DUMP_TIMEOUT_SECONDS
+                                + "s; the dumped files may be incomplete");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ringLock.lock();
+        try {
+            var segment = current;
+            current = null;
+            sealed.clear();
+            sealedBytes = 0;
+            if (segment != null) {
+                segment.jfrWriter.close();
+            }
+        } finally {
+            ringLock.unlock();
+        }
+        agentIO.writeOutput(
+                "Condensed recording into ring buffer for "
+                        + pathTemplate
+                        + " finished, "
+                        + dumpCount.get()
+                        + " dumps written");
+    }
+
+    @Override
+    void onDroppedEvents(Map<String, Long> droppedEvents) {
+        ringLock.lock();
+        try {
+            if (current != null && !triggeredStop.get()) {
+                droppedEvents.forEach(current.jfrWriter::countDroppedEvents);
+            }
+        } finally {
+            ringLock.unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    AgentTelemetry.WriterStatistics writerStatistics() {
+        boolean locked;
+        try {
+            locked = ringLock.tryLock(200, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            locked = false;
+        }
+        if (!locked) {
+            return null;
+        }
+        try {
+            if (current == null) {
+                return null;
+            }
+            return AgentTelemetry.WriterStatistics.of(
+                    current.jfrWriter, totalSealedBytes, totalSealedUncompressedBytes);
+        } finally {
+            ringLock.unlock();
+        }
+    }
+
+    @Override
+    List<Entry<String, String>> getMiscStatus() {
+        boolean locked;
+        try {
+            locked = ringLock.tryLock(200, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            locked = false;
+        }
+        if (!locked) {
+            return List.of(
+                    Map.entry("mode", "ring buffer"),
+                    Map.entry("path", pathTemplate),
+                    Map.entry("state", "recording (status unavailable)"));
+        }
+        try {
+            if (current == null) {
+                return new ArrayList<>();
+            }
+            Instant ringStart = sealed.isEmpty() ? current.start : sealed.peekFirst().start;
+            String dump = lastDump;
+            return List.of(
+                    Map.entry("mode", "ring buffer"),
+                    Map.entry("path", pathTemplate),
+                    Map.entry("dump-triggers", triggers.toString()),
+                    Map.entry("ring-segments", (sealed.size() + 1) + "/" + getMaxFiles()),
+                    Map.entry(
+                            "ring-size",
+                            formatMemory(sealedBytes + current.jfrWriter.estimateOnDiskSize(), 3)),
+                    Map.entry("ring-start", formatInstant(ringStart)),
+                    Map.entry("evicted-segments", Integer.toString(evictedSegments.get())),
+                    Map.entry("dumps", Integer.toString(dumpCount.get())),
+                    Map.entry("dumped-files", Integer.toString(dumpedFileCount.get())),
+                    Map.entry("last-dump", dump != null ? dump : "none"));
+        } finally {
+            ringLock.unlock();
+        }
+    }
+}
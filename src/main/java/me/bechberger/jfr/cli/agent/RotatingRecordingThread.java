@@ -1,7 +1,9 @@
 package me.bechberger.jfr.cli.agent;
 
 import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
 import static me.bechberger.util.MemoryUtil.formatMemory;
+import static me.bechberger.util.TimeUtil.formatDuration;
 import static me.bechberger.util.TimeUtil.formatInstant;
 
 import java.io.IOException;
@@ -13,21 +15,29 @@ import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 import jdk.jfr.consumer.RecordedEvent;
-import me.bechberger.condensed.Compression;
+import me.bechberger.condensed.CompressionDictionary;
 import me.bechberger.condensed.CondensedOutputStream;
+import me.bechberger.condensed.DefinitionDictionary;
 import me.bechberger.condensed.Message.StartMessage;
 import me.bechberger.jfr.BasicJFRWriter;
 import me.bechberger.jfr.Configuration;
-import me.bechberger.jfr.cli.Constants;
+import org.jetbrains.annotations.Nullable;
 
 /** Record to multiple files */
 public class RotatingRecordingThread extends RecordingThread {
@@ -57,7 +67,7 @@ public class RotatingRecordingThread extends RecordingThread {
 
     /**
      * Serializes event writes, rotation open/close steps, and close(). Using ReentrantLock so
-     * onEvent() can hold the lock while calling initNewFile() (which re-acquires it).
+     * onEvents() can hold the lock while calling initNewFile() (which re-acquires it).
      */
     private final ReentrantLock rotationLock = new ReentrantLock();
 
@@ -66,6 +76,55 @@ public class RotatingRecordingThread extends RecordingThread {
     private final AtomicBoolean triggeredStop = new AtomicBoolean(false);
     private volatile Thread rotationWatchdog;
 
+    /**
+     * Dictionary derived from the beginning of the first file, used by the later files if {@link
+     * #useSharedDictionary()}
+     */
+    private volatile CompressionDictionary sharedDictionary = null;
+
+    /**
+     * Types and references of the first file's events, which the later files refer to if {@link
+     * #useSharedDefinitions()}
+     */
+    private volatile DefinitionDictionary sharedDefinitions = null;
+
+    /** Maximum number of events whose types and references are shared */
+    static final int MAX_DEFINITION_SAMPLES = 512;
+
+    /** Maximum number of shared events per event type, so that every type is represented */
+    static final int MAX_DEFINITION_SAMPLES_PER_TYPE = 8;
+
+    /** First events of every type of the first file, guarded by rotationLock */
+    private final List<RecordedEvent> definitionSamples = new ArrayList<>();
+
+    private final Map<String, Integer> definitionSamplesPerType = new HashMap<>();
+
+    /**
+     * Seals rotated files (final combiner flush, footer, last compression block) in the background,
+     * so that events go to the new file while the old one is finished. A single thread, so files
+     * are sealed in rotation order. At most {@link #MAX_PENDING_SEALS} files wait for it.
+     */
+    final ExecutorService sealer;
+
+    private static final long SEALING_TIMEOUT_SECONDS = 30;
+
+    /**
+     * Maximum number of rotated files that are sealed or wait to be sealed, a rotation waits until
+     * there are fewer, so that a slow sealer slows down the recording instead of piling up writers
+     */
+    static final int MAX_PENDING_SEALS = 2;
+
+    /** Files whose writers are still being sealed, these are never evicted. Guarded by filesLock */
+    private final Set<Path> sealingFiles = new HashSet<>();
+
+    private final AtomicInteger sealFailures = new AtomicInteger(0);
+    private volatile String lastSealError = null;
+
+    /** Compressed and uncompressed bytes of the sealed files, for the telemetry */
+    private final AtomicLong sealedBytes = new AtomicLong();
+
+    private final AtomicLong sealedUncompressedBytes = new AtomicLong();
+
     record State(BasicJFRWriter jfrWriter, Path filePath, Instant start, long startNanos) {
         State(BasicJFRWriter jfrWriter, Path filePath) {
             this(jfrWriter, filePath, Instant.now(), System.nanoTime());
@@ -90,6 +149,13 @@ public class RotatingRecordingThread extends RecordingThread {
                 dynSettings,
                 true);
         this.pathTemplate = pathTemplate;
+        this.sealer =
+                Executors.newSingleThreadExecutor(
+                        r -> {
+                            Thread t = new Thread(r, "cjfr-sealer[" + pathTemplate + "]");
+                            t.setDaemon(true);
+                            return t;
+                        });
         this.currentlyStoredFiles = new ArrayList<>();
         this.currentlyStoredStarts = new ArrayList<>();
         registerShutdownHook();
@@ -125,6 +191,7 @@ public class RotatingRecordingThread extends RecordingThread {
             } finally {
                 rotationLock.unlock();
             }
+            sealer.shutdown();
             unregisterShutdownHook();
             closeRecordingStream();
             throw e;
@@ -156,6 +223,12 @@ public class RotatingRecordingThread extends RecordingThread {
             // durable if the JVM dies between rotations, and so the observed compression ratio
             // (used by estimateOnDiskSize) stays fresh.
             periodicFlush();
+            // Age and free space change without rotations
+            if (!getMaxAge().isZero() || getMinFreeSpace() > 0) {
+                synchronized (filesLock) {
+                    deleteOldestFilesIfNeeded(currentPath);
+                }
+            }
             // Always call initNewFile(false) — it re-checks shouldEndFile() under rotationLock,
             // which prevents torn reads of BasicJFRWriter state and avoids double-rotations.
             try {
@@ -190,38 +263,104 @@ public class RotatingRecordingThread extends RecordingThread {
     }
 
     /**
-     * Delete oldest sealed files until count is below max. Must be called with filesLock held.
-     * {@code excludePath} is the path of the currently-open writer and is never evicted here; pass
-     * {@code null} when there is no live writer (e.g. on final close).
+     * Delete the oldest sealed files while the retention policy is violated: more than max files,
+     * more than max-total-size bytes on disk, files older than max-age, or less usable space than
+     * min-free-space. Must be called with filesLock held. {@code excludePath} is the path of the
+     * currently-open writer and is never evicted here, nor are the files that are still being
+     * sealed; pass {@code null} when there is no live writer (e.g. on final close).
      */
     private void deleteOldestFilesIfNeeded(Path excludePath) {
         int max = Math.max(1, getMaxFiles());
+        long maxTotalSize = getMaxTotalSize();
+        long minFreeSpace = getMinFreeSpace();
+        long maxAgeMillis = getMaxAge().toMillis();
+        long totalSize = maxTotalSize > 0 ? storedFilesSize() : 0;
+        long freeSpace = minFreeSpace > 0 ? usableSpace() : Long.MAX_VALUE;
         int i = 0;
-        while (currentlyStoredFiles.size() >= max && i < currentlyStoredFiles.size()) {
+        while (i < currentlyStoredFiles.size()) {
             Path candidate = currentlyStoredFiles.get(i);
-            if (candidate.equals(excludePath)) {
-                // Skip the live writer's file — it will be evicted once the writer is closed.
+            boolean tooMany = currentlyStoredFiles.size() >= max;
+            boolean tooLarge = maxTotalSize > 0 && totalSize > maxTotalSize;
+            boolean tooLittleSpace = freeSpace < minFreeSpace;
+            boolean tooOld =
+                    maxAgeMillis > 0
+                            && System.currentTimeMillis() - lastModifiedMillis(candidate)
+                                    > maxAgeMillis;
+            if (!tooMany && !tooLarge && !tooLittleSpace && !tooOld) {
+                break;
+            }
+            if (candidate.equals(excludePath) || sealingFiles.contains(candidate)) {
+                // Skip the live writer's file and the ones still being sealed — they will be
+                // evicted once their writers are closed.
                 i++;
                 continue;
             }
+            long size = fileSize(candidate);
             currentlyStoredFiles.remove(i);
             currentlyStoredStarts.remove(i);
             try {
                 Files.delete(candidate);
+                totalSize -= size;
+                freeSpace += size;
+                if (!tooMany) {
+                    retentionDeletedFiles.incrementAndGet();
+                }
             } catch (java.nio.file.NoSuchFileException ignored) {
-                // Already deleted externally — forget it and keep enforcing maxFiles.
+                // Already deleted externally — forget it and keep enforcing the limits.
             } catch (IOException e) {
                 agentIO.writeSevereError("Deleting oldest file failed: " + e.getMessage());
             }
         }
         if (currentlyStoredFiles.size() > max) {
-            // Only live file(s) remain; can't evict further until a rotation seals them.
+            // Only live or sealing file(s) remain; can't evict further until they are sealed.
             agentIO.writeInfo(
                     "stored-files ("
                             + currentlyStoredFiles.size()
                             + ") exceeds max-files ("
                             + max
-                            + ") because the live writer file cannot be evicted yet");
+                            + ") because the live writer file or files that are still being"
+                            + " sealed cannot be evicted yet");
+        }
+    }
+
+    /** Files deleted because of max-total-size, max-age or min-free-space */
+    private final AtomicInteger retentionDeletedFiles = new AtomicInteger(0);
+
+    /** On-disk size of all stored files, including the live one. Must hold filesLock */
+    private long storedFilesSize() {
+        long size = 0;
+        for (Path file : currentlyStoredFiles) {
+            size += fileSize(file);
+        }
+        return size;
+    }
+
+    private static long fileSize(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long lastModifiedMillis(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return System.currentTimeMillis();
+        }
+    }
+
+    /** Usable space on the file system of the stored files, {@code Long.MAX_VALUE} if unknown */
+    private long usableSpace() {
+        Path file = currentPath;
+        if (file == null) {
+            return Long.MAX_VALUE;
+        }
+        try {
+            return Files.getFileStore(file.toAbsolutePath()).getUsableSpace();
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
         }
     }
 
@@ -232,11 +371,15 @@ public class RotatingRecordingThread extends RecordingThread {
      */
     private static final int MAX_COLLISION_RETRIES = 100;
 
-    private record OpenResult(java.io.OutputStream stream, Path actualPath) {}
+    record OpenResult(java.io.OutputStream stream, Path actualPath) {}
 
-    private OpenResult openNewOutputStream(Path basePath) throws IOException {
+    /**
+     * @param opener opens the file at the passed path, must fail with {@link
+     *     java.nio.file.FileAlreadyExistsException} if it exists
+     */
+    static OpenResult openNewOutputStream(Path basePath, FileOpener opener) throws IOException {
         try {
-            java.io.OutputStream out = Files.newOutputStream(basePath, CREATE_NEW);
+            java.io.OutputStream out = opener.open(basePath);
             return new OpenResult(out, basePath);
         } catch (java.nio.file.FileAlreadyExistsException ignored) {
             // fall through to suffix loop
@@ -249,7 +392,7 @@ public class RotatingRecordingThread extends RecordingThread {
                                     ? base.substring(0, base.length() - 5) + "_" + suffix + ".cjfr"
                                     : base + "_" + suffix);
             try {
-                java.io.OutputStream out = Files.newOutputStream(candidate, CREATE_NEW);
+                java.io.OutputStream out = opener.open(candidate);
                 return new OpenResult(out, candidate);
             } catch (java.nio.file.FileAlreadyExistsException ignored) {
                 // keep trying
@@ -263,13 +406,17 @@ public class RotatingRecordingThread extends RecordingThread {
                         + ")");
     }
 
+    interface FileOpener {
+        java.io.OutputStream open(Path path) throws IOException;
+    }
+
     /**
      * Initialize a new file and start a new jfrWriter. Serialized by {@code rotationLock}
-     * (ReentrantLock; re-entrant from onEvent is safe). Opens the new file BEFORE closing the old
+     * (ReentrantLock; re-entrant from onEvents is safe). Opens the new file BEFORE closing the old
      * writer so a transient failure leaves the old writer intact. Path assignment and new-file
      * registration happen atomically in a single {@code filesLock} section after the new writer is
-     * ready. Eviction of oldest sealed files happens AFTER the old writer is closed so we never
-     * delete a file that still has an open writer.
+     * ready. The old writer is sealed in the background by {@link #sealer}, eviction skips its file
+     * until it is sealed, so we never delete a file that still has an open writer.
      *
      * @param force if {@code false}, re-checks {@link #shouldEndFile()} inside the lock and skips
      *     the rotation if another thread already rotated.
@@ -283,6 +430,11 @@ public class RotatingRecordingThread extends RecordingThread {
             if (!force && !shouldEndFile()) {
                 return; // another thread already rotated
             }
+            long rotationStartNanos = System.nanoTime();
+            awaitSealingBacklog();
+            if (triggeredStop.get()) {
+                return;
+            }
 
             // Decide the candidate base path. Increment counter first so $index is monotone.
             // If the open fails, decrement to avoid gaps in $index.
@@ -301,7 +453,10 @@ public class RotatingRecordingThread extends RecordingThread {
             // remains intact and recording continues.
             OpenResult opened;
             try {
-                opened = openNewOutputStream(basePath);
+                opened =
+                        openNewOutputStream(
+                                basePath,
+                                p -> openOutput(p, this::periodicFlush, WRITE, CREATE_NEW));
             } catch (IOException e) {
                 synchronized (filesLock) {
                     overallWrittenFileCount.decrementAndGet();
@@ -310,22 +465,36 @@ public class RotatingRecordingThread extends RecordingThread {
             }
             Path newPath = opened.actualPath();
             java.io.OutputStream rawOut = opened.stream();
+            var oldState = this.state;
+
+            if (oldState != null && sharedDictionary == null && useSharedDictionary()) {
+                sharedDictionary = createSharedDictionary(oldState);
+            }
 
             CondensedOutputStream out;
             BasicJFRWriter newWriter;
             try {
-                out =
-                        new CondensedOutputStream(
-                                rawOut,
-                                new StartMessage(
-                                        Constants.FORMAT_VERSION,
-                                        "condensed jfr agent",
-                                        Constants.VERSION,
-                                        getConfiguration().name(),
-                                        Compression.DEFAULT));
+                StartMessage startMessage = createStartMessage(getConfiguration());
+                if (oldState != null && sharedDefinitions == null && useSharedDefinitions()) {
+                    sharedDefinitions = createSharedDefinitions(oldState, startMessage);
+                }
+                boolean definitions = sharedDefinitions != null && useSharedDefinitions();
+                if (definitions) {
+                    startMessage = startMessage.withDefinitions(true);
+                }
+                if (sharedDictionary != null && useSharedDictionary()) {
+                    startMessage = startMessage.withDictionary(sharedDictionary);
+                }
+                out = new CondensedOutputStream(rawOut, startMessage, createAdaptiveCompression());
+                if (sharedDictionary == null && useSharedDictionary()) {
+                    out.capturePrefix(CompressionDictionary.MAX_SIZE);
+                }
                 newWriter = new BasicJFRWriter(out, getConfiguration());
                 newWriter.setGmtOffsetMillis(
                         java.util.TimeZone.getDefault().getOffset(System.currentTimeMillis()));
+                if (definitions) {
+                    newWriter.setDefinitions(sharedDefinitions, definitionSamples);
+                }
             } catch (Throwable t) {
                 synchronized (filesLock) {
                     overallWrittenFileCount.decrementAndGet();
@@ -343,7 +512,6 @@ public class RotatingRecordingThread extends RecordingThread {
             }
 
             var newState = new State(newWriter, newPath);
-            var oldState = this.state;
 
             // Re-check triggeredStop before publishing the new state — close() may have nulled
             // state and returned while we were stuck in I/O. If we publish now, the newly-opened
@@ -381,34 +549,175 @@ public class RotatingRecordingThread extends RecordingThread {
             }
 
             if (oldState != null) {
-                try {
-                    closeState(oldState);
-                } catch (Throwable t) {
-                    agentIO.writeSevereError(
-                            "Failed to close previous file (data may be incomplete): "
-                                    + t.getMessage());
-                }
-                // Evict oldest sealed files now that the old writer is closed.
+                // Seal the old writer outside the rotation lock, events already go to the new one.
                 synchronized (filesLock) {
+                    sealingFiles.add(oldState.filePath);
                     deleteOldestFilesIfNeeded(newPath);
                 }
+                try {
+                    sealer.execute(() -> seal(oldState));
+                } catch (RejectedExecutionException e) {
+                    // a best-effort close() stopped the sealer while this rotation was running
+                    seal(oldState);
+                }
+                getTelemetry().recordRotation(System.nanoTime() - rotationStartNanos);
             }
         } finally {
             rotationLock.unlock();
         }
     }
 
+    /** Wait until fewer than {@link #MAX_PENDING_SEALS} files are sealed, or the recording stops */
+    private void awaitSealingBacklog() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SEALING_TIMEOUT_SECONDS);
+        synchronized (filesLock) {
+            while (sealingFiles.size() >= MAX_PENDING_SEALS && !triggeredStop.get()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    agentIO.writeSevereError(
+                            "Sealing rotated files is behind for "
+                                    + SEALING_TIMEOUT_SECONDS
+                                    + "s; rotating anyway");
+                    return;
+                }
+                try {
+                    filesLock.wait(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Number of rotated files that are sealed or wait to be sealed */
+    int pendingSeals() {
+        synchronized (filesLock) {
+            return sealingFiles.size();
+        }
+    }
+
+    /**
+     * Derive the shared dictionary from the type specifications and first references at the
+     * beginning of the file of the passed state and store it as {@code <id>.cjfrdict} next to it,
+     * where readers find it
+     *
+     * @return the dictionary or {@code null} if nothing was captured or it could not be stored, the
+     *     files are then compressed without dictionary
+     */
+    private CompressionDictionary createSharedDictionary(State state) {
+        byte[] prefix = state.jfrWriter.getOutputStream().getCapturedPrefix();
+        if (prefix == null || prefix.length == 0) {
+            return null;
+        }
+        var dictionary = new CompressionDictionary(prefix);
+        Path file = state.filePath.toAbsolutePath().resolveSibling(dictionary.fileName());
+        try {
+            if (!Files.exists(file)) {
+                dictionary.write(file);
+            }
+        } catch (IOException e) {
+            agentIO.writeSevereError(
+                    "Could not store shared dictionary " + file + ": " + e.getMessage());
+            return null;
+        }
+        agentIO.writeInfo("Compressing rotated files with shared dictionary " + file);
+        return CompressionDictionary.register(dictionary);
+    }
+
+    /**
+     * Keep the first events of every type of the first file, whose types and references the later
+     * files share
+     */
+    private void sampleDefinitions(RecordedEvent event) {
+        if (definitionSamples.size() >= MAX_DEFINITION_SAMPLES) {
+            return;
+        }
+        String type = event.getEventType().getName();
+        if (definitionSamplesPerType.merge(type, 1, Integer::sum)
+                <= MAX_DEFINITION_SAMPLES_PER_TYPE) {
+            definitionSamples.add(event);
+        }
+    }
+
+    /**
+     * Create the shared definitions from the types and references of the sampled events of the
+     * first file and store them as {@code <id>.cjfrdefs} next to the file of the passed state,
+     * where readers find them
+     *
+     * @return the definitions or {@code null} if nothing was sampled or they could not be stored,
+     *     the files then contain all their definitions
+     */
+    private DefinitionDictionary createSharedDefinitions(State state, StartMessage startMessage) {
+        if (definitionSamples.isEmpty()) {
+            return null;
+        }
+        var definitions =
+                BasicJFRWriter.createDefinitions(
+                        getConfiguration(), startMessage, definitionSamples);
+        Path file = state.filePath.toAbsolutePath().resolveSibling(definitions.fileName());
+        try {
+            if (!Files.exists(file)) {
+                definitions.write(file);
+            }
+        } catch (IOException e) {
+            agentIO.writeSevereError(
+                    "Could not store shared definitions " + file + ": " + e.getMessage());
+            return null;
+        }
+        definitionSamplesPerType.clear();
+        agentIO.writeInfo("Sharing the definitions of rotated files via " + file);
+        return DefinitionDictionary.register(definitions);
+    }
+
     /** close the state, closing the writer and more */
     private void closeState(State state) {
         state.jfrWriter.close();
     }
 
     /**
-     * Called after maxFiles is reduced. Evicts oldest sealed files immediately so disk use is
-     * bounded without waiting for the next rotation.
+     * Close the writer of a rotated file on the {@link #sealer} thread, report failures via {@code
+     * status} and evict the oldest files that are now sealed
+     */
+    private void seal(State state) {
+        try {
+            closeState(state);
+            sealedBytes.addAndGet(state.jfrWriter.estimateSize());
+            sealedUncompressedBytes.addAndGet(state.jfrWriter.getUncompressedBytes());
+        } catch (Throwable t) {
+            sealFailures.incrementAndGet();
+            lastSealError = state.filePath + ": " + t.getMessage();
+            agentIO.writeSevereError(
+                    "Failed to close previous file (data may be incomplete): " + t.getMessage());
+        }
+        synchronized (filesLock) {
+            sealingFiles.remove(state.filePath);
+            deleteOldestFilesIfNeeded(currentPath);
+            filesLock.notifyAll(); // a rotation may wait for the backlog
+        }
+    }
+
+    /** Wait until the rotated files are sealed, called on close */
+    private void awaitSealing() {
+        sealer.shutdown();
+        try {
+            if (!sealer.awaitTermination(SEALING_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                agentIO.writeSevereError(
+                        "Sealing rotated files did not finish within "
+                                + SEALING_TIMEOUT_SECONDS
+                                + "s; they may be incomplete");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Called after maxFiles or a retention limit is changed. Evicts oldest sealed files immediately
+     * so disk use is bounded without waiting for the next rotation.
      */
     @Override
-    protected void onMaxFilesChanged() {
+    protected void onRetentionChanged() {
         rotationLock.lock();
         try {
             synchronized (filesLock) {
@@ -431,6 +740,9 @@ public class RotatingRecordingThread extends RecordingThread {
     @Override
     public void close() {
         triggeredStop.set(true);
+        synchronized (filesLock) {
+            filesLock.notifyAll(); // stop a rotation that waits for the sealing backlog
+        }
         if (rotationWatchdog != null) {
             rotationWatchdog.interrupt();
             try {
@@ -481,6 +793,9 @@ public class RotatingRecordingThread extends RecordingThread {
                 }
             }
         }
+        // No rotation starts after this point, as triggeredStop is set. A rotation that still runs
+        // after a best-effort close seals its old file itself once the sealer is shut down
+        awaitSealing();
         if (overallWrittenFileCount.get() >= 0) {
             if (cleanClose) {
                 agentIO.writeOutput("Condensed recording to " + pathTemplate + " finished");
@@ -494,7 +809,7 @@ public class RotatingRecordingThread extends RecordingThread {
     }
 
     @Override
-    void onEvent(RecordedEvent event) {
+    void onEvents(List<RecordedEvent> events) {
         if (triggeredStop.get()) {
             return;
         }
@@ -539,7 +854,13 @@ public class RotatingRecordingThread extends RecordingThread {
                 return;
             }
             try {
-                s.jfrWriter.processEvent(event);
+                boolean sample = sharedDefinitions == null && useSharedDefinitions();
+                for (RecordedEvent event : events) {
+                    if (sample) {
+                        sampleDefinitions(event);
+                    }
+                    processEvent(s.jfrWriter, event);
+                }
             } catch (Exception e) {
                 pendingError = "Error while processing event: " + e.getMessage() + " " + e;
                 triggerStop();
@@ -552,6 +873,19 @@ public class RotatingRecordingThread extends RecordingThread {
         }
     }
 
+    @Override
+    void onDroppedEvents(Map<String, Long> droppedEvents) {
+        rotationLock.lock();
+        try {
+            State s = this.state;
+            if (s != null && s.jfrWriter != null && !triggeredStop.get()) {
+                droppedEvents.forEach(s.jfrWriter::countDroppedEvents);
+            }
+        } finally {
+            rotationLock.unlock();
+        }
+    }
+
     /** Flush the live writer to disk under the rotation lock; best-effort, safe if stopping. */
     private void periodicFlush() {
         if (triggeredStop.get()) {
@@ -627,18 +961,34 @@ public class RotatingRecordingThread extends RecordingThread {
             }
             List<Instant> storedStarts;
             int storedCount;
+            long storedSize;
+            int sealingCount;
             Path path;
             int totalWritten;
             synchronized (filesLock) {
                 storedStarts = new ArrayList<>(currentlyStoredStarts);
                 storedCount = currentlyStoredFiles.size();
+                storedSize = storedFilesSize();
+                sealingCount = sealingFiles.size();
                 path = currentPath;
                 totalWritten = overallWrittenFileCount.get() + 1;
             }
+            String sealError = lastSealError;
             return List.of(
                     Map.entry("mode", "rotating"),
                     Map.entry("stored-files", storedCount + "/" + getMaxFiles()),
                     Map.entry("total-files-written", Integer.toString(totalWritten)),
+                    Map.entry(
+                            "stored-size",
+                            formatMemory(storedSize, 3)
+                                    + (getMaxTotalSize() > 0
+                                            ? "/" + formatMemory(getMaxTotalSize(), 3)
+                                            : "")),
+                    Map.entry("max-age", formatDuration(getMaxAge())),
+                    Map.entry("min-free-space", formatMemory(getMinFreeSpace())),
+                    Map.entry(
+                            "retention-deleted-files",
+                            Integer.toString(retentionDeletedFiles.get())),
                     Map.entry("current-size-on-drive", formatMemory(s.jfrWriter.estimateSize(), 3)),
                     Map.entry(
                             "current-size-uncompressed",
@@ -651,7 +1001,35 @@ public class RotatingRecordingThread extends RecordingThread {
                             storedStarts.isEmpty() ? "none" : formatInstant(storedStarts.get(0))),
                     Map.entry(
                             "watchdog-rotation-errors",
-                            Integer.toString(watchdogConsecutiveErrors)));
+                            Integer.toString(watchdogConsecutiveErrors)),
+                    Map.entry("sealing-files", Integer.toString(sealingCount)),
+                    Map.entry("seal-failures", Integer.toString(sealFailures.get())),
+                    Map.entry("last-seal-error", sealError != null ? sealError : "none"));
+        } finally {
+            rotationLock.unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    AgentTelemetry.WriterStatistics writerStatistics() {
+        boolean locked;
+        try {
+            locked = rotationLock.tryLock(200, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            locked = false;
+        }
+        if (!locked) {
+            return null;
+        }
+        try {
+            State s = this.state;
+            if (s == null || s.jfrWriter == null) {
+                return null;
+            }
+            return AgentTelemetry.WriterStatistics.of(
+                    s.jfrWriter, sealedBytes.get(), sealedUncompressedBytes.get());
         } finally {
             rotationLock.unlock();
         }
@@ -0,0 +1,450 @@
+package me.bechberger.jfr.cli.agent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Single {@link RecordingStream} shared by all recordings of the agent, so that every event is
+ * parsed once, however many recordings subscribe to it
+ *
+ * <p>Every recording keeps its own {@link jdk.jfr.Recording} with its JFR settings. JFR merges the
+ * settings of all running recordings, and the shared stream, which enables no events itself,
+ * receives the events of all of them. A {@link Subscription} only gets the events that its settings
+ * enable and that last at least its threshold, see {@link EventSelection} for the settings that
+ * apply to all recordings together.
+ *
+ * <p>The events of a subscription are passed to its consumer in batches: everything that arrived
+ * between two flushes of the stream (JFR flushes about once per second), but at most {@link
+ * #MAX_BATCH_SIZE} events. So a recording takes its writer lock and checks its rotation conditions
+ * once per batch instead of once per event. The stream is ordered, so the events of a batch are
+ * sorted by their end time.
+ *
+ * <p>A queued subscription passes its batches to the consumer on its own worker thread, so a
+ * recording that blocks (e.g. while it rotates its file) doesn't block the JFR dispatch thread and
+ * with it all other recordings. At most {@value #MAX_QUEUED_BATCHES} batches are queued, the events
+ * of further batches are passed to the drop consumer on the worker thread.
+ */
+final class SharedRecordingStream {
+
+    /** Maximum number of events in a batch, bounds the memory and the overshoot of size limits */
+    static final int MAX_BATCH_SIZE = 1024;
+
+    /** Max batches waiting for the worker of a queued subscription */
+    static final int MAX_QUEUED_BATCHES = 32;
+
+    /** Time that closing a queued subscription waits for its worker to pass the queued batches */
+    static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(10);
+
+    private static final Object lock = new Object();
+
+    /** Guarded by {@link #lock}, {@code null} if there are no subscriptions */
+    private static SharedRecordingStream instance = null;
+
+    private final RecordingStream stream;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private SharedRecordingStream() {
+        this.stream = new RecordingStream();
+        // batched events are kept after the callback returns
+        stream.setReuse(false);
+        stream.setOrdered(true);
+        stream.onEvent(this::dispatch);
+        stream.onFlush(this::flush);
+        stream.startAsync();
+    }
+
+    /**
+     * Subscribe to the events enabled by the passed JFR settings, starting the shared stream if
+     * needed, the consumer is called on the dispatch thread and must not block
+     */
+    static Subscription subscribe(
+            Map<String, String> settings, Consumer<List<RecordedEvent>> consumer) {
+        return subscribe(settings, consumer, null);
+    }
+
+    /**
+     * Subscribe to the events enabled by the passed JFR settings, starting the shared stream if
+     * needed
+     *
+     * @param dropConsumer if not {@code null}, the batches are queued and passed to the consumer on
+     *     a worker thread, the events per type of the batches that didn't fit into the queue are
+     *     passed to the drop consumer
+     */
+    static Subscription subscribe(
+            Map<String, String> settings,
+            Consumer<List<RecordedEvent>> consumer,
+            @Nullable Consumer<Map<String, Long>> dropConsumer) {
+        synchronized (lock) {
+            if (instance == null) {
+                instance = new SharedRecordingStream();
+            }
+            var subscription =
+                    new Subscription(instance, EventSelection.of(settings), consumer, dropConsumer);
+            instance.subscriptions.add(subscription);
+            return subscription;
+        }
+    }
+
+    /** Number of subscriptions to the shared stream */
+    static int subscriptionCount() {
+        synchronized (lock) {
+            return instance == null ? 0 : instance.subscriptions.size();
+        }
+    }
+
+    private void dispatch(RecordedEvent event) {
+        for (Subscription subscription : subscriptions) {
+            subscription.accept(event);
+        }
+    }
+
+    private void flush() {
+        for (Subscription subscription : subscriptions) {
+            subscription.deliver();
+        }
+    }
+
+    private void remove(Subscription subscription) {
+        synchronized (lock) {
+            subscriptions.remove(subscription);
+            if (subscriptions.isEmpty() && instance == this) {
+                instance = null;
+                stream.close();
+            }
+        }
+    }
+
+    /** Events of the shared stream that a recording receives */
+    static final class Subscription implements AutoCloseable {
+        private final SharedRecordingStream owner;
+        private final EventSelection selection;
+        private final Consumer<List<RecordedEvent>> consumer;
+        @Nullable private final Consumer<Map<String, Long>> dropConsumer;
+
+        /** Guards {@link #batch}, held while a batch is passed to the consumer or queued */
+        private final ReentrantLock deliveryLock = new ReentrantLock();
+
+        /** Events since the last delivery */
+        private List<RecordedEvent> batch = new ArrayList<>();
+
+        private volatile boolean closed = false;
+
+        /** Batches waiting for the worker, {@code null} if the subscription isn't queued */
+        @Nullable private final BlockingQueue<List<RecordedEvent>> queue;
+
+        /** Events per type that didn't fit into the queue, passed on by the worker */
+        private final Map<String, Long> pendingDropped = new ConcurrentHashMap<>();
+
+        /** Events that were not queued because the queue was full */
+        private final LongAdder queueOverflow = new LongAdder();
+
+        @Nullable private final Thread worker;
+
+        private Subscription(
+                SharedRecordingStream owner,
+                EventSelection selection,
+                Consumer<List<RecordedEvent>> consumer,
+                @Nullable Consumer<Map<String, Long>> dropConsumer) {
+            this.owner = owner;
+            this.selection = selection;
+            this.consumer = consumer;
+            this.dropConsumer = dropConsumer;
+            if (dropConsumer != null) {
+                this.queue = new ArrayBlockingQueue<>(MAX_QUEUED_BATCHES);
+                this.worker = new Thread(this::work, "cjfr-recording-worker");
+                worker.setDaemon(true);
+                worker.start();
+            } else {
+                this.queue = null;
+                this.worker = null;
+            }
+        }
+
+        void accept(RecordedEvent event) {
+            if (closed || !selection.test(event)) {
+                return;
+            }
+            deliveryLock.lock();
+            try {
+                if (!closed) {
+                    batch.add(event);
+                    if (batch.size() >= MAX_BATCH_SIZE) {
+                        deliverUnderLock();
+                    }
+                }
+            } finally {
+                deliveryLock.unlock();
+            }
+        }
+
+        /** Pass the events since the last delivery to the consumer */
+        void deliver() {
+            deliveryLock.lock();
+            try {
+                deliverUnderLock();
+            } finally {
+                deliveryLock.unlock();
+            }
+        }
+
+        private void deliverUnderLock() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            // swap first, the consumer might close the subscription
+            var events = batch;
+            batch = new ArrayList<>();
+            if (queue == null) {
+                consumer.accept(events);
+            } else if (!queue.offer(events)) {
+                queueOverflow.add(events.size());
+                for (RecordedEvent event : events) {
+                    pendingDropped.merge(event.getEventType().getName(), 1L, Long::sum);
+                }
+            }
+        }
+
+        /** Pass the queued batches to the consumer until closed and the queue is empty */
+        private void work() {
+            try {
+                while (true) {
+                    List<RecordedEvent> events = queue.poll(100, TimeUnit.MILLISECONDS);
+                    passDropped();
+                    if (events != null) {
+                        consumer.accept(events);
+                    } else if (closed && queue.isEmpty()) {
+                        passDropped();
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void passDropped() {
+            if (pendingDropped.isEmpty()) {
+                return;
+            }
+            Map<String, Long> dropped = new HashMap<>();
+            for (String type : pendingDropped.keySet()) {
+                Long count = pendingDropped.remove(type);
+                if (count != null) {
+                    dropped.put(type, count);
+                }
+            }
+            dropConsumer.accept(dropped);
+        }
+
+        /** Number of batches waiting for the worker, 0 if the subscription isn't queued */
+        int queuedBatches() {
+            return queue == null ? 0 : queue.size();
+        }
+
+        /** Number of events that were dropped because the queue was full */
+        long queueOverflow() {
+            return queueOverflow.sum();
+        }
+
+        boolean isQueued() {
+            return queue != null;
+        }
+
+        /**
+         * Stop receiving events, passes the pending events to the consumer (waiting for a batch
+         * that is currently passed to it, or for the worker to pass the queued batches, at most
+         * {@link #CLOSE_TIMEOUT}), closes the shared stream if this was the last subscription
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            deliveryLock.lock();
+            try {
+                closed = true;
+                deliverUnderLock();
+            } finally {
+                deliveryLock.unlock();
+            }
+            owner.remove(this);
+            if (worker != null && Thread.currentThread() != worker) {
+                try {
+                    worker.join(CLOSE_TIMEOUT.toMillis());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Selects the events of a recording by its JFR settings: an event type is only selected if its
+     * {@code #enabled} setting is {@code true}, or if the settings don't mention it and the type is
+     * enabled by default (like JFR does for a single recording), so the events that only another
+     * recording enabled are skipped. Events that are shorter than their {@code #threshold} are
+     * skipped too.
+     *
+     * <p>The other settings can't be applied per recording, JFR applies the merged settings of all
+     * recordings to the emitted events: a recording gets periodic events with the shortest {@code
+     * #period}, the stack traces if any recording enables {@code #stackTrace} and the events that
+     * the highest {@code #throttle} admits.
+     */
+    static final class EventSelection {
+
+        /**
+         * Prefix of the events emitted by the agent, the parsed event types don't carry their
+         * {@code @Enabled(false)} default
+         */
+        static final String AGENT_EVENT_PREFIX = "cjfr.";
+
+        private final Set<String> enabled;
+        private final Set<String> disabled;
+        private final Map<String, Long> thresholdNanos;
+        private final Predicate<String> enabledByDefault;
+
+        /** Decisions for the types that the settings don't mention, only used by the dispatcher */
+        private final Map<String, Boolean> unmentioned = new HashMap<>();
+
+        EventSelection(
+                Set<String> enabled,
+                Set<String> disabled,
+                Map<String, Long> thresholdNanos,
+                Predicate<String> enabledByDefault) {
+            this.enabled = enabled;
+            this.disabled = disabled;
+            this.thresholdNanos = thresholdNanos;
+            this.enabledByDefault = enabledByDefault;
+        }
+
+        static EventSelection of(Map<String, String> settings) {
+            return of(settings, EventSelection::isEnabledByDefault);
+        }
+
+        static EventSelection of(Map<String, String> settings, Predicate<String> enabledByDefault) {
+            Set<String> enabled = new HashSet<>();
+            Set<String> disabled = new HashSet<>();
+            Map<String, Long> thresholds = new HashMap<>();
+            for (var entry : settings.entrySet()) {
+                String key = entry.getKey();
+                int hash = key.lastIndexOf('#');
+                if (hash == -1) {
+                    continue;
+                }
+                String name = key.substring(0, hash);
+                String value = entry.getValue().strip();
+                switch (key.substring(hash + 1)) {
+                    case "enabled" -> {
+                        if (value.equals("false")) {
+                            disabled.add(name);
+                        } else if (value.equals("true")) {
+                            enabled.add(name);
+                        }
+                    }
+                    case "threshold" -> {
+                        long nanos = parseNanos(value);
+                        if (nanos > 0) {
+                            thresholds.put(name, nanos);
+                        }
+                    }
+                    default -> {}
+                }
+            }
+            return new EventSelection(enabled, disabled, thresholds, enabledByDefault);
+        }
+
+        Set<String> enabled() {
+            return enabled;
+        }
+
+        Set<String> disabled() {
+            return disabled;
+        }
+
+        Map<String, Long> thresholdNanos() {
+            return thresholdNanos;
+        }
+
+        boolean test(RecordedEvent event) {
+            String name = event.getEventType().getName();
+            if (!selects(name)) {
+                return false;
+            }
+            Long threshold = thresholdNanos.get(name);
+            return threshold == null || event.getDuration().toNanos() >= threshold;
+        }
+
+        /** Does the recording get the events of the passed type, ignoring the threshold? */
+        boolean selects(String name) {
+            if (enabled.contains(name)) {
+                return true;
+            }
+            if (disabled.contains(name) || name.startsWith(AGENT_EVENT_PREFIX)) {
+                return false;
+            }
+            return unmentioned.computeIfAbsent(name, enabledByDefault::test);
+        }
+
+        /**
+         * Is the registered event type enabled by default? False for types that are not registered
+         * in this JVM
+         */
+        static boolean isEnabledByDefault(String name) {
+            for (EventType type : FlightRecorder.getFlightRecorder().getEventTypes()) {
+                if (type.getName().equals(name)) {
+                    return type.getSettingDescriptors().stream()
+                            .anyMatch(
+                                    s ->
+                                            s.getName().equals("enabled")
+                                                    && s.getDefaultValue().equals("true"));
+                }
+            }
+            return false;
+        }
+
+        /** Parse a JFR time span like {@code 20 ms}, 0 if it cannot be parsed */
+        static long parseNanos(String value) {
+            String[] parts = value.split("\\s+");
+            if (parts.length != 2) {
+                return 0;
+            }
+            long amount;
+            try {
+                amount = Long.parseLong(parts[0]);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+            long factor =
+                    switch (parts[1]) {
+                        case "ns" -> 1L;
+                        case "us" -> 1_000L;
+                        case "ms" -> 1_000_000L;
+                        case "s" -> 1_000_000_000L;
+                        case "m" -> 60_000_000_000L;
+                        case "h" -> 3_600_000_000_000L;
+                        case "d" -> 86_400_000_000_000L;
+                        default -> 0L;
+                    };
+            return amount * factor;
+        }
+    }
+}
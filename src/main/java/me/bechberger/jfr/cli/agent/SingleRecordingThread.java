@@ -15,12 +15,10 @@ import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 import jdk.jfr.consumer.RecordedEvent;
-import me.bechberger.condensed.Compression;
 import me.bechberger.condensed.CondensedOutputStream;
-import me.bechberger.condensed.Message.StartMessage;
 import me.bechberger.jfr.BasicJFRWriter;
 import me.bechberger.jfr.Configuration;
-import me.bechberger.jfr.cli.Constants;
+import org.jetbrains.annotations.Nullable;
 
 /** Record to a single file */
 public class SingleRecordingThread extends RecordingThread {
@@ -62,16 +60,12 @@ public class SingleRecordingThread extends RecordingThread {
             if (parent != null) {
                 Files.createDirectories(parent);
             }
-            rawOut = Files.newOutputStream(Path.of(path), WRITE, CREATE, TRUNCATE_EXISTING);
+            rawOut =
+                    openOutput(
+                            Path.of(path), this::periodicFlush, WRITE, CREATE, TRUNCATE_EXISTING);
             var condensedOut =
                     new CondensedOutputStream(
-                            rawOut,
-                            new StartMessage(
-                                    Constants.FORMAT_VERSION,
-                                    "condensed jfr agent",
-                                    Constants.VERSION,
-                                    configuration.name(),
-                                    Compression.DEFAULT));
+                            rawOut, createStartMessage(configuration), createAdaptiveCompression());
             writer = new BasicJFRWriter(condensedOut, configuration);
             writer.setGmtOffsetMillis(
                     java.util.TimeZone.getDefault().getOffset(System.currentTimeMillis()));
@@ -92,7 +86,7 @@ public class SingleRecordingThread extends RecordingThread {
     }
 
     @Override
-    void onEvent(RecordedEvent event) {
+    void onEvents(List<RecordedEvent> events) {
         if (triggeredStop.get()) {
             return;
         }
@@ -108,7 +102,9 @@ public class SingleRecordingThread extends RecordingThread {
                 triggerStop();
                 return;
             }
-            jfrWriter.processEvent(event);
+            for (RecordedEvent event : events) {
+                processEvent(jfrWriter, event);
+            }
         } catch (Exception e) {
             pendingError = "Error processing event: " + e.getMessage();
             triggerStop();
@@ -120,6 +116,33 @@ public class SingleRecordingThread extends RecordingThread {
         }
     }
 
+    @Override
+    void onDroppedEvents(Map<String, Long> droppedEvents) {
+        writerLock.lock();
+        try {
+            if (!triggeredStop.get()) {
+                droppedEvents.forEach(jfrWriter::countDroppedEvents);
+            }
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    /** Flush the writer to the file, used by the periodic durability */
+    private void periodicFlush() {
+        writerLock.lock();
+        try {
+            var writer = this.jfrWriter;
+            if (writer != null && !writer.isClosed() && !triggeredStop.get()) {
+                writer.flush();
+            }
+        } catch (Throwable t) {
+            agentIO.writeSevereError("Periodic flush failed: " + t.getMessage());
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
     private void triggerStop() {
         if (triggeredStop.compareAndSet(false, true)) {
             Thread t = new Thread(this::stop, "cjfr-single-stop");
@@ -195,6 +218,28 @@ public class SingleRecordingThread extends RecordingThread {
                 Map.entry("path", Path.of(path).toAbsolutePath().toString()));
     }
 
+    @Override
+    @Nullable
+    AgentTelemetry.WriterStatistics writerStatistics() {
+        boolean locked;
+        try {
+            locked = writerLock.tryLock(200, java.util.concurrent.TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            locked = false;
+        }
+        if (!locked) {
+            return null;
+        }
+        try {
+            return AgentTelemetry.WriterStatistics.of(jfrWriter, 0, 0);
+        } catch (Throwable t) {
+            return null; // closing
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
     /** Must be called while holding {@code writerLock}. */
     private boolean shouldEndFileUnderLock() {
         long durationNanos = getDuration().toNanos();
@@ -0,0 +1,498 @@
+package me.bechberger.jfr.cli.agent;
+
+import static me.bechberger.util.MemoryUtil.formatMemory;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import jdk.jfr.consumer.RecordedEvent;
+import me.bechberger.condensed.CondensedOutputStream;
+import me.bechberger.jfr.BasicJFRWriter;
+import me.bechberger.jfr.Configuration;
+import me.bechberger.jfr.cli.stream.SocketStreamProtocol;
+import me.bechberger.jfr.cli.stream.SocketStreamProtocol.FramedOutputStream;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Stream the recording over a Unix domain socket to a collector ({@code cjfr collect})
+ *
+ * <p>The batches of the shared JFR stream are queued and written by a sender thread of the
+ * recording, so a collector that does not keep up only blocks this recording and not the other
+ * recordings of the agent. At most {@value #MAX_QUEUED_BATCHES} batches are queued, further batches
+ * are counted as dropped. When the connection breaks, the events are counted as dropped until a
+ * reconnect succeeds, attempted with an exponential backoff. Every connection starts a new CJFR
+ * stream, whose footer contains the events dropped before it, including the dropped events that
+ * were counted in the footer of the torn stream. When rotating, the max size and max duration end
+ * the current stream and start a new one on the same connection; the collector writes each stream
+ * to its own file.
+ */
+public class SocketRecordingThread extends RecordingThread {
+
+    static final Duration MIN_RECONNECT_DELAY = Duration.ofMillis(100);
+    static final Duration MAX_RECONNECT_DELAY = Duration.ofSeconds(10);
+
+    /** Max batches waiting for the sender thread, each has up to 1024 events */
+    static final int MAX_QUEUED_BATCHES = 16;
+
+    /** Time that close waits for the sender to write the queued batches */
+    private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(2);
+
+    private final String path;
+    private final Path socket;
+    private final String name;
+    private final boolean rotating;
+    private final AtomicBoolean triggeredStop = new AtomicBoolean(false);
+
+    private final BlockingQueue<List<RecordedEvent>> queue =
+            new ArrayBlockingQueue<>(MAX_QUEUED_BATCHES);
+
+    /**
+     * Events dropped on the dispatch thread (throttled or not queued), counted by the sender in the
+     * current stream
+     */
+    private final Map<String, Long> pendingDropped = new ConcurrentHashMap<>();
+
+    /** Events that were not queued because the queue was full */
+    private final LongAdder queueOverflow = new LongAdder();
+
+    private final Thread sender;
+    private volatile boolean closing = false;
+
+    /** Serializes sending, close and the status methods, guards all fields below */
+    private final ReentrantLock writerLock = new ReentrantLock();
+
+    @Nullable private SocketChannel channel = null;
+    @Nullable private FramedOutputStream streamOut = null;
+    @Nullable private BasicJFRWriter jfrWriter = null;
+    private long streamStartNanos = 0;
+    private long nextConnectNanos = System.nanoTime();
+    private long reconnectDelayNanos = MIN_RECONNECT_DELAY.toNanos();
+    private boolean reportedDisconnect = false;
+    private long connections = 0;
+    private long streams = 0;
+
+    /** Events dropped while disconnected, counted in the footer of the next stream */
+    private final Map<String, Long> droppedWhileDisconnected = new HashMap<>();
+
+    /** Dropped events counted in the current stream, counted again if the stream is torn */
+    private final Map<String, Long> droppedInStream = new HashMap<>();
+
+    /**
+     * @param path socket path with the {@code unix:} prefix
+     * @param name name of the recording, sent to the collector
+     */
+    public SocketRecordingThread(
+            String path,
+            String name,
+            Configuration configuration,
+            boolean verbose,
+            String jfrConfig,
+            String miscJfrConfig,
+            Runnable onRecordingStopped,
+            DynamicallyChangeableSettings dynSettings,
+            boolean rotating)
+            throws IOException, ParseException {
+        super(
+                configuration,
+                verbose,
+                jfrConfig,
+                miscJfrConfig,
+                onRecordingStopped,
+                dynSettings,
+                rotating);
+        this.path = path;
+        this.socket = SocketStreamProtocol.socketPath(path);
+        this.name = name;
+        this.rotating = rotating;
+        registerShutdownHook();
+        writerLock.lock();
+        try {
+            if (!connectUnderLock()) {
+                agentIO.writeOutput(
+                        "Collector at "
+                                + socket
+                                + " is not reachable yet, retrying in the"
+                                + " background\n");
+            }
+        } catch (Throwable t) {
+            unregisterShutdownHook();
+            closeRecordingStream();
+            if (t instanceof IOException ioe) throw ioe;
+            throw new IOException("Failed to create writer", t);
+        } finally {
+            writerLock.unlock();
+        }
+        sender = new Thread(this::sendLoop, "cjfr-socket-sender");
+        sender.setDaemon(true);
+        sender.start();
+        agentIO.writeOutput("Condensed recording to " + path + " started\n");
+    }
+
+    /** The batches are queued for the sender thread by {@link #onEvents} */
+    @Override
+    boolean queuesBatches() {
+        return false;
+    }
+
+    /** Queue the batch for the sender thread, never blocks the shared dispatch thread */
+    @Override
+    void onEvents(List<RecordedEvent> events) {
+        if (triggeredStop.get() || closing) {
+            return;
+        }
+        if (!queue.offer(events)) {
+            queueOverflow.add(events.size());
+            for (RecordedEvent event : events) {
+                pendingDropped.merge(event.getEventType().getName(), 1L, Long::sum);
+            }
+        }
+    }
+
+    @Override
+    void onDroppedEvents(Map<String, Long> droppedEvents) {
+        droppedEvents.forEach((type, count) -> pendingDropped.merge(type, count, Long::sum));
+    }
+
+    /** Send the queued batches until the recording stops or is closed and the queue is empty */
+    private void sendLoop() {
+        try {
+            while (!triggeredStop.get()) {
+                List<RecordedEvent> batch = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (batch != null) {
+                    send(batch);
+                } else if (closing) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void send(List<RecordedEvent> events) {
+        writerLock.lock();
+        String pendingError = null;
+        try {
+            if (triggeredStop.get()) {
+                return;
+            }
+            if (shouldStopUnderLock()) {
+                triggerStop();
+                return;
+            }
+            if (jfrWriter == null && !connectUnderLock()) {
+                countDroppedUnderLock(events);
+                return;
+            }
+            if (shouldEndStreamUnderLock()) {
+                endStreamUnderLock();
+                startStreamUnderLock();
+            }
+            takePendingDroppedUnderLock();
+            for (RecordedEvent event : events) {
+                processEvent(jfrWriter, event);
+            }
+            // send the batch, so the collector is at most one flush of the JFR stream behind
+            jfrWriter.flush();
+        } catch (Exception e) {
+            if (streamOut != null && streamOut.failed()) {
+                // no event of the batch reached the collector completely
+                disconnectUnderLock(e);
+                countDroppedUnderLock(events);
+            } else {
+                pendingError = "Error processing event: " + e.getMessage();
+                triggerStop();
+            }
+        } finally {
+            writerLock.unlock();
+        }
+        if (pendingError != null) {
+            agentIO.writeSevereError(pendingError);
+        }
+    }
+
+    /** Count the events as dropped in the current stream, must hold {@code writerLock} */
+    private void countDroppedUnderLock(List<RecordedEvent> events) {
+        for (RecordedEvent event : events) {
+            countDroppedUnderLock(event.getEventType().getName(), 1);
+        }
+    }
+
+    /** Must be called while holding {@code writerLock} */
+    private void countDroppedUnderLock(String type, long count) {
+        if (jfrWriter != null) {
+            jfrWriter.countDroppedEvents(type, count);
+            droppedInStream.merge(type, count, Long::sum);
+        } else {
+            droppedWhileDisconnected.merge(type, count, Long::sum);
+        }
+    }
+
+    /** Count the events dropped on the dispatch thread, must hold {@code writerLock} */
+    private void takePendingDroppedUnderLock() {
+        for (String type : pendingDropped.keySet()) {
+            Long count = pendingDropped.remove(type);
+            if (count != null) {
+                countDroppedUnderLock(type, count);
+            }
+        }
+    }
+
+    /** Connect and start a stream if the backoff allows it, must hold {@code writerLock} */
+    private boolean connectUnderLock() throws IOException {
+        long now = System.nanoTime();
+        if (now - nextConnectNanos < 0) {
+            return false;
+        }
+        SocketChannel newChannel = null;
+        try {
+            newChannel = SocketStreamProtocol.connect(socket);
+            var out = new DataOutputStream(Channels.newOutputStream(newChannel));
+            new SocketStreamProtocol.Hello(ProcessHandle.current().pid(), name).write(out);
+            out.flush();
+        } catch (IOException e) {
+            if (newChannel != null) {
+                try {
+                    newChannel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            nextConnectNanos = now + reconnectDelayNanos;
+            reconnectDelayNanos = Math.min(reconnectDelayNanos * 2, MAX_RECONNECT_DELAY.toNanos());
+            return false;
+        }
+        channel = newChannel;
+        try {
+            startStreamUnderLock();
+        } catch (IOException | RuntimeException e) {
+            closeChannelUnderLock();
+            throw e;
+        }
+        reconnectDelayNanos = MIN_RECONNECT_DELAY.toNanos();
+        connections++;
+        if (reportedDisconnect) {
+            reportedDisconnect = false;
+            agentIO.writeOutput("Reconnected to collector at " + socket + "\n");
+        }
+        return true;
+    }
+
+    private void startStreamUnderLock() throws IOException {
+        streamOut = new FramedOutputStream(Channels.newOutputStream(channel));
+        var condensedOut =
+                new CondensedOutputStream(
+                        streamOut,
+                        createStartMessage(getConfiguration()),
+                        createAdaptiveCompression());
+        var writer = new BasicJFRWriter(condensedOut, getConfiguration());
+        writer.setGmtOffsetMillis(TimeZone.getDefault().getOffset(System.currentTimeMillis()));
+        droppedWhileDisconnected.forEach(writer::countDroppedEvents);
+        droppedInStream.clear();
+        droppedInStream.putAll(droppedWhileDisconnected);
+        droppedWhileDisconnected.clear();
+        jfrWriter = writer;
+        streamStartNanos = System.nanoTime();
+        streams++;
+    }
+
+    /** Write the footer of the current stream, must hold {@code writerLock} */
+    private void endStreamUnderLock() {
+        var writer = jfrWriter;
+        jfrWriter = null;
+        if (writer != null) {
+            writer.close();
+            droppedInStream.clear();
+        }
+    }
+
+    /** Abandon the torn stream and schedule a reconnect, must hold {@code writerLock} */
+    private void disconnectUnderLock(Exception cause) {
+        jfrWriter = null;
+        // the footer with these counts will never be written
+        droppedInStream.forEach(
+                (type, count) -> droppedWhileDisconnected.merge(type, count, Long::sum));
+        droppedInStream.clear();
+        closeChannelUnderLock();
+        nextConnectNanos = System.nanoTime() + reconnectDelayNanos;
+        if (!reportedDisconnect) {
+            reportedDisconnect = true;
+            agentIO.writeSevereError(
+                    "Lost connection to collector at "
+                            + socket
+                            + ": "
+                            + cause.getMessage()
+                            + ", dropping events until reconnected");
+        }
+    }
+
+    private void closeChannelUnderLock() {
+        streamOut = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+
+    /** Must be called while holding {@code writerLock} */
+    private boolean shouldStopUnderLock() {
+        long durationNanos = getDuration().toNanos();
+        if (durationNanos > 0 && (System.nanoTime() - startNanos) > durationNanos) {
+            return true;
+        }
+        return !rotating
+                && jfrWriter != null
+                && getMaxSize() > 0
+                && jfrWriter.estimateSize() > getMaxSize();
+    }
+
+    /** Must be called while holding {@code writerLock} */
+    private boolean shouldEndStreamUnderLock() {
+        if (!rotating) {
+            return false;
+        }
+        long maxDurationNanos = getMaxDuration().toNanos();
+        boolean isDurationExceeded =
+                maxDurationNanos > 0 && (System.nanoTime() - streamStartNanos) > maxDurationNanos;
+        boolean isSizeExceeded = getMaxSize() > 0 && jfrWriter.estimateSize() > getMaxSize();
+        return isDurationExceeded || isSizeExceeded;
+    }
+
+    private void triggerStop() {
+        if (triggeredStop.compareAndSet(false, true)) {
+            Thread t = new Thread(this::stop, "cjfr-socket-stop");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        try {
+            sender.join(CLOSE_TIMEOUT.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (sender.isAlive()) {
+            // a write blocks on a collector that does not read, closing the channel unblocks it
+            agentIO.writeSevereError(
+                    "Could not send the queued events within "
+                            + CLOSE_TIMEOUT.toSeconds()
+                            + "s during close; closing the connection without footer");
+            var openChannel = channel;
+            if (openChannel != null) {
+                try {
+                    openChannel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return;
+        }
+        writerLock.lock();
+        try {
+            if (jfrWriter != null) {
+                // batches left after a triggered stop
+                List<RecordedEvent> batch;
+                while ((batch = queue.poll()) != null) {
+                    countDroppedUnderLock(batch);
+                }
+                takePendingDroppedUnderLock();
+                endStreamUnderLock();
+            }
+        } catch (Throwable t) {
+            agentIO.writeSevereError("Could not end the stream: " + t.getMessage());
+        } finally {
+            closeChannelUnderLock();
+            writerLock.unlock();
+        }
+        agentIO.writeOutput("Condensed recording to " + path + " finished\n");
+    }
+
+    @Override
+    List<Entry<String, String>> getMiscStatus() {
+        boolean locked;
+        try {
+            locked = writerLock.tryLock(200, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            locked = false;
+        }
+        List<Entry<String, String>> status = new ArrayList<>();
+        status.add(Map.entry("mode", rotating ? "rotating socket" : "socket"));
+        status.add(Map.entry("path", path));
+        status.add(Map.entry("queued-batches", String.valueOf(queue.size())));
+        status.add(Map.entry("dropped-queue-full", String.valueOf(queueOverflow.sum())));
+        if (!locked) {
+            status.add(Map.entry("state", "writing (status unavailable)"));
+            return status;
+        }
+        try {
+            status.add(Map.entry("state", jfrWriter != null ? "connected" : "disconnected"));
+            status.add(Map.entry("connections", String.valueOf(connections)));
+            status.add(Map.entry("streams", String.valueOf(streams)));
+            if (jfrWriter != null) {
+                status.add(
+                        Map.entry(
+                                "current-stream-size-uncompressed",
+                                formatMemory(jfrWriter.getUncompressedBytes(), 3)));
+            }
+        } catch (Throwable t) {
+            status.add(Map.entry("state", "closing"));
+        } finally {
+            writerLock.unlock();
+        }
+        return status;
+    }
+
+    @Override
+    @Nullable
+    AgentTelemetry.WriterStatistics writerStatistics() {
+        boolean locked;
+        try {
+            locked = writerLock.tryLock(200, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            locked = false;
+        }
+        if (!locked) {
+            return null;
+        }
+        try {
+            return jfrWriter == null ? null : AgentTelemetry.WriterStatistics.of(jfrWriter, 0, 0);
+        } catch (Throwable t) {
+            return null; // closing
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    /** Is the recording connected to the collector? */
+    boolean isConnected() {
+        writerLock.lock();
+        try {
+            return jfrWriter != null;
+        } finally {
+            writerLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package me.bechberger.jfr.cli.agent.commands;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import me.bechberger.femtocli.annotations.Command;
+import me.bechberger.femtocli.annotations.Option;
+import me.bechberger.jfr.cli.agent.Agent;
+import me.bechberger.jfr.cli.agent.AgentIO;
+import me.bechberger.jfr.cli.agent.RecordingThread;
+
+@Command(
+        name = "dump",
+        description = "Write the in-memory data of a ring buffer recording to files",
+        mixinStandardHelpOptions = true)
+public class DumpCommand implements Callable<Integer> {
+
+    @Option(
+            names = "--name",
+            description = "Name of the recording, required if multiple recordings are running")
+    private String name = null;
+
+    @Override
+    public Integer call() {
+        RecordingThread recordingThread;
+        synchronized (Agent.getSyncObject()) {
+            recordingThread = Agent.selectRecordingThreadOrReport(name);
+        }
+        if (recordingThread == null) {
+            return 1;
+        }
+        if (!recordingThread.supportsDump()) {
+            AgentIO.getAgentInstance()
+                    .writeSevereError(
+                            "Only ring buffer recordings can be dumped, start them with"
+                                    + " --ring-buffer");
+            return 1;
+        }
+        // outside the sync object, the dump waits for the files to be written
+        try {
+            var files = recordingThread.dump();
+            for (var file : files) {
+                AgentIO.getAgentInstance().println(file.toAbsolutePath().toString());
+            }
+            return 0;
+        } catch (IOException e) {
+            AgentIO.getAgentInstance().writeSevereError(e.getMessage());
+            return 1;
+        }
+    }
+}
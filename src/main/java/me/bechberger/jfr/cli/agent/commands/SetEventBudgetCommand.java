@@ -0,0 +1,42 @@
+package me.bechberger.jfr.cli.agent.commands;
+
+import java.util.concurrent.Callable;
+import me.bechberger.femtocli.annotations.Command;
+import me.bechberger.femtocli.annotations.Option;
+import me.bechberger.femtocli.annotations.Parameters;
+import me.bechberger.jfr.cli.agent.Agent;
+import me.bechberger.jfr.cli.agent.AgentIO;
+import me.bechberger.jfr.cli.agent.DynamicallyChangeableSettings;
+import me.bechberger.jfr.cli.agent.RecordingThread;
+
+@Command(
+        name = "set-event-budget",
+        description = "Set the events per second budget",
+        mixinStandardHelpOptions = true)
+public class SetEventBudgetCommand implements Callable<Integer> {
+
+    @Parameters(description = "The maximum events per second, 0 means unlimited")
+    private long eventBudget;
+
+    @Option(
+            names = "--name",
+            description = "Name of the recording, required if multiple recordings are running")
+    private String name = null;
+
+    @Override
+    public Integer call() {
+        synchronized (Agent.getSyncObject()) {
+            RecordingThread recordingThread = Agent.selectRecordingThreadOrReport(name);
+            if (recordingThread == null) {
+                return 1;
+            }
+            try {
+                recordingThread.setEventBudget(eventBudget);
+            } catch (DynamicallyChangeableSettings.ValidationException e) {
+                AgentIO.getAgentInstance().writeSevereError(e.getMessage());
+                return 1;
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package me.bechberger.jfr.cli.agent.commands;
+
+import java.util.concurrent.Callable;
+import me.bechberger.femtocli.annotations.Command;
+import me.bechberger.femtocli.annotations.Option;
+import me.bechberger.femtocli.annotations.Parameters;
+import me.bechberger.jfr.cli.agent.Agent;
+import me.bechberger.jfr.cli.agent.AgentIO;
+import me.bechberger.jfr.cli.agent.DynamicallyChangeableSettings;
+import me.bechberger.jfr.cli.agent.RecordingThread;
+
+@Command(
+        name = "set-event-cpu-budget",
+        description = "Set the CPU budget for processing events",
+        mixinStandardHelpOptions = true)
+public class SetEventCpuBudgetCommand implements Callable<Integer> {
+
+    @Parameters(
+            description =
+                    "The maximum percentage of the time spent processing events, 0 means unlimited")
+    private int eventCpuBudget;
+
+    @Option(
+            names = "--name",
+            description = "Name of the recording, required if multiple recordings are running")
+    private String name = null;
+
+    @Override
+    public Integer call() {
+        synchronized (Agent.getSyncObject()) {
+            RecordingThread recordingThread = Agent.selectRecordingThreadOrReport(name);
+            if (recordingThread == null) {
+                return 1;
+            }
+            try {
+                recordingThread.setEventCpuBudget(eventCpuBudget);
+            } catch (DynamicallyChangeableSettings.ValidationException e) {
+                AgentIO.getAgentInstance().writeSevereError(e.getMessage());
+                return 1;
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package me.bechberger.jfr.cli.agent.commands;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import me.bechberger.femtocli.annotations.Command;
+import me.bechberger.femtocli.annotations.Option;
+import me.bechberger.femtocli.annotations.Parameters;
+import me.bechberger.jfr.cli.CLIUtils.DurationConverter;
+import me.bechberger.jfr.cli.agent.Agent;
+import me.bechberger.jfr.cli.agent.AgentIO;
+import me.bechberger.jfr.cli.agent.DynamicallyChangeableSettings;
+import me.bechberger.jfr.cli.agent.RecordingThread;
+
+@Command(
+        name = "set-max-age",
+        description = "Set the max age of rotated files",
+        mixinStandardHelpOptions = true)
+public class SetMaxAgeCommand implements Callable<Integer> {
+
+    @Parameters(
+            description = "The maximum age of rotated files, 0 means unlimited",
+            converter = DurationConverter.class)
+    private Duration maxAge;
+
+    @Option(
+            names = "--name",
+            description = "Name of the recording, required if multiple recordings are running")
+    private String name = null;
+
+    @Override
+    public Integer call() {
+        synchronized (Agent.getSyncObject()) {
+            RecordingThread recordingThread = Agent.selectRecordingThreadOrReport(name);
+            if (recordingThread == null) {
+                return 1;
+            }
+            try {
+                recordingThread.setMaxAge(maxAge);
+            } catch (DynamicallyChangeableSettings.ValidationException e) {
+                AgentIO.getAgentInstance().writeSevereError(e.getMessage());
+                return 1;
+            }
+            return 0;
+        }
+    }
+}
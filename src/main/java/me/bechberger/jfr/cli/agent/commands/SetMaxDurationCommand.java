@@ -3,11 +3,13 @@ package me.bechberger.jfr.cli.agent.commands;
 import java.time.Duration;
 import java.util.concurrent.Callable;
 import me.bechberger.femtocli.annotations.Command;
+import me.bechberger.femtocli.annotations.Option;
 import me.bechberger.femtocli.annotations.Parameters;
 import me.bechberger.jfr.cli.CLIUtils.DurationConverter;
 import me.bechberger.jfr.cli.agent.Agent;
 import me.bechberger.jfr.cli.agent.AgentIO;
 import me.bechberger.jfr.cli.agent.DynamicallyChangeableSettings;
+import me.bechberger.jfr.cli.agent.RecordingThread;
 
 @Command(
         name = "set-max-duration",
@@ -20,15 +22,20 @@ public class SetMaxDurationCommand implements Callable<Integer> {
             converter = DurationConverter.class)
     private Duration maxDuration;
 
+    @Option(
+            names = "--name",
+            description = "Name of the recording, required if multiple recordings are running")
+    private String name = null;
+
     @Override
     public Integer call() {
         synchronized (Agent.getSyncObject()) {
-            if (Agent.getCurrentRecordingThread() == null) {
-                AgentIO.getAgentInstance().println("No recording running");
+            RecordingThread recordingThread = Agent.selectRecordingThreadOrReport(name);
+            if (recordingThread == null) {
                 return 1;
             }
             try {
-                Agent.getCurrentRecordingThread().setMaxDuration(maxDuration);
+                recordingThread.setMaxDuration(maxDuration);
             } catch (DynamicallyChangeableSettings.ValidationException e) {
                 AgentIO.getAgentInstance().writeSevereError(e.getMessage());
                 return 1;
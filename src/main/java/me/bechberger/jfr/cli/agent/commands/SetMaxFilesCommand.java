@@ -2,10 +2,12 @@ package me.bechberger.jfr.cli.agent.commands;
 
 import java.util.concurrent.Callable;
 import me.bechberger.femtocli.annotations.Command;
+import me.bechberger.femtocli.annotations.Option;
 import me.bechberger.femtocli.annotations.Parameters;
 import me.bechberger.jfr.cli.agent.Agent;
 import me.bechberger.jfr.cli.agent.AgentIO;
 import me.bechberger.jfr.cli.agent.DynamicallyChangeableSettings;
+import me.bechberger.jfr.cli.agent.RecordingThread;
 
 @Command(
         name = "set-max-files",
@@ -16,15 +18,20 @@ public class SetMaxFilesCommand implements Callable<Integer> {
     @Parameters(description = "The maximum number of files to keep, when rotating files")
     private int maxFiles;
 
+    @Option(
+            names = "--name",
+            description = "Name of the recording, required if multiple recordings are running")
+    private String name = null;
+
     @Override
     public Integer call() {
         synchronized (Agent.getSyncObject()) {
-            if (Agent.getCurrentRecordingThread() == null) {
-                AgentIO.getAgentInstance().println("No recording running");
+            RecordingThread recordingThread = Agent.selectRecordingThreadOrReport(name);
+            if (recordingThread == null) {
                 return 1;
             }
             try {
-                Agent.getCurrentRecordingThread().setMaxFiles(maxFiles);
+                recordingThread.setMaxFiles(maxFiles);
             } catch (IllegalArgumentException
                     | DynamicallyChangeableSettings.ValidationException e) {
                 AgentIO.getAgentInstance().writeSevereError(e.getMessage());
@@ -0,0 +1,46 @@
+package me.bechberger.jfr.cli.agent.commands;
+
+import java.util.concurrent.Callable;
+import me.bechberger.femtocli.annotations.Command;
+import me.bechberger.femtocli.annotations.Option;
+import me.bechberger.femtocli.annotations.Parameters;
+import me.bechberger.jfr.cli.CLIUtils.ByteSizeConverter;
+import me.bechberger.jfr.cli.agent.Agent;
+import me.bechberger.jfr.cli.agent.AgentIO;
+import me.bechberger.jfr.cli.agent.DynamicallyChangeableSettings;
+import me.bechberger.jfr.cli.agent.RecordingThread;
+
+@Command(
+        name = "set-max-total-size",
+        description = "Set the max size of all rotated files together",
+        mixinStandardHelpOptions = true)
+public class SetMaxTotalSizeCommand implements Callable<Integer> {
+
+    @Parameters(
+            description =
+                    "The maximum size of all rotated files together (>= 1kB), 0 means unlimited",
+            converter = ByteSizeConverter.class)
+    private long maxTotalSize;
+
+    @Option(
+            names = "--name",
+            description = "Name of the recording, required if multiple recordings are running")
+    private String name = null;
+
+    @Override
+    public Integer call() {
+        synchronized (Agent.getSyncObject()) {
+            RecordingThread recordingThread = Agent.selectRecordingThreadOrReport(name);
+            if (recordingThread == null) {
+                return 1;
+            }
+            try {
+                recordingThread.setMaxTotalSize(maxTotalSize);
+            } catch (DynamicallyChangeableSettings.ValidationException e) {
+                AgentIO.getAgentInstance().writeSevereError(e.getMessage());
+                return 1;
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package me.bechberger.jfr.cli.agent.commands;
+
+import java.util.concurrent.Callable;
+import me.bechberger.femtocli.annotations.Command;
+import me.bechberger.femtocli.annotations.Option;
+import me.bechberger.femtocli.annotations.Parameters;
+import me.bechberger.jfr.cli.CLIUtils.ByteSizeConverter;
+import me.bechberger.jfr.cli.agent.Agent;
+import me.bechberger.jfr.cli.agent.AgentIO;
+import me.bechberger.jfr.cli.agent.DynamicallyChangeableSettings;
+import me.bechberger.jfr.cli.agent.RecordingThread;
+
+@Command(
+        name = "set-min-free-space",
+        description = "Set the usable space to keep free for rotated files",
+        mixinStandardHelpOptions = true)
+public class SetMinFreeSpaceCommand implements Callable<Integer> {
+
+    @Parameters(
+            description =
+                    "The usable space to keep free on the file system of the rotated files, 0"
+                        + " disables the check",
+            converter = ByteSizeConverter.class)
+    private long minFreeSpace;
+
+    @Option(
+            names = "--name",
+            description = "Name of the recording, required if multiple recordings are running")
+    private String name = null;
+
+    @Override
+    public Integer call() {
+        synchronized (Agent.getSyncObject()) {
+            RecordingThread recordingThread = Agent.selectRecordingThreadOrReport(name);
+            if (recordingThread == null) {
+                return 1;
+            }
+            try {
+                recordingThread.setMinFreeSpace(minFreeSpace);
+            } catch (DynamicallyChangeableSettings.ValidationException e) {
+                AgentIO.getAgentInstance().writeSevereError(e.getMessage());
+                return 1;
+            }
+            return 0;
+        }
+    }
+}
@@ -1,13 +1,18 @@
 package me.bechberger.jfr.cli.agent.commands;
 
+import java.time.Duration;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
 import me.bechberger.femtocli.annotations.Command;
 import me.bechberger.femtocli.annotations.Mixin;
 import me.bechberger.femtocli.annotations.Option;
 import me.bechberger.femtocli.annotations.Parameters;
 import me.bechberger.jfr.Configuration;
 import me.bechberger.jfr.cli.CLIUtils.ConfigurationConverter;
+import me.bechberger.jfr.cli.CLIUtils.DurationConverter;
 import me.bechberger.jfr.cli.agent.*;
+import me.bechberger.jfr.cli.stream.SocketStreamProtocol;
+import org.jetbrains.annotations.Nullable;
 
 @Command(name = "start", description = "Start the recording", mixinStandardHelpOptions = true)
 public class StartCommand implements Callable<Integer> {
@@ -16,7 +21,9 @@ public class StartCommand implements Callable<Integer> {
             index = "0",
             arity = "0..1",
             paramLabel = "PATH",
-            description = "Path to the recording file .cjfr file",
+            description =
+                    "Path to the recording file .cjfr file, or unix:<socket> to stream to 'cjfr"
+                            + " collect'",
             defaultValue = "recording.cjfr")
     private String path;
 
@@ -59,21 +66,83 @@ public class StartCommand implements Callable<Integer> {
             defaultValue = "false")
     private boolean rotating;
 
+    @Option(
+            names = "--ring-buffer",
+            description =
+                    "Keep the recording in memory, in a ring of up to --max-files segments that"
+                            + " holds at most --max-size bytes and --max-duration of events, and"
+                            + " write it to files only on 'dump' or a --dump-on-* trigger. The"
+                            + " path placeholders work like with --rotating.",
+            defaultValue = "false")
+    private boolean ringBuffer;
+
+    @Option(
+            names = "--dump-on-gc-pause",
+            description =
+                    "Dump the ring buffer after a GC pause of at least this duration, 0 to disable",
+            defaultValue = "0s",
+            converter = DurationConverter.class)
+    private Duration dumpOnGcPause = Duration.ZERO;
+
+    @Option(
+            names = "--dump-on-cpu-load",
+            description =
+                    "Dump the ring buffer when the machine CPU load reaches this percentage, 0 to"
+                            + " disable",
+            defaultValue = "0")
+    private int dumpOnCpuLoad = 0;
+
+    @Option(
+            names = "--dump-cooldown",
+            description = "Minimal time between two triggered dumps of the ring buffer",
+            defaultValue = "1m",
+            converter = DurationConverter.class)
+    private Duration dumpCooldown = Duration.ofMinutes(1);
+
+    @Option(
+            names = "--name",
+            description =
+                    "Name of the recording, to run multiple recordings with different settings"
+                            + " at the same time",
+            defaultValue = Agent.DEFAULT_RECORDING_NAME)
+    private String name = Agent.DEFAULT_RECORDING_NAME;
+
+    @Option(
+            names = "--telemetry-events",
+            description =
+                    "Record the cost of this recording as periodic cjfr.AgentTelemetry events"
+                            + " in the recording itself",
+            defaultValue = "false")
+    private boolean telemetryEvents;
+
     @Mixin private DynamicallyChangeableSettings dynSettings;
 
     @Override
     public Integer call() throws Exception {
         synchronized (Agent.getSyncObject()) {
-            if (Agent.getCurrentRecordingThread() != null) {
+            if (name == null || name.isBlank()) {
+                AgentIO.getAgentInstance().writeSevereError("Recording name must not be empty");
+                return 1;
+            }
+            if (Agent.getRecordingThread(name) != null) {
                 AgentIO.getAgentInstance()
-                        .writeSevereError("Recording already running, please stop it first");
+                        .writeSevereError(
+                                "Recording already running with name "
+                                        + name
+                                        + ", please stop it first");
                 return 1;
             }
             if (path == null || path.isBlank()) {
                 AgentIO.getAgentInstance().writeSevereError("Output path must not be empty");
                 return 1;
             }
-            if (rotating) {
+            boolean socket = SocketStreamProtocol.isSocketPath(path);
+            if (rotating && ringBuffer) {
+                AgentIO.getAgentInstance()
+                        .writeSevereError("--rotating and --ring-buffer are mutually exclusive");
+                return 1;
+            }
+            if (rotating || ringBuffer) {
                 if (dynSettings.maxFiles < 1) {
                     AgentIO.getAgentInstance().writeSevereError("max-files must be at least 1");
                     return 1;
@@ -81,30 +150,116 @@ public class StartCommand implements Callable<Integer> {
                 if (dynSettings.maxSize == 0 && dynSettings.maxDuration.isZero()) {
                     AgentIO.getAgentInstance()
                             .writeSevereError(
-                                    "max-size or max-duration required when rotating files");
+                                    rotating
+                                            ? "max-size or max-duration required when rotating"
+                                                    + " files"
+                                            : "max-size or max-duration required for a ring"
+                                                    + " buffer");
+                    return 1;
+                }
+                if (!socket) {
+                    path = ensureRotatingPathHasPlaceholder(path);
+                }
+            }
+            if (socket) {
+                String error = checkSocketOptions();
+                if (error != null) {
+                    AgentIO.getAgentInstance().writeSevereError(error);
                     return 1;
                 }
-                path = ensureRotatingPathHasPlaceholder(path);
             }
+            if (ringBuffer
+                    && (dynSettings.maxTotalSize != 0
+                            || !dynSettings.maxAge.isZero()
+                            || dynSettings.minFreeSpace != 0)) {
+                AgentIO.getAgentInstance()
+                        .writeSevereError(
+                                "--max-total-size, --max-age and --min-free-space are not"
+                                        + " supported with --ring-buffer");
+                return 1;
+            }
+            if (ringBuffer && dynSettings.sharedDictionary) {
+                AgentIO.getAgentInstance()
+                        .writeSevereError(
+                                "--shared-dictionary is not supported with --ring-buffer");
+                return 1;
+            }
+            RingBufferRecordingThread.DumpTriggers triggers;
             try {
-                dynSettings.validate(rotating);
-            } catch (DynamicallyChangeableSettings.ValidationException e) {
+                dynSettings.validate(rotating || ringBuffer);
+                triggers =
+                        new RingBufferRecordingThread.DumpTriggers(
+                                dumpOnGcPause, dumpOnCpuLoad, dumpCooldown);
+            } catch (DynamicallyChangeableSettings.ValidationException
+                    | IllegalArgumentException e) {
                 AgentIO.getAgentInstance().writeSevereError(e.getMessage());
                 return 1;
             }
-            if (rotating) {
+            if (!ringBuffer && (!dumpOnGcPause.isZero() || dumpOnCpuLoad > 0)) {
+                AgentIO.getAgentInstance()
+                        .writeSevereError("--dump-on-* options require --ring-buffer");
+                return 1;
+            }
+            if (telemetryEvents) {
+                miscJfrConfig =
+                        (miscJfrConfig.isEmpty() ? "" : miscJfrConfig + "|")
+                                + AgentTelemetry.EVENT_NAME
+                                + "#enabled=true";
+            }
+            // the thread is only known after construction, but its callback must not remove a
+            // newer recording with the same name
+            AtomicReference<RecordingThread> started = new AtomicReference<>();
+            Runnable removeFromAgent = () -> Agent.removeRecordingThread(name, started.get());
+            RecordingThread rt;
+            if (ringBuffer) {
+                try {
+                    rt =
+                            new RingBufferRecordingThread(
+                                    path,
+                                    configuration,
+                                    verbose,
+                                    jfrConfig,
+                                    miscJfrConfig,
+                                    removeFromAgent,
+                                    dynSettings,
+                                    triggers);
+                } catch (Exception e) {
+                    AgentIO.getAgentInstance()
+                            .writeSevereError(
+                                    "Could not start ring buffer recording: " + e.getMessage());
+                    return 1;
+                }
+            } else if (socket) {
                 try {
-                    Agent.setCurrentRecordingThread(
+                    rt =
+                            new SocketRecordingThread(
+                                    path,
+                                    name,
+                                    configuration,
+                                    verbose,
+                                    jfrConfig,
+                                    miscJfrConfig,
+                                    removeFromAgent,
+                                    dynSettings,
+                                    rotating);
+                } catch (Exception e) {
+                    AgentIO.getAgentInstance()
+                            .writeSevereError(
+                                    "Could not start socket recording: " + e.getMessage());
+                    return 1;
+                }
+            } else if (rotating) {
+                try {
+                    rt =
                             new RotatingRecordingThread(
                                     path,
                                     configuration,
                                     verbose,
                                     jfrConfig,
                                     miscJfrConfig,
-                                    () -> Agent.setCurrentRecordingThread(null),
-                                    dynSettings));
+                                    removeFromAgent,
+                                    dynSettings);
                 } catch (Exception e) {
-                    Agent.setCurrentRecordingThread(null);
                     AgentIO.getAgentInstance()
                             .writeSevereError(
                                     "Could not start rotating recording: " + e.getMessage());
@@ -112,29 +267,37 @@ public class StartCommand implements Callable<Integer> {
                 }
             } else {
                 try {
-                    Agent.setCurrentRecordingThread(
+                    rt =
                             new SingleRecordingThread(
                                     path,
                                     configuration,
                                     verbose,
                                     jfrConfig,
                                     miscJfrConfig,
-                                    () -> Agent.setCurrentRecordingThread(null),
-                                    dynSettings));
+                                    removeFromAgent,
+                                    dynSettings);
                 } catch (Exception e) {
-                    Agent.setCurrentRecordingThread(null);
                     AgentIO.getAgentInstance()
                             .writeSevereError("Could not start recording: " + e.getMessage());
                     return 1;
                 }
             }
-            RecordingThread rt = Agent.getCurrentRecordingThread();
-            Thread t = new Thread(rt, "cjfr-agent-recording");
+            started.set(rt);
+            Agent.addRecordingThread(name, rt);
+            try {
+                rt.getTelemetry().register(name);
+            } catch (Exception e) {
+                AgentIO.getAgentInstance()
+                        .writeSevereError(
+                                "Could not register the telemetry MBean: " + e.getMessage());
+            }
+            Thread t = new Thread(rt, "cjfr-agent-recording[" + name + "]");
             t.setDaemon(true);
             try {
                 t.start();
             } catch (Throwable e) {
-                Agent.setCurrentRecordingThread(null);
+                Agent.removeRecordingThread(name, rt);
+                rt.getTelemetry().unregister();
                 try {
                     rt.close();
                 } catch (Throwable ignored) {
@@ -147,6 +310,32 @@ public class StartCommand implements Callable<Integer> {
         }
     }
 
+    /** Options that only apply to files, the collector stores and retains the files */
+    @Nullable
+    private String checkSocketOptions() {
+        try {
+            SocketStreamProtocol.socketPath(path);
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+        if (ringBuffer) {
+            return "--ring-buffer is not supported with a socket path";
+        }
+        if (dynSettings.maxTotalSize != 0
+                || !dynSettings.maxAge.isZero()
+                || dynSettings.minFreeSpace != 0) {
+            return "--max-total-size, --max-age and --min-free-space are not supported with a"
+                    + " socket path, use the --max-files of 'cjfr collect'";
+        }
+        if (dynSettings.sharedDictionary) {
+            return "--shared-dictionary is not supported with a socket path";
+        }
+        if (dynSettings.durability != Durability.NONE) {
+            return "--durability is not supported with a socket path";
+        }
+        return null;
+    }
+
     static String ensureRotatingPathHasPlaceholder(String path) {
         if (RotatingRecordingThread.containsPlaceholder(path)) {
             return path;
@@ -1,7 +1,10 @@
 package me.bechberger.jfr.cli.agent.commands;
 
+import java.util.ArrayList;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import me.bechberger.femtocli.annotations.Command;
+import me.bechberger.femtocli.annotations.Option;
 import me.bechberger.jfr.cli.agent.Agent;
 import me.bechberger.jfr.cli.agent.AgentIO;
 
@@ -11,18 +14,36 @@ import me.bechberger.jfr.cli.agent.AgentIO;
         mixinStandardHelpOptions = true)
 public class StatusCommand implements Callable<Integer> {
 
+    @Option(
+            names = "--name",
+            description = "Name of the recording, default is to show all recordings")
+    private String name = null;
+
     @Override
     public Integer call() {
         synchronized (Agent.getSyncObject()) {
-            if (Agent.getCurrentRecordingThread() == null) {
-                AgentIO.getAgentInstance().println("No recording running");
+            var recordingThreads = Agent.selectRecordingThreads(name);
+            if (recordingThreads.isEmpty()) {
+                AgentIO.getAgentInstance()
+                        .println(
+                                name == null
+                                        ? "No recording running"
+                                        : "No recording running with name " + name);
                 return 1;
-            } else {
+            }
+            boolean first = true;
+            for (var recording : recordingThreads) {
+                if (!first) {
+                    AgentIO.getAgentInstance().println("");
+                }
+                first = false;
                 AgentIO.getAgentInstance().println("Recording running");
-                var status = Agent.getCurrentRecordingThread().getStatus();
+                var status = new ArrayList<Map.Entry<String, String>>();
+                status.add(Map.entry("name", recording.getKey()));
+                status.addAll(recording.getValue().getStatus());
                 var maxNameLength =
                         status.stream().mapToInt(e -> e.getKey().length()).max().orElse(0);
-                for (var entry : Agent.getCurrentRecordingThread().getStatus()) {
+                for (var entry : status) {
                     AgentIO.getAgentInstance()
                             .printf(
                                     "%" + maxNameLength + "s: %s%n",
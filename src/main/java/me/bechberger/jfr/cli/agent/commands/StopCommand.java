@@ -2,20 +2,31 @@ package me.bechberger.jfr.cli.agent.commands;
 
 import java.util.concurrent.Callable;
 import me.bechberger.femtocli.annotations.Command;
+import me.bechberger.femtocli.annotations.Option;
 import me.bechberger.jfr.cli.agent.Agent;
 import me.bechberger.jfr.cli.agent.AgentIO;
 
 @Command(name = "stop", description = "Stop the recording", mixinStandardHelpOptions = true)
 public class StopCommand implements Callable<Integer> {
 
+    @Option(
+            names = "--name",
+            description = "Name of the recording to stop, default is to stop all recordings")
+    private String name = null;
+
     @Override
     public Integer call() {
         synchronized (Agent.getSyncObject()) {
-            if (Agent.getCurrentRecordingThread() == null) {
-                AgentIO.getAgentInstance().println("No recording running");
+            var recordingThreads = Agent.selectRecordingThreads(name);
+            if (recordingThreads.isEmpty()) {
+                AgentIO.getAgentInstance()
+                        .println(
+                                name == null
+                                        ? "No recording running"
+                                        : "No recording running with name " + name);
                 return 1;
             }
-            Agent.getCurrentRecordingThread().stop();
+            recordingThreads.forEach(e -> e.getValue().stop());
             return 0;
         }
     }
@@ -12,15 +12,21 @@ import java.io.PrintStream;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import me.bechberger.femtocli.annotations.Command;
 import me.bechberger.femtocli.annotations.Parameters;
 import me.bechberger.jfr.cli.agent.AgentIO;
 import me.bechberger.jfr.cli.agent.commands.*;
 import me.bechberger.jfr.cli.commands.AgentCommand.ReadCommand;
+import me.bechberger.util.TimeUtil;
 
 @Command(
         name = "agent",
@@ -34,7 +40,13 @@ import me.bechberger.jfr.cli.commands.AgentCommand.ReadCommand;
             StatusCommand.class,
             StopCommand.class,
             ReadCommand.class,
-            SetDurationCommand.class
+            SetDurationCommand.class,
+            SetMaxTotalSizeCommand.class,
+            SetMaxAgeCommand.class,
+            SetMinFreeSpaceCommand.class,
+            SetEventBudgetCommand.class,
+            SetEventCpuBudgetCommand.class,
+            DumpCommand.class
         })
 public class AgentCommand implements Callable<Integer> {
 
@@ -108,8 +120,9 @@ public class AgentCommand implements Callable<Integer> {
             index = "0",
             paramLabel = "TARGET",
             description =
-                    "The target JVM: 'all' (every discovered JVM), a PID, or a name filter"
-                            + " (case-insensitive substring match on main class)",
+                    "The target JVM: 'all' (every discovered JVM, in parallel, optionally"
+                            + " followed by --parallelism N and --timeout DURATION), a PID, or a"
+                            + " name filter (case-insensitive substring match on main class)",
             defaultValue = "")
     private String target = "";
 
@@ -259,48 +272,261 @@ public class AgentCommand implements Callable<Integer> {
         return handleSubCommand((int) resolvedPid, List.of("status"));
     }
 
-    /** Execute a subcommand against all discovered JVMs. Returns 0 only if all succeed. */
-    private static int executeForAll(List<String> agentArgs) {
+    /** Max number of JVMs that the 'all' target attaches to at the same time, by default */
+    static final int DEFAULT_PARALLELISM = 8;
+
+    /** Time after which the 'all' target gives up on a JVM, by default */
+    static final Duration DEFAULT_JVM_TIMEOUT = Duration.ofSeconds(30);
+
+    /** Runs a subcommand against a single JVM, writing its output to the passed streams */
+    interface PidCommand {
+        int run(int pid, PrintStream out, PrintStream err);
+    }
+
+    /**
+     * Result of a subcommand for one JVM of the 'all' target
+     *
+     * @param exitCode exit code of the subcommand, 1 if it timed out
+     */
+    record JVMResult(JVMProcess jvm, int exitCode, String output, String error, boolean timedOut) {}
+
+    /**
+     * Run the command against all passed JVMs, with at most {@code parallelism} at the same time
+     *
+     * <p>Every JVM gets its own daemon thread, which waits for one of {@code parallelism} permits
+     * before it runs the command. A JVM whose command does not finish within the timeout (counted
+     * from the start of its command) is reported as timed out and gives its permit to the next JVM;
+     * its thread is interrupted and left behind, as attaching cannot be aborted. So hung JVMs never
+     * hold up the others.
+     *
+     * @return the results in the order of the passed JVMs
+     */
+    static List<JVMResult> runForAll(
+            List<JVMProcess> jvms, PidCommand command, int parallelism, Duration timeout) {
+        Semaphore permits = new Semaphore(parallelism, true);
+        // released whenever a command starts or finishes, so that the deadlines are checked again
+        Semaphore events = new Semaphore(0);
+        List<Attach> attaches = new ArrayList<>();
+        for (JVMProcess jvm : jvms) {
+            var attach = new Attach(jvm, command, permits, events);
+            attaches.add(attach);
+            attach.thread.start();
+        }
+        long timeoutNanos = timeout.toNanos();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                long waitNanos = Long.MAX_VALUE;
+                boolean pending = false;
+                for (Attach attach : attaches) {
+                    if (attach.result.isDone()) {
+                        continue;
+                    }
+                    long start = attach.startNanos;
+                    if (start != 0) {
+                        long left = start + timeoutNanos - now;
+                        if (left <= 0) {
+                            attach.timeOut();
+                            continue;
+                        }
+                        waitNanos = Math.min(waitNanos, left);
+                    }
+                    pending = true;
+                }
+                if (!pending) {
+                    break;
+                }
+                events.tryAcquire(waitNanos, TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            attaches.forEach(Attach::timeOut);
+        }
+        List<JVMResult> results = new ArrayList<>();
+        for (Attach attach : attaches) {
+            Integer exitCode = attach.result.join();
+            // a timed out command might still write to its streams, which are synchronized
+            results.add(
+                    new JVMResult(
+                            attach.jvm,
+                            exitCode == null ? 1 : exitCode,
+                            attach.output.toString(),
+                            attach.error.toString(),
+                            exitCode == null));
+        }
+        return results;
+    }
+
+    /** Command for a single JVM of {@link #runForAll}, run on its own thread */
+    private static final class Attach {
+        private final JVMProcess jvm;
+        private final PidCommand command;
+        private final Semaphore permits;
+        private final Semaphore events;
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream error = new ByteArrayOutputStream();
+
+        /** Exit code of the command, {@code null} if it timed out */
+        private final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+        private final AtomicBoolean holdsPermit = new AtomicBoolean(false);
+        private final Thread thread;
+
+        /** Start of the command, 0 while waiting for a permit */
+        private volatile long startNanos = 0;
+
+        Attach(JVMProcess jvm, PidCommand command, Semaphore permits, Semaphore events) {
+            this.jvm = jvm;
+            this.command = command;
+            this.permits = permits;
+            this.events = events;
+            this.thread = new Thread(this::run, "cjfr-attach-" + jvm.pid());
+            thread.setDaemon(true);
+        }
+
+        private void run() {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                result.complete(null);
+                return;
+            }
+            holdsPermit.set(true);
+            startNanos = System.nanoTime();
+            events.release();
+            try (var out = new PrintStream(output, true);
+                    var err = new PrintStream(error, true)) {
+                int exitCode;
+                try {
+                    exitCode = command.run((int) jvm.pid(), out, err);
+                } catch (Throwable t) {
+                    err.println("Error: " + t);
+                    exitCode = 1;
+                }
+                result.complete(exitCode);
+            } finally {
+                releasePermit();
+                events.release();
+            }
+        }
+
+        /** Give up on the command, pass its permit to the next JVM */
+        void timeOut() {
+            if (result.complete(null)) {
+                releasePermit();
+                thread.interrupt();
+            }
+        }
+
+        private void releasePermit() {
+            if (holdsPermit.compareAndSet(true, false)) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Execute a subcommand against all discovered JVMs in parallel and report the results per PID.
+     * Returns 0 only if all succeed.
+     */
+    private static int executeForAll(List<String> agentArgs, int parallelism, Duration timeout) {
         List<JVMProcess> jvms = discoverJVMs();
         if (jvms.isEmpty()) {
             System.out.println("No running JVMs found.");
             return 1;
         }
         boolean isStart = !agentArgs.isEmpty() && agentArgs.get(0).equals("start");
+        List<JVMResult> results =
+                runForAll(
+                        jvms,
+                        (pid, out, err) -> handleSubCommand(pid, agentArgs, out, err),
+                        parallelism,
+                        timeout);
         int exitCode = 0;
-        for (JVMProcess jvm : jvms) {
+        List<String> failures = new ArrayList<>();
+        for (JVMResult result : results) {
+            JVMProcess jvm = result.jvm();
             System.out.printf("--- %d (%s) ---%n", jvm.pid(), jvm.displayName());
-            if (isStart) {
-                // Capture output so we can detect "already running" and treat it as a note
-                ByteArrayOutputStream capture = new ByteArrayOutputStream();
-                PrintStream captureStream = new PrintStream(capture);
-                PrintStream originalOut = System.out;
-                System.setOut(captureStream);
-                int result;
-                try {
-                    result = handleSubCommand((int) jvm.pid(), agentArgs);
-                } finally {
-                    System.out.flush();
-                    System.setOut(originalOut);
-                }
-                String captured = capture.toString();
-                System.out.print(captured);
-                if (result != 0 && captured.contains("Recording already running")) {
-                    System.out.printf(
-                            "Note: recording already running on %d (%s), skipping.%n",
-                            jvm.pid(), jvm.displayName());
-                    // Don't propagate this as a failure
-                } else if (result != 0) {
-                    exitCode = result;
-                }
+            System.out.print(result.output());
+            System.err.print(result.error());
+            if (result.timedOut()) {
+                String message = "timed out after " + TimeUtil.formatDuration(timeout);
+                System.out.printf("Error: %s%n", message);
+                failures.add(String.format("  %d (%s): %s", jvm.pid(), jvm.displayName(), message));
+                exitCode = 1;
+            } else if (isStart
+                    && result.exitCode() != 0
+                    && result.output().contains("Recording already running")) {
+                // Don't propagate this as a failure
+                System.out.printf(
+                        "Note: recording already running on %d (%s), skipping.%n",
+                        jvm.pid(), jvm.displayName());
+            } else if (result.exitCode() != 0) {
+                failures.add(
+                        String.format(
+                                "  %d (%s): exit code %d",
+                                jvm.pid(), jvm.displayName(), result.exitCode()));
+                exitCode = result.exitCode();
+            }
+        }
+        if (results.size() > 1) {
+            System.out.printf(
+                    "--- %d of %d JVMs succeeded ---%n",
+                    results.size() - failures.size(), results.size());
+            if (!failures.isEmpty()) {
+                System.out.println("Failed:");
+                failures.forEach(System.out::println);
+            }
+        }
+        return exitCode;
+    }
+
+    /**
+     * Execute the arguments after the 'all' target, which may start with {@code --parallelism N}
+     * and {@code --timeout DURATION} options, the subcommand defaults to status
+     */
+    private static int executeForAll(List<String> args) {
+        int parallelism = DEFAULT_PARALLELISM;
+        Duration timeout = DEFAULT_JVM_TIMEOUT;
+        int i = 0;
+        while (i < args.size() && args.get(i).startsWith("--")) {
+            String arg = args.get(i);
+            String name = arg.contains("=") ? arg.substring(0, arg.indexOf('=')) : arg;
+            if (!name.equals("--parallelism") && !name.equals("--timeout")) {
+                break;
+            }
+            String value;
+            if (arg.contains("=")) {
+                value = arg.substring(arg.indexOf('=') + 1);
+                i++;
+            } else if (i + 1 < args.size()) {
+                value = args.get(i + 1);
+                i += 2;
             } else {
-                int result = handleSubCommand((int) jvm.pid(), agentArgs);
-                if (result != 0) {
-                    exitCode = result;
+                System.err.println("Error: Missing value for " + name);
+                return 1;
+            }
+            try {
+                if (name.equals("--parallelism")) {
+                    parallelism = Integer.parseInt(value);
+                    if (parallelism < 1) {
+                        System.err.println("Error: --parallelism must be at least 1");
+                        return 1;
+                    }
+                } else {
+                    timeout = TimeUtil.parseDuration(value);
+                    if (timeout.isNegative() || timeout.isZero()) {
+                        System.err.println("Error: --timeout must be positive");
+                        return 1;
+                    }
                 }
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: Invalid value for " + name + ": " + value);
+                return 1;
             }
         }
-        return exitCode;
+        List<String> agentArgs = i < args.size() ? args.subList(i, args.size()) : List.of("status");
+        return executeForAll(agentArgs, parallelism, timeout);
     }
 
     private static String addLogToFileOption(String options) {
@@ -329,11 +555,7 @@ public class AgentCommand implements Callable<Integer> {
         }
         // Handle 'all' target
         if (firstArg.equalsIgnoreCase("all")) {
-            List<String> agentArgs =
-                    subCommandArgs.size() > 1
-                            ? subCommandArgs.subList(1, subCommandArgs.size())
-                            : List.of("status");
-            return executeForAll(agentArgs);
+            return executeForAll(subCommandArgs.subList(1, subCommandArgs.size()));
         }
         // Resolve the target (PID or name filter)
         long pid = resolveTarget(firstArg);
@@ -376,6 +598,11 @@ public class AgentCommand implements Callable<Integer> {
     private static final int MAX_IDLE_POLLS = 20;
 
     private static int handleSubCommand(int pid, List<String> agentArgs) {
+        return handleSubCommand(pid, agentArgs, System.out, System.err);
+    }
+
+    static int handleSubCommand(
+            int pid, List<String> agentArgs, PrintStream stdout, PrintStream stderr) {
         AgentIO agentIO = AgentIO.getAgentInstance(pid);
         try {
             VirtualMachine jvm = VirtualMachine.attach(pid + "");
@@ -385,7 +612,7 @@ public class AgentCommand implements Callable<Integer> {
             while (true) {
                 String out = agentIO.readOutput();
                 if (out != null) {
-                    System.out.print(rewriteAgentUsage(out, pid));
+                    stdout.print(rewriteAgentUsage(out, pid));
                     idlePolls = 0;
                 } else {
                     idlePolls++;
@@ -407,13 +634,13 @@ public class AgentCommand implements Callable<Integer> {
                 // best effort
             }
         } catch (URISyntaxException ex) {
-            System.err.println("Can't find the current JAR file");
+            stderr.println("Can't find the current JAR file");
             return 1;
         } catch (AgentLoadException | IOException | AgentInitializationException e) {
-            System.err.println("Can't load the agent: " + e.getMessage());
+            stderr.println("Can't load the agent: " + e.getMessage());
             return 1;
         } catch (AttachNotSupportedException e) {
-            System.err.println("Can't attach to the JVM process");
+            stderr.println("Can't attach to the JVM process");
             return 1;
         }
         int exitCode = agentIO.readExitCode();
@@ -48,6 +48,28 @@ public class BenchmarkCommand implements Callable<Integer> {
             defaultValue = "LZ4FRAMED")
     private Compression compression = Compression.DEFAULT;
 
+    @Option(
+            names = "--compare-compressions",
+            description =
+                    "Compare ratio and throughput of all available compressions and levels on"
+                            + " the uncompressed condensed files, ignores --compression")
+    private boolean compareCompressions = false;
+
+    @Option(
+            names = "--compare-struct-codecs",
+            description =
+                    "Compare the write and read throughput of the generated and the interpreted"
+                            + " struct codecs on the parsed events, ignores --compression")
+    private boolean compareStructCodecs = false;
+
+    @Option(
+            names = "--compare-threads",
+            description =
+                    "Compare the time to condense each file with 1, 2, 4, ... parse threads (up to"
+                            + " the number of processors) without compression, ignores"
+                            + " --compression")
+    private boolean compareThreads = false;
+
     @Option(
             names = {"-c", "--configuration"},
             description =
@@ -65,12 +87,29 @@ public class BenchmarkCommand implements Callable<Integer> {
     @JMCDependent
     public static class Impl {
         public static String run(BenchmarkCommand cmd) {
+            var benchmark =
+                    new me.bechberger.jfr.Benchmark(
+                            cmd.configurations, cmd.compression, cmd.regexp);
+            if (cmd.compareStructCodecs) {
+                var table =
+                        me.bechberger.jfr.Benchmark.toCodecTable(benchmark.runCodecBenchmarks());
+                return cmd.csv ? table.toCSV() : table.toString();
+            }
+            if (cmd.compareThreads) {
+                var table =
+                        me.bechberger.jfr.Benchmark.toThreadsTable(benchmark.runThreadBenchmarks());
+                return cmd.csv ? table.toCSV() : table.toString();
+            }
+            if (cmd.compareCompressions) {
+                var table =
+                        me.bechberger.jfr.Benchmark.toCompressionTable(
+                                benchmark.runCompressionBenchmarks(),
+                                new me.bechberger.jfr.Benchmark.TableConfig(!cmd.csv, false));
+                return cmd.csv ? table.toCSV() : table.toString();
+            }
             var results =
-                    new me.bechberger.jfr.Benchmark(cmd.configurations, cmd.compression, cmd.regexp)
-                            .runBenchmarks(
-                                    cmd.keepCondensedFile,
-                                    cmd.inflateCondensedFile,
-                                    cmd.keepInflatedFile);
+                    benchmark.runBenchmarks(
+                            cmd.keepCondensedFile, cmd.inflateCondensedFile, cmd.keepInflatedFile);
             if (cmd.csv) {
                 return results.toTable(
                                 new me.bechberger.jfr.Benchmark.TableConfig(false, cmd.onlyPerHour))
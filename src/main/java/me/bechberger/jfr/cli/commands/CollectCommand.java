@@ -0,0 +1,104 @@
+package me.bechberger.jfr.cli.commands;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import me.bechberger.femtocli.annotations.Command;
+import me.bechberger.femtocli.annotations.Option;
+import me.bechberger.femtocli.annotations.Parameters;
+import me.bechberger.jfr.cli.CLIUtils;
+import me.bechberger.jfr.cli.CLIUtils.DurationConverter;
+import me.bechberger.jfr.cli.stream.StreamCollector;
+import me.bechberger.jfr.cli.stream.StreamCollector.Layout;
+
+@Command(
+        name = "collect",
+        description =
+                "Collect the recordings of agents started with a unix:<socket> path on the same"
+                        + " host, writing every received stream to its own .cjfr file",
+        mixinStandardHelpOptions = true)
+public class CollectCommand implements Callable<Integer> {
+
+    /** Time that the shutdown hook waits for the collector to complete its files */
+    private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(10);
+
+    @Parameters(description = "The Unix domain socket to listen on, replaced if it exists")
+    private Path socket;
+
+    @Option(
+            names = {"-o", "--output"},
+            description = "Output directory",
+            defaultValue = "collected")
+    private Path output = Path.of("collected");
+
+    @Option(
+            names = "--flat",
+            description =
+                    "Write the files of all JVMs into the output directory as"
+                            + " <name>-<pid>_<index>.cjfr, instead of a <name>-<pid> directory"
+                            + " per JVM")
+    private boolean flat = false;
+
+    @Option(
+            names = "--max-files",
+            description =
+                    "Max number of completed files per directory (over all JVMs with --flat),"
+                            + " the oldest are deleted, 0 for no limit",
+            defaultValue = "0")
+    private int maxFiles = 0;
+
+    @Option(
+            names = "--duration",
+            description = "Stop collecting after this duration, 0 to run until interrupted",
+            defaultValue = "0s",
+            converter = DurationConverter.class)
+    private Duration duration = Duration.ZERO;
+
+    @Override
+    public Integer call() {
+        if (maxFiles < 0) {
+            System.err.println("Error: --max-files must be at least 0");
+            return 1;
+        }
+        CountDownLatch stopped = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+        // the hook stops the collecting and waits until the collector is closed, so that the
+        // current files are completed before the JVM exits
+        Thread hook =
+                new Thread(
+                        () -> {
+                            stopped.countDown();
+                            try {
+                                closed.await(CLOSE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+                            } catch (InterruptedException ignored) {
+                            }
+                        });
+        try (var collector =
+                new StreamCollector(
+                        socket,
+                        output,
+                        flat ? Layout.FLAT : Layout.PER_JVM,
+                        maxFiles,
+                        System.out::println)) {
+            Runtime.getRuntime().addShutdownHook(hook);
+            System.out.println("Collecting from " + collector.getSocket() + " into " + output);
+            if (duration.isZero()) {
+                stopped.await();
+            } else {
+                stopped.await(duration.toMillis(), TimeUnit.MILLISECONDS);
+                Runtime.getRuntime().removeShutdownHook(hook);
+            }
+            return 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        } catch (IOException | RuntimeException e) {
+            return CLIUtils.printError(e);
+        } finally {
+            closed.countDown();
+        }
+    }
+}
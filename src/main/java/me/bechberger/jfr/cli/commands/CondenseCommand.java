@@ -1,24 +1,37 @@
 package me.bechberger.jfr.cli.commands;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
-import jdk.jfr.consumer.RecordingFile;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import jdk.jfr.EventType;
+import jdk.jfr.consumer.RecordedEvent;
+import me.bechberger.condensed.AdaptiveCompression;
 import me.bechberger.condensed.Compression;
+import me.bechberger.condensed.CompressionDictionary;
 import me.bechberger.condensed.CondensedOutputStream;
 import me.bechberger.condensed.Message.StartMessage;
 import me.bechberger.condensed.stats.FlamegraphGenerator;
+import me.bechberger.condensed.stats.Statistic;
 import me.bechberger.femtocli.annotations.Command;
 import me.bechberger.femtocli.annotations.Option;
 import me.bechberger.femtocli.annotations.Parameters;
 import me.bechberger.jfr.BasicJFRWriter;
 import me.bechberger.jfr.Configuration;
+import me.bechberger.jfr.ParallelJFRFileReader;
 import me.bechberger.jfr.cli.CLIUtils;
 import me.bechberger.jfr.cli.Constants;
 import me.bechberger.jfr.cli.FileOptionConverters.*;
@@ -51,6 +64,14 @@ public class CondenseCommand implements Callable<Integer> {
             description = "Compression algorithm, possible values: ${COMPLETION-CANDIDATES}")
     private Compression compression = null;
 
+    @Option(
+            names = {"--dictionary"},
+            description =
+                    "Compression dictionary created with 'cjfr train-dictionary', for"
+                            + " DEFLATE_DICTIONARY (the default with a dictionary) or ZSTD",
+            converter = ExistingDictionaryFileConverter.class)
+    private Path dictionary = null;
+
     @Option(
             names = {"-s", "--statistics"},
             description = "Print statistics")
@@ -77,6 +98,15 @@ public class CondenseCommand implements Callable<Integer> {
                             + " trade CPU for smaller files.")
     private Compression.CompressionLevel compressionLevel = null;
 
+    @Option(
+            names = {"--compression-cpu-budget"},
+            description =
+                    "Adapt the compression level to spend at most this percentage of the writing"
+                            + " time compressing, starting at --compression-level. 0 (default)"
+                            + " keeps the level fixed.",
+            defaultValue = "0")
+    private int compressionCpuBudget = 0;
+
     /** Resolves {@link #configName} to a {@link Configuration}. */
     private Configuration resolveConfiguration() {
         if (!Configuration.configurations.containsKey(configName)) {
@@ -123,6 +153,38 @@ public class CondenseCommand implements Callable<Integer> {
             split = ",")
     private List<String> reducedSkippedFrames;
 
+    @Option(
+            names = {"--threads"},
+            description =
+                    "Number of threads: input files (or chunks of large files) parsed at the"
+                            + " same time, or with --separate-outputs, inputs condensed at the"
+                            + " same time. The output does not depend on it. Default: 1",
+            defaultValue = "1")
+    private int threads = 1;
+
+    @Option(
+            names = {"--max-buffered-events"},
+            description =
+                    "Maximum number of parsed events that wait for the writer when parsing with"
+                            + " several threads, bounds the memory use. Default: 65536",
+            defaultValue = "65536")
+    private int maxBufferedEvents = ParallelJFRFileReader.DEFAULT_MAX_BUFFERED_EVENTS;
+
+    @Option(
+            names = {"--temp-dir"},
+            description =
+                    "Directory for the temporary copies of the chunks that are parsed in parallel"
+                            + " with --threads, needs room for one chunk per thread."
+                            + " Default: the system's temporary directory")
+    private Path tempDir = null;
+
+    @Option(
+            names = {"--separate-outputs"},
+            description =
+                    "Condense each input (file, folder or zip) into its own .cjfr file next to it,"
+                            + " instead of combining all inputs")
+    private boolean separateOutputs = false;
+
     /**
      * Returns the raw string args that are input files (all except the optional trailing .cjfr).
      */
@@ -134,8 +196,11 @@ public class CondenseCommand implements Callable<Integer> {
     }
 
     List<Path> inputs() {
+        return inputs(inputArgs());
+    }
+
+    private static List<Path> inputs(List<String> inputArgs) {
         var converter = new ExistingJFRFileOrZipOrFolderConverter();
-        List<String> inputArgs = inputArgs();
         var inputs = new ArrayList<Path>(inputArgs.size());
         for (String s : inputArgs) {
             inputs.add(converter.convert(s));
@@ -150,9 +215,15 @@ public class CondenseCommand implements Callable<Integer> {
         // Derive output from the first input
         if (args.size() > 1) {
             throw new IllegalArgumentException(
-                    "Only one input file is allowed if no output file given");
+                    "Only one input file is allowed if no output file given, use"
+                            + " --separate-outputs to condense each input into its own file");
         }
-        var inputPath = Path.of(args.get(0));
+        return defaultOutputFile(args.get(0));
+    }
+
+    /** The .cjfr file next to the input, with the input's name */
+    private static Path defaultOutputFile(String input) {
+        var inputPath = Path.of(input);
         var inputName = inputPath.getFileName().toString();
         String outputName;
         if (inputName.endsWith(".jfr")) {
@@ -188,36 +259,148 @@ public class CondenseCommand implements Callable<Integer> {
         return List.of(path);
     }
 
-    /** Opens a {@link RecordingFile}, wrapping any {@link IOException} with the filename. */
-    private static RecordingFile openRecordingFile(Path input) throws IOException {
+    public Integer call() {
+        if (noCompression && compression != null) {
+            System.err.println("Error: Cannot use both --no-compression and --compression");
+            return 2;
+        }
+        if (dictionary != null
+                && (noCompression || (compression != null && !compression.usesDictionary()))) {
+            System.err.println(
+                    "Error: --dictionary requires a compression that uses dictionaries, like "
+                            + Compression.DEFLATE_DICTIONARY);
+            return 2;
+        }
+        if (compressionCpuBudget < 0 || compressionCpuBudget > 100) {
+            System.err.println("Error: --compression-cpu-budget must be between 0 and 100");
+            return 2;
+        }
+        if (threads < 1) {
+            System.err.println("Error: --threads must be at least 1");
+            return 2;
+        }
+        if (maxBufferedEvents < 1) {
+            System.err.println("Error: --max-buffered-events must be at least 1");
+            return 2;
+        }
+        if (tempDir != null && !Files.isDirectory(tempDir)) {
+            System.err.println("Error: --temp-dir is not a directory: " + tempDir);
+            return 2;
+        }
+        if (separateOutputs) {
+            return condenseSeparately();
+        }
+        Path finalOutput;
         try {
-            return new RecordingFile(input);
-        } catch (IOException e) {
-            throw new IOException(
-                    "'"
-                            + input.getFileName()
-                            + "' is not a valid JFR file ("
-                            + e.getMessage()
-                            + ")",
-                    e);
+            finalOutput = getOutputFile();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 2;
         }
+        return condense(inputArgs(), finalOutput, threads, System.out, System.err);
     }
 
-    public Integer call() {
-        if (noCompression && compression != null) {
-            System.err.println("Error: Cannot use both --no-compression and --compression");
+    /**
+     * Condense each input into its own output, running up to {@link #threads} jobs at the same
+     * time. The output of each job is printed once it and all jobs before it are finished, so that
+     * it appears in input order.
+     */
+    private int condenseSeparately() {
+        List<String> inputArgs = inputArgs();
+        if (inputArgs.size() != args.size()) {
+            System.err.println(
+                    "Error: --separate-outputs derives the output files from the inputs, don't"
+                            + " pass an output file");
             return 2;
         }
+        Map<Path, String> inputPerOutput = new HashMap<>();
+        for (String input : inputArgs) {
+            String other = inputPerOutput.put(defaultOutputFile(input).normalize(), input);
+            if (other != null) {
+                System.err.println(
+                        "Error: '"
+                                + other
+                                + "' and '"
+                                + input
+                                + "' would both be condensed to "
+                                + defaultOutputFile(input));
+                return 2;
+            }
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, inputArgs.size()));
+        try {
+            List<Future<BufferedResult>> results = new ArrayList<>();
+            for (String input : inputArgs) {
+                results.add(
+                        pool.submit(
+                                () -> {
+                                    var out = new ByteArrayOutputStream();
+                                    var err = new ByteArrayOutputStream();
+                                    int exitCode;
+                                    try (var outStream = new PrintStream(out, true);
+                                            var errStream = new PrintStream(err, true)) {
+                                        exitCode =
+                                                condense(
+                                                        List.of(input),
+                                                        defaultOutputFile(input),
+                                                        1,
+                                                        outStream,
+                                                        errStream);
+                                    }
+                                    return new BufferedResult(exitCode, out, err);
+                                }));
+            }
+            int exitCode = 0;
+            for (Future<BufferedResult> future : results) {
+                BufferedResult result = future.get();
+                System.out.print(result.out());
+                System.out.flush();
+                System.err.print(result.err());
+                System.err.flush();
+                exitCode = Math.max(exitCode, result.exitCode());
+            }
+            return exitCode;
+        } catch (ExecutionException e) {
+            return CLIUtils.printError(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CLIUtils.printError(e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private record BufferedResult(
+            int exitCode, ByteArrayOutputStream out, ByteArrayOutputStream err) {}
+
+    /**
+     * Condense the inputs into one output file
+     *
+     * @param inputArgs input files, folders or zips
+     * @param parseThreads number of input files parsed at the same time
+     * @return the exit code
+     */
+    private int condense(
+            List<String> inputArgs,
+            Path finalOutput,
+            int parseThreads,
+            PrintStream stdout,
+            PrintStream stderr) {
         Compression effectiveCompression =
                 noCompression
                         ? Compression.NONE
-                        : compression != null ? compression : Compression.DEFAULT;
+                        : compression != null
+                                ? compression
+                                : dictionary != null
+                                        ? Compression.DEFLATE_DICTIONARY
+                                        : Compression.DEFAULT;
         long resolvedInputSize = 0;
         Path tempFile = null;
         try {
             Configuration configuration = resolveConfiguration();
             Compression.CompressionLevel level = resolveCompressionLevel();
-            Path finalOutput = getOutputFile();
+            CompressionDictionary compressionDictionary =
+                    dictionary != null ? CompressionDictionary.read(dictionary) : null;
             CLIUtils.checkOutputFileWritable(finalOutput, force);
             Path parentDir =
                     finalOutput.getParent() != null ? finalOutput.getParent() : Path.of(".");
@@ -225,7 +408,7 @@ public class CondenseCommand implements Callable<Integer> {
             try {
                 tempFile = Files.createTempFile(parentDir, ".cjfr-", ".tmp");
             } catch (java.nio.file.AccessDeniedException e) {
-                System.err.println("Error: Permission denied writing to: " + finalOutput);
+                stderr.println("Error: Permission denied writing to: " + finalOutput);
                 return 1;
             }
             try (var out =
@@ -237,9 +420,13 @@ public class CondenseCommand implements Callable<Integer> {
                                     Constants.VERSION,
                                     configuration.name(),
                                     effectiveCompression,
-                                    level))) {
+                                    level,
+                                    compressionDictionary),
+                            compressionCpuBudget > 0
+                                    ? AdaptiveCompression.of(compressionCpuBudget / 100.0)
+                                    : null)) {
                 var resolvedInputs = new ArrayList<Path>();
-                for (var input : inputs()) {
+                for (var input : inputs(inputArgs)) {
                     resolvedInputs.addAll(expandJFRPath(input));
                 }
                 if (statistics) {
@@ -272,28 +459,43 @@ public class CondenseCommand implements Callable<Integer> {
                 }
                 Set<String> eventFilter = eventTypes != null ? new HashSet<>(eventTypes) : null;
                 Set<String> seenEventTypes = new HashSet<>();
-                boolean firstFile = true;
-                for (var input : resolvedInputs) {
-                    if (!firstFile) {
-                        basicJFRWriter.resetDeduplication();
-                    }
-                    firstFile = false;
-                    try (RecordingFile r = openRecordingFile(input)) {
-                        // Pre-register all event types so ActiveSetting id remapping works for
-                        // types whose first event hasn't appeared yet when ActiveSetting events
-                        // are processed (Bug 2 fix, see JMC_FIX.md).
-                        basicJFRWriter.registerEventTypes(r.readEventTypes());
-                        while (r.hasMoreEvents()) {
-                            var e = r.readEvent();
-                            String typeName = e.getEventType().getName();
-                            seenEventTypes.add(typeName);
-                            if (eventFilter != null && !eventFilter.contains(typeName)) {
-                                continue;
-                            }
-                            basicJFRWriter.processEvent(e);
-                        }
-                    }
-                }
+                // the files are parsed in parallel, but their events arrive here in file order,
+                // so the output is the same as with a single thread
+                new ParallelJFRFileReader(parseThreads, maxBufferedEvents, tempDir)
+                        .read(
+                                resolvedInputs,
+                                new ParallelJFRFileReader.Consumer() {
+                                    boolean firstFile = true;
+
+                                    @Override
+                                    public void startFile(Path file, List<EventType> types) {
+                                        if (!firstFile) {
+                                            basicJFRWriter.resetDeduplication();
+                                        }
+                                        firstFile = false;
+                                        // Pre-register all event types so ActiveSetting id
+                                        // remapping works for types whose first event hasn't
+                                        // appeared yet when ActiveSetting events are processed
+                                        // (Bug 2 fix, see JMC_FIX.md).
+                                        basicJFRWriter.registerEventTypes(types);
+                                    }
+
+                                    @Override
+                                    public void startChunk(boolean sameMetadata) {
+                                        basicJFRWriter.startChunk(sameMetadata);
+                                    }
+
+                                    @Override
+                                    public void event(RecordedEvent e) {
+                                        String typeName = e.getEventType().getName();
+                                        seenEventTypes.add(typeName);
+                                        if (eventFilter != null
+                                                && !eventFilter.contains(typeName)) {
+                                            return;
+                                        }
+                                        basicJFRWriter.processEvent(e);
+                                    }
+                                });
                 if (eventFilter != null) {
                     List<String> unknown =
                             eventTypes.stream()
@@ -301,17 +503,16 @@ public class CondenseCommand implements Callable<Integer> {
                                     .sorted()
                                     .toList();
                     if (!unknown.isEmpty()) {
-                        System.err.println(
+                        stderr.println(
                                 "Warning: No events found for type(s): "
                                         + String.join(", ", unknown));
-                        System.err.println("Known event types include:");
+                        stderr.println("Known event types include:");
                         seenEventTypes.stream()
                                 .sorted()
                                 .limit(10)
-                                .forEach(t -> System.err.println("  " + t));
+                                .forEach(t -> stderr.println("  " + t));
                         if (seenEventTypes.size() > 10) {
-                            System.err.println(
-                                    "  ... and " + (seenEventTypes.size() - 10) + " more");
+                            stderr.println("  ... and " + (seenEventTypes.size() - 10) + " more");
                         }
                     }
                 }
@@ -319,24 +520,29 @@ public class CondenseCommand implements Callable<Integer> {
                 if (statistics) {
                     var stat = out.getStatistics();
                     var flamegraph = new FlamegraphGenerator(stat.getContextRoot());
-                    System.out.println("\nBytes by type (uncompressed):");
-                    System.out.println("==============================");
-                    flamegraph.writeTable(System.out);
-                    System.out.println("\nMode summary:");
-                    System.out.println("=============");
-                    System.out.println(stat.toPrettyString());
+                    stdout.println("\nBytes by type (uncompressed):");
+                    stdout.println("==============================");
+                    flamegraph.writeTable(stdout);
+                    stdout.println("\nMode summary:");
+                    stdout.println("=============");
+                    stdout.println(stat.toPrettyString());
+                    stdout.println("\nWriting caches:");
+                    stdout.println("===============");
+                    stdout.println(
+                            Statistic.cacheStatisticsToPrettyString(
+                                    out.getUniverse().getWritingCaches().statistics()));
                 }
             }
             Files.move(tempFile, finalOutput, StandardCopyOption.REPLACE_EXISTING);
             tempFile = null; // success — don't delete
-            System.err.printf(
+            stderr.printf(
                     "Condensed to %s (%s)%n",
                     finalOutput, CLIUtils.formatFileSize(Files.size(finalOutput)));
         } catch (IllegalArgumentException e) {
-            System.err.println("Error: " + e.getMessage());
+            stderr.println("Error: " + e.getMessage());
             return 2;
         } catch (Exception e) {
-            return me.bechberger.jfr.cli.CLIUtils.printError(e);
+            return CLIUtils.printError(e, stderr);
         } finally {
             if (tempFile != null) {
                 try {
@@ -348,15 +554,15 @@ public class CondenseCommand implements Callable<Integer> {
         // print JFR file size, output file size, compression ratio
         if (statistics) {
             try {
-                var outSize = Files.size(getOutputFile());
-                System.out.printf(
+                var outSize = Files.size(finalOutput);
+                stdout.printf(
                         java.util.Locale.ROOT,
                         "JFR file size: %d, output file size: %d, compression ratio: %.2f\n",
                         resolvedInputSize,
                         outSize,
                         (double) outSize / resolvedInputSize);
             } catch (Exception e) {
-                return me.bechberger.jfr.cli.CLIUtils.printError(e);
+                return CLIUtils.printError(e, stderr);
             }
         }
         return 0;
@@ -0,0 +1,79 @@
+package me.bechberger.jfr.cli.commands;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import me.bechberger.condensed.CompressionDictionary;
+import me.bechberger.femtocli.annotations.Command;
+import me.bechberger.femtocli.annotations.Option;
+import me.bechberger.femtocli.annotations.Parameters;
+import me.bechberger.jfr.cli.CLIUtils;
+import me.bechberger.jfr.cli.FileOptionConverters.ExistingCJFRFileConverter;
+
+@Command(
+        name = "export",
+        description =
+                "Copy .cjfr files into standalone files that can be read without their compression"
+                        + " dictionary and shared definitions, e.g. rotated agent files with a"
+                        + " shared dictionary",
+        mixinStandardHelpOptions = true)
+public class ExportCommand implements Callable<Integer> {
+
+    @Parameters(
+            arity = "1..*",
+            description = "The input .cjfr files",
+            converter = ExistingCJFRFileConverter.class)
+    private List<Path> inputs = new ArrayList<>();
+
+    @Option(
+            names = {"-o", "--output"},
+            description =
+                    "Output directory, default is next to the input, as <name>.standalone.cjfr")
+    private Path output = null;
+
+    @Option(
+            names = {"-f", "--force"},
+            description = "Overwrite existing output files")
+    private boolean force = false;
+
+    Path getOutputFile(Path input) {
+        String name = input.getFileName().toString();
+        if (output != null) {
+            return output.resolve(name);
+        }
+        return input.resolveSibling(
+                name.substring(0, name.length() - ".cjfr".length()) + ".standalone.cjfr");
+    }
+
+    @Override
+    public Integer call() {
+        try {
+            if (output != null) {
+                Files.createDirectories(output);
+            }
+            for (Path input : inputs) {
+                Path target = getOutputFile(input);
+                if (Files.exists(target) && Files.isSameFile(input, target)) {
+                    System.err.println("Error: Output would overwrite the input " + input);
+                    return 1;
+                }
+                CLIUtils.checkOutputFileWritable(target, force);
+                boolean rewritten = CompressionDictionary.writeStandalone(input, target);
+                System.out.println(
+                        (rewritten ? "Rewrote " : "Copied ")
+                                + input
+                                + " to "
+                                + target
+                                + (rewritten
+                                        ? " without its dictionary and shared definitions"
+                                        : ""));
+            }
+            return 0;
+        } catch (IOException | RuntimeException e) {
+            return CLIUtils.printError(e);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package me.bechberger.jfr.cli.commands;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import me.bechberger.condensed.CondensedRecovery;
+import me.bechberger.femtocli.annotations.Command;
+import me.bechberger.femtocli.annotations.Option;
+import me.bechberger.femtocli.annotations.Parameters;
+import me.bechberger.jfr.cli.CLIUtils;
+import me.bechberger.jfr.cli.FileOptionConverters.ExistingCJFRFileConverter;
+
+@Command(
+        name = "recover",
+        description =
+                "Truncate .cjfr files that were torn by a crash (no footer, incomplete last block)"
+                        + " to their last complete message",
+        mixinStandardHelpOptions = true)
+public class RecoverCommand implements Callable<Integer> {
+
+    @Parameters(
+            arity = "1..*",
+            description = "The input .cjfr files",
+            converter = ExistingCJFRFileConverter.class)
+    private List<Path> inputs = new ArrayList<>();
+
+    @Option(
+            names = {"-o", "--output"},
+            description =
+                    "Output directory, default is next to the input, as <name>.recovered.cjfr")
+    private Path output = null;
+
+    @Option(
+            names = {"-i", "--in-place"},
+            description = "Replace the input files")
+    private boolean inPlace = false;
+
+    @Option(
+            names = {"-n", "--dry-run"},
+            description = "Only report what would be recovered")
+    private boolean dryRun = false;
+
+    @Option(
+            names = {"-f", "--force"},
+            description = "Overwrite existing output files")
+    private boolean force = false;
+
+    Path getOutputFile(Path input) {
+        if (inPlace) {
+            return input;
+        }
+        String name = input.getFileName().toString();
+        if (output != null) {
+            return output.resolve(name);
+        }
+        return input.resolveSibling(
+                name.substring(0, name.length() - ".cjfr".length()) + ".recovered.cjfr");
+    }
+
+    @Override
+    public Integer call() {
+        if (inPlace && output != null) {
+            System.err.println("Error: --in-place and --output are mutually exclusive");
+            return 1;
+        }
+        try {
+            if (output != null && !dryRun) {
+                Files.createDirectories(output);
+            }
+            for (Path input : inputs) {
+                if (dryRun) {
+                    report(input, null, CondensedRecovery.analyze(input));
+                    continue;
+                }
+                Path target = getOutputFile(input);
+                if (!inPlace) {
+                    if (Files.exists(target) && Files.isSameFile(input, target)) {
+                        System.err.println("Error: Output would overwrite the input " + input);
+                        return 1;
+                    }
+                    CLIUtils.checkOutputFileWritable(target, force);
+                }
+                report(input, target, CondensedRecovery.recover(input, target));
+            }
+            return 0;
+        } catch (IOException | RuntimeException e) {
+            return CLIUtils.printError(e);
+        }
+    }
+
+    private static void report(Path input, Path target, CondensedRecovery.Result result) {
+        if (result.complete()) {
+            System.out.println(input + " is complete, nothing to recover");
+            return;
+        }
+        System.out.println(
+                (target == null ? "Would recover " : "Recovered ")
+                        + result.messages()
+                        + " messages ("
+                        + result.keptBytes()
+                        + " uncompressed bytes) of "
+                        + input
+                        + (target == null ? "" : " to " + target)
+                        + ", discarding "
+                        + result.discardedBytes()
+                        + " bytes of an incomplete message");
+    }
+}
@@ -7,6 +7,7 @@ import java.time.Instant;
 import java.util.*;
 import java.util.Locale;
 import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
 import me.bechberger.JFRReader;
 import me.bechberger.condensed.CJFRFooter;
 import me.bechberger.condensed.CJFRFooter.AllocStats;
@@ -17,6 +18,7 @@ import me.bechberger.condensed.CJFRFooterReader;
 import me.bechberger.condensed.Compression;
 import me.bechberger.condensed.CondensedInputStream;
 import me.bechberger.condensed.ReadStruct;
+import me.bechberger.condensed.Universe.CacheStats;
 import me.bechberger.condensed.stats.FlamegraphGenerator;
 import me.bechberger.condensed.stats.Statistic;
 import me.bechberger.femtocli.annotations.Command;
@@ -203,6 +205,9 @@ public class SummaryCommand implements Callable<Integer> {
                 startMessage.generatorVersion(),
                 startMessage.generatorConfiguration(),
                 startMessage.compression(),
+                footer.compressionLevelBytes(),
+                footer.writingCacheStats(),
+                footer.droppedEvents(),
                 start,
                 end,
                 footer.eventCounts(),
@@ -216,6 +221,7 @@ public class SummaryCommand implements Callable<Integer> {
                 new CondensedInputStream(
                         new java.io.BufferedInputStream(
                                 java.nio.file.Files.newInputStream(path), 4096))) {
+            in.searchDictionariesNextTo(path);
             in.readNextMessageAndProcess(); // triggers start-string read; result may be null
             // (footer sentinel)
             return in.getUniverse().getStartMessage();
@@ -232,6 +238,12 @@ public class SummaryCommand implements Callable<Integer> {
             String generatorVersion,
             String generatorConfiguration,
             Compression compression,
+            /** uncompressed bytes per level for adaptive compression, otherwise empty */
+            Map<String, Long> compressionLevelBytes,
+            /** writing caches that evicted values, from the footer, otherwise empty */
+            Map<String, CacheStats> writingCacheStats,
+            /** events dropped by the agent's throttle per type, from the footer, otherwise empty */
+            Map<String, Long> droppedEvents,
             Instant start,
             Instant end,
             Map<String, Long> eventCounts,
@@ -257,6 +269,19 @@ public class SummaryCommand implements Callable<Integer> {
             }
         }
 
+        /** Share of the uncompressed bytes per level, e.g. {@code FAST 20%, MEDIUM 80%} */
+        String formatCompressionLevels() {
+            long total = compressionLevelBytes.values().stream().mapToLong(Long::longValue).sum();
+            return compressionLevelBytes.entrySet().stream()
+                    .map(
+                            e ->
+                                    e.getKey()
+                                            + " "
+                                            + Math.round(100.0 * e.getValue() / Math.max(1, total))
+                                            + "%")
+                    .collect(Collectors.joining(", "));
+        }
+
         public String toString(boolean shortSummary) {
             return toString(shortSummary, -1, false);
         }
@@ -273,7 +298,11 @@ public class SummaryCommand implements Callable<Integer> {
                                     ? "(default)"
                                     : this.generatorConfiguration())
                     .append("\n");
-            sb.append(" Compression: ").append(this.compression()).append("\n");
+            sb.append(" Compression: ").append(this.compression());
+            if (!compressionLevelBytes.isEmpty()) {
+                sb.append(" (adaptive: ").append(formatCompressionLevels()).append(")");
+            }
+            sb.append("\n");
             sb.append(" Start: ").append(TimeUtil.formatInstant(this.start())).append("\n");
             sb.append(" End: ").append(TimeUtil.formatInstant(this.end())).append("\n");
             sb.append(" Duration: ").append(TimeUtil.formatDuration(this.duration())).append("\n");
@@ -292,6 +321,24 @@ public class SummaryCommand implements Callable<Integer> {
                     sb.append(String.format(" %-40s %6d%n", entry.getKey(), entry.getValue()));
                 }
             }
+            if (!droppedEvents.isEmpty()) {
+                sb.append(" Dropped Events: ")
+                        .append(droppedEvents.values().stream().mapToLong(Long::longValue).sum())
+                        .append(" (by the agent's event budget)\n");
+                if (!shortSummary) {
+                    sb.append("\n");
+                    sb.append(" Dropped Event Type                        Count\n");
+                    sb.append("=================================================\n");
+                    droppedEvents.entrySet().stream()
+                            .sorted(Comparator.comparing(e -> -e.getValue()))
+                            .forEach(
+                                    e ->
+                                            sb.append(
+                                                    String.format(
+                                                            " %-40s %6d%n",
+                                                            e.getKey(), e.getValue())));
+                }
+            }
             // GC summary (shown whenever gcStats is available, regardless of --full)
             if (gcStats != null) {
                 sb.append("\n");
@@ -307,6 +354,13 @@ public class SummaryCommand implements Callable<Integer> {
                 sb.append("\n");
                 appendBucketTable(sb, gcStats, cpuStats, allocStats);
             }
+            if (!shortSummary && !writingCacheStats.isEmpty()) {
+                sb.append("\n Writing caches\n ==============\n ");
+                sb.append(
+                        Statistic.cacheStatisticsToPrettyString(writingCacheStats)
+                                .replace("\n", "\n "));
+                sb.append("\n");
+            }
             return sb.toString();
         }
 
@@ -540,6 +594,22 @@ public class SummaryCommand implements Callable<Integer> {
                     "generator configuration",
                     generatorConfiguration().isEmpty() ? "(default)" : generatorConfiguration());
             json.put("compression", compression().toString());
+            if (!compressionLevelBytes.isEmpty()) {
+                json.put("compression-level-bytes", new LinkedHashMap<>(compressionLevelBytes));
+            }
+            if (!writingCacheStats.isEmpty()) {
+                Map<String, Object> caches = new LinkedHashMap<>();
+                writingCacheStats.forEach(
+                        (name, stats) -> {
+                            Map<String, Object> cache = new LinkedHashMap<>();
+                            cache.put("size", stats.size());
+                            cache.put("entries", stats.entries());
+                            cache.put("hits", stats.hits());
+                            cache.put("misses", stats.misses());
+                            caches.put(name, cache);
+                        });
+                json.put("writing-caches", caches);
+            }
             json.put("start", TimeUtil.formatInstant(start()));
             json.put("start-epoch", start().toEpochMilli());
             json.put("end", TimeUtil.formatInstant(end()));
@@ -547,6 +617,9 @@ public class SummaryCommand implements Callable<Integer> {
             json.put("duration", TimeUtil.formatDuration(duration()));
             json.put("duration-millis", duration().toMillis());
             json.put("count", eventCount());
+            if (!droppedEvents.isEmpty()) {
+                json.put("dropped-events", new TreeMap<>(droppedEvents));
+            }
 
             if (!shortSummary) {
                 Map<String, Object> events = new LinkedHashMap<>();
@@ -679,6 +752,9 @@ public class SummaryCommand implements Callable<Integer> {
                 startMessage.generatorVersion(),
                 startMessage.generatorConfiguration(),
                 startMessage.compression(),
+                Map.of(),
+                Map.of(),
+                Map.of(),
                 reader.getStartTime(),
                 reader.getEndTime(),
                 eventCounts,
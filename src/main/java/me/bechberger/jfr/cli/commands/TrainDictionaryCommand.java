@@ -0,0 +1,161 @@
+package me.bechberger.jfr.cli.commands;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import jdk.jfr.consumer.RecordingFile;
+import me.bechberger.condensed.Compression;
+import me.bechberger.condensed.CompressionDictionary;
+import me.bechberger.condensed.CondensedOutputStream;
+import me.bechberger.condensed.Message.StartMessage;
+import me.bechberger.femtocli.annotations.Command;
+import me.bechberger.femtocli.annotations.Option;
+import me.bechberger.femtocli.annotations.Parameters;
+import me.bechberger.jfr.BasicJFRWriter;
+import me.bechberger.jfr.Configuration;
+import me.bechberger.jfr.cli.CLIUtils;
+import me.bechberger.jfr.cli.CLIUtils.ConfigurationConverter;
+import me.bechberger.jfr.cli.Constants;
+import me.bechberger.jfr.cli.FileOptionConverters.DictionaryFileConverter;
+import me.bechberger.jfr.cli.FileOptionConverters.ExistingJFRFileOrZipOrFolderConverter;
+
+@Command(
+        name = "train-dictionary",
+        description =
+                "Train a compression dictionary on sample JFR files, for use with the"
+                        + " DEFLATE_DICTIONARY compression",
+        mixinStandardHelpOptions = true)
+public class TrainDictionaryCommand implements Callable<Integer> {
+
+    @Parameters(
+            arity = "1..*",
+            description =
+                    "Sample .jfr files (folders or zips), ideally recordings similar to the ones"
+                            + " that will be condensed",
+            converter = ExistingJFRFileOrZipOrFolderConverter.class)
+    private List<Path> inputs = new ArrayList<>();
+
+    @Option(
+            names = {"-o", "--output"},
+            description =
+                    "Output dictionary file, default is <id>.cjfrdict in ~/.cjfr/dictionaries"
+                            + " where readers find it automatically",
+            converter = DictionaryFileConverter.class)
+    private Path output = null;
+
+    @Option(
+            names = {"--size"},
+            description = "Maximum dictionary size in bytes, at most 32768",
+            defaultValue = "32768")
+    private int size = CompressionDictionary.MAX_SIZE;
+
+    @Option(
+            names = {"-c", "--condenser-config"},
+            description =
+                    "The configuration the samples are condensed with, possible values:"
+                            + " ${COMPLETION-CANDIDATES}",
+            converter = ConfigurationConverter.class,
+            defaultValue = "default")
+    private Configuration configuration = Configuration.DEFAULT;
+
+    @Option(
+            names = {"-f", "--force"},
+            description = "Overwrite existing output file")
+    private boolean force = false;
+
+    /** Condense a JFR file uncompressed in memory, the result is a training sample */
+    static byte[] condense(Path input, Configuration configuration) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (var out =
+                        new CondensedOutputStream(
+                                bytes,
+                                new StartMessage(
+                                        Constants.FORMAT_VERSION,
+                                        "condensed jfr cli",
+                                        Constants.VERSION,
+                                        configuration.name(),
+                                        Compression.NONE));
+                var recordingFile = new RecordingFile(input)) {
+            var writer = new BasicJFRWriter(out, configuration);
+            writer.registerEventTypes(recordingFile.readEventTypes());
+            while (recordingFile.hasMoreEvents()) {
+                writer.processEvent(recordingFile.readEvent());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private List<Path> expandInputs() throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path input : inputs) {
+            if (Files.isDirectory(input)) {
+                try (var stream = Files.list(input)) {
+                    stream.filter(p -> p.toString().endsWith(".jfr")).sorted().forEach(files::add);
+                }
+            } else if (input.toString().endsWith(".zip")) {
+                files.addAll(
+                        CLIUtils.extractMatchingZipEntries(
+                                input, name -> name.endsWith(".jfr"), "jfr-cli-train"));
+            } else {
+                files.add(input);
+            }
+        }
+        return files;
+    }
+
+    @Override
+    public Integer call() {
+        if (size <= 0 || size > CompressionDictionary.MAX_SIZE) {
+            System.err.println(
+                    "Error: --size must be between 1 and " + CompressionDictionary.MAX_SIZE);
+            return 2;
+        }
+        try {
+            List<byte[]> samples = new ArrayList<>();
+            for (Path file : expandInputs()) {
+                samples.add(condense(file, configuration));
+            }
+            if (samples.isEmpty()) {
+                System.err.println("Error: No JFR files found");
+                return 1;
+            }
+            CompressionDictionary dictionary = CompressionDictionary.train(samples, size);
+            Path target =
+                    output != null
+                            ? output
+                            : CompressionDictionary.defaultDirectory()
+                                    .resolve(dictionary.fileName());
+            // the default file name is the id, so an existing file has the same content
+            CLIUtils.checkOutputFileWritable(target, force || output == null);
+            if (target.toAbsolutePath().getParent() != null) {
+                Files.createDirectories(target.toAbsolutePath().getParent());
+            }
+            dictionary.write(target);
+            System.out.println(
+                    "Trained dictionary "
+                            + dictionary.idString()
+                            + " ("
+                            + dictionary.size()
+                            + " bytes) from "
+                            + samples.size()
+                            + " sample(s), written to "
+                            + target);
+            if (output != null) {
+                System.out.println(
+                        "Copy it as "
+                                + dictionary.fileName()
+                                + " into one of "
+                                + CompressionDictionary.directories()
+                                + " to read files compressed with it");
+            }
+            return 0;
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        }
+    }
+}
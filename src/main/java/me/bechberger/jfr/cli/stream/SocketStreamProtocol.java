@@ -0,0 +1,193 @@
+package me.bechberger.jfr.cli.stream;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Protocol to stream condensed recordings over a Unix domain socket from agents to a collector
+ * ({@code cjfr collect})
+ *
+ * <p>A connection starts with a hello (magic, version, pid and recording name), followed by any
+ * number of CJFR streams. Each stream is split into frames, an int length followed by the bytes,
+ * and ends with a frame of length 0. A connection that ends within a stream leaves a torn stream
+ * without footer, which {@code cjfr recover} can truncate to its last complete message.
+ */
+public final class SocketStreamProtocol {
+
+    /** Prefix of socket outputs in the agent's start path */
+    public static final String PATH_PREFIX = "unix:";
+
+    /** "CJFR" */
+    static final int MAGIC = 0x434A4652;
+
+    static final int VERSION = 1;
+
+    /** Frame size of the writer, the reader accepts frames up to {@link #MAX_FRAME_SIZE} */
+    static final int FRAME_SIZE = 64 * 1024;
+
+    static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private SocketStreamProtocol() {}
+
+    /** First message of a connection, identifying the sending JVM and recording */
+    public record Hello(long pid, String name) {
+
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(pid);
+            out.writeUTF(name);
+        }
+
+        /**
+         * @throws IOException if the connection does not start with a hello of a supported version
+         */
+        public static Hello read(DataInput in) throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a cjfr stream connection");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported cjfr stream version " + version);
+            }
+            return new Hello(in.readLong(), in.readUTF());
+        }
+    }
+
+    /** Is the passed agent output path a socket, like {@code unix:/tmp/cjfr.sock}? */
+    public static boolean isSocketPath(String path) {
+        return path.startsWith(PATH_PREFIX);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the path does not have the {@code unix:} prefix or is
+     *     empty
+     */
+    public static Path socketPath(String path) {
+        if (!isSocketPath(path) || path.length() == PATH_PREFIX.length()) {
+            throw new IllegalArgumentException("Invalid socket path " + path);
+        }
+        return Path.of(path.substring(PATH_PREFIX.length()));
+    }
+
+    /** Open a blocking connection to the collector listening on the passed socket */
+    public static SocketChannel connect(Path socket) throws IOException {
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(socket));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Writes one stream as frames to the connection, closing it ends the stream but keeps the
+     * connection open
+     *
+     * <p>Writes block while the collector does not read, so a slow collector slows down the writer
+     * instead of filling up memory.
+     */
+    public static final class FramedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[FRAME_SIZE];
+        private int length = 0;
+        private boolean closed = false;
+        private boolean failed = false;
+
+        public FramedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (length == buffer.length) {
+                writeFrame();
+            }
+            buffer[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte @NotNull [] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (length == buffer.length) {
+                    writeFrame();
+                }
+                int n = Math.min(len, buffer.length - length);
+                System.arraycopy(b, off, buffer, length, n);
+                length += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void writeFrame() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (length == 0) {
+                return;
+            }
+            try {
+                writeInt(length);
+                out.write(buffer, 0, length);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+            length = 0;
+        }
+
+        private void writeInt(int value) throws IOException {
+            out.write(
+                    new byte[] {
+                        (byte) (value >>> 24),
+                        (byte) (value >>> 16),
+                        (byte) (value >>> 8),
+                        (byte) value
+                    });
+        }
+
+        /** Send the buffered bytes as a frame */
+        @Override
+        public void flush() throws IOException {
+            writeFrame();
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        /** Did writing to the connection fail, so the connection is broken? */
+        public boolean failed() {
+            return failed;
+        }
+
+        /** Send the remaining bytes and the end of stream frame */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            flush();
+            closed = true;
+            try {
+                writeInt(0);
+                out.flush();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+    }
+}
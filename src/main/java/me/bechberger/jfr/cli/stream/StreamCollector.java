@@ -0,0 +1,258 @@
+package me.bechberger.jfr.cli.stream;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import me.bechberger.jfr.cli.stream.SocketStreamProtocol.Hello;
+
+/**
+ * Accepts the streams of agents that record to a Unix domain socket and writes every stream to its
+ * own .cjfr file, see {@link SocketStreamProtocol}
+ *
+ * <p>Each connection is handled by its own thread, which only reads as fast as it can write, so the
+ * agents are slowed down instead of the collector buffering their data. The files of a JVM are
+ * either placed in a directory per JVM or side by side in the output directory; the oldest
+ * completed files of a directory are deleted when it holds more than the max files.
+ */
+public final class StreamCollector implements Closeable {
+
+    public enum Layout {
+        /** {@code <output>/<name>-<pid>/<index>.cjfr} */
+        PER_JVM,
+        /** {@code <output>/<name>-<pid>_<index>.cjfr} */
+        FLAT
+    }
+
+    /** A stream that was written completely (ending with its footer) or torn */
+    public record StreamFile(Path path, Hello hello, boolean complete) {}
+
+    private final Path socket;
+    private final Path outputDir;
+    private final Layout layout;
+    private final int maxFiles;
+    private final Consumer<String> log;
+    private final ServerSocketChannel server;
+    private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+
+    /** Guards the fields below */
+    private final Object filesLock = new Object();
+
+    /** Next index per directory and file prefix */
+    private final Map<Path, Integer> nextIndex = new HashMap<>();
+
+    /** Completed files per directory in creation order, for the max files */
+    private final Map<Path, Deque<Path>> completedFiles = new HashMap<>();
+
+    private final List<StreamFile> streamFiles = new ArrayList<>();
+    private volatile boolean closed = false;
+
+    /**
+     * Bind the socket, replacing a stale socket file, and start accepting connections
+     *
+     * @param maxFiles max completed files per directory, 0 for no limit
+     * @param log receives a line for every started and ended stream
+     */
+    public StreamCollector(
+            Path socket, Path outputDir, Layout layout, int maxFiles, Consumer<String> log)
+            throws IOException {
+        if (maxFiles < 0) {
+            throw new IllegalArgumentException("Max files must be at least 0");
+        }
+        this.socket = socket;
+        this.outputDir = outputDir;
+        this.layout = layout;
+        this.maxFiles = maxFiles;
+        this.log = log;
+        Files.createDirectories(outputDir);
+        Files.deleteIfExists(socket);
+        this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            server.bind(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        Thread acceptor = new Thread(this::acceptLoop, "cjfr-collect-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (!closed) {
+                    log.accept("Could not accept connection: " + e.getMessage());
+                }
+                return;
+            }
+            connections.add(channel);
+            Thread t = new Thread(() -> handle(channel), "cjfr-collect-connection");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void handle(SocketChannel channel) {
+        Hello hello = null;
+        try (channel;
+                var in =
+                        new DataInputStream(
+                                new BufferedInputStream(Channels.newInputStream(channel)))) {
+            hello = Hello.read(in);
+            log.accept("Connected: " + describe(hello));
+            while (receiveStream(in, hello)) {}
+        } catch (IOException e) {
+            if (!closed) {
+                log.accept(
+                        "Connection "
+                                + (hello == null ? "" : "of " + describe(hello) + " ")
+                                + "failed: "
+                                + e.getMessage());
+            }
+        } finally {
+            connections.remove(channel);
+        }
+        if (hello != null && !closed) {
+            log.accept("Disconnected: " + describe(hello));
+        }
+    }
+
+    /**
+     * Receive one stream into a new file
+     *
+     * @return false if the connection ended between two streams
+     * @throws IOException if the connection broke within a stream, leaving a torn file
+     */
+    private boolean receiveStream(DataInputStream in, Hello hello) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        Path file = newFile(hello);
+        boolean complete = false;
+        // frames are written unbuffered, so the file is as recent as the last flush of the agent
+        try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.WRITE)) {
+            byte[] buffer = new byte[SocketStreamProtocol.FRAME_SIZE];
+            while (length != 0) {
+                if (length < 0 || length > SocketStreamProtocol.MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (buffer.length < length) {
+                    buffer = new byte[length];
+                }
+                in.readFully(buffer, 0, length);
+                out.write(buffer, 0, length);
+                length = in.readInt();
+            }
+            complete = true;
+        } finally {
+            completed(file, hello, complete);
+        }
+        return true;
+    }
+
+    private Path directory(Hello hello) {
+        return layout == Layout.PER_JVM ? outputDir.resolve(prefix(hello)) : outputDir;
+    }
+
+    private static String prefix(Hello hello) {
+        return hello.name().replaceAll("[^A-Za-z0-9._-]", "_") + "-" + hello.pid();
+    }
+
+    private Path newFile(Hello hello) throws IOException {
+        Path dir = directory(hello);
+        String prefix = layout == Layout.PER_JVM ? "" : prefix(hello) + "_";
+        Path key = dir.resolve(prefix);
+        synchronized (filesLock) {
+            Files.createDirectories(dir);
+            while (true) {
+                int index = nextIndex.merge(key, 1, Integer::sum) - 1;
+                Path file = dir.resolve(prefix + index + ".cjfr");
+                try {
+                    Files.createFile(file);
+                    return file;
+                } catch (FileAlreadyExistsException e) {
+                    // left by an earlier collector
+                }
+            }
+        }
+    }
+
+    private void completed(Path file, Hello hello, boolean complete) throws IOException {
+        log.accept(
+                (complete ? "Received " : "Received torn stream (use 'cjfr recover') ")
+                        + file
+                        + " from "
+                        + describe(hello));
+        synchronized (filesLock) {
+            streamFiles.add(new StreamFile(file, hello, complete));
+            if (maxFiles == 0) {
+                return;
+            }
+            Deque<Path> files =
+                    completedFiles.computeIfAbsent(file.getParent(), d -> new ArrayDeque<>());
+            files.addLast(file);
+            while (files.size() > maxFiles) {
+                Files.deleteIfExists(files.removeFirst());
+            }
+        }
+    }
+
+    private static String describe(Hello hello) {
+        return "recording " + hello.name() + " of JVM " + hello.pid();
+    }
+
+    public Path getSocket() {
+        return socket;
+    }
+
+    /** The streams received so far, including deleted files */
+    public List<StreamFile> getStreamFiles() {
+        synchronized (filesLock) {
+            return List.copyOf(streamFiles);
+        }
+    }
+
+    /** Stop accepting connections, close all connections and delete the socket file */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            server.close();
+            for (SocketChannel channel : connections) {
+                channel.close();
+            }
+        } finally {
+            Files.deleteIfExists(socket);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package me.bechberger.condensed;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.LongSupplier;
+import me.bechberger.condensed.Compression.CompressionLevel;
+import me.bechberger.condensed.Message.StartMessage;
+import me.bechberger.condensed.types.StringType;
+import net.jqwik.api.Example;
+import net.jqwik.api.ForAll;
+import net.jqwik.api.Property;
+
+public class AdaptiveCompressionTest {
+
+    private static final int BLOCK_SIZE = 256;
+
+    private static final AdaptiveCompression ALL_LEVELS =
+            new AdaptiveCompression(
+                    0.1, CompressionLevel.FAST, CompressionLevel.MAX_COMPRESSION, BLOCK_SIZE);
+
+    /** Producing a block takes {@code produceNanos}, compressing it {@code compressNanos} */
+    private static LongSupplier clock(long produceNanos, long compressNanos) {
+        // calls: window start, then start and end of every block
+        long[] state = {0, 0};
+        return () -> {
+            long call = state[1]++;
+            if (call > 0) {
+                state[0] += call % 2 == 1 ? produceNanos : compressNanos;
+            }
+            return state[0];
+        };
+    }
+
+    private static byte[] data() {
+        Random random = new Random(0);
+        byte[] data = new byte[BLOCK_SIZE * 20];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(4));
+        }
+        return data;
+    }
+
+    /** Compress with the passed clock, check the round trip and return the bytes per level */
+    private static Map<String, Long> compress(
+            Compression compression,
+            CompressionLevel initialLevel,
+            AdaptiveCompression settings,
+            LongSupplier clock)
+            throws IOException {
+        byte[] data = data();
+        var bos = new ByteArrayOutputStream();
+        var sink =
+                new FilterOutputStream(bos) {
+                    @Override
+                    public void close() {}
+                };
+        var out =
+                new AdaptiveCompressionOutputStream(
+                        sink, compression, initialLevel, null, settings, clock);
+        // write in chunks that do not align with the blocks
+        for (int off = 0; off < data.length; off += 100) {
+            out.write(data, off, Math.min(100, data.length - off));
+        }
+        out.close();
+        try (InputStream in = compression.wrap(new ByteArrayInputStream(bos.toByteArray()))) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+        Map<String, Long> bytesPerLevel = out.getBytesPerLevel();
+        assertEquals(data.length, bytesPerLevel.values().stream().mapToLong(Long::longValue).sum());
+        return bytesPerLevel;
+    }
+
+    @Property
+    public void testLevelGoesDownWhenOverBudget(@ForAll Compression compression)
+            throws IOException {
+        if (compression == Compression.NONE) {
+            return;
+        }
+        // compression takes as long as producing the data, far above the 10% budget
+        var levels =
+                compress(compression, CompressionLevel.MAX_COMPRESSION, ALL_LEVELS, clock(1, 1));
+        assertThat(levels.keySet())
+                .containsExactly("FAST", "MEDIUM", "HIGH_COMPRESSION", "MAX_COMPRESSION");
+        assertEquals(BLOCK_SIZE, levels.get("MAX_COMPRESSION"));
+        assertThat(levels.get("FAST")).isGreaterThan(levels.get("MAX_COMPRESSION"));
+    }
+
+    @Property
+    public void testLevelGoesUpWhenUnderBudget(@ForAll Compression compression) throws IOException {
+        if (compression == Compression.NONE) {
+            return;
+        }
+        var levels = compress(compression, CompressionLevel.FAST, ALL_LEVELS, clock(100, 1));
+        assertEquals(BLOCK_SIZE, levels.get("FAST"));
+        assertThat(levels.get("MAX_COMPRESSION")).isGreaterThan(levels.get("FAST"));
+    }
+
+    @Example
+    public void testLevelStaysWithinBudgetHysteresis() throws IOException {
+        // 7% is within the budget but above half of it, so the level is kept
+        var levels = compress(Compression.GZIP, CompressionLevel.MEDIUM, ALL_LEVELS, clock(93, 7));
+        assertThat(levels).containsOnlyKeys("MEDIUM");
+    }
+
+    @Example
+    public void testLevelStaysWithinBounds() throws IOException {
+        var bounded =
+                new AdaptiveCompression(
+                        0.1,
+                        CompressionLevel.MEDIUM,
+                        CompressionLevel.HIGH_COMPRESSION,
+                        BLOCK_SIZE);
+        assertThat(compress(Compression.GZIP, CompressionLevel.FAST, bounded, clock(100, 1)))
+                .containsOnlyKeys("MEDIUM", "HIGH_COMPRESSION");
+        assertThat(compress(Compression.GZIP, CompressionLevel.FAST, bounded, clock(1, 1)))
+                .containsOnlyKeys("MEDIUM");
+    }
+
+    private static byte[] writeWithFooter(
+            List<String> values, StartMessage startMessage, AdaptiveCompression adaptive) {
+        var bos = new ByteArrayOutputStream();
+        var out = new CondensedOutputStream(bos, startMessage, adaptive);
+        var stringType = out.writeAndStoreType(StringType::new);
+        for (String value : values) {
+            out.writeMessage(stringType, value);
+        }
+        out.writeFooter(
+                new CJFRFooter(
+                        1,
+                        values.size(),
+                        0L,
+                        0L,
+                        Map.of(),
+                        null,
+                        null,
+                        null,
+                        Map.of(),
+                        Map.of(),
+                        Map.of(),
+                        0L));
+        return bos.toByteArray();
+    }
+
+    @Property
+    public void testLevelsAreReportedInFooter(@ForAll Compression compression) {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            values.add("string " + i);
+        }
+        byte[] data =
+                writeWithFooter(values, StartMessage.DEFAULT.compress(compression), ALL_LEVELS);
+        List<String> result = new ArrayList<>();
+        try (var in = new CondensedInputStream(data)) {
+            Message.ReadInstance<?, ?> instance;
+            while ((instance = in.readNextInstance()) != null) {
+                result.add((String) instance.value());
+            }
+        }
+        assertEquals(values, result);
+        var levelBytes = CJFRFooterReader.tryRead(data).orElseThrow().compressionLevelBytes();
+        if (compression == Compression.NONE) {
+            assertThat(levelBytes).isEmpty();
+        } else {
+            assertThat(levelBytes).isNotEmpty();
+        }
+    }
+
+    @Example
+    public void testFixedLevelHasNoLevelBytes() {
+        byte[] data = writeWithFooter(List.of("a", "b"), StartMessage.DEFAULT, null);
+        assertThat(CJFRFooterReader.tryRead(data).orElseThrow().compressionLevelBytes()).isEmpty();
+    }
+
+    @Example
+    public void testInvalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> AdaptiveCompression.of(0));
+        assertThrows(IllegalArgumentException.class, () -> AdaptiveCompression.of(1.5));
+        assertThrows(
+                IllegalArgumentException.class,
+                () ->
+                        new AdaptiveCompression(
+                                0.1,
+                                CompressionLevel.MAX_COMPRESSION,
+                                CompressionLevel.FAST,
+                                1024));
+    }
+}
@@ -0,0 +1,279 @@
+package me.bechberger.condensed;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import me.bechberger.condensed.Message.StartMessage;
+import me.bechberger.condensed.RIOException.MissingCompressionDictionaryException;
+import me.bechberger.condensed.types.StringType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CompressionDictionaryTest {
+
+    /** Strings that every "file" shares, like the type and string definitions of JFR files */
+    private static final List<String> SHARED =
+            List.of(
+                    "jdk.ExecutionSample",
+                    "jdk.ObjectAllocationSample",
+                    "java.lang.Thread.run",
+                    "java.util.concurrent.ThreadPoolExecutor$Worker.run",
+                    "java.util.concurrent.ThreadPoolExecutor.runWorker",
+                    "org.springframework.web.servlet.DispatcherServlet.doDispatch",
+                    "org.apache.catalina.core.ApplicationFilterChain.doFilter");
+
+    private static List<String> fileStrings(int seed) {
+        Random random = new Random(seed);
+        List<String> strings = new ArrayList<>(SHARED);
+        for (int i = 0; i < 20; i++) {
+            strings.add("value " + random.nextInt(1_000_000));
+        }
+        return strings;
+    }
+
+    private static byte[] writeFile(List<String> strings, StartMessage startMessage) {
+        var bos = new ByteArrayOutputStream();
+        try (var out = new CondensedOutputStream(bos, startMessage)) {
+            var stringType = out.writeAndStoreType(StringType::new);
+            for (String value : strings) {
+                out.writeMessage(stringType, value);
+            }
+        }
+        return bos.toByteArray();
+    }
+
+    private static List<String> readFile(byte[] data) {
+        List<String> result = new ArrayList<>();
+        try (var in = new CondensedInputStream(data)) {
+            Message.ReadInstance<?, ?> instance;
+            while ((instance = in.readNextInstance()) != null) {
+                result.add((String) instance.value());
+            }
+        }
+        return result;
+    }
+
+    private static CompressionDictionary trainOnFiles(int count, int maxSize) {
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            samples.add(writeFile(fileStrings(i), StartMessage.DEFAULT));
+        }
+        return CompressionDictionary.train(samples, maxSize);
+    }
+
+    private static CompressionDictionary trainOnFiles(int count) {
+        return trainOnFiles(count, CompressionDictionary.MAX_SIZE);
+    }
+
+    private static StartMessage withDictionary(CompressionDictionary dictionary) {
+        return StartMessage.DEFAULT
+                .compress(Compression.DEFLATE_DICTIONARY)
+                .withDictionary(dictionary);
+    }
+
+    @Test
+    public void testTrainedDictionaryContainsSharedContent() {
+        // the shared strings fit, but not the random values of all files
+        var dictionary = trainOnFiles(10, 512);
+        String content = new String(dictionary.content(), StandardCharsets.ISO_8859_1);
+        assertThat(content).contains("ThreadPoolExecutor", "DispatcherServlet");
+    }
+
+    @Test
+    public void testTrainRespectsMaxSize() {
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            samples.add(writeFile(fileStrings(i), StartMessage.DEFAULT));
+        }
+        assertThat(CompressionDictionary.train(samples, 100).size()).isEqualTo(100);
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> CompressionDictionary.train(samples, CompressionDictionary.MAX_SIZE + 1));
+    }
+
+    @Test
+    public void testRoundTripWithDictionary() {
+        var dictionary = CompressionDictionary.register(trainOnFiles(10));
+        List<String> strings = fileStrings(42);
+        byte[] data = writeFile(strings, withDictionary(dictionary));
+        assertEquals(strings, readFile(data));
+        try (var in = new CondensedInputStream(data)) {
+            in.readNextInstance();
+            assertEquals(dictionary, in.getUniverse().getStartMessage().dictionary());
+        }
+    }
+
+    @Test
+    public void testZstdRoundTripWithDictionary() {
+        var dictionary = CompressionDictionary.register(trainOnFiles(10));
+        List<String> strings = fileStrings(42);
+        var startMessage = StartMessage.DEFAULT.compress(Compression.ZSTD);
+        byte[] withDictionary = writeFile(strings, startMessage.withDictionary(dictionary));
+        assertEquals(strings, readFile(withDictionary));
+        assertThat(withDictionary.length).isLessThan(writeFile(strings, startMessage).length);
+    }
+
+    @Test
+    public void testRoundTripWithoutDictionary() {
+        List<String> strings = fileStrings(42);
+        byte[] data =
+                writeFile(strings, StartMessage.DEFAULT.compress(Compression.DEFLATE_DICTIONARY));
+        assertEquals(strings, readFile(data));
+    }
+
+    @Test
+    public void testDictionaryMakesSmallFilesSmaller() {
+        var dictionary = CompressionDictionary.register(trainOnFiles(10));
+        List<String> strings = fileStrings(42);
+        int withoutDictionary =
+                writeFile(strings, StartMessage.DEFAULT.compress(Compression.DEFLATE_DICTIONARY))
+                        .length;
+        int withDictionary = writeFile(strings, withDictionary(dictionary)).length;
+        assertThat(withDictionary).isLessThan(withoutDictionary * 3 / 4);
+    }
+
+    @Test
+    public void testMissingDictionary() {
+        // not registered, so the reader cannot find it
+        var dictionary = new CompressionDictionary("unregistered dictionary".getBytes());
+        byte[] data = writeFile(fileStrings(1), withDictionary(dictionary));
+        var e = assertThrows(MissingCompressionDictionaryException.class, () -> readFile(data));
+        assertThat(e.getMessage()).contains(dictionary.idString());
+    }
+
+    @Test
+    public void testWriteAndReadFile(@TempDir Path dir) throws IOException {
+        var dictionary = trainOnFiles(5);
+        Path file = dir.resolve(dictionary.fileName());
+        dictionary.write(file);
+        assertEquals(dictionary, CompressionDictionary.read(file));
+    }
+
+    @Test
+    public void testReadRejectsOtherFiles() {
+        assertThrows(
+                IOException.class,
+                () ->
+                        CompressionDictionary.read(
+                                new ByteArrayInputStream("not a dictionary".getBytes())));
+    }
+
+    @Test
+    public void testLookupInDirectory(@TempDir Path dir) throws IOException {
+        var dictionary = new CompressionDictionary("dictionary in a directory".getBytes());
+        assertThat(CompressionDictionary.lookup(dictionary.id())).isEmpty();
+        dictionary.write(dir.resolve(dictionary.fileName()));
+        String old = System.getProperty(CompressionDictionary.DIRECTORIES_PROPERTY);
+        System.setProperty(CompressionDictionary.DIRECTORIES_PROPERTY, dir.toString());
+        try {
+            assertThat(CompressionDictionary.lookup(dictionary.id())).contains(dictionary);
+        } finally {
+            if (old == null) {
+                System.clearProperty(CompressionDictionary.DIRECTORIES_PROPERTY);
+            } else {
+                System.setProperty(CompressionDictionary.DIRECTORIES_PROPERTY, old);
+            }
+        }
+    }
+
+    @Test
+    public void testDictionaryFromCapturedPrefix() {
+        var startMessage = StartMessage.DEFAULT.compress(Compression.DEFLATE_DICTIONARY);
+        var bos = new ByteArrayOutputStream();
+        byte[] prefix;
+        try (var out = new CondensedOutputStream(bos, startMessage)) {
+            out.capturePrefix(CompressionDictionary.MAX_SIZE);
+            var stringType = out.writeAndStoreType(StringType::new);
+            for (String value : fileStrings(1)) {
+                out.writeMessage(stringType, value);
+            }
+            prefix = out.getCapturedPrefix();
+        }
+        assertEquals(readFile(bos.toByteArray()), fileStrings(1));
+        // the beginning of one file is a dictionary for the following files
+        var dictionary = CompressionDictionary.register(new CompressionDictionary(prefix));
+        List<String> strings = fileStrings(2);
+        byte[] data = writeFile(strings, withDictionary(dictionary));
+        assertEquals(strings, readFile(data));
+        assertThat(data.length).isLessThan(writeFile(strings, startMessage).length * 3 / 4);
+    }
+
+    @Test
+    public void testLookupNextToFile(@TempDir Path dir) throws IOException {
+        var dictionary = new CompressionDictionary("dictionary next to the file".getBytes());
+        Path file = dir.resolve("file.cjfr");
+        Files.write(file, writeFile(fileStrings(3), withDictionary(dictionary)));
+        dictionary.write(dir.resolve(dictionary.fileName()));
+        assertThat(CompressionDictionary.lookup(dictionary.id())).isEmpty();
+        List<String> result = new ArrayList<>();
+        try (var in = new CondensedInputStream(Files.readAllBytes(file))) {
+            in.searchDictionariesNextTo(file);
+            Message.ReadInstance<?, ?> instance;
+            while ((instance = in.readNextInstance()) != null) {
+                result.add((String) instance.value());
+            }
+        }
+        assertEquals(fileStrings(3), result);
+    }
+
+    private static void writeFileWithFooter(Path file, StartMessage startMessage)
+            throws IOException {
+        var bos = new ByteArrayOutputStream();
+        var out = new CondensedOutputStream(bos, startMessage);
+        var stringType = out.writeAndStoreType(StringType::new);
+        for (String value : fileStrings(4)) {
+            out.writeMessage(stringType, value);
+        }
+        out.writeFooter(
+                new CJFRFooter(
+                        1,
+                        100L,
+                        0L,
+                        0L,
+                        Map.of("x", 1L),
+                        null,
+                        null,
+                        null,
+                        Map.of(),
+                        Map.of(),
+                        Map.of(),
+                        0L));
+        Files.write(file, bos.toByteArray());
+    }
+
+    @Test
+    public void testWriteStandalone(@TempDir Path dir) throws IOException {
+        for (Compression compression : List.of(Compression.DEFLATE_DICTIONARY, Compression.ZSTD)) {
+            var dictionary =
+                    CompressionDictionary.register(
+                            new CompressionDictionary(("standalone " + compression).getBytes()));
+            Path file = dir.resolve(compression + ".cjfr");
+            writeFileWithFooter(
+                    file, StartMessage.DEFAULT.compress(compression).withDictionary(dictionary));
+            Path standalone = dir.resolve(compression + ".standalone.cjfr");
+            assertTrue(CompressionDictionary.writeStandalone(file, standalone));
+            byte[] data = Files.readAllBytes(standalone);
+            assertEquals(fileStrings(4), readFile(data));
+            try (var in = new CondensedInputStream(data)) {
+                assertNull(in.readStartMessage().dictionary());
+            }
+            assertThat(CJFRFooterReader.tryRead(standalone).orElseThrow().eventCounts())
+                    .isEqualTo(Map.of("x", 1L));
+            CJFRFooterReader.verify(standalone);
+            // files without a dictionary are copied as they are
+            Path copy = dir.resolve(compression + ".copy.cjfr");
+            assertFalse(CompressionDictionary.writeStandalone(standalone, copy));
+            assertArrayEquals(data, Files.readAllBytes(copy));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package me.bechberger.condensed;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import me.bechberger.condensed.Message.StartMessage;
+import me.bechberger.condensed.types.StringType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CondensedRecoveryTest {
+
+    private static final List<String> VALUES = values();
+
+    private static List<String> values() {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            values.add("value " + i + " " + Integer.toHexString(i * 7919));
+        }
+        return values;
+    }
+
+    /** Write the values, flushing every 100 values like a durable agent, without footer */
+    private static byte[] writeTorn(Compression compression) {
+        var bos = new ByteArrayOutputStream();
+        var out = new CondensedOutputStream(bos, StartMessage.DEFAULT.compress(compression));
+        var stringType = out.writeAndStoreType(StringType::new);
+        for (int i = 0; i < VALUES.size(); i++) {
+            out.writeMessage(stringType, VALUES.get(i));
+            if (i % 100 == 99) {
+                out.flush();
+            }
+        }
+        out.flush();
+        return bos.toByteArray(); // never closed, like after a crash
+    }
+
+    private static List<String> readAll(Path file) throws IOException {
+        List<String> result = new ArrayList<>();
+        try (var in = new CondensedInputStream(Files.readAllBytes(file))) {
+            Message.ReadInstance<?, ?> instance;
+            while ((instance = in.readNextInstance()) != null) {
+                result.add((String) instance.value());
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testRecoverTornFiles(@TempDir Path dir) throws IOException {
+        for (Compression compression :
+                List.of(Compression.NONE, Compression.GZIP, Compression.LZ4FRAMED)) {
+            byte[] data = writeTorn(compression);
+            for (double cut : new double[] {0.3, 0.77, 1}) {
+                Path torn = dir.resolve(compression + "-" + cut + ".cjfr");
+                Files.write(torn, Arrays.copyOf(data, (int) (data.length * cut)));
+                Path recovered = dir.resolve(compression + "-" + cut + ".recovered.cjfr");
+
+                var result = CondensedRecovery.recover(torn, recovered);
+
+                assertFalse(result.complete());
+                List<String> read = readAll(recovered);
+                // the type specification is a message too
+                assertEquals(result.messages() - 1, read.size(), compression + " " + cut);
+                assertEquals(VALUES.subList(0, read.size()), read);
+                if (cut == 1) {
+                    assertEquals(VALUES, read);
+                } else {
+                    assertThat(read).hasSizeLessThan(VALUES.size());
+                }
+                // the recovered file has no torn tail
+                var again = CondensedRecovery.analyze(recovered);
+                assertEquals(result.messages(), again.messages());
+                assertEquals(0, again.discardedBytes());
+            }
+        }
+    }
+
+    @Test
+    public void testRecoverInPlace(@TempDir Path dir) throws IOException {
+        byte[] data = writeTorn(Compression.LZ4FRAMED);
+        Path file = dir.resolve("torn.cjfr");
+        Files.write(file, Arrays.copyOf(data, data.length / 2));
+        var result = CondensedRecovery.recover(file, file);
+        assertEquals(result.messages() - 1, readAll(file).size());
+        try (var files = Files.list(dir)) {
+            assertEquals(List.of(file), files.toList());
+        }
+    }
+
+    @Test
+    public void testCompleteFilesAreNotCopied(@TempDir Path dir) throws IOException {
+        var bos = new ByteArrayOutputStream();
+        var out = new CondensedOutputStream(bos, StartMessage.DEFAULT);
+        var stringType = out.writeAndStoreType(StringType::new);
+        out.writeMessage(stringType, "value");
+        out.writeFooter(
+                new CJFRFooter(
+                        1,
+                        100L,
+                        0L,
+                        0L,
+                        Map.of("x", 1L),
+                        null,
+                        null,
+                        null,
+                        Map.of(),
+                        Map.of(),
+                        Map.of(),
+                        0L));
+        Path file = dir.resolve("complete.cjfr");
+        Files.write(file, bos.toByteArray());
+        Path output = dir.resolve("complete.recovered.cjfr");
+        assertTrue(CondensedRecovery.recover(file, output).complete());
+        assertFalse(Files.exists(output));
+    }
+}
@@ -6,14 +6,23 @@ import static org.junit.jupiter.api.Assertions.*;
 import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.function.BiPredicate;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import me.bechberger.condensed.CondensedOutputStream.OverflowMode;
 import me.bechberger.condensed.Message.StartMessage;
+import me.bechberger.condensed.Universe.EmbeddingType;
 import me.bechberger.condensed.Universe.HashAndEqualsConfig;
 import me.bechberger.condensed.Universe.HashAndEqualsWrapper;
+import me.bechberger.condensed.types.CondensedType;
 import me.bechberger.condensed.types.StringType;
+import me.bechberger.condensed.types.StructType;
+import me.bechberger.condensed.types.StructType.Field;
 import me.bechberger.condensed.types.TypeCollection;
 import net.jqwik.api.*;
 import net.jqwik.api.constraints.*;
@@ -334,6 +343,232 @@ public class CondensedStreamRoundTripTest {
                 });
     }
 
+    /** The allocation-free UTF-8 encoder has to produce exactly the bytes of String.getBytes */
+    @Property
+    public void testUTF8EncodingMatchesGetBytes(@ForAll String value) {
+        byte[] data = CondensedOutputStream.use(out -> out.writeString(value, null), false);
+        var expected = new ByteArrayOutputStream();
+        var expectedOut = new CondensedOutputStream(expected);
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        expectedOut.writeUnsignedVarInt(bytes.length);
+        expectedOut.write(bytes);
+        assertArrayEquals(expected.toByteArray(), data);
+    }
+
+    @Example
+    public void testUTF8EncodingOfUnpairedSurrogates() {
+        testUTF8EncodingMatchesGetBytes("a\uD800b\uDC00c\uD83D\uDE00");
+    }
+
+    private static List<String> writeAndReadStringMessages(
+            List<String> values, StartMessage startMessage, int[] sizeOut) {
+        var bos = new ByteArrayOutputStream();
+        try (var out = new CondensedOutputStream(bos, startMessage)) {
+            var stringType = out.writeAndStoreType(StringType::new);
+            for (String value : values) {
+                out.writeMessage(stringType, value);
+            }
+        }
+        sizeOut[0] = bos.size();
+        List<String> result = new ArrayList<>();
+        try (var in = new CondensedInputStream(bos.toByteArray())) {
+            Message.ReadInstance<?, ?> instance;
+            while ((instance = in.readNextInstance()) != null) {
+                result.add((String) instance.value());
+            }
+        }
+        return result;
+    }
+
+    @Property
+    public void testInternedStringsRoundTrip(
+            @ForAll @Size(max = 50) List<@StringLength(max = 20) String> distinct,
+            @ForAll @Size(max = 200) List<@IntRange(max = 49) Integer> picks) {
+        List<String> values = new ArrayList<>(distinct);
+        if (!distinct.isEmpty()) {
+            for (int pick : picks) {
+                values.add(distinct.get(pick % distinct.size()));
+            }
+        }
+        assertEquals(values, writeAndReadStringMessages(values, StartMessage.DEFAULT, new int[1]));
+    }
+
+    @Test
+    public void testInternedStringsRoundTripAfterEviction() {
+        List<String> values = new ArrayList<>();
+        int count = Constants.STRING_DICTIONARY_CAPACITY + 100;
+        for (int i = 0; i < count; i++) {
+            values.add("string " + i);
+        }
+        // the first strings are evicted by now, the last ones are still present
+        for (int i = 0; i < count; i += 7) {
+            values.add("string " + i);
+        }
+        String tooLong = "x".repeat(Constants.STRING_DICTIONARY_MAX_LENGTH + 1);
+        values.add(tooLong);
+        values.add(tooLong);
+        assertEquals(values, writeAndReadStringMessages(values, StartMessage.DEFAULT, new int[1]));
+    }
+
+    /**
+     * The reader must stop at the footer, regardless of how the compression handles trailing bytes
+     */
+    @Property
+    public void testStringsFollowedByFooterRoundTrip(@ForAll Compression compression) {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            values.add("string " + i);
+        }
+        var bos = new ByteArrayOutputStream();
+        var out = new CondensedOutputStream(bos, StartMessage.DEFAULT.compress(compression));
+        var stringType = out.writeAndStoreType(StringType::new);
+        for (String value : values) {
+            out.writeMessage(stringType, value);
+        }
+        out.writeFooter(
+                new CJFRFooter(
+                        1,
+                        values.size(),
+                        0L,
+                        0L,
+                        Map.of(),
+                        null,
+                        null,
+                        null,
+                        Map.of(),
+                        Map.of(),
+                        Map.of(),
+                        0L));
+        List<String> result = new ArrayList<>();
+        try (var in = new CondensedInputStream(bos.toByteArray())) {
+            Message.ReadInstance<?, ?> instance;
+            while ((instance = in.readNextInstance()) != null) {
+                result.add((String) instance.value());
+            }
+        }
+        assertEquals(values, result);
+    }
+
+    /** Values written with grown writing caches are read back, the sizes end up in the footer */
+    @Test
+    public void testReferencesRoundTripWithGrowingCache() {
+        CondensedType<String, String> string =
+                TypeCollection.getDefaultTypeInstance(StringType.SPECIFIED_TYPE);
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < Universe.WritingCaches.REBALANCE_INTERVAL * 2; i++) {
+            values.add("s" + (i % 150));
+        }
+        var bos = new ByteArrayOutputStream();
+        var out = new CondensedOutputStream(bos, StartMessage.DEFAULT, new Universe(100));
+        var type =
+                out.writeAndStoreType(
+                        id ->
+                                new StructType<String, String>(
+                                        id,
+                                        List.of(
+                                                new Field<>(
+                                                        "s",
+                                                        "",
+                                                        string,
+                                                        s -> s,
+                                                        EmbeddingType.REFERENCE))));
+        for (String value : values) {
+            out.writeMessage(type, value);
+        }
+        out.writeFooter(
+                new CJFRFooter(
+                        1,
+                        values.size(),
+                        0L,
+                        0L,
+                        Map.of(),
+                        null,
+                        null,
+                        null,
+                        Map.of(),
+                        Map.of(),
+                        Map.of(),
+                        0L));
+        byte[] data = bos.toByteArray();
+        List<String> result = new ArrayList<>();
+        try (var in = new CondensedInputStream(data)) {
+            Message.ReadInstance<?, ?> instance;
+            while ((instance = in.readNextInstance()) != null) {
+                result.add((String) ((ReadStruct) instance.value()).get("s"));
+            }
+        }
+        assertEquals(values, result);
+        var cacheStats = CJFRFooterReader.tryRead(data).orElseThrow().writingCacheStats();
+        assertEquals(200, cacheStats.get(string.getName()).size());
+    }
+
+    private static byte[] footerBytes(Map<String, Long> eventCounts) {
+        return new CJFRFooter(
+                        1,
+                        3,
+                        0L,
+                        0L,
+                        eventCounts,
+                        null,
+                        null,
+                        null,
+                        Map.of(),
+                        Map.of(),
+                        eventCounts,
+                        0L)
+                .toCompressedBytes();
+    }
+
+    /** The footer must not depend on the iteration order of its maps */
+    @Example
+    public void testFooterBytesDoNotDependOnMapOrder() {
+        var ordered = new LinkedHashMap<String, Long>();
+        ordered.put("jdk.A", 1L);
+        ordered.put("jdk.B", 2L);
+        var reversed = new LinkedHashMap<String, Long>();
+        reversed.put("jdk.B", 2L);
+        reversed.put("jdk.A", 1L);
+        assertArrayEquals(footerBytes(ordered), footerBytes(reversed));
+    }
+
+    /**
+     * Dropped events are stored behind the full flags byte, footers without them keep their bytes
+     */
+    @Example
+    public void testFooterDroppedEventsRoundTrip() {
+        var footer = CJFRFooter.fromCompressedBytes(footerBytes(Map.of("jdk.A", 1L)));
+        assertEquals(Map.of(), footer.droppedEvents());
+        var dropped = Map.of("jdk.ObjectAllocationSample", 1234L, "jdk.ExecutionSample", 5L);
+        var withDropped = footer.withDroppedEvents(dropped);
+        var read = CJFRFooter.fromCompressedBytes(withDropped.toCompressedBytes());
+        assertEquals(dropped, read.droppedEvents());
+        assertEquals(footer.eventCounts(), read.eventCounts());
+        assertArrayEquals(
+                footerBytes(Map.of("jdk.A", 1L)),
+                footer.withDroppedEvents(Map.of()).toCompressedBytes());
+    }
+
+    @Test
+    public void testInternedStringsAreSmallerThanInlineStrings() {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            values.add("Object.wait() on a very long monitor class name " + (i % 10));
+        }
+        int[] internedSize = new int[1];
+        int[] inlineSize = new int[1];
+        var preDictionaryVersion =
+                new StartMessage(
+                        Constants.STRING_DICTIONARY_VERSION - 1,
+                        "Unknown",
+                        "Unknown Version",
+                        "",
+                        Compression.NONE);
+        assertEquals(values, writeAndReadStringMessages(values, preDictionaryVersion, inlineSize));
+        assertEquals(
+                values, writeAndReadStringMessages(values, StartMessage.DEFAULT, internedSize));
+        assertThat(internedSize[0]).isLessThan(inlineSize[0] / 10);
+    }
+
     @Example
     public void testUniverseWithCustomHashAndEquals() {
         var stringType = TypeCollection.getDefaultTypeInstance(StringType.SPECIFIED_TYPE);
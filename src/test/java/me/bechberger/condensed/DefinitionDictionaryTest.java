@@ -0,0 +1,242 @@
+package me.bechberger.condensed;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import me.bechberger.condensed.Message.DefinitionsMessage;
+import me.bechberger.condensed.Message.StartMessage;
+import me.bechberger.condensed.RIOException.MissingDefinitionDictionaryException;
+import me.bechberger.condensed.Universe.EmbeddingType;
+import me.bechberger.condensed.types.CondensedType;
+import me.bechberger.condensed.types.StringType;
+import me.bechberger.condensed.types.StructType;
+import me.bechberger.condensed.types.StructType.Field;
+import me.bechberger.condensed.types.TypeCollection;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DefinitionDictionaryTest {
+
+    private static final CondensedType<String, String> STRING =
+            TypeCollection.getDefaultTypeInstance(StringType.SPECIFIED_TYPE);
+
+    /** Values that every "file" references, like the stack traces of JFR files */
+    private static List<String> defined(String prefix) {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            values.add(prefix + " java.util.concurrent.ThreadPoolExecutor.runWorker " + i);
+        }
+        return values;
+    }
+
+    private static List<String> values(List<String> defined) {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            values.add(defined.get(i % defined.size()));
+        }
+        return values;
+    }
+
+    private record Written(byte[] data, DefinitionDictionary definitions) {}
+
+    /**
+     * Write a struct with a reference field for every value, defining the type and the references
+     * of the defined values up front, flushing every 100 values like a durable agent
+     *
+     * @param shared definitions that the file refers to if it has their content
+     * @param close write the footer, otherwise the file is torn
+     */
+    private static Written write(
+            List<String> defined,
+            StartMessage startMessage,
+            @Nullable DefinitionDictionary shared,
+            boolean close) {
+        var bos = new ByteArrayOutputStream();
+        var out = new CondensedOutputStream(bos, startMessage.withDefinitions(true));
+        List<StructType<String, String>> type = new ArrayList<>();
+        byte[] content =
+                out.captureDefinitions(
+                        () -> {
+                            type.add(
+                                    out.writeAndStoreType(
+                                            id ->
+                                                    new StructType<>(
+                                                            id,
+                                                            List.of(
+                                                                    new Field<>(
+                                                                            "s",
+                                                                            "",
+                                                                            STRING,
+                                                                            s -> s,
+                                                                            EmbeddingType
+                                                                                    .REFERENCE)))));
+                            for (String value : defined) {
+                                out.writeReferences(type.get(0), value);
+                            }
+                        });
+        out.writeDefinitions(content, shared);
+        List<String> values = values(defined);
+        for (int i = 0; i < values.size(); i++) {
+            out.writeMessage(type.get(0), values.get(i));
+            if (i % 100 == 99) {
+                out.flush();
+            }
+        }
+        if (close) {
+            out.close();
+        } else {
+            out.flush();
+        }
+        return new Written(bos.toByteArray(), new DefinitionDictionary(content));
+    }
+
+    private static List<String> readAll(Path file) throws IOException {
+        List<String> result = new ArrayList<>();
+        try (var in = new CondensedInputStream(Files.readAllBytes(file))) {
+            in.searchDictionariesNextTo(file);
+            Message.ReadInstance<?, ?> instance;
+            while ((instance = in.readNextInstance()) != null) {
+                result.add((String) ((ReadStruct) instance.value()).get("s"));
+            }
+        }
+        return result;
+    }
+
+    private static @Nullable DefinitionsMessage readDefinitionsMessage(Path file)
+            throws IOException {
+        try (var in = new CondensedInputStream(Files.readAllBytes(file))) {
+            in.searchDictionariesNextTo(file);
+            Message message;
+            while ((message = in.readNextMessageAndProcess()) != null) {
+                if (message instanceof DefinitionsMessage definitions) {
+                    return definitions;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testSharedDefinitionsAreNotRepeated(@TempDir Path dir) throws IOException {
+        List<String> defined = defined("not repeated");
+        var inline = write(defined, StartMessage.DEFAULT, null, true);
+        var shared = write(defined, StartMessage.DEFAULT, inline.definitions(), true);
+        assertThat(shared.data().length).isLessThan(inline.data().length);
+        assertThat(new String(shared.data(), StandardCharsets.ISO_8859_1))
+                .doesNotContain(defined.get(0));
+
+        Path inlineFile = dir.resolve("inline.cjfr");
+        Files.write(inlineFile, inline.data());
+        assertEquals(values(defined), readAll(inlineFile));
+        assertFalse(readDefinitionsMessage(inlineFile).shared());
+
+        Path file = dir.resolve("shared.cjfr");
+        Files.write(file, shared.data());
+        assertThrows(MissingDefinitionDictionaryException.class, () -> readAll(file));
+        inline.definitions().write(dir.resolve(inline.definitions().fileName()));
+        assertEquals(values(defined), readAll(file));
+        var message = readDefinitionsMessage(file);
+        assertTrue(message.shared());
+        assertEquals(inline.definitions(), message.definitions());
+    }
+
+    @Test
+    public void testFileRoundTripVerifiesChecksum(@TempDir Path dir) throws IOException {
+        List<String> defined = defined("checksum");
+        var definitions = write(defined, StartMessage.DEFAULT, null, true).definitions();
+        Path definitionsFile = dir.resolve(definitions.fileName());
+        definitions.write(definitionsFile);
+        assertEquals(definitions, DefinitionDictionary.read(definitionsFile));
+
+        byte[] data = Files.readAllBytes(definitionsFile);
+        data[data.length - 1] ^= 1;
+        Files.write(definitionsFile, data);
+        assertThrows(IOException.class, () -> DefinitionDictionary.read(definitionsFile));
+        // broken companion files are ignored
+        Path file = dir.resolve("file.cjfr");
+        Files.write(file, write(defined, StartMessage.DEFAULT, definitions, true).data());
+        assertThrows(MissingDefinitionDictionaryException.class, () -> readAll(file));
+    }
+
+    /** Content followed by its CRC-32, all such contents have the same CRC-32 */
+    private static byte[] withChecksum(String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        var crc = new CRC32();
+        crc.update(bytes);
+        byte[] result = Arrays.copyOf(bytes, bytes.length + 4);
+        for (int i = 0; i < 4; i++) {
+            result[bytes.length + i] = (byte) (crc.getValue() >>> (8 * i));
+        }
+        return result;
+    }
+
+    @Test
+    public void testLookupDistinguishesCollidingChecksums() {
+        var registered = new DefinitionDictionary(withChecksum("registered definitions"));
+        var other = new DefinitionDictionary(withChecksum("other"));
+        assertEquals(registered.id(), other.id());
+        DefinitionDictionary.register(registered);
+        assertEquals(
+                registered,
+                DefinitionDictionary.lookup(registered.id(), registered.size(), List.of())
+                        .orElseThrow());
+        assertThat(DefinitionDictionary.lookup(other.id(), other.size(), List.of())).isEmpty();
+    }
+
+    @Test
+    public void testWriteStandaloneInlinesDefinitions(@TempDir Path dir) throws IOException {
+        for (Compression compression : List.of(Compression.NONE, Compression.LZ4FRAMED)) {
+            List<String> defined = defined("standalone " + compression);
+            var startMessage = StartMessage.DEFAULT.compress(compression);
+            var definitions =
+                    DefinitionDictionary.register(
+                            write(defined, startMessage, null, true).definitions());
+            Path file = dir.resolve(compression + ".cjfr");
+            Files.write(file, write(defined, startMessage, definitions, true).data());
+            Path standalone = dir.resolve(compression + ".standalone.cjfr");
+            assertTrue(CompressionDictionary.writeStandalone(file, standalone));
+            var message = readDefinitionsMessage(standalone);
+            assertFalse(message.shared());
+            assertEquals(definitions, message.definitions());
+            assertEquals(values(defined), readAll(standalone));
+            CJFRFooterReader.verify(standalone);
+        }
+    }
+
+    @Test
+    public void testRecoverTornFileWithSharedDefinitions(@TempDir Path dir) throws IOException {
+        for (Compression compression : List.of(Compression.NONE, Compression.LZ4FRAMED)) {
+            List<String> defined = defined("recover " + compression);
+            var startMessage = StartMessage.DEFAULT.compress(compression);
+            var definitions =
+                    DefinitionDictionary.register(
+                            write(defined, startMessage, null, true).definitions());
+            byte[] data = write(defined, startMessage, definitions, false).data();
+            for (double cut : new double[] {0.5, 1}) {
+                Path torn = dir.resolve(compression + "-" + cut + ".cjfr");
+                Files.write(torn, Arrays.copyOf(data, (int) (data.length * cut)));
+                Path recovered = dir.resolve(compression + "-" + cut + ".recovered.cjfr");
+
+                var result = CondensedRecovery.recover(torn, recovered);
+
+                assertFalse(result.complete());
+                List<String> read = readAll(recovered);
+                assertThat(read).isNotEmpty();
+                assertEquals(values(defined).subList(0, read.size()), read);
+                if (cut == 1) {
+                    assertEquals(values(defined), read);
+                }
+            }
+        }
+    }
+}
@@ -285,6 +285,79 @@ public class TypeSpecificationTest {
         }
     }
 
+    private static byte[] writeIntArrays(
+            List<List<Integer>> values,
+            EmbeddingType embedding,
+            boolean sharesPrefixes,
+            AtomicReference<ArrayType<Long, Long>> typeRef) {
+        return CondensedOutputStream.use(
+                out -> {
+                    var innerType = TypeCollection.getDefaultTypeInstance(IntType.SPECIFIED_TYPE);
+                    var type =
+                            out.writeAndStoreType(
+                                    id -> {
+                                        var arrayType = new ArrayType<>(id, innerType, embedding);
+                                        return sharesPrefixes
+                                                ? arrayType.withSharedPrefixes()
+                                                : arrayType;
+                                    });
+                    typeRef.set(type);
+                    for (var value : values) {
+                        out.writeMessage(type, value.stream().map(Long::valueOf).toList());
+                    }
+                },
+                true);
+    }
+
+    @Property
+    @SuppressWarnings("rawtypes")
+    public void testPrefixSharingIntArrays(
+            @ForAll @Size(max = 30) List<@Size(max = 20) List<@IntRange(max = 3) Integer>> values,
+            @ForAll EmbeddingType embedding) {
+        AtomicReference<ArrayType<Long, Long>> typeRef = new AtomicReference<>();
+        byte[] outBytes = writeIntArrays(values, embedding, true, typeRef);
+        try (var in = new CondensedInputStream(outBytes)) {
+            ArrayType type = (ArrayType) in.readNextTypeMessageAndProcess();
+            assertEquals(typeRef.get(), type);
+            assertTrue(type.sharesPrefixes());
+            for (var value : values) {
+                var msg = in.readNextInstance();
+                assertNotNull(msg);
+                assertEquals(value.stream().map(i -> (long) i).toList(), msg.value());
+            }
+            assertNull(in.readNextInstance());
+        }
+    }
+
+    @Test
+    public void testPrefixSharingArraysWithCommonTailAreSmaller() {
+        // stack trace like: a few different leaf elements on top of a deep common tail
+        List<Integer> tail = IntStream.range(1000, 1060).boxed().toList();
+        List<List<Integer>> values = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            List<Integer> value = new ArrayList<>();
+            for (int j = 0; j < 4; j++) {
+                value.add(i * 4 + j);
+            }
+            value.addAll(i % 2 == 0 ? tail : tail.subList(10, tail.size()));
+            values.add(value);
+        }
+        AtomicReference<ArrayType<Long, Long>> typeRef = new AtomicReference<>();
+        byte[] shared = writeIntArrays(values, EmbeddingType.INLINE, true, typeRef);
+        byte[] unshared = writeIntArrays(values, EmbeddingType.INLINE, false, typeRef);
+        assertTrue(
+                shared.length * 5 < unshared.length,
+                "shared: " + shared.length + ", unshared: " + unshared.length);
+        try (var in = new CondensedInputStream(shared)) {
+            in.readNextTypeMessageAndProcess();
+            for (var value : values) {
+                var msg = in.readNextInstance();
+                assertNotNull(msg);
+                assertEquals(value.stream().map(i -> (long) i).toList(), msg.value());
+            }
+        }
+    }
+
     @FunctionalInterface
     interface TypeCreator<T, C extends CondensedType<T, T>> {
         C create(CondensedOutputStream out);
@@ -2,8 +2,16 @@ package me.bechberger.condensed;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import me.bechberger.condensed.CondensedOutputStream.OverflowMode;
 import me.bechberger.condensed.Universe.EmbeddingType;
 import me.bechberger.condensed.Universe.HashAndEqualsConfig;
+import me.bechberger.condensed.Universe.PrefixTrie;
+import me.bechberger.condensed.Universe.PrefixTrie.Match;
+import me.bechberger.condensed.Universe.WritingCaches;
 import me.bechberger.condensed.types.IntType;
 import org.junit.jupiter.api.Test;
 
@@ -85,4 +93,135 @@ public class UniverseTest {
         var factory = config.getWrapperFactory(intType);
         assertTrue(factory.isEmpty());
     }
+
+    // --- PrefixTrie tests ---
+
+    @Test
+    public void testPrefixTrieWithoutSharedTail() {
+        var trie = new PrefixTrie<Integer>(-1, null);
+        assertEquals(new Match(-1, 0, 0), trie.insert(List.of(1, 2, 3)));
+        assertEquals(new Match(-1, 0, 0), trie.insert(List.of(4, 5)));
+        assertEquals(new Match(-1, 0, 0), trie.insert(List.of()));
+        assertEquals(5, trie.size());
+    }
+
+    @Test
+    public void testPrefixTrieMatchesLongestSharedTail() {
+        var trie = new PrefixTrie<Integer>(-1, null);
+        trie.insert(List.of(1, 2, 3, 4));
+        // shares 2, 3, 4 with array 0, which starts them at index 1
+        assertEquals(new Match(0, 1, 3), trie.insert(List.of(5, 2, 3, 4)));
+        // only 3, 4 are shared
+        assertEquals(new Match(0, 2, 2), trie.insert(List.of(6, 3, 4)));
+        // shares all of array 1
+        assertEquals(new Match(1, 0, 4), trie.insert(List.of(7, 5, 2, 3, 4)));
+        assertEquals(new Match(0, 0, 4), trie.insert(List.of(1, 2, 3, 4)));
+    }
+
+    @Test
+    public void testPrefixTrieIsDroppedWhenFull() {
+        var trie = new PrefixTrie<Integer>(6, null);
+        trie.insert(List.of(1, 2, 3));
+        assertEquals(new Match(0, 1, 2), trie.insert(List.of(4, 2, 3)));
+        // would exceed 6 nodes
+        assertEquals(new Match(-1, 0, 0), trie.insert(List.of(5, 6, 2, 3)));
+        assertEquals(4, trie.size());
+        // ids keep counting after dropping the trie
+        assertEquals(new Match(2, 2, 2), trie.insert(List.of(2, 3)));
+    }
+
+    @Test
+    public void testPrefixTrieUsesWrapperFactory() {
+        record ModuloWrapper(Integer value) implements Universe.HashAndEqualsWrapper<Integer> {
+            @Override
+            public int hashCode() {
+                return value % 10;
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                return obj instanceof ModuloWrapper other && other.value % 10 == value % 10;
+            }
+        }
+        var trie = new PrefixTrie<Integer>(-1, ModuloWrapper::new);
+        trie.insert(List.of(1, 2));
+        assertEquals(new Match(0, 0, 2), trie.insert(List.of(11, 12)));
+    }
+
+    // --- WritingCaches sizing tests ---
+
+    private static final IntType HOT = new IntType(100, "hot", "", 4, true, OverflowMode.ERROR);
+    private static final IntType COLD = new IntType(101, "cold", "", 4, true, OverflowMode.ERROR);
+
+    /**
+     * Cycle through {@code hotValues} values of {@link #HOT} and 10 values of {@link #COLD} for
+     * {@code rounds} rebalancing intervals, checking that every new value gets a new id
+     */
+    private static void cycle(WritingCaches caches, int hotValues, int rounds) {
+        Set<Integer> hotIds = new HashSet<>();
+        for (int i = 0; i < WritingCaches.REBALANCE_INTERVAL * rounds; i++) {
+            int id =
+                    i % 8 == 0
+                            ? caches.getOrPut(COLD, (long) (i % 10))
+                            : caches.getOrPut(HOT, (long) (i % hotValues));
+            if (id < 0 && i % 8 != 0) {
+                assertTrue(hotIds.add(~id), "id reused");
+            }
+        }
+    }
+
+    @Test
+    public void testThrashingCacheGrows() {
+        var caches = new WritingCaches(HashAndEqualsConfig.NONE, 100, 1000);
+        cycle(caches, 150, 3);
+        var stats = caches.statistics();
+        assertEquals(200, stats.get("hot").size());
+        assertEquals(100, stats.get("cold").size());
+        // all hot values fit after the first rebalancing
+        assertTrue(stats.get("hot").hitRatio() > 0.5, stats.toString());
+    }
+
+    @Test
+    public void testCachesStayWithinBudget() {
+        var caches = new WritingCaches(HashAndEqualsConfig.NONE, 100, 150);
+        cycle(caches, 150, 3);
+        var stats = caches.statistics();
+        // the cold cache holds 5 values
+        assertEquals(145, stats.get("hot").size());
+        assertTrue(stats.get("hot").entries() + stats.get("cold").entries() <= 150);
+    }
+
+    @Test
+    public void testMissOfEvictedValueIsGhostHit() {
+        var cache = new Universe.WritingCachePerType<String>(1);
+        cache.getOrPut(new String("a"));
+        cache.getOrPut("b"); // evicts "a"
+        assertTrue(cache.getOrPut(new String("a")) < 0);
+        assertEquals(1, cache.usage().windowGhostHits);
+    }
+
+    @Test
+    public void testGhostsDoNotKeepEvictedValues() throws InterruptedException {
+        var cache = new Universe.WritingCachePerType<List<Integer>>(1);
+        List<Integer> evicted = List.of(1, 2, 3);
+        var reference = new WeakReference<>(evicted);
+        cache.getOrPut(evicted);
+        cache.getOrPut(List.of(4)); // evicts the first list
+        evicted = null;
+        for (int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get());
+        assertTrue(cache.getOrPut(List.of(1, 2, 3)) < 0);
+        assertEquals(1, cache.usage().windowGhostHits);
+    }
+
+    @Test
+    public void testZeroBudgetKeepsSizes() {
+        var caches = new WritingCaches(HashAndEqualsConfig.NONE, 100, 0);
+        cycle(caches, 150, 3);
+        assertEquals(100, caches.statistics().get("hot").size());
+        assertEquals(0, caches.statistics().get("hot").hits());
+    }
 }
@@ -0,0 +1,173 @@
+package me.bechberger.condensed.types;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+import me.bechberger.condensed.CondensedInputStream;
+import me.bechberger.condensed.CondensedOutputStream;
+import me.bechberger.condensed.Message.StartMessage;
+import me.bechberger.condensed.ReadStruct;
+import me.bechberger.condensed.Universe.EmbeddingType;
+import me.bechberger.condensed.types.StructType.Field;
+import net.jqwik.api.Example;
+import net.jqwik.api.ForAll;
+import net.jqwik.api.Property;
+import net.jqwik.api.constraints.IntRange;
+
+/** Generated struct codecs must write and read exactly like the interpreted ones */
+public class StructCodecTest {
+
+    private static final int VALUES = StructType.GENERATE_CODEC_AFTER * 3;
+
+    /** Fields alternate between inline longs, referenced strings and nullable inline strings */
+    private static List<Field<List<Object>, ?, ?>> fields(int count) {
+        CondensedType<Long, Long> varInt =
+                TypeCollection.getDefaultTypeInstance(VarIntType.SPECIFIED_TYPE);
+        CondensedType<String, String> string =
+                TypeCollection.getDefaultTypeInstance(StringType.SPECIFIED_TYPE);
+        List<Field<List<Object>, ?, ?>> fields = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            fields.add(
+                    switch (i % 3) {
+                        case 0 -> new Field<>("f" + i, "", varInt, l -> (Long) l.get(index));
+                        case 1 ->
+                                new Field<>(
+                                        "f" + i,
+                                        "",
+                                        string,
+                                        l -> (String) l.get(index),
+                                        EmbeddingType.REFERENCE);
+                        default ->
+                                new Field<>(
+                                        "f" + i,
+                                        "",
+                                        string,
+                                        l -> (String) l.get(index),
+                                        EmbeddingType.NULLABLE_INLINE);
+                    });
+        }
+        return fields;
+    }
+
+    private static List<List<Object>> values(int fieldCount, long seed) {
+        Random random = new Random(seed);
+        List<List<Object>> values = new ArrayList<>();
+        for (int v = 0; v < VALUES; v++) {
+            List<Object> value = new ArrayList<>();
+            for (int i = 0; i < fieldCount; i++) {
+                value.add(
+                        switch (i % 3) {
+                            case 0 -> random.nextLong();
+                            case 1 -> random.nextInt(4) == 0 ? null : "s" + random.nextInt(10);
+                            default -> random.nextBoolean() ? null : "n" + random.nextInt(1000);
+                        });
+            }
+            values.add(value);
+        }
+        return values;
+    }
+
+    private static byte[] write(Consumer<CondensedOutputStream> writer) {
+        var bos = new ByteArrayOutputStream();
+        try (var out = new CondensedOutputStream(bos, StartMessage.DEFAULT)) {
+            writer.accept(out);
+        }
+        return bos.toByteArray();
+    }
+
+    private static byte[] write(int fieldCount, List<List<Object>> values, boolean generated) {
+        boolean old = StructType.isGeneratedCodecs();
+        StructType.setGeneratedCodecs(generated);
+        try {
+            return write(
+                    out -> {
+                        var type =
+                                out.writeAndStoreType(
+                                        id -> new StructType<>(id, fields(fieldCount)));
+                        for (List<Object> value : values) {
+                            out.writeMessage(type, value);
+                        }
+                        assertEquals(generated, type.hasGeneratedCodec());
+                    });
+        } finally {
+            StructType.setGeneratedCodecs(old);
+        }
+    }
+
+    private static List<List<Object>> read(int fieldCount, byte[] data, boolean generated) {
+        boolean old = StructType.isGeneratedCodecs();
+        StructType.setGeneratedCodecs(generated);
+        List<List<Object>> result = new ArrayList<>();
+        try (var in = new CondensedInputStream(data)) {
+            for (int v = 0; v < VALUES; v++) {
+                var struct = (ReadStruct) in.readNextInstance().value();
+                List<Object> value = new ArrayList<>();
+                for (int i = 0; i < fieldCount; i++) {
+                    value.add(struct.get("f" + i));
+                }
+                result.add(value);
+            }
+        } finally {
+            StructType.setGeneratedCodecs(old);
+        }
+        return result;
+    }
+
+    /** Covers structs with fewer and more fields than are unrolled */
+    @Property(tries = 30)
+    public void testGeneratedMatchesInterpreted(
+            @ForAll @IntRange(min = 1, max = StructCodecTemplate.UNROLLED * 2) int fieldCount,
+            @ForAll long seed) {
+        var values = values(fieldCount, seed);
+        byte[] interpreted = write(fieldCount, values, false);
+        byte[] generated = write(fieldCount, values, true);
+        assertArrayEquals(interpreted, generated);
+        assertEquals(values, read(fieldCount, generated, true));
+        assertEquals(values, read(fieldCount, generated, false));
+    }
+
+    @Example
+    public void testCodecClassIsSharedPerShape() {
+        assertTrue(StructCodecs.isAvailable());
+        var first = StructCodecs.generate(fields(3));
+        int classes = StructCodecs.codecClassCount();
+        // new fields and getters, but with the same shape
+        var second = StructCodecs.generate(fields(3));
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNotSame(first, second);
+        assertSame(first.getClass(), second.getClass());
+        assertTrue(first.getClass().isHidden());
+        assertEquals(classes, StructCodecs.codecClassCount());
+        assertNotSame(first.getClass(), StructCodecs.generate(fields(4)).getClass());
+    }
+
+    @Example
+    public void testEmptyStruct() {
+        var codec = StructCodecs.generate(List.of());
+        assertNotNull(codec);
+        byte[] data =
+                write(
+                        out -> {
+                            var type =
+                                    out.writeAndStoreType(
+                                            id ->
+                                                    new StructType<List<Object>, ReadStruct>(
+                                                            id, List.of()));
+                            for (int i = 0; i < VALUES; i++) {
+                                out.writeMessage(type, List.of());
+                            }
+                        });
+        try (var in = new CondensedInputStream(data)) {
+            for (int i = 0; i < VALUES; i++) {
+                assertThat((ReadStruct) in.readNextInstance().value()).isEmpty();
+            }
+        }
+    }
+}
@@ -12,6 +12,7 @@ import jdk.jfr.*;
 import jdk.jfr.Configuration;
 import jdk.jfr.consumer.RecordedEvent;
 import jdk.jfr.consumer.RecordingStream;
+import me.bechberger.condensed.CJFRFooterReader;
 import me.bechberger.condensed.Compression;
 import me.bechberger.condensed.CondensedInputStream;
 import me.bechberger.condensed.CondensedOutputStream;
@@ -226,5 +227,84 @@ public class BasicJFRWriterTest {
                         .toList());
         assertEquals(
                 1, events.stream().filter(s -> s.getType().getName().equals("TestEvent")).count());
+        // duplicates are neither written nor counted in the footer
+        var footer = CJFRFooterReader.tryRead(data).orElseThrow();
+        assertEquals(5, footer.eventCounts().get("TestEvent2"));
+        assertEquals(1, footer.eventCounts().get("TestEvent"));
+    }
+
+    @Name("TestEvent3")
+    static class TestEvent3 extends Event {
+        @Timespan(Timespan.MILLISECONDS)
+        long waitMillis;
+
+        @Timespan(Timespan.SECONDS)
+        long waitSeconds;
+
+        @Percentage float load;
+
+        Thread thread;
+        Class<?> clazz;
+        String text;
+
+        TestEvent3(long waitMillis, long waitSeconds, float load, String text) {
+            this.waitMillis = waitMillis;
+            this.waitSeconds = waitSeconds;
+            this.load = load;
+            this.thread = Thread.currentThread();
+            this.clazz = TestEvent3.class;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Fields of all kinds are read via positional accessors, check that they read the same values
+     * as the name-based API
+     */
+    @Test
+    public void testFieldAccessors() throws InterruptedException {
+        var outputStream = new ByteArrayOutputStream();
+        try (CondensedOutputStream out =
+                new CondensedOutputStream(outputStream, StartMessage.DEFAULT)) {
+            BasicJFRWriter basicJFRWriter = new BasicJFRWriter(out);
+            try (RecordingStream rs = new RecordingStream()) {
+                rs.onEvent(
+                        "TestEvent3",
+                        event -> {
+                            basicJFRWriter.processEvent(event);
+                            if (event.getString("text").equals("last")) {
+                                rs.close();
+                            }
+                        });
+                rs.startAsync();
+                new TestEvent3(1500, 2, 0.5f, "first").commit();
+                new TestEvent3(Long.MIN_VALUE, 3, 0.25f, "last").commit();
+                rs.awaitTermination();
+            }
+            basicJFRWriter.close();
+        }
+        BasicJFRReader reader =
+                new BasicJFRReader(new CondensedInputStream(outputStream.toByteArray()));
+        var events =
+                reader.readAll().stream()
+                        .filter(s -> s.getType().getName().equals("TestEvent3"))
+                        .toList();
+        assertEquals(2, events.size());
+        var first = events.get(0);
+        assertEquals(Duration.ofMillis(1500), first.get("waitMillis"));
+        assertEquals(Duration.ofSeconds(2), first.get("waitSeconds"));
+        assertEquals(0.5f, first.get("load"));
+        assertEquals("first", first.get("text"));
+        assertEquals(
+                Thread.currentThread().getName(),
+                ((ReadStruct) first.get("thread")).get("javaName"));
+        assertEquals(
+                TestEvent3.class.getName().replace('.', '/'),
+                ((ReadStruct) first.get("clazz")).get("name"));
+        // the "unset" sentinel is restored as JFR's "N/A" timespan
+        var last = events.get(1);
+        assertEquals(Duration.ofSeconds(Long.MIN_VALUE, 0), last.get("waitMillis"));
+        assertEquals(Duration.ofSeconds(3), last.get("waitSeconds"));
+        assertEquals(0.25f, last.get("load"));
     }
 }
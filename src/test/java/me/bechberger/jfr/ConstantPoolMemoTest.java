@@ -0,0 +1,139 @@
+package me.bechberger.jfr;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Event;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import me.bechberger.condensed.CondensedOutputStream;
+import me.bechberger.condensed.Message.StartMessage;
+import net.jqwik.api.Arbitraries;
+import net.jqwik.api.Arbitrary;
+import net.jqwik.api.Example;
+import net.jqwik.api.ForAll;
+import net.jqwik.api.Property;
+import net.jqwik.api.Provide;
+
+public class ConstantPoolMemoTest {
+
+    @Example
+    public void testComputedOncePerObject() {
+        List<String> computed = new ArrayList<>();
+        var memo =
+                new ConstantPoolMemo<String, String>(
+                        2,
+                        s -> {
+                            computed.add(s);
+                            return s + "!";
+                        });
+        String a = "a";
+        String equalToA = new String(a);
+        assertThat(memo.get(a)).isEqualTo("a!");
+        assertThat(memo.get(a)).isEqualTo("a!");
+        assertThat(computed).containsExactly("a");
+        // keys are compared by identity, never by content
+        assertThat(memo.get(equalToA)).isEqualTo("a!");
+        assertThat(computed).containsExactly("a", "a");
+        // the memo is cleared when full
+        memo.get("b");
+        assertThat(memo.size()).isEqualTo(1);
+        memo.clear();
+        assertThat(memo.size()).isZero();
+        assertThat(memo.get("b")).isEqualTo("b!");
+        assertThat(computed).containsExactly("a", "a", "b", "b");
+    }
+
+    @Example
+    public void testZeroCapacityComputesEveryTime() {
+        List<String> computed = new ArrayList<>();
+        var memo = new ConstantPoolMemo<String, String>(0, s -> computed.add(s) ? s : null);
+        memo.get("a");
+        memo.get("a");
+        assertThat(computed).containsExactly("a", "a");
+        assertThat(memo.size()).isZero();
+    }
+
+    @Name("test.WithStackTrace")
+    @StackTrace
+    static class WithStackTraceEvent extends Event {
+        int number;
+    }
+
+    private static void commitA(int number) {
+        var event = new WithStackTraceEvent();
+        event.number = number;
+        event.commit();
+    }
+
+    private static void commitB(int number) {
+        commitA(number);
+    }
+
+    /** Events with a few different stack traces, in two chunks */
+    private static Path record() throws IOException {
+        Path file = Files.createTempFile("memo", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(WithStackTraceEvent.class);
+            recording.start();
+            for (int i = 0; i < 100; i++) {
+                if (i == 50) {
+                    // starting another recording starts a new chunk
+                    try (Recording other = new Recording()) {
+                        other.start();
+                    }
+                }
+                if (i % 3 == 0) {
+                    commitA(i);
+                } else {
+                    commitB(i);
+                }
+            }
+            recording.stop();
+            recording.dump(file);
+        }
+        return file;
+    }
+
+    private static byte[] condense(Path file, Configuration configuration, boolean memo) {
+        String old = System.getProperty(ConstantPoolMemo.PROPERTY);
+        System.setProperty(ConstantPoolMemo.PROPERTY, String.valueOf(memo));
+        try {
+            var bytes = new ByteArrayOutputStream();
+            try (var out = new CondensedOutputStream(bytes, StartMessage.DEFAULT)) {
+                new BasicJFRWriter(out, configuration).processJFRFile(file);
+            }
+            return bytes.toByteArray();
+        } finally {
+            if (old == null) {
+                System.clearProperty(ConstantPoolMemo.PROPERTY);
+            } else {
+                System.setProperty(ConstantPoolMemo.PROPERTY, old);
+            }
+        }
+    }
+
+    /** Reusing reduced stack traces must not change the output */
+    @Property(tries = 3)
+    public void testSameOutputWithoutMemo(@ForAll("configurations") Configuration configuration)
+            throws IOException {
+        Path file = record();
+        try {
+            assertThat(condense(file, configuration, true))
+                    .isEqualTo(condense(file, configuration, false));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Provide
+    Arbitrary<Configuration> configurations() {
+        return Arbitraries.of(Configuration.DEFAULT, Configuration.REDUCED, Configuration.LOSSLESS);
+    }
+}
@@ -0,0 +1,185 @@
+package me.bechberger.jfr;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.Event;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import me.bechberger.jfr.EventDeduplication.CollisionPolicy;
+import me.bechberger.jfr.EventDeduplication.FingerprintTable;
+import net.jqwik.api.Example;
+import net.jqwik.api.ForAll;
+import net.jqwik.api.Property;
+import net.jqwik.api.constraints.IntRange;
+import net.jqwik.api.constraints.Size;
+
+public class EventDeduplicationTest {
+
+    @Name("test.Deduplicated")
+    static class DeduplicatedEvent extends Event {
+        String key;
+        int value;
+        Class<?> clazz;
+
+        DeduplicatedEvent(String key, int value) {
+            this.key = key;
+            this.value = value;
+            this.clazz = key.equals("a") ? String.class : Integer.class;
+        }
+    }
+
+    /** Keys and values of the recorded events, in order */
+    private static final int[][] EVENTS = {{0, 1}, {0, 1}, {1, 1}, {0, 2}, {1, 1}, {0, 1}, {0, 1}};
+
+    /** Whether the event at the same index is a duplicate */
+    private static final boolean[] DUPLICATES = {false, true, false, false, true, false, true};
+
+    /** Record the events, in two chunks so that class values are different objects */
+    private static List<RecordedEvent> recordEvents() throws IOException {
+        Path file = Files.createTempFile("deduplication", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(DeduplicatedEvent.class);
+            recording.start();
+            for (int i = 0; i < EVENTS.length; i++) {
+                if (i == EVENTS.length / 2) {
+                    // starting another recording starts a new chunk
+                    try (Recording other = new Recording()) {
+                        other.start();
+                    }
+                }
+                new DeduplicatedEvent(EVENTS[i][0] == 0 ? "a" : "b", EVENTS[i][1]).commit();
+            }
+            recording.stop();
+            recording.dump(file);
+        }
+        try {
+            return RecordingFile.readAllEvents(file).stream()
+                    .filter(e -> e.getEventType().getName().equals("test.Deduplicated"))
+                    .toList();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static boolean[] duplicates(
+            EventDeduplication deduplication, List<RecordedEvent> events) {
+        boolean[] duplicates = new boolean[events.size()];
+        for (int i = 0; i < events.size(); i++) {
+            duplicates[i] = deduplication.recordAndCheckIfDuplicate(events.get(i));
+        }
+        return duplicates;
+    }
+
+    @Property(tries = 3)
+    public void testPolicies(@ForAll CollisionPolicy policy) throws IOException {
+        var events = recordEvents();
+        assertEquals(EVENTS.length, events.size());
+        var byFields = new EventDeduplication(policy);
+        byFields.put("test.Deduplicated", "key", "value");
+        assertArrayEquals(DUPLICATES, duplicates(byFields, events));
+        // classes are compared by value, not by identity
+        var byClass = new EventDeduplication(policy);
+        byClass.put("test.Deduplicated", "clazz", "value");
+        assertArrayEquals(DUPLICATES, duplicates(byClass, events));
+        byClass.reset();
+        assertFalse(byClass.recordAndCheckIfDuplicate(events.get(0)));
+    }
+
+    @Example
+    public void testMissingFieldIsNeverDuplicate() throws IOException {
+        var events = recordEvents();
+        for (CollisionPolicy policy : CollisionPolicy.values()) {
+            var deduplication = new EventDeduplication(policy);
+            deduplication.put("test.Deduplicated", "key", "value", "missing");
+            assertArrayEquals(new boolean[events.size()], duplicates(deduplication, events));
+        }
+    }
+
+    private static void awaitCleared(List<WeakReference<RecordedEvent>> references) {
+        for (int i = 0; i < 50 && references.stream().anyMatch(r -> r.get() != null); i++) {
+            System.gc();
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /** Deduplicate the events and return weak references to them, dropping the strong ones */
+    private static List<WeakReference<RecordedEvent>> deduplicateAndForget(
+            EventDeduplication deduplication) throws IOException {
+        List<WeakReference<RecordedEvent>> references = new ArrayList<>();
+        for (RecordedEvent event : recordEvents()) {
+            deduplication.recordAndCheckIfDuplicate(event);
+            references.add(new WeakReference<>(event));
+        }
+        return references;
+    }
+
+    /** Long-running agents must not keep the events (and with them the chunk) alive */
+    @Example
+    public void testEventsAreNotRetained() throws IOException {
+        var deduplication = new JFREventDeduplication(Configuration.DEFAULT);
+        deduplication.put("test.Deduplicated", "key", "value");
+        var references = deduplicateAndForget(deduplication);
+        awaitCleared(references);
+        assertThat(references).allMatch(r -> r.get() == null);
+        Reference.reachabilityFence(deduplication);
+
+        // custom predicates need the last event per token
+        var custom = new EventDeduplication();
+        custom.put(
+                "test.Deduplicated",
+                e -> e.getString("key"),
+                (a, b) -> a.getInt("value") == b.getInt("value"));
+        var customReferences = deduplicateAndForget(custom);
+        awaitCleared(customReferences);
+        assertThat(customReferences).anyMatch(r -> r.get() != null);
+        Reference.reachabilityFence(custom);
+    }
+
+    /** The table behaves like a map from token to value */
+    @Property
+    public void testFingerprintTable(
+            @ForAll @Size(max = 200) List<@IntRange(max = 50) Integer> keys,
+            @ForAll @IntRange(min = 1, max = 2) int width) {
+        var table = new FingerprintTable(width);
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            int key = keys.get(i);
+            int value = i % 3;
+            if (i % 7 == 6) {
+                table.remove(key, -key);
+                expected.remove(key);
+                continue;
+            }
+            Integer old = expected.put(key, value);
+            assertEquals(old == null || old != value, table.put(key, -key, value, -value));
+            assertEquals(expected.size(), table.size());
+        }
+    }
+
+    @Example
+    public void testFingerprintDistinguishesTypes() {
+        assertNotEquals(new Fingerprint().add((Object) 1).low(), new Fingerprint().add(1L).low());
+        assertNotEquals(
+                new Fingerprint().add("ab").add("c").low(),
+                new Fingerprint().add("a").add("bc").low());
+        assertEquals(new Fingerprint().add("abc").high(), new Fingerprint().add("abc").high());
+        assertNotEquals(
+                new Fingerprint().add(0L).high(), new Fingerprint().add((Object) null).high());
+    }
+}
@@ -0,0 +1,142 @@
+package me.bechberger.jfr;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import me.bechberger.condensed.CJFRFooter.AllocStats;
+import me.bechberger.jfr.UnsafeRecordedObjectAccessor.LongFieldAccessor;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class FooterCollectorTest {
+
+    private static final long SECOND_NANOS = 1_000_000_000L;
+
+    private static List<RecordedEvent> allocationEvents;
+
+    private static volatile Object sink;
+
+    @BeforeAll
+    public static void recordAllocations() throws IOException {
+        Path file = Files.createTempFile("allocations", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("jdk.ObjectAllocationInNewTLAB").withoutStackTrace();
+            recording.enable("jdk.ObjectAllocationOutsideTLAB").withoutStackTrace();
+            recording.start();
+            for (int i = 0; i < 20_000; i++) {
+                sink = new byte[i % 10 == 0 ? 1 << 20 : 1 << 12];
+            }
+            recording.stop();
+            recording.dump(file);
+        }
+        allocationEvents = new ArrayList<>();
+        try (RecordingFile recordingFile = new RecordingFile(file)) {
+            while (recordingFile.hasMoreEvents()) {
+                RecordedEvent event = recordingFile.readEvent();
+                if (event.getEventType().getName().startsWith("jdk.ObjectAllocation")) {
+                    allocationEvents.add(event);
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+        assertThat(allocationEvents).hasSizeGreaterThan(100);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getCurrentThreadAllocatedBytes();
+    }
+
+    /** Bytes allocated by {@code runnable}, after running it a few times to warm it up */
+    private static long allocatedBytesAfterWarmup(Runnable runnable) {
+        for (int i = 0; i < 100; i++) {
+            runnable.run();
+        }
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long before = allocatedBytes();
+            runnable.run();
+            min = Math.min(min, allocatedBytes() - before);
+        }
+        return min;
+    }
+
+    /**
+     * Collecting allocation events does not allocate, apart from reading the allocation size via
+     * the JDK's name-based getter when the fast accessor path is not available
+     */
+    @Test
+    public void testCollectDoesNotAllocate() {
+        FooterCollector collector = new FooterCollector(1);
+        List<FooterCollector.Slot> slots =
+                allocationEvents.stream()
+                        .map(e -> collector.slotFor(e.getEventType().getName()))
+                        .toList();
+        // one event per second, so that the events span hundreds of buckets
+        long collected =
+                allocatedBytesAfterWarmup(
+                        () -> {
+                            for (int i = 0; i < allocationEvents.size(); i++) {
+                                collector.collect(
+                                        allocationEvents.get(i), slots.get(i), i * SECOND_NANOS);
+                            }
+                        });
+        if (UnsafeRecordedObjectAccessor.isFastPathActive()) {
+            assertThat(collected).isLessThan(allocationEvents.size());
+        } else {
+            // the name-based getter allocates (e.g. an iterator), more or less depending on how
+            // it is inlined
+            LongFieldAccessor allocationSize =
+                    UnsafeRecordedObjectAccessor.longField("allocationSize", 0);
+            long[] total = {0};
+            long fieldReads =
+                    allocatedBytesAfterWarmup(
+                            () -> {
+                                for (RecordedEvent event : allocationEvents) {
+                                    total[0] += allocationSize.get(event);
+                                }
+                            });
+            assertThat(collected - fieldReads).isLessThan(allocationEvents.size() * 32L);
+        }
+        assertEquals(
+                allocationEvents.size(),
+                collector.build(0, 0).allocStats().allocatedBytesPerBucket().length);
+    }
+
+    /** Buckets are ordered by index, including ones before the first event and far away ones */
+    @Test
+    public void testBucketsAreOrderedByIndex() {
+        FooterCollector collector = new FooterCollector(1);
+        long[] offsetSeconds = {0, -3, 2, 1_000_000, -1_000_000, -100, 2, 0};
+        for (int i = 0; i < offsetSeconds.length; i++) {
+            RecordedEvent event = allocationEvents.get(i);
+            collector.collect(
+                    event,
+                    collector.slotFor(event.getEventType().getName()),
+                    1_000_000 * SECOND_NANOS + offsetSeconds[i] * SECOND_NANOS);
+        }
+        LongFieldAccessor allocationSize =
+                UnsafeRecordedObjectAccessor.longField("allocationSize", 0);
+        long[] bytes = new long[offsetSeconds.length];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = allocationSize.get(allocationEvents.get(i));
+        }
+        AllocStats stats = collector.build(0, 0).allocStats();
+        assertArrayEquals(
+                new long[] {
+                    bytes[4], bytes[5], bytes[1], bytes[0] + bytes[7], bytes[2] + bytes[6], bytes[3]
+                },
+                stats.allocatedBytesPerBucket());
+        assertArrayEquals(new long[6], stats.promotedBytesPerBucket());
+    }
+}
@@ -0,0 +1,290 @@
+package me.bechberger.jfr;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import net.jqwik.api.Example;
+import net.jqwik.api.ForAll;
+import net.jqwik.api.Property;
+import net.jqwik.api.constraints.IntRange;
+import net.jqwik.api.lifecycle.AfterContainer;
+import net.jqwik.api.lifecycle.BeforeContainer;
+
+public class ParallelJFRFileReaderTest {
+
+    @Name("test.Numbered")
+    static class NumberedEvent extends Event {
+        int file;
+        int number;
+    }
+
+    private static final int FILES = 4;
+
+    private static List<Path> files;
+
+    /** A single file with several chunks */
+    private static Path chunked;
+
+    /** Files with different numbers of events, so that the parsers finish at different times */
+    @BeforeContainer
+    static void recordFiles() throws IOException {
+        files = new ArrayList<>();
+        for (int f = 0; f < FILES; f++) {
+            Path file = Files.createTempFile("parallel", ".jfr");
+            try (Recording recording = new Recording()) {
+                recording.enable(NumberedEvent.class);
+                recording.start();
+                for (int i = 0; i < 500 * (FILES - f); i++) {
+                    NumberedEvent event = new NumberedEvent();
+                    event.file = f;
+                    event.number = i;
+                    event.commit();
+                }
+                recording.stop();
+                recording.dump(file);
+            }
+            files.add(file);
+        }
+        chunked = Files.createTempFile("chunked", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(NumberedEvent.class);
+            recording.start();
+            for (int i = 0; i < 2000; i++) {
+                if (i % 500 == 499) {
+                    // starting another recording starts a new chunk
+                    try (Recording other = new Recording()) {
+                        other.start();
+                    }
+                }
+                NumberedEvent event = new NumberedEvent();
+                event.file = FILES;
+                event.number = i;
+                event.commit();
+            }
+            recording.stop();
+            recording.dump(chunked);
+        }
+    }
+
+    @AfterContainer
+    static void deleteFiles() throws IOException {
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+        Files.deleteIfExists(chunked);
+    }
+
+    /** Returns "start file" and "file:number" entries in the order the consumer sees them */
+    private static List<String> read(ParallelJFRFileReader reader, List<Path> files)
+            throws IOException {
+        List<String> seen = new ArrayList<>();
+        Thread consumerThread = Thread.currentThread();
+        reader.read(
+                files,
+                new ParallelJFRFileReader.Consumer() {
+                    @Override
+                    public void startFile(Path file, List<EventType> eventTypes) {
+                        assertThat(Thread.currentThread()).isSameAs(consumerThread);
+                        seen.add("start " + file.getFileName());
+                    }
+
+                    @Override
+                    public void event(RecordedEvent event) {
+                        assertThat(Thread.currentThread()).isSameAs(consumerThread);
+                        if (event.getEventType().getName().equals("test.Numbered")) {
+                            seen.add(event.getInt("file") + ":" + event.getInt("number"));
+                        }
+                    }
+                });
+        return seen;
+    }
+
+    /** Like {@link #read(ParallelJFRFileReader, List)}, but with the start time of every event */
+    private static List<String> readTimes(ParallelJFRFileReader reader, List<Path> files)
+            throws IOException {
+        List<String> seen = new ArrayList<>();
+        reader.read(
+                files,
+                new ParallelJFRFileReader.Consumer() {
+                    @Override
+                    public void startFile(Path file, List<EventType> eventTypes) {
+                        seen.add("start " + file.getFileName());
+                    }
+
+                    @Override
+                    public void event(RecordedEvent event) {
+                        if (event.getEventType().getName().equals("test.Numbered")) {
+                            seen.add(
+                                    event.getInt("file")
+                                            + ":"
+                                            + event.getInt("number")
+                                            + "@"
+                                            + event.getStartTime());
+                        }
+                    }
+                });
+        return seen;
+    }
+
+    @Property(tries = 10)
+    public void testSameOrderAsSequential(
+            @ForAll @IntRange(min = 1, max = 6) int threads,
+            @ForAll @IntRange(min = 1, max = 5000) int maxBufferedEvents)
+            throws IOException {
+        assertThat(read(new ParallelJFRFileReader(threads, maxBufferedEvents), files))
+                .isEqualTo(read(new ParallelJFRFileReader(1, 1), files));
+    }
+
+    @Example
+    public void testChunksCoverFile() throws IOException {
+        var chunks = ParallelJFRFileReader.chunks(chunked);
+        assertThat(chunks).hasSizeGreaterThan(1);
+        long offset = 0;
+        for (var chunk : chunks) {
+            assertThat(chunk.offset()).isEqualTo(offset);
+            offset += chunk.size();
+        }
+        assertThat(offset).isEqualTo(Files.size(chunked));
+        assertThat(ParallelJFRFileReader.chunks(files.get(0))).hasSize(1);
+    }
+
+    /** Chunks are parsed separately, but the events and their times are the same */
+    @Property(tries = 5)
+    public void testChunksInSameOrderAsSequential(
+            @ForAll @IntRange(min = 2, max = 6) int threads,
+            @ForAll @IntRange(min = 1, max = 5000) int maxBufferedEvents)
+            throws IOException {
+        List<Path> withChunked = List.of(files.get(0), chunked, files.get(1));
+        assertThat(readTimes(new ParallelJFRFileReader(threads, maxBufferedEvents), withChunked))
+                .isEqualTo(readTimes(new ParallelJFRFileReader(1, 1), withChunked));
+    }
+
+    /**
+     * The patched copies of chunks with the metadata of an earlier chunk have the events of the
+     * serial reading with this JDK, and a wrong conversion is detected
+     */
+    @Example
+    public void testVerifyConversion() throws IOException {
+        var reader = new ParallelJFRFileReader(2, 1000);
+        var chunks = ParallelJFRFileReader.chunks(chunked);
+        var converters = ParallelJFRFileReader.converters(chunks);
+        assertThat(converters).isNotEqualTo(chunks);
+        assertThat(reader.verifyConversion(chunked, chunks, converters)).isTrue();
+
+        var wrong = new ArrayList<ParallelJFRFileReader.Chunk>();
+        for (int i = 0; i < chunks.size(); i++) {
+            var converter = converters.get(i);
+            wrong.add(
+                    converter == chunks.get(i)
+                            ? converter
+                            : new ParallelJFRFileReader.Chunk(
+                                    converter.offset(),
+                                    converter.size(),
+                                    converter.metadataId(),
+                                    converter.startNanos() - 1_000_000_000L,
+                                    converter.startTicks(),
+                                    converter.ticksPerSecond()));
+        }
+        assertThat(reader.verifyConversion(chunked, chunks, wrong)).isFalse();
+        assertThat(reader.verifyConversion(chunked, chunks, chunks)).isNull();
+    }
+
+    @Example
+    public void testChunkCopiesAreWrittenToTempDirAndDeleted() throws IOException {
+        Path tempDir = Files.createTempDirectory("chunks");
+        try {
+            List<Path> withChunked = List.of(chunked);
+            assertThat(readTimes(new ParallelJFRFileReader(3, 1000, tempDir), withChunked))
+                    .isEqualTo(readTimes(new ParallelJFRFileReader(1, 1), withChunked));
+            try (var remaining = Files.list(tempDir)) {
+                assertThat(remaining).isEmpty();
+            }
+            Path missing = tempDir.resolve("missing");
+            assertThatThrownBy(() -> read(new ParallelJFRFileReader(3, 1000, missing), withChunked))
+                    .isInstanceOf(IOException.class);
+        } finally {
+            Files.delete(tempDir);
+        }
+    }
+
+    /** Small files that are parsed completely do not pile up while the consumer is slow */
+    @Example
+    public void testBufferedEventsStayWithinLimitForManySmallFiles() throws IOException {
+        List<Path> small = new ArrayList<>();
+        try {
+            for (int f = 0; f < 30; f++) {
+                Path file = Files.createTempFile("small", ".jfr");
+                small.add(file);
+                try (Recording recording = new Recording()) {
+                    recording.enable(NumberedEvent.class);
+                    recording.start();
+                    for (int i = 0; i < 20; i++) {
+                        NumberedEvent event = new NumberedEvent();
+                        event.file = f;
+                        event.number = i;
+                        event.commit();
+                    }
+                    recording.stop();
+                    recording.dump(file);
+                }
+            }
+            int maxBufferedEvents = 100;
+            var reader = new ParallelJFRFileReader(4, maxBufferedEvents);
+            int[] maxSeen = {0};
+            int[] events = {0};
+            reader.read(
+                    small,
+                    new ParallelJFRFileReader.Consumer() {
+                        @Override
+                        public void startFile(Path file, List<EventType> eventTypes) {
+                            if (file.equals(small.get(0))) {
+                                // give the parsers time to parse all files they may parse
+                                try {
+                                    Thread.sleep(1000);
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            }
+                            maxSeen[0] = Math.max(maxSeen[0], reader.bufferedEvents());
+                        }
+
+                        @Override
+                        public void event(RecordedEvent event) {
+                            events[0]++;
+                            maxSeen[0] = Math.max(maxSeen[0], reader.bufferedEvents());
+                        }
+                    });
+            assertThat(events[0]).isGreaterThanOrEqualTo(30 * 20);
+            assertThat(maxSeen[0]).isPositive().isLessThanOrEqualTo(maxBufferedEvents);
+            assertThat(reader.bufferedEvents()).isZero();
+        } finally {
+            for (Path file : small) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Example
+    public void testInvalidFileFailsOnConsumerThread() throws IOException {
+        Path invalid = Files.createTempFile("invalid", ".jfr");
+        try {
+            Files.writeString(invalid, "not a recording");
+            List<Path> withInvalid = List.of(files.get(0), invalid, files.get(1));
+            assertThatThrownBy(() -> read(new ParallelJFRFileReader(3, 100), withInvalid))
+                    .isInstanceOf(IOException.class)
+                    .hasMessageContaining(invalid.getFileName().toString());
+        } finally {
+            Files.delete(invalid);
+        }
+    }
+}
@@ -18,7 +18,11 @@ public class JFRCLITest {
                         "summary",
                         "view",
                         "print",
-                        "metadata"),
+                        "metadata",
+                        "train-dictionary",
+                        "export",
+                        "recover",
+                        "collect"),
                 JFRCLI.subCommandNames());
     }
 
@@ -11,6 +11,7 @@ import java.util.List;
 import java.util.Map;
 import jdk.jfr.consumer.RecordedEvent;
 import me.bechberger.jfr.Configuration;
+import me.bechberger.jfr.cli.agent.commands.DumpCommand;
 import me.bechberger.jfr.cli.agent.commands.SetDurationCommand;
 import me.bechberger.jfr.cli.agent.commands.SetMaxDurationCommand;
 import me.bechberger.jfr.cli.agent.commands.SetMaxFilesCommand;
@@ -42,7 +43,7 @@ public class AgentCommandsTest {
         }
 
         @Override
-        void onEvent(RecordedEvent event) {}
+        void onEvents(List<RecordedEvent> events) {}
 
         @Override
         List<Map.Entry<String, String>> getMiscStatus() {
@@ -92,7 +93,7 @@ public class AgentCommandsTest {
         }
 
         @Override
-        void onEvent(RecordedEvent event) {}
+        void onEvents(List<RecordedEvent> events) {}
 
         @Override
         List<Map.Entry<String, String>> getMiscStatus() {
@@ -388,6 +389,128 @@ public class AgentCommandsTest {
                                 ensureRotatingPathHasPlaceholder("tmp/recording_$date.cjfr")));
     }
 
+    // --- named recordings ---
+
+    @Test
+    public void testStartCommandRejectsRunningRecordingWithSameName() throws Exception {
+        Agent.addRecordingThread("gc", new StubRecordingThread(false));
+        var output = new StringBuilder();
+        var command = new StartCommand();
+        setField(command, "name", "gc");
+        setField(command, "dynSettings", createSettings());
+
+        assertEquals(1, captureStdout(command::call, output));
+        assertTrue(output.toString().contains("Recording already running with name gc"));
+    }
+
+    @Test
+    public void testStopCommandStopsOnlyTheNamedRecording() throws Exception {
+        var gc = new StubRecordingThread(false);
+        var profile = new StubRecordingThread(false);
+        Agent.addRecordingThread("gc", gc);
+        Agent.addRecordingThread("profile", profile);
+        var command = new StopCommand();
+        setField(command, "name", "profile");
+
+        assertEquals(0, command.call());
+        assertFalse(gc.stopCalled);
+        assertTrue(profile.stopCalled);
+
+        setField(command, "name", "missing");
+        var output = new StringBuilder();
+        assertEquals(1, captureStdout(command::call, output));
+        assertTrue(output.toString().contains("No recording running with name missing"));
+    }
+
+    @Test
+    public void testStopCommandWithoutNameStopsAllRecordings() throws Exception {
+        var gc = new StubRecordingThread(false);
+        var profile = new StubRecordingThread(false);
+        Agent.addRecordingThread("gc", gc);
+        Agent.addRecordingThread("profile", profile);
+
+        assertEquals(0, new StopCommand().call());
+        assertTrue(gc.stopCalled);
+        assertTrue(profile.stopCalled);
+    }
+
+    @Test
+    public void testStatusCommandPrintsAllRecordings() throws Exception {
+        Agent.addRecordingThread("gc", new StubRecordingThread(false));
+        Agent.addRecordingThread("profile", new StubRecordingThread(true));
+        var output = new StringBuilder();
+
+        assertEquals(0, captureStdout(new StatusCommand()::call, output));
+        assertTrue(output.toString().matches("(?s).*name: gc.*name: profile.*"));
+    }
+
+    @Test
+    public void testSetCommandRequiresNameWithMultipleRecordings() throws Exception {
+        var gc = new StubRecordingThread(true);
+        var profile = new StubRecordingThread(true);
+        Agent.addRecordingThread("gc", gc);
+        Agent.addRecordingThread("profile", profile);
+        var command = new SetMaxSizeCommand();
+        setField(command, "maxSize", 2048L);
+        var output = new StringBuilder();
+
+        assertEquals(1, captureStdout(command::call, output));
+        assertTrue(output.toString().contains("Multiple recordings running (gc, profile)"));
+
+        setField(command, "name", "gc");
+        assertEquals(0, command.call());
+        assertEquals(2048L, gc.lastMaxSize);
+        assertNull(profile.lastMaxSize);
+    }
+
+    @Test
+    public void testRemoveRecordingThreadKeepsNewerRecordingWithSameName() throws Exception {
+        var old = new StubRecordingThread(false);
+        var newer = new StubRecordingThread(false);
+        Agent.addRecordingThread("gc", newer);
+
+        Agent.removeRecordingThread("gc", old);
+
+        assertSame(newer, Agent.getRecordingThread("gc"));
+    }
+
+    // --- ring buffer ---
+
+    @Test
+    public void testDumpCommandRejectsRecordingWithoutRingBuffer() throws Exception {
+        Agent.setCurrentRecordingThread(new StubRecordingThread(false));
+        var output = new StringBuilder();
+
+        assertEquals(1, captureStdout(new DumpCommand()::call, output));
+        assertTrue(output.toString().contains("Only ring buffer recordings can be dumped"));
+    }
+
+    @Test
+    public void testStartCommandRejectsRotatingRingBuffer() throws Exception {
+        var command = new StartCommand();
+        var settings = createSettings(true);
+        setField(command, "path", "recording.cjfr");
+        setField(command, "rotating", true);
+        setField(command, "ringBuffer", true);
+        setField(command, "dynSettings", settings);
+        var output = new StringBuilder();
+
+        assertEquals(1, captureStdout(command::call, output));
+        assertTrue(output.toString().contains("--rotating and --ring-buffer are mutually"));
+    }
+
+    @Test
+    public void testStartCommandRejectsDumpTriggerWithoutRingBuffer() throws Exception {
+        var command = new StartCommand();
+        setField(command, "path", "recording.cjfr");
+        setField(command, "dumpOnCpuLoad", 90);
+        setField(command, "dynSettings", createSettings());
+        var output = new StringBuilder();
+
+        assertEquals(1, captureStdout(command::call, output));
+        assertTrue(output.toString().contains("--dump-on-* options require --ring-buffer"));
+    }
+
     // --- preprocessArgs tests ---
 
     @Test
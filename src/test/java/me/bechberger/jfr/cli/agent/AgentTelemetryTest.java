@@ -0,0 +1,225 @@
+package me.bechberger.jfr.cli.agent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.management.ObjectName;
+import jdk.jfr.Event;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import me.bechberger.condensed.CondensedInputStream;
+import me.bechberger.condensed.CondensedOutputStream;
+import me.bechberger.condensed.Message.StartMessage;
+import me.bechberger.condensed.ReadStruct;
+import me.bechberger.jfr.BasicJFRReader;
+import me.bechberger.jfr.BasicJFRWriter;
+import me.bechberger.jfr.Configuration;
+import me.bechberger.jfr.cli.agent.AgentTelemetry.LatencyHistogram;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+public class AgentTelemetryTest {
+
+    @Test
+    public void testLatencyHistogramPercentiles() {
+        var histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(0.5));
+        for (int i = 0; i < 98; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(1_000_000);
+        histogram.record(5_000_000);
+        assertEquals(100, histogram.count());
+        assertEquals(5_000_000, histogram.max());
+        // accurate up to a factor of two
+        assertThat(histogram.percentile(0.5)).isBetween(1000L, 2000L);
+        assertThat(histogram.percentile(0.99)).isBetween(1_000_000L, 2_000_000L);
+        assertEquals(5_000_000, histogram.percentile(1));
+    }
+
+    @Test
+    public void testLatencyHistogramZeroAndNegative() {
+        var histogram = new LatencyHistogram();
+        histogram.record(0);
+        histogram.record(-5);
+        assertEquals(0, histogram.percentile(0.99));
+        assertEquals(0, histogram.max());
+    }
+
+    /**
+     * A running recording is visible as MBean, reports its cost in the status and, with the
+     * telemetry event enabled, writes it into the recording
+     */
+    @Test
+    @Timeout(60)
+    public void testTelemetryOfRunningRecording() throws Exception {
+        Path file = Files.createTempFile("telemetry", ".cjfr");
+        file.toFile().deleteOnExit();
+        var settings = new DynamicallyChangeableSettings();
+        settings.maxDuration = Duration.ZERO;
+        settings.maxSize = 0;
+        settings.duration = Duration.ZERO;
+        var thread =
+                new SingleRecordingThread(
+                        file.toString(),
+                        Configuration.DEFAULT,
+                        false,
+                        "default",
+                        AgentTelemetry.EVENT_NAME
+                                + "#enabled=true|"
+                                + AgentTelemetry.EVENT_NAME
+                                + "#period=1 s",
+                        () -> {},
+                        settings);
+        thread.getTelemetry().register("telemetry-test");
+        var objectName =
+                new ObjectName("me.bechberger.jfr:type=CondensedRecording,name=\"telemetry-test\"");
+        var server = ManagementFactory.getPlatformMBeanServer();
+        var runner = new Thread(thread, "test-telemetry-runner");
+        runner.setDaemon(true);
+        try {
+            runner.start();
+            generateLoad(Duration.ofSeconds(3));
+
+            assertTrue(server.isRegistered(objectName));
+            assertThat((Long) server.getAttribute(objectName, "EventCount")).isGreaterThan(0);
+            assertThat((Long) server.getAttribute(objectName, "BytesWritten")).isGreaterThan(0);
+            assertThat(thread.getStatus())
+                    .extracting(Map.Entry::getKey)
+                    .contains(
+                            "events-per-second",
+                            "top-event-types",
+                            "process-event-latency",
+                            "compression-ratio",
+                            "cache-hit-rates",
+                            "combiner-states");
+        } finally {
+            thread.stop();
+            runner.join(10_000);
+        }
+        assertFalse(server.isRegistered(objectName));
+
+        var telemetryEvents = new ArrayList<ReadStruct>();
+        try (var is = new CondensedInputStream(Files.newInputStream(file))) {
+            var reader = new BasicJFRReader(is);
+            ReadStruct event;
+            while ((event = reader.readNextEvent()) != null) {
+                if (event.getType().getName().equals(AgentTelemetry.EVENT_NAME)) {
+                    telemetryEvents.add(event);
+                }
+            }
+        }
+        assertThat(telemetryEvents).isNotEmpty();
+        assertEquals("telemetry-test", telemetryEvents.get(0).get("recording", String.class));
+    }
+
+    @Name("cjfr.test.TelemetryEvent")
+    static class TelemetryEvent extends Event {
+        int index;
+    }
+
+    /** A single slow event shows up in the max instead of being averaged over its batch */
+    @Test
+    @Timeout(60)
+    public void testProcessEventLatencyIsMeasuredPerEvent() throws Exception {
+        Path jfrFile = Files.createTempFile("telemetry", ".jfr");
+        Path file = Files.createTempFile("telemetry", ".cjfr");
+        List<RecordedEvent> events;
+        try (var recording = new Recording()) {
+            recording.enable(TelemetryEvent.class);
+            recording.start();
+            for (int i = 0; i < 100; i++) {
+                var event = new TelemetryEvent();
+                event.index = i;
+                event.commit();
+            }
+            recording.stop();
+            recording.dump(jfrFile);
+            events =
+                    RecordingFile.readAllEvents(jfrFile).stream()
+                            .filter(
+                                    e ->
+                                            e.getEventType()
+                                                    .getName()
+                                                    .equals("cjfr.test.TelemetryEvent"))
+                            .toList();
+        } finally {
+            Files.deleteIfExists(jfrFile);
+        }
+        assertEquals(100, events.size());
+        var settings = new DynamicallyChangeableSettings();
+        settings.maxDuration = Duration.ZERO;
+        settings.maxSize = 0;
+        settings.duration = Duration.ZERO;
+        var thread =
+                new SingleRecordingThread(
+                        file.toString(),
+                        Configuration.DEFAULT,
+                        false,
+                        "default",
+                        "",
+                        () -> {},
+                        settings);
+        var runner = new Thread(thread, "test-telemetry-runner");
+        runner.setDaemon(true);
+        try {
+            runner.start();
+            var slowFirstEvent =
+                    new BasicJFRWriter(
+                            new CondensedOutputStream(
+                                    OutputStream.nullOutputStream(), StartMessage.DEFAULT)) {
+                        private boolean first = true;
+
+                        @Override
+                        public void processEvent(RecordedEvent event) {
+                            if (first) {
+                                first = false;
+                                try {
+                                    Thread.sleep(50);
+                                } catch (InterruptedException e) {
+                                    throw new RuntimeException(e);
+                                }
+                            }
+                            super.processEvent(event);
+                        }
+                    };
+            long before = thread.getTelemetry().getEventCount();
+            for (RecordedEvent event : events) {
+                thread.processEvent(slowFirstEvent, event);
+            }
+            var telemetry = thread.getTelemetry();
+            assertEquals(before + 100, telemetry.getEventCount());
+            assertThat(telemetry.getProcessEventMaxNanos()).isGreaterThanOrEqualTo(50_000_000L);
+            assertThat(telemetry.getProcessEventP50Nanos()).isLessThan(10_000_000L);
+        } finally {
+            thread.stop();
+            runner.join(10_000);
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void generateLoad(Duration duration) throws InterruptedException {
+        long end = System.nanoTime() + duration.toNanos();
+        var sink = new ArrayList<byte[]>();
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < 2_000; i++) {
+                sink.add(new byte[1024]);
+            }
+            if (sink.size() > 20_000) {
+                sink.subList(0, 10_000).clear();
+                System.gc();
+            }
+            Thread.sleep(10);
+        }
+    }
+}
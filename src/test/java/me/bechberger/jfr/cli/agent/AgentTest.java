@@ -13,6 +13,7 @@ import java.nio.file.Path;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -519,9 +520,9 @@ public class AgentTest {
         System.setErr(new PrintStream(captured));
         try {
             // Passing null causes a NullPointerException inside BasicJFRWriter.processEvent.
-            // The catch block in SingleRecordingThread.onEvent must absorb it without
+            // The catch block in SingleRecordingThread.onEvents must absorb it without
             // rethrowing, keeping the recording thread alive.
-            thread.onEvent(null);
+            thread.onEvents(Collections.singletonList(null));
         } finally {
             System.setErr(savedErr);
             thread.close();
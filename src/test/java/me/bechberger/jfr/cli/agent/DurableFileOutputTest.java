@@ -0,0 +1,90 @@
+package me.bechberger.jfr.cli.agent;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DurableFileOutputTest {
+
+    private static void awaitSyncs(DurableFileOutput out, long count) throws InterruptedException {
+        long end = System.nanoTime() + 5_000_000_000L;
+        while (out.syncCount() < count && System.nanoTime() < end) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testNoneNeverSyncs(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("none.cjfr");
+        var out =
+                new DurableFileOutput(
+                        file, Durability.NONE, Duration.ofMillis(1), () -> {}, WRITE, CREATE_NEW);
+        out.write(new byte[] {1, 2, 3});
+        out.close();
+        assertEquals(0, out.syncCount());
+        assertEquals(3, Files.size(file));
+    }
+
+    /** Many blocks written in a burst are forced with far fewer syncs */
+    @Test
+    @Timeout(30)
+    public void testOnBlockBatchesSyncs(@TempDir Path dir) throws Exception {
+        var out =
+                new DurableFileOutput(
+                        dir.resolve("block.cjfr"),
+                        Durability.ON_BLOCK,
+                        Duration.ofSeconds(1),
+                        () -> {},
+                        WRITE,
+                        CREATE_NEW);
+        out.write(1);
+        awaitSyncs(out, 1);
+        assertEquals(1, out.syncCount());
+        for (int i = 0; i < 10_000; i++) {
+            out.write(new byte[16]);
+        }
+        awaitSyncs(out, 2);
+        long syncs = out.syncCount();
+        assertThat(syncs).isBetween(2L, 1_000L);
+        out.close();
+        assertThat(out.syncCount()).isGreaterThan(syncs);
+    }
+
+    @Test
+    @Timeout(30)
+    public void testPeriodicFlushesAndSyncs(@TempDir Path dir) throws Exception {
+        var flushes = new AtomicInteger();
+        DurableFileOutput[] holder = new DurableFileOutput[1];
+        var out =
+                new DurableFileOutput(
+                        dir.resolve("periodic.cjfr"),
+                        Durability.PERIODIC,
+                        Duration.ofMillis(20),
+                        () -> {
+                            // like a writer pushing its buffered block
+                            try {
+                                holder[0].write(flushes.incrementAndGet());
+                            } catch (IOException e) {
+                                throw new RuntimeException(e);
+                            }
+                        },
+                        WRITE,
+                        CREATE_NEW);
+        holder[0] = out;
+        try (out) {
+            awaitSyncs(out, 3);
+            assertThat(out.syncCount()).isGreaterThanOrEqualTo(3);
+            assertThat(flushes.get()).isGreaterThanOrEqualTo(3);
+        }
+    }
+}
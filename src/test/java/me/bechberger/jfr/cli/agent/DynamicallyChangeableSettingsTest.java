@@ -3,6 +3,7 @@ package me.bechberger.jfr.cli.agent;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.time.Duration;
+import me.bechberger.condensed.Compression;
 import org.junit.jupiter.api.Test;
 
 public class DynamicallyChangeableSettingsTest {
@@ -156,4 +157,46 @@ public class DynamicallyChangeableSettingsTest {
                 () -> settings.validate(false),
                 "Max size should only be allowed when rotating");
     }
+
+    @Test
+    public void testSharedDictionaryRequiresRotating() {
+        var settings = createSettings();
+        settings.maxSize = 1024 * 1024;
+        settings.sharedDictionary = true;
+        settings.compression = Compression.DEFLATE_DICTIONARY;
+        assertDoesNotThrow(() -> settings.validate(true));
+        // the definitions are shared with every compression
+        settings.compression = Compression.LZ4FRAMED;
+        assertDoesNotThrow(() -> settings.validate(true));
+        settings.maxSize = 0;
+        assertThrows(
+                DynamicallyChangeableSettings.ValidationException.class,
+                () -> settings.validate(false));
+    }
+
+    @Test
+    public void testRetentionLimitsRequireRotating() {
+        var settings = createSettings();
+        settings.maxSize = 1024 * 1024;
+        settings.maxTotalSize = 100 * 1024 * 1024;
+        settings.maxAge = Duration.ofDays(1);
+        settings.minFreeSpace = 1024 * 1024 * 1024;
+        assertDoesNotThrow(() -> settings.validate(true));
+        settings.maxSize = 0;
+        var e =
+                assertThrows(
+                        DynamicallyChangeableSettings.ValidationException.class,
+                        () -> settings.validate(false));
+        assertTrue(e.getMessage().contains("--max-total-size, --max-age and --min-free-space"));
+    }
+
+    @Test
+    public void testTinyMaxTotalSizeRejected() {
+        var settings = createSettings();
+        settings.maxSize = 1024 * 1024;
+        settings.maxTotalSize = 100;
+        assertThrows(
+                DynamicallyChangeableSettings.ValidationException.class,
+                () -> settings.validate(true));
+    }
 }
@@ -0,0 +1,81 @@
+package me.bechberger.jfr.cli.agent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class EventThrottleTest {
+
+    private static final long SECOND = EventThrottle.WINDOW_NANOS;
+
+    @Test
+    public void testCapOnlyLimitsTheNoisiestTypes() {
+        // 10 + 20 + cap + cap = 100
+        assertEquals(35, EventThrottle.cap(new long[] {1000, 10, 20, 500}, 100), 1e-9);
+        assertEquals(Double.POSITIVE_INFINITY, EventThrottle.cap(new long[] {10, 20}, 100), 1e-9);
+        assertEquals(25, EventThrottle.cap(new long[] {100, 100, 100, 100}, 100), 1e-9);
+    }
+
+    @Test
+    public void testNoBudgetKeepsAllEvents() {
+        var throttle = new EventThrottle(() -> 0, () -> 0);
+        for (int i = 0; i < 100_000; i++) {
+            assertTrue(throttle.admit("jdk.ObjectAllocationSample", i * 1000L));
+        }
+        assertEquals(0, throttle.droppedTotal());
+        assertFalse(throttle.isThrottling());
+    }
+
+    /**
+     * An allocation storm of 10000 events per second with a budget of 1000 events per second: the
+     * storm is thinned, the rare GC events are kept
+     */
+    @Test
+    public void testEventsPerSecondBudgetThinsTheNoisiestType() {
+        var throttle = new EventThrottle(() -> 1000, () -> 0);
+        long keptSamples = 0;
+        long keptGcs = 0;
+        for (int second = 0; second < 5; second++) {
+            long samplesInSecond = 0;
+            for (int i = 0; i < 10_000; i++) {
+                long now = second * SECOND + i * (SECOND / 10_000);
+                if (throttle.admit("jdk.ObjectAllocationSample", now)) {
+                    samplesInSecond++;
+                }
+                if (i % 1000 == 0 && throttle.admit("jdk.GarbageCollection", now)) {
+                    keptGcs++;
+                }
+            }
+            if (second > 0) {
+                // 1000 - 10 GCs
+                assertThat(samplesInSecond).isBetween(985L, 995L);
+            }
+            keptSamples += samplesInSecond;
+        }
+        assertEquals(50, keptGcs);
+        assertTrue(throttle.isThrottling());
+        assertEquals(50_000 - keptSamples, throttle.droppedTotal());
+        assertEquals(
+                java.util.Map.of("jdk.ObjectAllocationSample", 50_000 - keptSamples),
+                throttle.droppedEvents());
+    }
+
+    /** With a CPU budget, the budget in events follows from the measured processing time */
+    @Test
+    public void testCpuBudgetUsesProcessingTime() {
+        var throttle = new EventThrottle(() -> 0, () -> 10);
+        long kept = 0;
+        for (int second = 0; second < 3; second++) {
+            kept = 0;
+            for (int i = 0; i < 10_000; i++) {
+                if (throttle.admit("jdk.ExecutionSample", second * SECOND + i * 100_000L)) {
+                    // 100µs per event, 10% of a second allows 1000 events
+                    throttle.recordProcessing(1, 100_000);
+                    kept++;
+                }
+            }
+        }
+        assertThat(kept).isBetween(990L, 1010L);
+    }
+}
@@ -4,16 +4,27 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import me.bechberger.condensed.CJFRFooterReader;
+import me.bechberger.condensed.Compression;
+import me.bechberger.condensed.CompressionDictionary;
 import me.bechberger.condensed.CondensedInputStream;
+import me.bechberger.condensed.DefinitionDictionary;
+import me.bechberger.condensed.Message;
+import me.bechberger.condensed.Message.DefinitionsMessage;
+import me.bechberger.condensed.ReadStruct;
 import me.bechberger.jfr.BasicJFRReader;
 import me.bechberger.jfr.Configuration;
+import org.jetbrains.annotations.Nullable;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Timeout;
 import org.junit.jupiter.params.ParameterizedTest;
@@ -65,9 +76,9 @@ public class RecordingThreadHardeningTest {
     // -------------------------------------------------------------------------
 
     /**
-     * Two threads both call initNewFile() (via onEvent simulating size overflow) concurrently. Only
-     * one rotation should happen per size threshold; the file list must not exceed maxFiles and no
-     * writer should be leaked (i.e., no files with zero-length headers).
+     * Two threads both call initNewFile() (via onEvents simulating size overflow) concurrently.
+     * Only one rotation should happen per size threshold; the file list must not exceed maxFiles
+     * and no writer should be leaked (i.e., no files with zero-length headers).
      */
     @Test
     @Timeout(30)
@@ -100,9 +111,9 @@ public class RecordingThreadHardeningTest {
                                 } catch (InterruptedException ignored) {
                                     return;
                                 }
-                                // null causes NPE inside processEvent; onEvent catches it and
+                                // null causes NPE inside processEvent; onEvents catches it and
                                 // calls triggerStop(). We're testing that no corruption occurs.
-                                thread.onEvent(null);
+                                thread.onEvents(Collections.singletonList(null));
                             });
             t.setDaemon(true);
             threads.add(t);
@@ -174,6 +185,154 @@ public class RecordingThreadHardeningTest {
                 .isLessThanOrEqualTo(2);
     }
 
+    /** Record rotated files with a shared dictionary into a new directory */
+    private static Path recordWithSharedDictionary(Compression compression) throws Exception {
+        Path tmp = Files.createTempDirectory("rrt-shared-dictionary-");
+        tmp.toFile().deleteOnExit();
+
+        var settings = rotatingSettings(Duration.ofMillis(500), 0, 10);
+        settings.compression = compression;
+        settings.sharedDictionary = true;
+
+        var thread =
+                new RotatingRecordingThread(
+                        tmp.resolve("rec_$index.cjfr").toString(),
+                        Configuration.LOSSLESS,
+                        false,
+                        "default",
+                        "",
+                        () -> {},
+                        settings);
+        var recordingThread = new Thread(thread);
+        recordingThread.setDaemon(true);
+        recordingThread.start();
+        Thread.sleep(4_000);
+        thread.stop();
+        return tmp;
+    }
+
+    private static List<Path> filesWithExtension(Path dir, String extension) throws IOException {
+        try (var files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(extension)).sorted().toList();
+        }
+    }
+
+    /** Read all events of the file, the dictionaries are searched next to it */
+    private static List<String> readEvents(Path file) throws IOException {
+        List<String> events = new ArrayList<>();
+        try (var in = new CondensedInputStream(Files.readAllBytes(file))) {
+            in.searchDictionariesNextTo(file);
+            var reader = new BasicJFRReader(in);
+            ReadStruct event;
+            while ((event = reader.readNextEvent()) != null) {
+                events.add(event.toString());
+            }
+        }
+        return events;
+    }
+
+    /**
+     * The files with events after the first one with events, which should refer to the definitions
+     * sampled from the events of the first one; files without events have no definitions, as they
+     * have no configuration either
+     */
+    private static List<Path> laterFilesWithEvents(List<Path> files) throws IOException {
+        List<Path> result = new ArrayList<>();
+        for (Path file : files) {
+            if (!readEvents(file).isEmpty()) {
+                result.add(file);
+            }
+        }
+        return result.isEmpty() ? result : result.subList(1, result.size());
+    }
+
+    /** The definitions message of the file, if it has one */
+    private static @Nullable DefinitionsMessage readDefinitionsMessage(Path file)
+            throws IOException {
+        try (var in = new CondensedInputStream(Files.readAllBytes(file))) {
+            in.searchDictionariesNextTo(file);
+            Message message;
+            while ((message = in.readNextMessageAndProcess()) != null) {
+                if (message instanceof DefinitionsMessage definitions) {
+                    return definitions;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * With a shared dictionary, the files after the first one are compressed with a dictionary
+     * derived from the first one and refer to the type definitions of the first one, both are
+     * stored next to them so that every file stays readable.
+     */
+    @Test
+    @Timeout(30)
+    public void testSharedDictionaryIsStoredNextToFiles() throws Exception {
+        Path tmp = recordWithSharedDictionary(Compression.DEFLATE_DICTIONARY);
+
+        var dictionaries = filesWithExtension(tmp, CompressionDictionary.FILE_EXTENSION);
+        assertThat(dictionaries).hasSize(1);
+        assertThat(filesWithExtension(tmp, DefinitionDictionary.FILE_EXTENSION)).hasSize(1);
+        var dictionary = CompressionDictionary.read(dictionaries.get(0));
+        var files = filesWithExtension(tmp, ".cjfr");
+        assertThat(files.size()).isGreaterThanOrEqualTo(2);
+        int withDictionary = 0;
+        for (Path file : files) {
+            try (var in = new CondensedInputStream(Files.readAllBytes(file))) {
+                in.searchDictionariesNextTo(file);
+                var reader = new BasicJFRReader(in);
+                while (reader.readNextEvent() != null) {}
+                if (dictionary.equals(in.getUniverse().getStartMessage().dictionary())) {
+                    withDictionary++;
+                }
+            }
+        }
+        assertThat(withDictionary).isEqualTo(files.size() - 1);
+        var later = laterFilesWithEvents(files);
+        assertThat(later).isNotEmpty();
+        for (Path file : later) {
+            assertThat(readDefinitionsMessage(file))
+                    .isNotNull()
+                    .matches(DefinitionsMessage::shared);
+        }
+    }
+
+    /**
+     * Definitions are shared with compressions without a dictionary too, exporting a file inlines
+     * them so that it is readable on its own
+     */
+    @Test
+    @Timeout(30)
+    public void testSharedDefinitionsWithLZ4AreExportedStandalone() throws Exception {
+        Path tmp = recordWithSharedDictionary(Compression.LZ4FRAMED);
+
+        assertThat(filesWithExtension(tmp, CompressionDictionary.FILE_EXTENSION)).isEmpty();
+        var definitionFiles = filesWithExtension(tmp, DefinitionDictionary.FILE_EXTENSION);
+        assertThat(definitionFiles).hasSize(1);
+        var files = filesWithExtension(tmp, ".cjfr");
+        assertThat(files.size()).isGreaterThanOrEqualTo(2);
+        assertNull(readDefinitionsMessage(files.get(0)));
+        var later = laterFilesWithEvents(files);
+        assertThat(later).isNotEmpty();
+        Path file = later.get(0);
+        var shared = readDefinitionsMessage(file);
+        assertThat(shared).isNotNull().matches(DefinitionsMessage::shared);
+        assertThat(shared.definitions())
+                .isEqualTo(DefinitionDictionary.read(definitionFiles.get(0)));
+        List<String> events = readEvents(file);
+
+        Path standalone = tmp.resolve("standalone.export");
+        assertTrue(CompressionDictionary.writeStandalone(file, standalone));
+        assertThat(Files.size(standalone)).isGreaterThan(Files.size(file));
+        Files.delete(definitionFiles.get(0));
+        var inline = readDefinitionsMessage(standalone);
+        assertThat(inline).isNotNull();
+        assertFalse(inline.shared());
+        assertEquals(shared.definitions(), inline.definitions());
+        assertEquals(events, readEvents(standalone));
+    }
+
     // -------------------------------------------------------------------------
     // Test: safeOnEvent stops recording after MAX_EVENT_ERRORS
     // -------------------------------------------------------------------------
@@ -208,7 +367,7 @@ public class RecordingThreadHardeningTest {
 
             // Fire 12 null events (> MAX_EVENT_ERRORS = 10) — each causes NPE in processEvent
             for (int i = 0; i < 12; i++) {
-                thread.onEvent(null);
+                thread.onEvents(Collections.singletonList(null));
             }
 
             thread.close();
@@ -248,10 +407,10 @@ public class RecordingThreadHardeningTest {
         var eventThread =
                 new Thread(
                         () -> {
-                            // Keep calling onEvent until the recording is stopped
+                            // Keep calling onEvents until the recording is stopped
                             for (int i = 0; i < 1_000 && stopCalled.getCount() > 0; i++) {
                                 try {
-                                    thread.onEvent(null);
+                                    thread.onEvents(Collections.singletonList(null));
                                 } catch (Exception ignored) {
                                 }
                             }
@@ -310,7 +469,7 @@ public class RecordingThreadHardeningTest {
         tmp.toFile().deleteOnExit();
 
         // Rotate every 500ms, keep up to 20 files so none are deleted.
-        // The watchdog fires every 5s, so actual rotation is event-driven (via onEvent).
+        // The watchdog fires every 5s, so actual rotation is event-driven (via onEvents).
         // We drive it manually by calling onEvent enough for the size trigger to fire.
         var settings = rotatingSettings(Duration.ZERO, 1024, 20);
         settings.newNames = true;
@@ -406,6 +565,100 @@ public class RecordingThreadHardeningTest {
         }
     }
 
+    /**
+     * Rotated files are sealed in the background: when stop() returns, every file must carry its
+     * footer, and the status reports no sealing failures.
+     */
+    @Test
+    @Timeout(60)
+    public void testRotatedFilesAreSealedInBackground() throws Exception {
+        Path tmp = Files.createTempDirectory("rrt-sealing-");
+        tmp.toFile().deleteOnExit();
+
+        var settings = rotatingSettings(Duration.ZERO, 8 * 1024, 50);
+
+        var thread =
+                new RotatingRecordingThread(
+                        tmp.resolve("rec_$index.cjfr").toString(),
+                        Configuration.LOSSLESS,
+                        false,
+                        "default",
+                        "",
+                        () -> {},
+                        settings);
+
+        var runner = new Thread(thread, "test-rotating-runner-sealing");
+        runner.setDaemon(true);
+        runner.start();
+
+        generateJfrLoad(Duration.ofSeconds(4));
+
+        assertThat(thread.getStatus())
+                .contains(Map.entry("seal-failures", "0"))
+                .extracting(Map.Entry::getKey)
+                .contains("sealing-files", "last-seal-error");
+        thread.stop();
+        runner.join(10_000);
+
+        var files = Files.list(tmp).filter(p -> p.toString().endsWith(".cjfr")).toList();
+        assertThat(files.size()).isGreaterThanOrEqualTo(2);
+        for (var f : files) {
+            assertThat(CJFRFooterReader.tryRead(f))
+                    .as("rotated file %s must be sealed", f.getFileName())
+                    .isPresent();
+        }
+    }
+
+    /** A stalled sealer holds back the rotation instead of queueing writers without bound */
+    @Test
+    @Timeout(60)
+    public void testSealingBacklogIsBounded() throws Exception {
+        Path tmp = Files.createTempDirectory("rrt-sealing-backlog-");
+        tmp.toFile().deleteOnExit();
+
+        var thread =
+                new RotatingRecordingThread(
+                        tmp.resolve("rec_$index.cjfr").toString(),
+                        Configuration.LOSSLESS,
+                        false,
+                        "default",
+                        "",
+                        () -> {},
+                        rotatingSettings(Duration.ZERO, 8 * 1024, 50));
+        var stalled = new CountDownLatch(1);
+        thread.sealer.execute(
+                () -> {
+                    try {
+                        stalled.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+
+        var runner = new Thread(thread, "test-rotating-runner-backlog");
+        runner.setDaemon(true);
+        runner.start();
+
+        int maxPending = 0;
+        long end = System.nanoTime() + Duration.ofSeconds(3).toNanos();
+        while (System.nanoTime() < end) {
+            generateJfrLoad(Duration.ofMillis(100));
+            maxPending = Math.max(maxPending, thread.pendingSeals());
+        }
+        assertEquals(RotatingRecordingThread.MAX_PENDING_SEALS, maxPending);
+
+        stalled.countDown();
+        thread.stop();
+        runner.join(10_000);
+        assertEquals(0, thread.pendingSeals());
+        var files = Files.list(tmp).filter(p -> p.toString().endsWith(".cjfr")).toList();
+        for (var f : files) {
+            assertThat(CJFRFooterReader.tryRead(f))
+                    .as("rotated file %s must be sealed", f.getFileName())
+                    .isPresent();
+        }
+    }
+
     /**
      * maxFiles must be enforced under size-based rotation: with a tiny max-size and maxFiles=3, the
      * ring buffer keeps at most 3 files even though many rotations happen.
@@ -489,6 +742,191 @@ public class RecordingThreadHardeningTest {
                 .isEqualTo(1);
     }
 
+    /**
+     * With a total size budget, the oldest sealed files are deleted by their on-disk size, and
+     * lowering the budget live evicts right away.
+     */
+    @Test
+    @Timeout(60)
+    public void testMaxTotalSizeDeletesOldestFiles() throws Exception {
+        Path tmp = Files.createTempDirectory("rrt-total-size-");
+        tmp.toFile().deleteOnExit();
+
+        var settings = rotatingSettings(Duration.ZERO, 8 * 1024, 100);
+        settings.maxTotalSize = 48 * 1024;
+        var thread =
+                new RotatingRecordingThread(
+                        tmp.resolve("rec_$index.cjfr").toString(),
+                        Configuration.LOSSLESS,
+                        false,
+                        "default",
+                        "",
+                        () -> {},
+                        settings);
+        var runner = new Thread(thread, "test-rotating-runner-total-size");
+        runner.setDaemon(true);
+        runner.start();
+
+        generateJfrLoad(Duration.ofSeconds(4));
+
+        assertThat(thread.getStatus())
+                .extracting(Map.Entry::getKey)
+                .contains("stored-size", "retention-deleted-files");
+        assertThat(
+                        thread.getStatus().stream()
+                                .filter(e -> e.getKey().equals("retention-deleted-files"))
+                                .findFirst()
+                                .orElseThrow()
+                                .getValue())
+                .isNotEqualTo("0");
+
+        thread.setMaxTotalSize(16 * 1024);
+        long sizeAfterLowering = directorySize(tmp);
+        thread.stop();
+        runner.join(10_000);
+
+        // the live file and the files that are still sealed are kept, even above the budget
+        assertThat(sizeAfterLowering).isLessThan(16 * 1024 + 3 * 16 * 1024);
+        assertThat(Files.list(tmp).count()).isLessThan(100);
+    }
+
+    private static long directorySize(Path dir) throws java.io.IOException {
+        try (var files = Files.list(dir)) {
+            return files.mapToLong(f -> f.toFile().length()).sum();
+        }
+    }
+
+    /**
+     * A ring buffer keeps only the newest segments in memory, and a dump writes each of them to a
+     * complete file with footer, even after older segments were evicted.
+     */
+    @Test
+    @Timeout(60)
+    public void testRingBufferDumpsCompleteFiles() throws Exception {
+        Path tmp = Files.createTempDirectory("rrt-ring-");
+        tmp.toFile().deleteOnExit();
+
+        var settings = rotatingSettings(Duration.ZERO, 64 * 1024, 4);
+        var thread =
+                new RingBufferRecordingThread(
+                        tmp.resolve("dump_$index.cjfr").toString(),
+                        Configuration.LOSSLESS,
+                        false,
+                        "default",
+                        "",
+                        () -> {},
+                        settings,
+                        RingBufferRecordingThread.DumpTriggers.NONE);
+        var runner = new Thread(thread, "test-ring-buffer-runner");
+        runner.setDaemon(true);
+        runner.start();
+
+        generateJfrLoad(Duration.ofSeconds(4));
+        assertThat(Files.list(tmp).toList()).as("nothing is written before a dump").isEmpty();
+        assertThat(thread.getStatus()).contains(Map.entry("mode", "ring buffer"));
+        assertThat(
+                        Integer.parseInt(
+                                thread.getStatus().stream()
+                                        .filter(e -> e.getKey().equals("evicted-segments"))
+                                        .findFirst()
+                                        .orElseThrow()
+                                        .getValue()))
+                .isGreaterThan(0);
+
+        assertTrue(thread.supportsDump());
+        List<Path> files = thread.dump();
+        thread.stop();
+        runner.join(10_000);
+
+        assertThat(files).isNotEmpty().hasSizeLessThanOrEqualTo(4);
+        long totalSize = 0;
+        for (var file : files) {
+            totalSize += Files.size(file);
+            assertThat(CJFRFooterReader.tryRead(file))
+                    .as("dumped file %s must be sealed", file.getFileName())
+                    .isPresent();
+            try (var is = new CondensedInputStream(Files.newInputStream(file))) {
+                var reader = new BasicJFRReader(is);
+                while (reader.readNextEvent() != null) {}
+            }
+        }
+        // segments are sealed at a quarter of the size, so the ring can overshoot by one
+        assertThat(totalSize).isLessThan(2 * 64 * 1024);
+    }
+
+    /** A GC pause above the threshold dumps the ring once, further GCs are within the cooldown */
+    @Test
+    @Timeout(60)
+    public void testRingBufferDumpsOnGcPause() throws Exception {
+        Path tmp = Files.createTempDirectory("rrt-ring-gc-");
+        tmp.toFile().deleteOnExit();
+
+        var settings = rotatingSettings(Duration.ofMinutes(1), 0, 4);
+        var thread =
+                new RingBufferRecordingThread(
+                        tmp.resolve("dump_$index.cjfr").toString(),
+                        Configuration.LOSSLESS,
+                        false,
+                        "default",
+                        "",
+                        () -> {},
+                        settings,
+                        new RingBufferRecordingThread.DumpTriggers(
+                                Duration.ofNanos(1), 0, Duration.ofHours(1)));
+        var runner = new Thread(thread, "test-ring-buffer-gc-runner");
+        runner.setDaemon(true);
+        runner.start();
+
+        long deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+        while (Files.list(tmp).findAny().isEmpty() && System.nanoTime() < deadline) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        System.gc();
+        Thread.sleep(2000);
+        assertThat(thread.getStatus()).contains(Map.entry("dumps", "1"));
+        thread.stop();
+        runner.join(10_000);
+
+        var files = Files.list(tmp).toList();
+        assertThat(files).isNotEmpty();
+        for (var file : files) {
+            assertThat(CJFRFooterReader.tryRead(file)).isPresent();
+        }
+    }
+
+    /** Events above the event budget are dropped, counted per type in status and footer */
+    @Test
+    @Timeout(60)
+    public void testEventBudgetDropsEventsAndCountsThemInFooter() throws Exception {
+        Path file = Files.createTempFile("rrt-budget-", ".cjfr");
+        file.toFile().deleteOnExit();
+        var settings = singleSettings();
+        settings.eventBudget = 20;
+        var thread =
+                new SingleRecordingThread(
+                        file.toString(),
+                        Configuration.DEFAULT,
+                        false,
+                        "default",
+                        "",
+                        () -> {},
+                        settings);
+        var runner = new Thread(thread, "test-budget-runner");
+        runner.setDaemon(true);
+        runner.start();
+
+        generateJfrLoad(Duration.ofSeconds(4));
+        assertThat(thread.getStatus()).contains(Map.entry("event-budget", "20 events/s"));
+        thread.stop();
+        runner.join(10_000);
+
+        var dropped = thread.getDroppedEvents();
+        assertThat(dropped).isNotEmpty();
+        var footer = CJFRFooterReader.tryRead(file).orElseThrow();
+        assertEquals(dropped, footer.droppedEvents());
+    }
+
     /** Generate allocation + GC + sleep load so the JFR default config records many events. */
     private static void generateJfrLoad(Duration duration) throws InterruptedException {
         long end = System.nanoTime() + duration.toNanos();
@@ -0,0 +1,238 @@
+package me.bechberger.jfr.cli.agent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import me.bechberger.jfr.cli.agent.SharedRecordingStream.EventSelection;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+public class SharedRecordingStreamTest {
+
+    @Test
+    public void testParseNanos() {
+        assertEquals(20_000_000L, EventSelection.parseNanos("20 ms"));
+        assertEquals(10L, EventSelection.parseNanos("10 ns"));
+        assertEquals(2_000_000_000L, EventSelection.parseNanos("2 s"));
+        assertEquals(60_000_000_000L, EventSelection.parseNanos("1 m"));
+        assertEquals(0, EventSelection.parseNanos("0 ms"));
+        assertEquals(0, EventSelection.parseNanos("beginChunk"));
+        assertEquals(0, EventSelection.parseNanos("x ms"));
+    }
+
+    @Test
+    public void testSelectionOfSettings() {
+        var selection =
+                EventSelection.of(
+                        Map.of(
+                                "jdk.GarbageCollection#enabled", "true",
+                                "jdk.ExecutionSample#enabled", "false",
+                                "jdk.ThreadSleep#threshold", "20 ms",
+                                "jdk.JavaMonitorWait#threshold", "0 ms",
+                                "jdk.CPULoad#period", "1 s"));
+        assertEquals(Set.of("jdk.GarbageCollection"), selection.enabled());
+        assertEquals(Set.of("jdk.ExecutionSample"), selection.disabled());
+        assertEquals(Map.of("jdk.ThreadSleep", 20_000_000L), selection.thresholdNanos());
+    }
+
+    @Test
+    public void testTypesNotEnabledBySettingsAreSkipped() {
+        var selection =
+                EventSelection.of(
+                        Map.of(
+                                "jdk.GarbageCollection#enabled", "true",
+                                "jdk.ExecutionSample#enabled", "false"),
+                        name -> name.equals("app.DefaultOn"));
+        assertTrue(selection.selects("jdk.GarbageCollection"));
+        assertFalse(selection.selects("jdk.ExecutionSample"));
+        // enabled by another recording only
+        assertFalse(selection.selects("jdk.ObjectAllocationSample"));
+        // not mentioned, but enabled by default, as with a single recording
+        assertTrue(selection.selects("app.DefaultOn"));
+        assertFalse(selection.selects("cjfr.Telemetry"));
+    }
+
+    @Test
+    public void testRegisteredDefaults() {
+        FlightRecorder.register(DisabledByDefaultEvent.class);
+        FlightRecorder.register(StackTraceEvent.class);
+        assertFalse(EventSelection.isEnabledByDefault("test.DisabledByDefaultEvent"));
+        assertTrue(EventSelection.isEnabledByDefault("test.StackTraceEvent"));
+        assertFalse(EventSelection.isEnabledByDefault("test.UnknownEvent"));
+    }
+
+    @Name("test.DisabledByDefaultEvent")
+    @Enabled(false)
+    static class DisabledByDefaultEvent extends Event {}
+
+    @Name("test.StackTraceEvent")
+    static class StackTraceEvent extends Event {}
+
+    /**
+     * A subscription skips the types that only another recording enabled, but gets the stack traces
+     * that another recording enabled: settings other than enabled and threshold apply to all
+     * recordings together
+     */
+    @Test
+    @Timeout(30)
+    public void testOnlyEnabledAndThresholdArePerSubscription() throws Exception {
+        var enabling = new CopyOnWriteArrayList<RecordedEvent>();
+        var other = new CopyOnWriteArrayList<RecordedEvent>();
+        try (var recording = new Recording()) {
+            recording.enable(DisabledByDefaultEvent.class);
+            recording.enable(StackTraceEvent.class).withStackTrace();
+            recording.start();
+            var enablingSubscription =
+                    SharedRecordingStream.subscribe(
+                            Map.of(
+                                    "test.DisabledByDefaultEvent#enabled", "true",
+                                    "test.StackTraceEvent#enabled", "true",
+                                    "test.StackTraceEvent#stackTrace", "true"),
+                            enabling::addAll);
+            var otherSubscription =
+                    SharedRecordingStream.subscribe(
+                            Map.of(
+                                    "test.StackTraceEvent#enabled", "true",
+                                    "test.StackTraceEvent#stackTrace", "false"),
+                            other::addAll);
+            try {
+                Thread.sleep(500); // the stream starts asynchronously
+                for (int i = 0; i < 10; i++) {
+                    new DisabledByDefaultEvent().commit();
+                    new StackTraceEvent().commit();
+                }
+                long end = System.currentTimeMillis() + 10_000;
+                while ((count(enabling, "test.DisabledByDefaultEvent") < 10
+                                || count(other, "test.StackTraceEvent") < 10)
+                        && System.currentTimeMillis() < end) {
+                    Thread.sleep(100);
+                }
+            } finally {
+                enablingSubscription.close();
+                otherSubscription.close();
+            }
+        }
+        assertEquals(10, count(enabling, "test.DisabledByDefaultEvent"));
+        assertEquals(0, count(other, "test.DisabledByDefaultEvent"));
+        assertEquals(10, count(other, "test.StackTraceEvent"));
+        // the known limitation: the stack trace setting of the other recording wins
+        assertThat(other)
+                .filteredOn(e -> e.getEventType().getName().equals("test.StackTraceEvent"))
+                .allSatisfy(e -> assertNotNull(e.getStackTrace()));
+    }
+
+    private static long count(List<RecordedEvent> events, String name) {
+        return events.stream().filter(e -> e.getEventType().getName().equals(name)).count();
+    }
+
+    @Name("cjfr.test.BatchEvent")
+    static class BatchEvent extends Event {
+        int index;
+    }
+
+    /** Events arrive in batches of at most MAX_BATCH_SIZE, the pending ones are passed on close */
+    @Test
+    @Timeout(30)
+    public void testEventsArriveInBatches() throws Exception {
+        var batches = new CopyOnWriteArrayList<List<RecordedEvent>>();
+        var subscription =
+                SharedRecordingStream.subscribe(
+                        Map.of("cjfr.test.BatchEvent#enabled", "true"), batches::add);
+        int count = 3 * SharedRecordingStream.MAX_BATCH_SIZE;
+        try {
+            Thread.sleep(500); // the stream starts asynchronously
+            for (int i = 0; i < count; i++) {
+                var event = new BatchEvent();
+                event.index = i;
+                event.commit();
+            }
+            long end = System.currentTimeMillis() + 10_000;
+            while (received(batches) < count && System.currentTimeMillis() < end) {
+                Thread.sleep(100);
+            }
+        } finally {
+            subscription.close();
+        }
+        assertEquals(count, received(batches));
+        assertThat(batches).allSatisfy(b -> assertThat(b).isNotEmpty());
+        assertThat(batches)
+                .allSatisfy(
+                        b ->
+                                assertThat(b)
+                                        .hasSizeLessThanOrEqualTo(
+                                                SharedRecordingStream.MAX_BATCH_SIZE));
+        assertThat(batches.size()).isLessThan(count / 100);
+    }
+
+    /**
+     * A queued subscription whose consumer blocks doesn't block the other subscriptions, the
+     * batches that don't fit into its queue are counted as dropped
+     */
+    @Test
+    @Timeout(60)
+    public void testBlockedQueuedSubscriptionDropsBatches() throws Exception {
+        var blocked = new CopyOnWriteArrayList<List<RecordedEvent>>();
+        var other = new CopyOnWriteArrayList<List<RecordedEvent>>();
+        Map<String, Long> dropped = new ConcurrentHashMap<>();
+        var release = new CountDownLatch(1);
+        var settings = Map.of("cjfr.test.BatchEvent#enabled", "true");
+        var blockedSubscription =
+                SharedRecordingStream.subscribe(
+                        settings,
+                        batch -> {
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            blocked.add(batch);
+                        },
+                        d -> d.forEach((type, count) -> dropped.merge(type, count, Long::sum)));
+        var otherSubscription = SharedRecordingStream.subscribe(settings, other::add);
+        int count =
+                (SharedRecordingStream.MAX_QUEUED_BATCHES + 4)
+                        * SharedRecordingStream.MAX_BATCH_SIZE;
+        try {
+            Thread.sleep(500); // the stream starts asynchronously
+            for (int i = 0; i < count; i++) {
+                var event = new BatchEvent();
+                event.index = i;
+                event.commit();
+            }
+            long end = System.currentTimeMillis() + 20_000;
+            while (received(other) < count && System.currentTimeMillis() < end) {
+                Thread.sleep(100);
+            }
+            assertEquals(count, received(other));
+            assertThat(blockedSubscription.queuedBatches())
+                    .isEqualTo(SharedRecordingStream.MAX_QUEUED_BATCHES);
+            assertThat(blockedSubscription.queueOverflow()).isPositive();
+        } finally {
+            release.countDown();
+            blockedSubscription.close();
+            otherSubscription.close();
+        }
+        long droppedEvents = dropped.getOrDefault("cjfr.test.BatchEvent", 0L);
+        assertEquals(blockedSubscription.queueOverflow(), droppedEvents);
+        assertEquals(count, received(blocked) + droppedEvents);
+    }
+
+    private static long received(List<List<RecordedEvent>> batches) {
+        return batches.stream()
+                .flatMap(List::stream)
+                .filter(e -> e.getEventType().getName().equals("cjfr.test.BatchEvent"))
+                .count();
+    }
+}
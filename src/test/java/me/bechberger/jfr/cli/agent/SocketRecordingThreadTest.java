@@ -0,0 +1,236 @@
+package me.bechberger.jfr.cli.agent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.BooleanSupplier;
+import jdk.jfr.Event;
+import jdk.jfr.Name;
+import me.bechberger.condensed.CJFRFooterReader;
+import me.bechberger.condensed.CondensedInputStream;
+import me.bechberger.condensed.ReadStruct;
+import me.bechberger.jfr.BasicJFRReader;
+import me.bechberger.jfr.Configuration;
+import me.bechberger.jfr.cli.stream.StreamCollector;
+import me.bechberger.jfr.cli.stream.StreamCollector.Layout;
+import me.bechberger.jfr.cli.stream.StreamCollector.StreamFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SocketRecordingThreadTest {
+
+    @Name("cjfr.test.SocketEvent")
+    static class SocketEvent extends Event {
+        int index;
+        String payload;
+    }
+
+    private static DynamicallyChangeableSettings settings() {
+        var s = new DynamicallyChangeableSettings();
+        s.maxDuration = Duration.ZERO;
+        s.maxSize = 0;
+        s.duration = Duration.ZERO;
+        return s;
+    }
+
+    private static void commitEvents(int count) {
+        for (int i = 0; i < count; i++) {
+            var event = new SocketEvent();
+            event.index = i;
+            event.commit();
+        }
+    }
+
+    private static long countEvents(Path file) throws Exception {
+        long count = 0;
+        try (var is = new CondensedInputStream(Files.newInputStream(file))) {
+            var reader = new BasicJFRReader(is);
+            ReadStruct event;
+            while ((event = reader.readNextEvent()) != null) {
+                if (event.getType().getName().equals("cjfr.test.SocketEvent")) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+        long end = System.nanoTime() + 20_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < end, "Timed out waiting for " + what);
+            commitEvents(10);
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * The recording reconnects after the collector restarts: the stream of the first connection is
+     * torn, the stream of the second connection is complete
+     */
+    @Test
+    @Timeout(60)
+    public void testStreamsToCollectorAndReconnects(@TempDir Path dir) throws Exception {
+        Path socket = dir.resolve("cjfr.sock");
+        Path first = dir.resolve("first");
+        Path second = dir.resolve("second");
+        var collector = new StreamCollector(socket, first, Layout.PER_JVM, 0, s -> {});
+        var thread =
+                new SocketRecordingThread(
+                        "unix:" + socket,
+                        "socket-test",
+                        Configuration.DEFAULT,
+                        false,
+                        "default",
+                        "cjfr.test.SocketEvent#enabled=true",
+                        () -> {},
+                        settings(),
+                        false);
+        var runner = new Thread(thread);
+        runner.setDaemon(true);
+        StreamCollector restarted = null;
+        try {
+            runner.start();
+            assertTrue(thread.isConnected());
+            Path dirOfJvm = first.resolve("socket-test-" + ProcessHandle.current().pid());
+            // every batch is sent when it arrives
+            await(
+                    "the first stream",
+                    () -> {
+                        try {
+                            return Files.size(dirOfJvm.resolve("0.cjfr")) > 1024;
+                        } catch (Exception e) {
+                            return false;
+                        }
+                    });
+            collector.close();
+            await("the disconnect", () -> !thread.isConnected());
+
+            restarted = new StreamCollector(socket, second, Layout.PER_JVM, 0, s -> {});
+            await("the reconnect", thread::isConnected);
+            commitEvents(100);
+            Thread.sleep(1_500); // let JFR flush the events
+        } finally {
+            thread.stop();
+            runner.join(10_000);
+        }
+        try {
+            List<StreamFile> streams = restarted.getStreamFiles();
+            long end = System.nanoTime() + 10_000_000_000L;
+            while (streams.isEmpty() && System.nanoTime() < end) {
+                Thread.sleep(10);
+                streams = restarted.getStreamFiles();
+            }
+            assertThat(streams).hasSize(1);
+            Path file = streams.get(0).path();
+            assertTrue(streams.get(0).complete());
+            assertThat(CJFRFooterReader.tryRead(file)).isPresent();
+            assertThat(countEvents(file)).isGreaterThanOrEqualTo(100);
+        } finally {
+            restarted.close();
+        }
+        var torn = collector.getStreamFiles();
+        assertThat(torn).hasSize(1);
+        assertFalse(torn.get(0).complete());
+    }
+
+    /**
+     * A collector that accepts the connection but never reads blocks only the sender thread: the
+     * batches beyond the queue are counted as dropped and closing does not hang
+     */
+    @Test
+    @Timeout(60)
+    public void testStalledCollectorDoesNotBlockDispatch(@TempDir Path dir) throws Exception {
+        Path socket = dir.resolve("stalled.sock");
+        try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            var thread =
+                    new SocketRecordingThread(
+                            "unix:" + socket,
+                            "socket-test",
+                            Configuration.DEFAULT,
+                            false,
+                            "default",
+                            "cjfr.test.SocketEvent#enabled=true",
+                            () -> {},
+                            settings(),
+                            false);
+            var runner = new Thread(thread);
+            runner.setDaemon(true);
+            try (var accepted = server.accept()) {
+                runner.start();
+                var random = new Random(42);
+                long end = System.nanoTime() + 40_000_000_000L;
+                while (droppedQueueFull(thread) == 0) {
+                    assertTrue(System.nanoTime() < end, "Timed out waiting for dropped batches");
+                    // random payloads that fill the socket buffers despite compression
+                    for (int i = 0; i < 1000; i++) {
+                        var event = new SocketEvent();
+                        event.index = i;
+                        event.payload = randomString(random, 256);
+                        event.commit();
+                    }
+                    Thread.sleep(100);
+                }
+                assertThat(thread.getStatus())
+                        .contains(
+                                Map.entry(
+                                        "queued-batches",
+                                        String.valueOf(SocketRecordingThread.MAX_QUEUED_BATCHES)));
+            } finally {
+                long start = System.nanoTime();
+                thread.stop();
+                runner.join(10_000);
+                assertThat(System.nanoTime() - start).isLessThan(15_000_000_000L);
+            }
+        }
+    }
+
+    private static String randomString(Random random, int length) {
+        var builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) ('!' + random.nextInt(90)));
+        }
+        return builder.toString();
+    }
+
+    private static long droppedQueueFull(SocketRecordingThread thread) {
+        return thread.getStatus().stream()
+                .filter(e -> e.getKey().equals("dropped-queue-full"))
+                .mapToLong(e -> Long.parseLong(e.getValue()))
+                .findFirst()
+                .orElse(0);
+    }
+
+    @Test
+    @Timeout(30)
+    public void testStartsWithoutCollector(@TempDir Path dir) throws Exception {
+        var thread =
+                new SocketRecordingThread(
+                        "unix:" + dir.resolve("missing.sock"),
+                        "socket-test",
+                        Configuration.DEFAULT,
+                        false,
+                        "default",
+                        "",
+                        () -> {},
+                        settings(),
+                        false);
+        try {
+            assertFalse(thread.isConnected());
+            assertThat(thread.getStatus()).contains(Map.entry("state", "disconnected"));
+        } finally {
+            thread.close();
+        }
+    }
+}
@@ -6,7 +6,11 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import java.lang.reflect.Field;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import me.bechberger.condensed.CondensedInputStream;
 import me.bechberger.condensed.ReadStruct;
 import me.bechberger.jfr.BasicJFRReader;
@@ -159,6 +163,174 @@ public class AgentCommandTest {
         assertThat(rewritten).doesNotContain("Usage: agent,start");
     }
 
+    private static List<AgentCommand.JVMProcess> fakeJVMs(int count) {
+        List<AgentCommand.JVMProcess> jvms = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            jvms.add(new AgentCommand.JVMProcess(i, "fake" + i));
+        }
+        return jvms;
+    }
+
+    @Test
+    @Timeout(30)
+    public void testRunForAllAttachesInParallelWithBoundedPool() {
+        var running = new AtomicInteger();
+        var maxRunning = new AtomicInteger();
+        var results =
+                AgentCommand.runForAll(
+                        fakeJVMs(6),
+                        (pid, out, err) -> {
+                            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                            try {
+                                Thread.sleep(300);
+                            } catch (InterruptedException e) {
+                                return 1;
+                            } finally {
+                                running.decrementAndGet();
+                            }
+                            out.println("status of " + pid);
+                            err.print(pid == 4 ? "failed" : "");
+                            return pid == 4 ? 2 : 0;
+                        },
+                        3,
+                        Duration.ofSeconds(20));
+        assertThat(maxRunning.get()).isEqualTo(3);
+        assertThat(results).extracting(r -> r.jvm().pid()).containsExactly(1L, 2L, 3L, 4L, 5L, 6L);
+        assertThat(results)
+                .allSatisfy(
+                        r -> {
+                            assertThat(r.output()).isEqualTo("status of " + r.jvm().pid() + "\n");
+                            assertThat(r.timedOut()).isFalse();
+                        });
+        assertThat(results.get(3).exitCode()).isEqualTo(2);
+        assertThat(results.get(3).error()).isEqualTo("failed");
+    }
+
+    /** A hung JVM times out, JVMs waiting for a free slot do not */
+    @Test
+    @Timeout(30)
+    public void testRunForAllTimesOutHungJVMs() {
+        long start = System.nanoTime();
+        var results =
+                AgentCommand.runForAll(
+                        fakeJVMs(4),
+                        (pid, out, err) -> {
+                            try {
+                                Thread.sleep(pid == 2 ? 60_000 : 300);
+                            } catch (InterruptedException e) {
+                                return 1;
+                            }
+                            out.print("done");
+                            return 0;
+                        },
+                        2,
+                        Duration.ofMillis(700));
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(10));
+        assertThat(results)
+                .extracting(AgentCommand.JVMResult::timedOut)
+                .containsExactly(false, true, false, false);
+        assertThat(results.get(1).exitCode()).isEqualTo(1);
+        assertThat(results)
+                .filteredOn(r -> !r.timedOut())
+                .allSatisfy(r -> assertThat(r.output()).isEqualTo("done"));
+    }
+
+    /**
+     * A JVM that ignores the interrupt keeps its thread, but gives its slot to the JVMs that wait
+     * for one
+     */
+    @Test
+    @Timeout(30)
+    public void testRunForAllFreesSlotOfUninterruptibleJVM() {
+        var hang = new CountDownLatch(1);
+        try {
+            var results =
+                    AgentCommand.runForAll(
+                            fakeJVMs(3),
+                            (pid, out, err) -> {
+                                if (pid == 1) {
+                                    while (hang.getCount() > 0) {
+                                        try {
+                                            hang.await();
+                                        } catch (InterruptedException e) {
+                                            // like an attach, that cannot be aborted
+                                        }
+                                    }
+                                }
+                                out.print("done");
+                                return 0;
+                            },
+                            1,
+                            Duration.ofMillis(500));
+            assertThat(results)
+                    .extracting(AgentCommand.JVMResult::timedOut)
+                    .containsExactly(true, false, false);
+            assertThat(results.get(2).output()).isEqualTo("done");
+        } finally {
+            hang.countDown();
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    public void testRunForAllReportsExceptions() {
+        var results =
+                AgentCommand.runForAll(
+                        fakeJVMs(2),
+                        (pid, out, err) -> {
+                            if (pid == 2) {
+                                throw new IllegalStateException("attach failed");
+                            }
+                            return 0;
+                        },
+                        2,
+                        Duration.ofSeconds(20));
+        assertThat(results).extracting(AgentCommand.JVMResult::exitCode).containsExactly(0, 1);
+        assertThat(results.get(1).timedOut()).isFalse();
+        assertThat(results.get(1).error())
+                .contains("Error: java.lang.IllegalStateException: attach failed");
+    }
+
+    @Test
+    public void testAllTargetRejectsInvalidOptions() throws Exception {
+        var res = new CommandExecuter("agent", "all", "--parallelism", "0", "status").run();
+        assertThat(res.exitCode()).isEqualTo(1);
+        assertThat(res.error()).contains("--parallelism must be at least 1");
+        res = new CommandExecuter("agent", "all", "--timeout=abc", "status").run();
+        assertThat(res.exitCode()).isEqualTo(1);
+        assertThat(res.error()).contains("Invalid value for --timeout: abc");
+    }
+
+    @Test
+    @Timeout(120)
+    public void testRunForAllOnChildJVMs() throws Exception {
+        try (var first = new WithRunningJVM();
+                var second = new WithRunningJVM()) {
+            var jvms =
+                    List.of(
+                            new AgentCommand.JVMProcess(first.pid(), "first"),
+                            new AgentCommand.JVMProcess(second.pid(), "second"));
+            var results =
+                    AgentCommand.runForAll(
+                            jvms,
+                            (pid, out, err) ->
+                                    AgentCommand.handleSubCommand(pid, List.of("help"), out, err),
+                            2,
+                            Duration.ofSeconds(60));
+            assertThat(results)
+                    .allSatisfy(
+                            r -> {
+                                assertThat(r.error()).isEmpty();
+                                assertThat(r.exitCode()).isZero();
+                                assertThat(r.output())
+                                        .contains(
+                                                "Usage: cjfr agent "
+                                                        + r.jvm().pid()
+                                                        + " [COMMAND]");
+                            });
+        }
+    }
+
     @Test
     public void testHelpCommand() throws Exception {
         try (var jvm = new WithRunningJVM()) {
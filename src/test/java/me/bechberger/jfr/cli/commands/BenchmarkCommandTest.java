@@ -38,6 +38,23 @@ public class BenchmarkCommandTest {
                 () -> assertThat(result.output().strip()).doesNotContain("sample.jfr"));
     }
 
+    @Test
+    public void testCompareCompressionsCsvWithNoMatchingFilesProducesHeaderOnly() throws Exception {
+        var result =
+                new CommandExecuter(
+                                "benchmark",
+                                "--compare-compressions",
+                                "--csv",
+                                "--regexp",
+                                "does-not-match")
+                        .checkNoError()
+                        .run();
+
+        assertThat(result.output().strip())
+                .startsWith("JFR file,config,compression,level,")
+                .contains("compress MB/s");
+    }
+
     @Test
     public void testInvalidConfigurationFailsBeforeBenchmarkRuns() throws Exception {
         var result = new CommandExecuter("benchmark", "--configuration", "does-not-exist").run();
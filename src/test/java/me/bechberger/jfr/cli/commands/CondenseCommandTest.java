@@ -339,6 +339,76 @@ public class CondenseCommandTest {
         assertThat(result.exitCode()).isNotEqualTo(0);
     }
 
+    @Test
+    public void testSeparateOutputsWithThreads() throws Exception {
+        new CommandExecuter(
+                        "condense",
+                        "--separate-outputs",
+                        "--threads",
+                        "2",
+                        "T/" + CommandTestUtil.getSampleJFRFileName(),
+                        "T/" + CommandTestUtil.getSampleJFRFileName(1))
+                .withFiles(CommandTestUtil.getSampleJFRFile(), CommandTestUtil.getSampleJFRFile(1))
+                .checkNoError()
+                .checkNoOutput()
+                .check(
+                        checkFiles(
+                                false,
+                                CommandTestUtil.getSampleJFRFileName(),
+                                CommandTestUtil.getSampleJFRFileName(1)))
+                .run();
+    }
+
+    @Test
+    public void testSeparateOutputsRejectsOutputFile() throws Exception {
+        var result =
+                new CommandExecuter(
+                                "condense",
+                                "--separate-outputs",
+                                "T/" + CommandTestUtil.getSampleJFRFileName(),
+                                "T/combined.cjfr")
+                        .withFiles(CommandTestUtil.getSampleJFRFile())
+                        .run();
+        assertThat(result.exitCode()).isEqualTo(2);
+        assertThat(result.error()).contains("--separate-outputs");
+    }
+
+    /** Parsing the inputs in parallel must not change the combined output */
+    @Test
+    public void testThreadsDoNotChangeCombinedOutput() throws Exception {
+        var jfr = CommandTestUtil.getSampleJFRFile();
+        var jfr1 = CommandTestUtil.getSampleJFRFile(1);
+        var tmpDir = Files.createTempDirectory("jfr-cli-test");
+        var sequential = tmpDir.resolve("sequential.cjfr");
+        var parallel = tmpDir.resolve("parallel.cjfr");
+        try {
+            var sequentialResult =
+                    me.bechberger.jfr.cli.JFRCLI.runCapturedWithDispatch(
+                            new String[] {
+                                "condense", jfr.toString(), jfr1.toString(), sequential.toString()
+                            });
+            assertThat(sequentialResult.exitCode()).isEqualTo(0);
+            var parallelResult =
+                    me.bechberger.jfr.cli.JFRCLI.runCapturedWithDispatch(
+                            new String[] {
+                                "condense",
+                                "--threads",
+                                "2",
+                                "--max-buffered-events",
+                                "3",
+                                jfr.toString(),
+                                jfr1.toString(),
+                                parallel.toString()
+                            });
+            assertThat(parallelResult.exitCode()).isEqualTo(0);
+            assertThat(Files.readAllBytes(parallel)).isEqualTo(Files.readAllBytes(sequential));
+        } finally {
+            Files.deleteIfExists(sequential);
+            Files.deleteIfExists(parallel);
+            Files.deleteIfExists(tmpDir);
+        }
+    }
+
     @Test
     public void testFolderInput() throws Exception {
         new CommandExecuter("condense", "T/", "T/combined.cjfr")
@@ -0,0 +1,180 @@
+package me.bechberger.jfr.cli.stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import me.bechberger.condensed.CondensedInputStream;
+import me.bechberger.condensed.CondensedOutputStream;
+import me.bechberger.condensed.CondensedRecovery;
+import me.bechberger.condensed.Message;
+import me.bechberger.condensed.Message.StartMessage;
+import me.bechberger.condensed.types.StringType;
+import me.bechberger.jfr.cli.stream.SocketStreamProtocol.FramedOutputStream;
+import me.bechberger.jfr.cli.stream.SocketStreamProtocol.Hello;
+import me.bechberger.jfr.cli.stream.StreamCollector.Layout;
+import me.bechberger.jfr.cli.stream.StreamCollector.StreamFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+public class StreamCollectorTest {
+
+    private static SocketChannel connect(Path socket, long pid, String name) throws IOException {
+        var channel = SocketStreamProtocol.connect(socket);
+        var out = new DataOutputStream(Channels.newOutputStream(channel));
+        new Hello(pid, name).write(out);
+        out.flush();
+        return channel;
+    }
+
+    private static List<String> values(String prefix, int count) {
+        return IntStream.range(0, count).mapToObj(i -> prefix + " " + i).toList();
+    }
+
+    /** Send the values as one stream, closed (with the end frame) or torn */
+    private static void sendStream(SocketChannel channel, List<String> values, boolean end) {
+        var framed = new FramedOutputStream(Channels.newOutputStream(channel));
+        var out = new CondensedOutputStream(framed, StartMessage.DEFAULT);
+        var stringType = out.writeAndStoreType(StringType::new);
+        for (String value : values) {
+            out.writeMessage(stringType, value);
+        }
+        if (end) {
+            out.close();
+        } else {
+            out.flush();
+        }
+    }
+
+    private static List<String> read(Path file) throws IOException {
+        List<String> result = new ArrayList<>();
+        try (var in = new CondensedInputStream(Files.readAllBytes(file))) {
+            Message.ReadInstance<?, ?> instance;
+            while ((instance = in.readNextInstance()) != null) {
+                result.add((String) instance.value());
+            }
+        }
+        return result;
+    }
+
+    private static List<StreamFile> awaitStreams(StreamCollector collector, int count)
+            throws InterruptedException {
+        long end = System.nanoTime() + 10_000_000_000L;
+        while (collector.getStreamFiles().size() < count && System.nanoTime() < end) {
+            Thread.sleep(10);
+        }
+        return collector.getStreamFiles();
+    }
+
+    @Test
+    @Timeout(30)
+    public void testEveryStreamIsWrittenToItsOwnFilePerJvm(@TempDir Path dir) throws Exception {
+        Path output = dir.resolve("out");
+        try (var collector =
+                new StreamCollector(dir.resolve("s.sock"), output, Layout.PER_JVM, 0, s -> {})) {
+            try (var channel = connect(collector.getSocket(), 42, "my/rec")) {
+                sendStream(channel, values("a", 1000), true);
+                sendStream(channel, values("b", 10), true);
+            }
+            var streams = awaitStreams(collector, 2);
+            assertThat(streams).hasSize(2).allSatisfy(s -> assertTrue(s.complete()));
+            assertEquals(output.resolve("my_rec-42").resolve("0.cjfr"), streams.get(0).path());
+            assertEquals(output.resolve("my_rec-42").resolve("1.cjfr"), streams.get(1).path());
+            assertEquals(new Hello(42, "my/rec"), streams.get(0).hello());
+            assertEquals(values("a", 1000), read(streams.get(0).path()));
+            assertEquals(values("b", 10), read(streams.get(1).path()));
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    public void testFlatLayoutKeepsMaxFilesOverAllJvms(@TempDir Path dir) throws Exception {
+        Path output = dir.resolve("out");
+        try (var collector =
+                new StreamCollector(dir.resolve("s.sock"), output, Layout.FLAT, 3, s -> {})) {
+            try (var first = connect(collector.getSocket(), 1, "rec");
+                    var second = connect(collector.getSocket(), 2, "rec")) {
+                for (int i = 0; i < 3; i++) {
+                    sendStream(first, values("first " + i, 10), true);
+                    sendStream(second, values("second " + i, 10), true);
+                }
+            }
+            assertThat(awaitStreams(collector, 6)).hasSize(6);
+            try (var files = Files.list(output)) {
+                List<Path> remaining = files.sorted().toList();
+                assertThat(remaining).hasSize(3);
+                assertThat(remaining)
+                        .allSatisfy(
+                                p ->
+                                        assertThat(p.getFileName().toString())
+                                                .matches("rec-[12]_[0-2]\\.cjfr"));
+            }
+        }
+    }
+
+    /** A connection that breaks within a stream leaves a torn file, which can be recovered */
+    @Test
+    @Timeout(30)
+    public void testTornStreamCanBeRecovered(@TempDir Path dir) throws Exception {
+        Path output = dir.resolve("out");
+        try (var collector =
+                new StreamCollector(dir.resolve("s.sock"), output, Layout.PER_JVM, 0, s -> {})) {
+            try (var channel = connect(collector.getSocket(), 7, "rec")) {
+                sendStream(channel, values("a", 1000), false);
+            }
+            var streams = awaitStreams(collector, 1);
+            assertThat(streams).hasSize(1);
+            assertFalse(streams.get(0).complete());
+            Path recovered = dir.resolve("recovered.cjfr");
+            var result = CondensedRecovery.recover(streams.get(0).path(), recovered);
+            assertFalse(result.complete());
+            assertEquals(values("a", 1000), read(recovered));
+        }
+    }
+
+    @Test
+    @Timeout(30)
+    public void testConnectionsWithoutHelloAreRejected(@TempDir Path dir) throws Exception {
+        var log = new ArrayList<String>();
+        try (var collector =
+                new StreamCollector(
+                        dir.resolve("s.sock"),
+                        dir.resolve("out"),
+                        Layout.PER_JVM,
+                        0,
+                        s -> {
+                            synchronized (log) {
+                                log.add(s);
+                            }
+                        })) {
+            try (var channel = SocketStreamProtocol.connect(collector.getSocket())) {
+                channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}));
+                // the collector closes the connection
+                assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+            }
+            long end = System.nanoTime() + 5_000_000_000L;
+            while (System.nanoTime() < end) {
+                synchronized (log) {
+                    if (log.stream().anyMatch(s -> s.contains("Not a cjfr stream connection"))) {
+                        break;
+                    }
+                }
+                Thread.sleep(10);
+            }
+            synchronized (log) {
+                assertThat(log).anyMatch(s -> s.contains("Not a cjfr stream connection"));
+            }
+            assertThat(collector.getStreamFiles()).isEmpty();
+        }
+    }
+}